@@ -0,0 +1,78 @@
+package media.core.rtp.h265.benchmark;
+
+import media.core.rtp.RtpPacket;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+/**
+ * Synthetic NAL units of the realistic sizes
+ * - PARAMETER_SET : VPS / SPS / PPS / SEI (tens of bytes)
+ * - SLICE : P/B slice that fits in one packet (1.4 KB)
+ * - IDR : Key frame slice (300 KB, about 220 FUs with the MTU 1400)
+ */
+final class BenchmarkData {
+
+    static final int MTU = 1400;
+    static final int PAYLOAD_TYPE = 96;
+    static final long SSRC = 0x12345678L;
+
+    static final int TYPE_TRAIL_R = 1;
+    static final int TYPE_IDR_W_RADL = 19;
+    static final int TYPE_VPS = 32;
+    static final int TYPE_SPS = 33;
+    static final int TYPE_PPS = 34;
+    static final int TYPE_PREFIX_SEI = 39;
+
+    private static final Random random = new Random(7798);
+
+    private BenchmarkData () {
+        // Nothing
+    }
+
+    ////////////////////////////////////////////////////////////////////
+
+    static int getNaluSize (String naluSize) {
+        switch (naluSize) {
+            case "PARAMETER_SET": return 24;
+            case "SLICE": return 1400 - RtpPacket.FIXED_HEADER_SIZE;
+            case "IDR": return 300 * 1024;
+            default: throw new IllegalArgumentException("Unknown NALU size. (" + naluSize + ")");
+        }
+    }
+
+    static int getNaluType (String naluSize) {
+        switch (naluSize) {
+            case "PARAMETER_SET": return TYPE_SPS;
+            case "IDR": return TYPE_IDR_W_RADL;
+            default: return TYPE_TRAIL_R;
+        }
+    }
+
+    /**
+     * @return NAL unit (NALU Hdr + NALU Body) without start code
+     */
+    static byte[] makeNalu (int type, int size) {
+        byte[] nalu = new byte[size];
+        random.nextBytes(nalu);
+        nalu[0] = (byte) (type << 1); // F = 0, LayerId = 0
+        nalu[1] = 1; // TID = 1
+        return nalu;
+    }
+
+    /**
+     * @return [RTP Header] + [NALU Hdr + NALU Body]
+     */
+    static byte[] makePacket (int type, int size, int seqNumber, long timestamp, boolean marker) {
+        byte[] nalu = makeNalu(type, size);
+        ByteBuffer packet = ByteBuffer.allocate(RtpPacket.FIXED_HEADER_SIZE + size);
+        packet.put((byte) 0x80);
+        packet.put((byte) ((marker ? 0x80 : 0) | PAYLOAD_TYPE));
+        packet.putShort((short) seqNumber);
+        packet.putInt((int) timestamp);
+        packet.putInt((int) SSRC);
+        packet.put(nalu);
+        return packet.array();
+    }
+
+}
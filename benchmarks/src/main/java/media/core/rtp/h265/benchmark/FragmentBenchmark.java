@@ -0,0 +1,78 @@
+package media.core.rtp.h265.benchmark;
+
+import media.core.rtp.RtpBufferPool;
+import media.core.rtp.h265.H265Packer;
+import media.core.rtp.h265.H265Packet;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * H265Packer.fragment() of one NAL unit with the MTU 1400
+ * - SLICE fits in one Single NAL Unit packet, IDR is split to about 220 FUs.
+ * - fragmentPooled : Packets take their buffers from RtpBufferPool and are released. (No direct allocation in steady state)
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class FragmentBenchmark {
+
+    @Param({"SLICE", "IDR"})
+    public String naluSize;
+
+    private H265Packer h265Packer;
+    private H265Packer pooledPacker;
+    private ByteBuffer nalu;
+    private final List<H265Packet> fuList = new ArrayList<>();
+
+    ////////////////////////////////////////////////////////////////////
+
+    @Setup
+    public void setup () {
+        h265Packer = new H265Packer();
+        pooledPacker = new H265Packer();
+        RtpBufferPool bufferPool = new RtpBufferPool();
+        bufferPool.setLeakDetectionEnabled(false);
+        pooledPacker.setBufferPool(bufferPool);
+
+        byte[] data = BenchmarkData.makeNalu(BenchmarkData.getNaluType(naluSize), BenchmarkData.getNaluSize(naluSize));
+        nalu = ByteBuffer.allocateDirect(data.length);
+        nalu.put(data);
+        nalu.flip();
+    }
+
+    ////////////////////////////////////////////////////////////////////
+
+    @Benchmark
+    public int fragment () {
+        fuList.clear();
+        return h265Packer.fragment(nalu, BenchmarkData.MTU, fuList);
+    }
+
+    @Benchmark
+    public int fragmentPooled () {
+        fuList.clear();
+        int count = pooledPacker.fragment(nalu, BenchmarkData.MTU, fuList);
+        for (int i = 0; i < fuList.size(); i++) {
+            fuList.get(i).release();
+        }
+        return count;
+    }
+
+}
@@ -0,0 +1,36 @@
+package media.core.rtp.h265.benchmark;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Entry point of benchmarks.jar
+ * - Same options as org.openjdk.jmh.Main. (ex. java -jar benchmarks.jar UnpackerBenchmark -f 1)
+ * - The GC profiler is added if no profiler is given, so bytes allocated per op (gc.alloc.rate.norm) are always reported.
+ */
+public class H265Benchmarks {
+
+    public static void main (String[] args) throws Exception {
+        CommandLineOptions commandLineOptions = new CommandLineOptions(args);
+        if (commandLineOptions.shouldHelp()) {
+            commandLineOptions.showHelp();
+            return;
+        }
+
+        ChainedOptionsBuilder optionsBuilder = new OptionsBuilder().parent(commandLineOptions);
+        if (commandLineOptions.getProfilers().isEmpty()) {
+            optionsBuilder.addProfiler(GCProfiler.class);
+        }
+
+        Runner runner = new Runner(optionsBuilder.build());
+        if (commandLineOptions.shouldList()) {
+            runner.list();
+            return;
+        }
+        runner.run();
+    }
+
+}
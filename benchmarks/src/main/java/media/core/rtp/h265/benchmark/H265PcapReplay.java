@@ -0,0 +1,81 @@
+package media.core.rtp.h265.benchmark;
+
+import media.core.rtp.RtpPcapReader;
+import media.core.rtp.h265.H265Metrics;
+import media.core.rtp.h265.H265PcapReplayer;
+import media.core.rtp.h265.H265SsrcDemuxer;
+import media.core.rtp.h265.H265Unpacker;
+
+import java.nio.file.Paths;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Replays a real capture through the depacketizer (H265PcapReplayer > H265SsrcDemuxer)
+ * - --speed 0 (default) : As fast as possible, repeated --iterations times. Reports packets/s per iteration.
+ * - --speed N : Paced replay (1 : Original pacing) to reproduce an incident offline.
+ *
+ * ex. java -cp target/benchmarks.jar media.core.rtp.h265.benchmark.H265PcapReplay capture.pcapng --port 5004 --iterations 10
+ */
+public class H265PcapReplay {
+
+    public static void main (String[] args) throws Exception {
+        if (args.length == 0) {
+            printUsage();
+            return;
+        }
+
+        String file = args[0];
+        double speed = H265PcapReplayer.FLAT_OUT;
+        int iterations = 5;
+        int port = 0;
+        try {
+            for (int i = 1; i < args.length; i++) {
+                switch (args[i]) {
+                    case "--speed": speed = Double.parseDouble(args[++i]); break;
+                    case "--iterations": iterations = Integer.parseInt(args[++i]); break;
+                    case "--port": port = Integer.parseInt(args[++i]); break;
+                    default:
+                        System.err.println("Unknown option : " + args[i]);
+                        printUsage();
+                        return;
+                }
+            }
+        } catch (ArrayIndexOutOfBoundsException | NumberFormatException e) {
+            System.err.println("Wrong option value : " + e.getMessage());
+            printUsage();
+            return;
+        }
+
+        final LongAdder naluCount = new LongAdder();
+        try (RtpPcapReader reader = RtpPcapReader.open(Paths.get(file))) {
+            reader.setPortFilter(port);
+            for (int i = 0; i < iterations; i++) {
+                // New streams per iteration (The capture restarts its sequence numbers)
+                H265SsrcDemuxer demuxer = new H265SsrcDemuxer(ssrc -> {
+                    H265Unpacker h265Unpacker = new H265Unpacker();
+                    h265Unpacker.setMetrics(new H265Metrics());
+                    h265Unpacker.setNaluSink((nalu, timestamp, marker) -> naluCount.increment());
+                    return h265Unpacker;
+                });
+                H265PcapReplayer replayer = new H265PcapReplayer(reader, demuxer);
+                replayer.setSpeed(speed);
+
+                reader.rewind();
+                naluCount.reset();
+                long startTime = System.nanoTime();
+                long packets = replayer.replay();
+                double seconds = (System.nanoTime() - startTime) / 1e9;
+
+                System.out.printf("Iteration %d : %d packets (%d skipped records), %d streams, %d NAL units, %.3f s, %.0f packets/s, %d failed%n",
+                        i + 1, packets, reader.getSkippedRecords(), demuxer.getStreamCount(), naluCount.sum(),
+                        seconds, packets / seconds, replayer.getFailedPackets());
+            }
+        }
+        System.out.println("Metrics : " + H265Metrics.getGlobal());
+    }
+
+    private static void printUsage () {
+        System.out.println("Usage : H265PcapReplay <file.pcap|file.pcapng> [--speed 0 (flat out) | 1 (original) | N] [--iterations 5] [--port 0 (all)]");
+    }
+
+}
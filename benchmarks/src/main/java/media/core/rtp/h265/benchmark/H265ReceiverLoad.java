@@ -0,0 +1,166 @@
+package media.core.rtp.h265.benchmark;
+
+import media.core.rtp.RtpBufferPool;
+import media.core.rtp.h265.H265DatagramReceiver;
+import media.core.rtp.h265.H265Metrics;
+import media.core.rtp.h265.H265Packer;
+import media.core.rtp.h265.H265Packet;
+import media.core.rtp.h265.H265SsrcDemuxer;
+import media.core.rtp.h265.H265Unpacker;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Loopback load test of H265DatagramReceiver
+ * - A sender thread sends synthetic streams (H265StreamGenerator) to 127.0.0.1 at the packet rate. (0 : As fast as possible)
+ * - The receiver thread runs H265DatagramReceiver.run() (Selector > batch receive > H265SsrcDemuxer).
+ * - Reports packets/s received, loss, datagrams per wakeup,
+ *      and the CPU time of the receiver thread : % of a core, and % of a core per 10k packets/s.
+ *
+ * ex. java -cp target/benchmarks.jar media.core.rtp.h265.benchmark.H265ReceiverLoad --rate 10000 --duration 10
+ */
+public class H265ReceiverLoad {
+
+    private static final int SOCKET_BUFFER_SIZE = 8 * 1024 * 1024;
+
+    public static void main (String[] args) throws Exception {
+        int rate = 10000;
+        int durationSec = 10;
+        int streams = 100;
+        int batchSize = H265DatagramReceiver.DEFAULT_BATCH_SIZE;
+        try {
+            for (int i = 0; i < args.length; i++) {
+                switch (args[i]) {
+                    case "--rate": rate = Integer.parseInt(args[++i]); break;
+                    case "--duration": durationSec = Integer.parseInt(args[++i]); break;
+                    case "--streams": streams = Integer.parseInt(args[++i]); break;
+                    case "--batch": batchSize = Integer.parseInt(args[++i]); break;
+                    default:
+                        System.err.println("Unknown option : " + args[i]);
+                        printUsage();
+                        return;
+                }
+            }
+        } catch (ArrayIndexOutOfBoundsException | NumberFormatException e) {
+            System.err.println("Wrong option value : " + e.getMessage());
+            printUsage();
+            return;
+        }
+        if (rate < 0 || durationSec <= 0 || streams <= 0 || batchSize <= 0) {
+            printUsage();
+            return;
+        }
+
+        run(rate, durationSec, streams, batchSize);
+    }
+
+    private static void printUsage () {
+        System.out.println("Usage : H265ReceiverLoad [--rate 10000 (packets/s, 0 : unlimited)] [--duration 10] [--streams 100] [--batch 64]");
+    }
+
+    ////////////////////////////////////////////////////////////////////
+
+    private static void run (int rate, int durationSec, int streams, int batchSize) throws IOException, InterruptedException {
+        final LongAdder naluCount = new LongAdder();
+        RtpBufferPool bufferPool = new RtpBufferPool();
+        bufferPool.setLeakDetectionEnabled(false);
+        H265SsrcDemuxer demuxer = new H265SsrcDemuxer(ssrc -> {
+            H265Unpacker h265Unpacker = new H265Unpacker();
+            h265Unpacker.setMetrics(new H265Metrics());
+            h265Unpacker.setBufferPool(bufferPool);
+            h265Unpacker.setNaluSink((nalu, timestamp, marker) -> naluCount.increment());
+            return h265Unpacker;
+        });
+
+        H265DatagramReceiver receiver = new H265DatagramReceiver(demuxer, bufferPool, batchSize, H265DatagramReceiver.DEFAULT_MAX_DATAGRAM_SIZE);
+        DatagramChannel channel = DatagramChannel.open();
+        channel.setOption(StandardSocketOptions.SO_RCVBUF, SOCKET_BUFFER_SIZE);
+        channel.bind(new InetSocketAddress("127.0.0.1", 0));
+        receiver.register(channel);
+
+        DatagramChannel sender = DatagramChannel.open();
+        sender.setOption(StandardSocketOptions.SO_SNDBUF, SOCKET_BUFFER_SIZE);
+        sender.connect(channel.getLocalAddress());
+
+        List<H265StreamGenerator> generators = new ArrayList<>();
+        for (int i = 0; i < streams; i++) {
+            H265Packer h265Packer = new H265Packer();
+            h265Packer.setBufferPool(bufferPool);
+            generators.add(new H265StreamGenerator(h265Packer, 0x20000000L + i, 2_000_000, 30, 60, BenchmarkData.MTU));
+        }
+
+        System.out.printf("Receiver load : rate=%s, streams=%d, batch=%d, duration=%ds%n",
+                rate == 0 ? "unlimited" : rate + " packets/s", streams, batchSize, durationSec);
+
+        ThreadMXBean threadMXBean = ManagementFactory.getThreadMXBean();
+        Thread receiverThread = new Thread(receiver, "receiver");
+        receiverThread.start();
+
+        // Sender (this thread)
+        List<H265Packet> packetList = new ArrayList<>();
+        long intervalNanos = rate == 0 ? 0 : TimeUnit.SECONDS.toNanos(1) / rate;
+        long startTime = System.nanoTime();
+        long endTime = startTime + TimeUnit.SECONDS.toNanos(durationSec);
+        long startCpu = threadMXBean.getThreadCpuTime(receiverThread.getId());
+        long sentPackets = 0;
+        long nextSend = startTime;
+        int streamIndex = 0;
+
+        while (System.nanoTime() < endTime) {
+            generators.get(streamIndex).nextFrame(packetList);
+            streamIndex = (streamIndex + 1) % streams;
+
+            for (int i = 0; i < packetList.size(); i++) {
+                H265Packet h265Packet = packetList.get(i);
+                if (intervalNanos > 0) {
+                    nextSend += intervalNanos;
+                    long waitNanos = nextSend - System.nanoTime();
+                    if (waitNanos > 0) {
+                        LockSupport.parkNanos(waitNanos);
+                    }
+                }
+
+                ByteBuffer src = h265Packet.getBuffer();
+                src.position(0);
+                sender.write(src);
+                h265Packet.release();
+                sentPackets++;
+            }
+            packetList.clear();
+        }
+        long elapsedNanos = System.nanoTime() - startTime;
+
+        // Drain the socket buffer
+        TimeUnit.MILLISECONDS.sleep(200);
+        long cpuNanos = threadMXBean.getThreadCpuTime(receiverThread.getId()) - startCpu;
+        receiver.close();
+        receiverThread.join();
+        sender.close();
+
+        double seconds = elapsedNanos / 1e9;
+        double receivedRate = receiver.getReceivedDatagrams() / seconds;
+        double cpuPercent = cpuNanos / (double) elapsedNanos * 100;
+        System.out.println("---------------------------------------------------------------");
+        System.out.printf("Sent             : %.0f packets/s (%d packets)%n", sentPackets / seconds, sentPackets);
+        System.out.printf("Received         : %.0f packets/s (%d packets, %.3f%% lost, %d dropped)%n",
+                receivedRate, receiver.getReceivedDatagrams(),
+                sentPackets == 0 ? 0 : (sentPackets - receiver.getReceivedDatagrams()) * 100.0 / sentPackets,
+                receiver.getDroppedDatagrams());
+        System.out.printf("Batch            : %.1f datagrams per wakeup%n", receiver.getAverageBatch());
+        System.out.printf("NAL units        : %d%n", naluCount.sum());
+        System.out.printf("Receiver CPU     : %.1f%% of a core, %.2f%% per 10k packets/s%n",
+                cpuPercent, receivedRate == 0 ? 0 : cpuPercent / (receivedRate / 10000));
+    }
+
+}
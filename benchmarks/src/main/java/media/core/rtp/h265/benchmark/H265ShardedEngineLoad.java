@@ -0,0 +1,222 @@
+package media.core.rtp.h265.benchmark;
+
+import media.core.rtp.RtpBufferPool;
+import media.core.rtp.h265.H265Packer;
+import media.core.rtp.h265.H265Packet;
+import media.core.rtp.h265.H265ShardedEngine;
+import media.core.rtp.h265.H265Unpacker;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Scaling test of H265ShardedEngine by the number of shards
+ * - Producer threads generate frames of the synthetic streams (H265StreamGenerator) as fast as the engine takes them,
+ *      and ingest the pooled packets. (The engine releases them)
+ * - The same streams are run for each shard count. Reports handled packets/s, speedup to 1 shard, shard busy ratios and drops.
+ * - rebalance() is called every second.
+ *
+ * ex. java -cp target/benchmarks.jar media.core.rtp.h265.benchmark.H265ShardedEngineLoad --streams 1000 --producers 2 --shards 1,2,4
+ */
+public class H265ShardedEngineLoad {
+
+    private int streams = 1000;
+    private int producers = 2;
+    private int[] shardCounts = null;
+    private int durationSec = 10;
+    private int bitrate = 2_000_000;
+    private int fps = 30;
+    private int gopSize = 60;
+    private int mtu = 1400;
+
+    private volatile boolean isRunning = true;
+
+    ////////////////////////////////////////////////////////////////////
+
+    public static void main (String[] args) throws Exception {
+        H265ShardedEngineLoad load = new H265ShardedEngineLoad();
+        if (!load.parse(args)) {
+            printUsage();
+            return;
+        }
+        load.run();
+    }
+
+    ////////////////////////////////////////////////////////////////////
+
+    private void run () throws InterruptedException {
+        System.out.printf("Sharded engine : streams=%d, producers=%d, bitrate=%d bps, fps=%d, gop=%d, mtu=%d, duration=%ds%n",
+                streams, producers, bitrate, fps, gopSize, mtu, durationSec);
+
+        double basePps = 0;
+        for (int shardCount : shardCounts) {
+            double pps = runOnce(shardCount);
+            if (basePps == 0) {
+                basePps = pps;
+            }
+            System.out.printf("  -> speedup %.2fx%n", pps / basePps);
+        }
+    }
+
+    private double runOnce (int shardCount) throws InterruptedException {
+        RtpBufferPool bufferPool = new RtpBufferPool(4096);
+        bufferPool.setLeakDetectionEnabled(false);
+        final LongAdder naluBytes = new LongAdder();
+        H265ShardedEngine engine = new H265ShardedEngine(ssrc -> {
+            H265Unpacker h265Unpacker = new H265Unpacker();
+            h265Unpacker.setBufferPool(bufferPool);
+            h265Unpacker.setNaluSink((nalu, timestamp, marker) -> naluBytes.add(nalu.getLength()));
+            return h265Unpacker;
+        }, shardCount, H265ShardedEngine.DEFAULT_QUEUE_SIZE, bufferPool);
+        engine.start();
+
+        isRunning = true;
+        Producer[] producerArray = new Producer[producers];
+        for (int i = 0; i < producers; i++) {
+            producerArray[i] = new Producer(i, engine, bufferPool);
+        }
+        for (int i = 0; i < streams; i++) {
+            producerArray[i % producers].addStream(0x20000000L + i);
+        }
+        for (Producer producer : producerArray) {
+            producer.start();
+        }
+
+        // Warmup (1 s), then measurement
+        TimeUnit.SECONDS.sleep(1);
+        engine.rebalance();
+        List<H265ShardedEngine.ShardStats> startStats = engine.getShardStats();
+        long startBytes = naluBytes.sum();
+        long startNanos = System.nanoTime();
+        for (int i = 0; i < durationSec; i++) {
+            TimeUnit.SECONDS.sleep(1);
+            engine.rebalance();
+        }
+        double seconds = (System.nanoTime() - startNanos) / 1e9;
+        List<H265ShardedEngine.ShardStats> endStats = engine.getShardStats();
+        long bytes = naluBytes.sum() - startBytes;
+
+        isRunning = false;
+        for (Producer producer : producerArray) {
+            producer.join();
+        }
+        engine.shutdown(H265ShardedEngine.DEFAULT_SHUTDOWN_TIMEOUT_MS);
+
+        long handled = 0;
+        long busy = 0;
+        long dropped = 0;
+        long moved = 0;
+        StringBuilder busyRatios = new StringBuilder();
+        for (int i = 0; i < shardCount; i++) {
+            H265ShardedEngine.ShardStats start = startStats.get(i);
+            H265ShardedEngine.ShardStats end = endStats.get(i);
+            long shardBusy = end.getBusyNanos() - start.getBusyNanos();
+            handled += end.getHandledPackets() - start.getHandledPackets();
+            busy += shardBusy;
+            dropped += end.getDroppedPackets() - start.getDroppedPackets();
+            moved += end.getMovedOutStreams();
+            busyRatios.append(String.format(" %.0f%%", shardBusy / 1e7 / seconds));
+        }
+        double pps = handled / seconds;
+        System.out.printf("shards=%d : %.0f packets/s, %.1f MB/s of NAL units, busy %.2f cores (per shard :%s), dropped=%d, moved streams=%d%n",
+                shardCount, pps, bytes / seconds / 1e6, busy / 1e9 / seconds, busyRatios, dropped, moved);
+        return pps;
+    }
+
+    ////////////////////////////////////////////////////////////////////
+
+    private boolean parse (String[] args) {
+        String shards = null;
+        try {
+            for (int i = 0; i < args.length; i++) {
+                switch (args[i]) {
+                    case "--streams": streams = Integer.parseInt(args[++i]); break;
+                    case "--producers": producers = Integer.parseInt(args[++i]); break;
+                    case "--shards": shards = args[++i]; break;
+                    case "--duration": durationSec = Integer.parseInt(args[++i]); break;
+                    case "--bitrate": bitrate = Integer.parseInt(args[++i]); break;
+                    case "--fps": fps = Integer.parseInt(args[++i]); break;
+                    case "--gop": gopSize = Integer.parseInt(args[++i]); break;
+                    case "--mtu": mtu = Integer.parseInt(args[++i]); break;
+                    default:
+                        System.err.println("Unknown option : " + args[i]);
+                        return false;
+                }
+            }
+
+            if (shards == null) {
+                List<Integer> shardList = new ArrayList<>();
+                for (int count = 1; count <= Runtime.getRuntime().availableProcessors(); count *= 2) {
+                    shardList.add(count);
+                }
+                shardCounts = shardList.stream().mapToInt(Integer::intValue).toArray();
+            } else {
+                String[] tokens = shards.split(",");
+                shardCounts = new int[tokens.length];
+                for (int i = 0; i < tokens.length; i++) {
+                    shardCounts[i] = Integer.parseInt(tokens[i].trim());
+                }
+            }
+        } catch (ArrayIndexOutOfBoundsException | NumberFormatException e) {
+            System.err.println("Wrong option value : " + e.getMessage());
+            return false;
+        }
+
+        for (int shardCount : shardCounts) {
+            if (shardCount <= 0) {
+                return false;
+            }
+        }
+        if (streams <= 0 || producers <= 0 || durationSec <= 0 || bitrate <= 0 || fps <= 0 || gopSize <= 0) {
+            return false;
+        }
+        producers = Math.min(producers, streams);
+        return true;
+    }
+
+    private static void printUsage () {
+        System.out.println("Usage : H265ShardedEngineLoad [--streams 1000] [--producers 2] [--shards 1,2,4 (default : 1 to cores)]"
+                + " [--duration 10] [--bitrate 2000000] [--fps 30] [--gop 60] [--mtu 1400]");
+    }
+
+    ////////////////////////////////////////////////////////////////////
+
+    private final class Producer extends Thread {
+
+        private final H265ShardedEngine engine;
+        private final RtpBufferPool bufferPool;
+        private final List<H265StreamGenerator> generators = new ArrayList<>();
+        private final List<H265Packet> packetList = new ArrayList<>();
+
+        private Producer (int index, H265ShardedEngine engine, RtpBufferPool bufferPool) {
+            super("producer-" + index);
+            this.engine = engine;
+            this.bufferPool = bufferPool;
+        }
+
+        private void addStream (long ssrc) {
+            H265Packer h265Packer = new H265Packer();
+            h265Packer.setBufferPool(bufferPool);
+            generators.add(new H265StreamGenerator(h265Packer, ssrc, bitrate, fps, gopSize, mtu));
+        }
+
+        @Override
+        public void run () {
+            while (isRunning) {
+                for (int i = 0; i < generators.size() && isRunning; i++) {
+                    generators.get(i).nextFrame(packetList);
+                    for (int j = 0; j < packetList.size(); j++) {
+                        if (!engine.ingest(packetList.get(j))) {
+                            Thread.yield(); // Queue is full : Lets the shards catch up
+                        }
+                    }
+                    packetList.clear();
+                }
+            }
+        }
+
+    }
+
+}
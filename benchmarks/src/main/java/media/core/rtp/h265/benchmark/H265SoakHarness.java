@@ -0,0 +1,328 @@
+package media.core.rtp.h265.benchmark;
+
+import media.core.rtp.RtpBufferPool;
+import media.core.rtp.h265.H265Metrics;
+import media.core.rtp.h265.H265Packer;
+import media.core.rtp.h265.H265Packet;
+import media.core.rtp.h265.H265SsrcDemuxer;
+import media.core.rtp.h265.H265Unpacker;
+
+import java.lang.management.BufferPoolMXBean;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Sustained-load soak test of the depacketizer (H265SsrcDemuxer > H265Unpacker)
+ * - Thousands of synthetic streams (H265StreamGenerator) are packetized and depacketized in process.
+ *      1) Each worker thread owns (streams / threads) streams and generates one frame per stream per round.
+ *      2) Every packet is timed around H265SsrcDemuxer.handle() and released to the pool.
+ *      3) Paced mode (--paced) : A round takes 1 / fps second, so the offered load is streams x bitrate.
+ *          Otherwise the streams are driven as fast as possible.
+ * - After the warmup, it runs for the duration and reports :
+ *      packets/s, p50/p99/p999 per-packet latency, GC count and time per collector,
+ *      heap and direct memory high-water marks (Sampled every 100 ms), and the global H265Metrics.
+ *
+ * ex. java -cp target/benchmarks.jar media.core.rtp.h265.benchmark.H265SoakHarness --streams 2000 --duration 60 --threads 4 --paced
+ */
+public class H265SoakHarness {
+
+    private static final long SAMPLE_INTERVAL_MS = 100;
+
+    private int streams = 1000;
+    private int threads = Math.max(1, Runtime.getRuntime().availableProcessors() / 2);
+    private int durationSec = 30;
+    private int warmupSec = 5;
+    private int bitrate = 2_000_000;
+    private int fps = 30;
+    private int gopSize = 60;
+    private int mtu = BenchmarkData.MTU;
+    private int parameterSetInterval = 1;
+    private boolean isPaced = false;
+
+    private final LongAdder naluBytes = new LongAdder();
+    private volatile boolean isMeasuring = false;
+    private volatile boolean isRunning = true;
+
+    private volatile long heapPeak = 0;
+    private volatile long directPeak = 0;
+
+    ////////////////////////////////////////////////////////////////////
+
+    public static void main (String[] args) throws Exception {
+        H265SoakHarness h265SoakHarness = new H265SoakHarness();
+        if (!h265SoakHarness.parse(args)) {
+            printUsage();
+            return;
+        }
+        h265SoakHarness.run();
+    }
+
+    ////////////////////////////////////////////////////////////////////
+
+    private void run () throws InterruptedException {
+        RtpBufferPool bufferPool = new RtpBufferPool(4096);
+        bufferPool.setLeakDetectionEnabled(false);
+        H265SsrcDemuxer demuxer = new H265SsrcDemuxer(ssrc -> {
+            H265Unpacker h265Unpacker = new H265Unpacker();
+            h265Unpacker.setMetrics(new H265Metrics());
+            h265Unpacker.setBufferPool(bufferPool);
+            h265Unpacker.setNaluSink((nalu, timestamp, marker) -> naluBytes.add(nalu.getLength()));
+            return h265Unpacker;
+        });
+
+        Worker[] workers = new Worker[threads];
+        for (int i = 0; i < threads; i++) {
+            workers[i] = new Worker(i, demuxer, bufferPool);
+        }
+        for (int i = 0; i < streams; i++) {
+            workers[i % threads].addStream(0x10000000L + i);
+        }
+
+        System.out.printf("Soak : streams=%d, threads=%d, bitrate=%d bps, fps=%d, gop=%d, mtu=%d, paced=%s, warmup=%ds, duration=%ds%n",
+                streams, threads, bitrate, fps, gopSize, mtu, isPaced, warmupSec, durationSec);
+
+        Thread sampler = new Thread(this::sample, "soak-sampler");
+        sampler.setDaemon(true);
+        sampler.start();
+        for (Worker worker : workers) {
+            worker.start();
+        }
+
+        TimeUnit.SECONDS.sleep(warmupSec);
+        Map<String, long[]> gcStart = getGcStats();
+        H265Metrics.getGlobal().resetCounters();
+        naluBytes.reset();
+        heapPeak = 0;
+        directPeak = 0;
+        CountDownLatch measureStarted = new CountDownLatch(threads);
+        for (Worker worker : workers) {
+            worker.measureStarted = measureStarted;
+        }
+        isMeasuring = true;
+        measureStarted.await();
+        long startTime = System.nanoTime();
+
+        TimeUnit.SECONDS.sleep(durationSec);
+        isRunning = false;
+        for (Worker worker : workers) {
+            worker.join();
+        }
+        long elapsedNanos = System.nanoTime() - startTime;
+        Map<String, long[]> gcEnd = getGcStats();
+
+        report(workers, elapsedNanos, gcStart, gcEnd, bufferPool);
+    }
+
+    private void report (Worker[] workers, long elapsedNanos, Map<String, long[]> gcStart, Map<String, long[]> gcEnd, RtpBufferPool bufferPool) {
+        LatencyHistogram histogram = new LatencyHistogram();
+        long packets = 0;
+        long bytes = 0;
+        long frames = 0;
+        long lateRounds = 0;
+        for (Worker worker : workers) {
+            histogram.add(worker.histogram);
+            packets += worker.packets;
+            bytes += worker.bytes;
+            frames += worker.frames;
+            lateRounds += worker.lateRounds;
+        }
+
+        double seconds = elapsedNanos / 1e9;
+        System.out.println("---------------------------------------------------------------");
+        System.out.printf("Elapsed          : %.2f s%n", seconds);
+        System.out.printf("Throughput       : %.0f packets/s, %.2f Mbps, %.0f frames/s%n",
+                packets / seconds, bytes * 8 / seconds / 1e6, frames / seconds);
+        System.out.printf("NAL units out    : %.2f Mbps%n", naluBytes.sum() * 8 / seconds / 1e6);
+        System.out.printf("Latency (ns)     : p50=%d, p99=%d, p999=%d, max=%d (%d samples)%n",
+                histogram.getValueAtPercentile(50), histogram.getValueAtPercentile(99),
+                histogram.getValueAtPercentile(99.9), histogram.getMax(), histogram.getTotalCount());
+        if (isPaced) {
+            System.out.printf("Late rounds      : %d (The workers couldn't keep up with the pace)%n", lateRounds);
+        }
+
+        long gcCount = 0;
+        long gcTime = 0;
+        for (Map.Entry<String, long[]> entry : gcEnd.entrySet()) {
+            long[] start = gcStart.getOrDefault(entry.getKey(), new long[2]);
+            long count = entry.getValue()[0] - start[0];
+            long time = entry.getValue()[1] - start[1];
+            gcCount += count;
+            gcTime += time;
+            System.out.printf("GC %-14s: %d collections, %d ms%n", entry.getKey(), count, time);
+        }
+        System.out.printf("GC total         : %d collections, %d ms (%.3f%% of the elapsed time)%n",
+                gcCount, gcTime, gcTime / 10.0 / seconds);
+        System.out.printf("Heap peak        : %.1f MB%n", heapPeak / 1048576.0);
+        System.out.printf("Direct peak      : %.1f MB%n", directPeak / 1048576.0);
+        System.out.printf("Buffer pool      : allocated=%d, acquired=%d, released=%d%n",
+                bufferPool.getAllocatedBuffers(), bufferPool.getAcquiredBuffers(), bufferPool.getReleasedBuffers());
+        System.out.println("Metrics          : " + H265Metrics.getGlobal());
+    }
+
+    ////////////////////////////////////////////////////////////////////
+
+    /**
+     * Samples the heap and direct memory usage until the end of the run.
+     */
+    private void sample () {
+        MemoryMXBean memoryMXBean = ManagementFactory.getMemoryMXBean();
+        BufferPoolMXBean directPool = null;
+        for (BufferPoolMXBean bufferPoolMXBean : ManagementFactory.getPlatformMXBeans(BufferPoolMXBean.class)) {
+            if ("direct".equals(bufferPoolMXBean.getName())) {
+                directPool = bufferPoolMXBean;
+            }
+        }
+
+        while (isRunning) {
+            heapPeak = Math.max(heapPeak, memoryMXBean.getHeapMemoryUsage().getUsed());
+            if (directPool != null) {
+                directPeak = Math.max(directPeak, directPool.getMemoryUsed());
+            }
+            try {
+                TimeUnit.MILLISECONDS.sleep(SAMPLE_INTERVAL_MS);
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * @return Collection count and time (ms) per collector
+     */
+    private static Map<String, long[]> getGcStats () {
+        Map<String, long[]> gcStats = new LinkedHashMap<>();
+        for (GarbageCollectorMXBean garbageCollectorMXBean : ManagementFactory.getGarbageCollectorMXBeans()) {
+            gcStats.put(garbageCollectorMXBean.getName(),
+                    new long[]{garbageCollectorMXBean.getCollectionCount(), garbageCollectorMXBean.getCollectionTime()});
+        }
+        return gcStats;
+    }
+
+    ////////////////////////////////////////////////////////////////////
+
+    private boolean parse (String[] args) {
+        try {
+            for (int i = 0; i < args.length; i++) {
+                switch (args[i]) {
+                    case "--streams": streams = Integer.parseInt(args[++i]); break;
+                    case "--threads": threads = Integer.parseInt(args[++i]); break;
+                    case "--duration": durationSec = Integer.parseInt(args[++i]); break;
+                    case "--warmup": warmupSec = Integer.parseInt(args[++i]); break;
+                    case "--bitrate": bitrate = Integer.parseInt(args[++i]); break;
+                    case "--fps": fps = Integer.parseInt(args[++i]); break;
+                    case "--gop": gopSize = Integer.parseInt(args[++i]); break;
+                    case "--mtu": mtu = Integer.parseInt(args[++i]); break;
+                    case "--ps-interval": parameterSetInterval = Integer.parseInt(args[++i]); break;
+                    case "--paced": isPaced = true; break;
+                    default:
+                        System.err.println("Unknown option : " + args[i]);
+                        return false;
+                }
+            }
+        } catch (ArrayIndexOutOfBoundsException | NumberFormatException e) {
+            System.err.println("Wrong option value : " + e.getMessage());
+            return false;
+        }
+
+        if (streams <= 0 || threads <= 0 || durationSec <= 0 || warmupSec < 0 || bitrate <= 0 || fps <= 0 || gopSize <= 0) {
+            System.err.println("Options must be positive.");
+            return false;
+        }
+        threads = Math.min(threads, streams);
+        return true;
+    }
+
+    private static void printUsage () {
+        System.out.println("Usage : H265SoakHarness [--streams 1000] [--threads n] [--duration 30] [--warmup 5]"
+                + " [--bitrate 2000000] [--fps 30] [--gop 60] [--mtu 1400] [--ps-interval 1] [--paced]");
+    }
+
+    ////////////////////////////////////////////////////////////////////
+
+    private final class Worker extends Thread {
+
+        private final H265SsrcDemuxer demuxer;
+        private final RtpBufferPool bufferPool;
+        private final List<H265StreamGenerator> generators = new ArrayList<>();
+        private final List<H265Packet> packetList = new ArrayList<>();
+        private LatencyHistogram histogram = new LatencyHistogram();
+        private volatile CountDownLatch measureStarted = null;
+
+        private long packets = 0;
+        private long bytes = 0;
+        private long frames = 0;
+        private long lateRounds = 0;
+
+        private Worker (int index, H265SsrcDemuxer demuxer, RtpBufferPool bufferPool) {
+            super("soak-worker-" + index);
+            this.demuxer = demuxer;
+            this.bufferPool = bufferPool;
+        }
+
+        private void addStream (long ssrc) {
+            H265Packer h265Packer = new H265Packer();
+            h265Packer.setBufferPool(bufferPool);
+            H265StreamGenerator generator = new H265StreamGenerator(h265Packer, ssrc, bitrate, fps, gopSize, mtu);
+            generator.setParameterSetInterval(parameterSetInterval);
+            generators.add(generator);
+        }
+
+        @Override
+        public void run () {
+            long roundNanos = TimeUnit.SECONDS.toNanos(1) / fps;
+            long nextRound = System.nanoTime();
+            boolean isMeasured = false;
+
+            while (isRunning) {
+                if (!isMeasured && isMeasuring) {
+                    // Drops the warmup results
+                    isMeasured = true;
+                    histogram = new LatencyHistogram();
+                    packets = 0;
+                    bytes = 0;
+                    frames = 0;
+                    lateRounds = 0;
+                    measureStarted.countDown();
+                }
+
+                for (int i = 0; i < generators.size() && isRunning; i++) {
+                    generators.get(i).nextFrame(packetList);
+                    for (int j = 0; j < packetList.size(); j++) {
+                        H265Packet h265Packet = packetList.get(j);
+                        int length = h265Packet.getLength();
+                        long startTime = System.nanoTime();
+                        demuxer.handle(h265Packet, startTime);
+                        histogram.record(System.nanoTime() - startTime);
+                        h265Packet.release();
+                        bytes += length;
+                    }
+                    packets += packetList.size();
+                    frames++;
+                    packetList.clear();
+                }
+
+                if (isPaced) {
+                    nextRound += roundNanos;
+                    long waitNanos = nextRound - System.nanoTime();
+                    if (waitNanos > 0) {
+                        LockSupport.parkNanos(waitNanos);
+                    } else {
+                        lateRounds++;
+                        nextRound = System.nanoTime();
+                    }
+                }
+            }
+        }
+
+    }
+
+}
@@ -0,0 +1,169 @@
+package media.core.rtp.h265.benchmark;
+
+import media.core.rtp.h265.H265Packer;
+import media.core.rtp.h265.H265PacketizerSession;
+import media.core.rtp.h265.H265Packet;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Synthetic HEVC RTP stream with a realistic GOP structure
+ * - GOP : IRAP (IDR_W_RADL) + (gopSize - 1) frames alternating TRAIL_R (TID 1) and TRAIL_N (TID 2).
+ * - Parameter sets (VPS, SPS, PPS) are sent before the IRAP every parameterSetInterval GOPs.
+ * - Frame sizes follow the bitrate : Average frame size = bitrate / 8 / fps, weighted per frame type
+ *      (IRAP : irapWeight, TRAIL_R : 1, TRAIL_N : trailNWeight) with +-20% jitter.
+ * - NAL units are packetized by H265PacketizerSession (H265Packer) with the MTU.
+ *      Packets take their buffers from the pool of the packer if it's set. (The receiver releases them)
+ * - Not thread-safe. (One generator per stream)
+ */
+public class H265StreamGenerator {
+
+    private static final int TYPE_TRAIL_N = 0;
+    private static final int TYPE_TRAIL_R = 1;
+    private static final int TYPE_IDR_W_RADL = 19;
+    private static final int TYPE_VPS = 32;
+    private static final int TYPE_SPS = 33;
+    private static final int TYPE_PPS = 34;
+    private static final int[] PARAMETER_SET_SIZES = {24, 42, 8}; // VPS, SPS, PPS
+
+    private static final int PAYLOAD_TYPE = 96;
+    private static final int RANDOM_BLOCK_SIZE = 1024 * 1024;
+    private static final byte[] RANDOM_BLOCK = new byte[RANDOM_BLOCK_SIZE];
+
+    static {
+        new Random(7798).nextBytes(RANDOM_BLOCK);
+    }
+
+    private final H265PacketizerSession session;
+    private final Random random;
+    private final int fps;
+    private final int gopSize;
+    private final long timestampDelta;
+
+    private int parameterSetInterval = 1;
+    private double irapWeight = 8;
+    private double trailNWeight = 0.5;
+    private double weightedFrameBytes; // Bytes of a frame of weight 1
+
+    private ByteBuffer scratch = ByteBuffer.allocateDirect(64 * 1024);
+    private long frameCount = 0;
+    private long naluCount = 0;
+
+    ////////////////////////////////////////////////////////////////////
+
+    /**
+     * @param bitrate Bits per second
+     */
+    public H265StreamGenerator (H265Packer h265Packer, long ssrc, int bitrate, int fps, int gopSize, int mtu) {
+        if (bitrate <= 0 || fps <= 0 || gopSize <= 0) {
+            throw new IllegalArgumentException("bitrate, fps and gopSize must be positive.");
+        }
+
+        this.random = new Random(ssrc);
+        this.session = new H265PacketizerSession(h265Packer, ssrc, PAYLOAD_TYPE, mtu, random.nextInt(0x10000), random.nextInt() & 0xFFFFFFFFL);
+        this.fps = fps;
+        this.gopSize = gopSize;
+        this.timestampDelta = H265PacketizerSession.RTP_HEVC_CLOCK_RATE / fps;
+        this.frameCount = random.nextInt(gopSize); // Streams don't have their IRAPs at the same time
+        this.weightedFrameBytes = computeWeightedFrameBytes(bitrate);
+    }
+
+    ////////////////////////////////////////////////////////////////////
+
+    public void setParameterSetInterval (int parameterSetInterval) {
+        this.parameterSetInterval = Math.max(1, parameterSetInterval);
+    }
+
+    public void setIrapWeight (double irapWeight, double trailNWeight, int bitrate) {
+        this.irapWeight = irapWeight;
+        this.trailNWeight = trailNWeight;
+        this.weightedFrameBytes = computeWeightedFrameBytes(bitrate);
+    }
+
+    /**
+     * Packetizes the next frame (access unit). The marker bit is set on the last packet.
+     * @return The number of packets added to out
+     */
+    public int nextFrame (List<H265Packet> out) {
+        int gopIndex = (int) (frameCount % gopSize);
+        int count = 0;
+
+        if (gopIndex == 0) {
+            if ((frameCount / gopSize) % parameterSetInterval == 0) {
+                count += packetize(TYPE_VPS, 1, PARAMETER_SET_SIZES[0], false, out);
+                count += packetize(TYPE_SPS, 1, PARAMETER_SET_SIZES[1], false, out);
+                count += packetize(TYPE_PPS, 1, PARAMETER_SET_SIZES[2], false, out);
+            }
+            count += packetize(TYPE_IDR_W_RADL, 1, frameSize(irapWeight), true, out);
+        } else if (gopIndex % 2 == 1) {
+            count += packetize(TYPE_TRAIL_R, 1, frameSize(1), true, out);
+        } else {
+            count += packetize(TYPE_TRAIL_N, 2, frameSize(trailNWeight), true, out);
+        }
+
+        frameCount++;
+        session.advanceTimestamp(timestampDelta);
+        return count;
+    }
+
+    ////////////////////////////////////////////////////////////////////
+
+    public long getSsrc () {
+        return session.getSsrc();
+    }
+
+    public int getFps () {
+        return fps;
+    }
+
+    public long getFrameCount () {
+        return frameCount;
+    }
+
+    public long getNaluCount () {
+        return naluCount;
+    }
+
+    ////////////////////////////////////////////////////////////////////
+
+    private double computeWeightedFrameBytes (int bitrate) {
+        double gopWeight = irapWeight;
+        for (int i = 1; i < gopSize; i++) {
+            gopWeight += (i % 2 == 1) ? 1 : trailNWeight;
+        }
+        return (bitrate / 8.0 / fps) * gopSize / gopWeight;
+    }
+
+    private int frameSize (double weight) {
+        double jitter = 0.8 + random.nextDouble() * 0.4;
+        return Math.max(16, (int) (weightedFrameBytes * weight * jitter));
+    }
+
+    /**
+     * NALU Hdr (F = 0, LayerId = 0) + random body
+     */
+    private int packetize (int type, int tid, int size, boolean endOfAccessUnit, List<H265Packet> out) {
+        if (scratch.capacity() < size) {
+            scratch = ByteBuffer.allocateDirect(Integer.highestOneBit(size - 1) << 1);
+        }
+
+        scratch.clear();
+        scratch.put((byte) (type << 1));
+        scratch.put((byte) tid);
+        int offset = random.nextInt(RANDOM_BLOCK_SIZE);
+        for (int remaining = size - 2; remaining > 0; ) {
+            int length = Math.min(remaining, RANDOM_BLOCK_SIZE - offset);
+            scratch.put(RANDOM_BLOCK, offset, length);
+            remaining -= length;
+            offset = 0;
+        }
+        scratch.flip();
+
+        naluCount++;
+        int count = session.packetize(scratch, endOfAccessUnit, out);
+        return Math.max(count, 0);
+    }
+
+}
@@ -0,0 +1,292 @@
+package media.core.rtp.h265.benchmark;
+
+import media.core.rtp.RtpBufferPool;
+import media.core.rtp.h265.H265DatagramReceiver;
+import media.core.rtp.h265.H265Packer;
+import media.core.rtp.h265.H265Packet;
+import media.core.rtp.h265.H265SsrcDemuxer;
+import media.core.rtp.h265.H265StreamLoop;
+import media.core.rtp.h265.H265StreamLoopExecutor;
+import media.core.rtp.h265.H265StreamThreads;
+import media.core.rtp.h265.H265Unpacker;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.lang.management.OperatingSystemMXBean;
+import java.lang.management.ThreadMXBean;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Loopback load test of the thread-per-stream execution mode (H265StreamLoopExecutor)
+ * - Many low-bitrate streams : One socket and one blocking loop per stream.
+ * - A sender thread sends the frames of the synthetic streams (H265StreamGenerator) to the sockets in real time. (fps per stream)
+ * - The same streams are run on virtual threads and on platform threads (thread-per-stream),
+ *      and on a fixed pool of threads as the baseline. (pool : One H265DatagramReceiver per pool thread, the sockets spread over them)
+ *      On Java 8 ~ 20, virtual threads are not supported, so the virtual run uses platform threads.
+ * - Reports the start time of the loops, live platform threads, heap, process CPU and handled packets/s.
+ *
+ * ex. java -cp target/benchmarks.jar media.core.rtp.h265.benchmark.H265StreamLoopLoad --streams 10000 --duration 10
+ *      (ulimit -n must be bigger than the number of streams)
+ */
+public class H265StreamLoopLoad {
+
+    private int streams = 1000;
+    private int durationSec = 10;
+    private int bitrate = 64_000;
+    private int fps = 10;
+    private int gopSize = 20;
+    private int mtu = 1400;
+    private int poolThreads = Runtime.getRuntime().availableProcessors();
+    private String[] modes = {"virtual", "platform", "pool"};
+
+    ////////////////////////////////////////////////////////////////////
+
+    public static void main (String[] args) throws Exception {
+        H265StreamLoopLoad load = new H265StreamLoopLoad();
+        if (!load.parse(args)) {
+            printUsage();
+            return;
+        }
+        load.run();
+    }
+
+    ////////////////////////////////////////////////////////////////////
+
+    private void run () throws IOException, InterruptedException {
+        System.out.printf("Stream loops : streams=%d, bitrate=%d bps, fps=%d, gop=%d, mtu=%d, duration=%ds, pool threads=%d, virtual threads %s (java.version=%s)%n",
+                streams, bitrate, fps, gopSize, mtu, durationSec, poolThreads,
+                H265StreamThreads.isVirtualThreadSupported() ? "supported" : "not supported",
+                System.getProperty("java.version"));
+
+        for (String mode : modes) {
+            runOnce(mode);
+        }
+    }
+
+    private void runOnce (String mode) throws IOException, InterruptedException {
+        ThreadMXBean threadMXBean = ManagementFactory.getThreadMXBean();
+        MemoryMXBean memoryMXBean = ManagementFactory.getMemoryMXBean();
+        System.gc();
+        int baseThreads = threadMXBean.getThreadCount();
+        long baseHeap = memoryMXBean.getHeapMemoryUsage().getUsed();
+
+        final LongAdder naluCount = new LongAdder();
+        boolean useVirtualThreads = "virtual".equals(mode);
+        boolean isPool = "pool".equals(mode);
+        H265StreamLoopExecutor executor = new H265StreamLoopExecutor(useVirtualThreads, 2048);
+        List<H265StreamLoop> loops = new ArrayList<>(streams);
+        List<H265DatagramReceiver> receivers = new ArrayList<>(poolThreads);
+        List<Thread> receiverThreads = new ArrayList<>(poolThreads);
+        List<SocketAddress> addresses = new ArrayList<>(streams);
+
+        long startNanos = System.nanoTime();
+        if (isPool && !startPool(naluCount, receivers, receiverThreads, addresses)) {
+            closePool(receivers, receiverThreads);
+            executor.close();
+            return;
+        }
+        for (int i = 0; !isPool && i < streams; i++) {
+            H265Unpacker h265Unpacker = new H265Unpacker();
+            h265Unpacker.setNaluSink((nalu, timestamp, marker) -> naluCount.increment());
+            H265StreamLoop loop = executor.start(new InetSocketAddress("127.0.0.1", 0), h265Unpacker);
+            if (loop == null) {
+                System.err.printf("Fail to start the loop %d (ulimit -n ?)%n", i);
+                executor.close();
+                return;
+            }
+            loops.add(loop);
+            addresses.add(loop.getChannel().getLocalAddress());
+        }
+        double startMs = (System.nanoTime() - startNanos) / 1e6;
+
+        RtpBufferPool bufferPool = new RtpBufferPool();
+        bufferPool.setLeakDetectionEnabled(false);
+        List<H265StreamGenerator> generators = new ArrayList<>(streams);
+        for (int i = 0; i < streams; i++) {
+            H265Packer h265Packer = new H265Packer();
+            h265Packer.setBufferPool(bufferPool);
+            generators.add(new H265StreamGenerator(h265Packer, 0x20000000L + i, bitrate, fps, gopSize, mtu));
+        }
+
+        // Sender (this thread) : One frame of each stream in turn, streams * fps frames per second
+        DatagramChannel sender = DatagramChannel.open();
+        List<H265Packet> packetList = new ArrayList<>();
+        long intervalNanos = TimeUnit.SECONDS.toNanos(1) / ((long) streams * fps);
+        long startCpu = getProcessCpuTime();
+        long sendStart = System.nanoTime();
+        long endTime = sendStart + TimeUnit.SECONDS.toNanos(durationSec);
+        long nextSend = sendStart;
+        long sentPackets = 0;
+        int streamIndex = 0;
+        int liveThreads = 0;
+        long liveHeap = 0;
+
+        while (System.nanoTime() < endTime) {
+            nextSend += intervalNanos;
+            long waitNanos = nextSend - System.nanoTime();
+            if (waitNanos > 0) {
+                LockSupport.parkNanos(waitNanos);
+            }
+
+            generators.get(streamIndex).nextFrame(packetList);
+            for (int i = 0; i < packetList.size(); i++) {
+                H265Packet h265Packet = packetList.get(i);
+                ByteBuffer src = h265Packet.getBuffer();
+                src.position(0);
+                sender.send(src, addresses.get(streamIndex));
+                h265Packet.release();
+                sentPackets++;
+            }
+            packetList.clear();
+
+            if (++streamIndex == streams) {
+                streamIndex = 0;
+                liveThreads = Math.max(liveThreads, threadMXBean.getThreadCount());
+                liveHeap = Math.max(liveHeap, memoryMXBean.getHeapMemoryUsage().getUsed());
+            }
+        }
+        double seconds = (System.nanoTime() - sendStart) / 1e9;
+
+        // Drain the socket buffers
+        TimeUnit.MILLISECONDS.sleep(200);
+        long cpuNanos = getProcessCpuTime() - startCpu;
+        long received = 0;
+        long failed = 0;
+        for (H265StreamLoop loop : loops) {
+            received += loop.getReceivedDatagrams();
+            failed += loop.getDroppedDatagrams() + loop.getFailedPackets();
+        }
+
+        long closeStart = System.nanoTime();
+        boolean isClosed = executor.close(H265StreamLoopExecutor.DEFAULT_CLOSE_TIMEOUT_MS);
+        isClosed &= closePool(receivers, receiverThreads);
+        double closeMs = (System.nanoTime() - closeStart) / 1e6;
+        sender.close();
+        // Read after the pool threads exit (Counters of H265DatagramReceiver are owned by its thread)
+        for (H265DatagramReceiver receiver : receivers) {
+            received += receiver.getReceivedDatagrams();
+            failed += receiver.getDroppedDatagrams();
+        }
+
+        System.out.println("---------------------------------------------------------------");
+        if (isPool) {
+            System.out.printf("Mode             : pool (%d platform threads, H265DatagramReceiver)%n", poolThreads);
+        } else {
+            System.out.printf("Mode             : %s threads%s%n", executor.isVirtual() ? "virtual" : "platform",
+                    useVirtualThreads && !executor.isVirtual() ? " (virtual threads are not supported)" : "");
+        }
+        System.out.printf("Start            : %.1f ms (%.1f us per stream)%n", startMs, startMs * 1000 / streams);
+        System.out.printf("Platform threads : +%d live%n", liveThreads - baseThreads);
+        System.out.printf("Heap             : +%.1f MB (max while running)%n", (liveHeap - baseHeap) / 1e6);
+        System.out.printf("Handled          : %.0f packets/s (%d sent, %d received, %d failed, %d NAL units)%n",
+                received / seconds, sentPackets, received, failed, naluCount.sum());
+        System.out.printf("Process CPU      : %s%n", cpuNanos < 0 ? "not supported"
+                : String.format("%.1f%% of a core, %.2f%% per 10k packets/s", cpuNanos / 1e7 / seconds,
+                received == 0 ? 0 : cpuNanos / 1e7 / seconds / (received / seconds / 10000)));
+        System.out.printf("Close            : %.1f ms%s%n", closeMs, isClosed ? "" : " (timeout)");
+    }
+
+    /**
+     * Spreads the sockets of the streams over poolThreads receivers, and starts one receive loop thread per receiver.
+     * - The sockets are bound before the threads start. (No registration while the selector is blocked)
+     */
+    private boolean startPool (final LongAdder naluCount, List<H265DatagramReceiver> receivers, List<Thread> receiverThreads,
+                               List<SocketAddress> addresses) throws IOException {
+        for (int i = 0; i < poolThreads; i++) {
+            receivers.add(new H265DatagramReceiver(new H265SsrcDemuxer(ssrc -> {
+                H265Unpacker h265Unpacker = new H265Unpacker();
+                h265Unpacker.setNaluSink((nalu, timestamp, marker) -> naluCount.increment());
+                return h265Unpacker;
+            })));
+        }
+        for (int i = 0; i < streams; i++) {
+            DatagramChannel channel = receivers.get(i % poolThreads).bind(new InetSocketAddress("127.0.0.1", 0));
+            if (channel == null) {
+                System.err.printf("Fail to bind the socket %d (ulimit -n ?)%n", i);
+                return false;
+            }
+            addresses.add(channel.getLocalAddress());
+        }
+        for (int i = 0; i < poolThreads; i++) {
+            Thread thread = new Thread(receivers.get(i), "h265-pool-" + i);
+            thread.setDaemon(true);
+            thread.start();
+            receiverThreads.add(thread);
+        }
+        return true;
+    }
+
+    /**
+     * @return false if a receive loop thread doesn't exit in time
+     */
+    private static boolean closePool (List<H265DatagramReceiver> receivers, List<Thread> receiverThreads) throws InterruptedException {
+        for (H265DatagramReceiver receiver : receivers) {
+            receiver.close();
+        }
+        boolean isClosed = true;
+        for (Thread thread : receiverThreads) {
+            thread.join(H265StreamLoopExecutor.DEFAULT_CLOSE_TIMEOUT_MS);
+            isClosed &= !thread.isAlive();
+        }
+        return isClosed;
+    }
+
+    /**
+     * @return CPU time of the process (nanoseconds), or -1 if it's not supported by the JVM
+     */
+    private static long getProcessCpuTime () {
+        OperatingSystemMXBean osMXBean = ManagementFactory.getOperatingSystemMXBean();
+        if (osMXBean instanceof com.sun.management.OperatingSystemMXBean) {
+            return ((com.sun.management.OperatingSystemMXBean) osMXBean).getProcessCpuTime();
+        }
+        return -1;
+    }
+
+    ////////////////////////////////////////////////////////////////////
+
+    private boolean parse (String[] args) {
+        try {
+            for (int i = 0; i < args.length; i++) {
+                switch (args[i]) {
+                    case "--streams": streams = Integer.parseInt(args[++i]); break;
+                    case "--duration": durationSec = Integer.parseInt(args[++i]); break;
+                    case "--bitrate": bitrate = Integer.parseInt(args[++i]); break;
+                    case "--fps": fps = Integer.parseInt(args[++i]); break;
+                    case "--gop": gopSize = Integer.parseInt(args[++i]); break;
+                    case "--mtu": mtu = Integer.parseInt(args[++i]); break;
+                    case "--pool-threads": poolThreads = Integer.parseInt(args[++i]); break;
+                    case "--modes": modes = args[++i].split(","); break;
+                    default:
+                        System.err.println("Unknown option : " + args[i]);
+                        return false;
+                }
+            }
+        } catch (ArrayIndexOutOfBoundsException | NumberFormatException e) {
+            System.err.println("Wrong option value : " + e.getMessage());
+            return false;
+        }
+
+        for (String mode : modes) {
+            if (!"virtual".equals(mode) && !"platform".equals(mode) && !"pool".equals(mode)) {
+                System.err.println("Unknown mode : " + mode);
+                return false;
+            }
+        }
+        return streams > 0 && durationSec > 0 && bitrate > 0 && fps > 0 && gopSize > 0 && mtu > 0 && poolThreads > 0;
+    }
+
+    private static void printUsage () {
+        System.out.println("Usage : H265StreamLoopLoad [--streams 1000] [--duration 10] [--bitrate 64000] [--fps 10] [--gop 20] [--mtu 1400]"
+                + " [--pool-threads <cores>] [--modes virtual,platform,pool]");
+    }
+
+}
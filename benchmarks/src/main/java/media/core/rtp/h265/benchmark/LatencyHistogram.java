@@ -0,0 +1,91 @@
+package media.core.rtp.h265.benchmark;
+
+/**
+ * Log-linear histogram of latencies in nanoseconds
+ * - Values under 64 have their own buckets, larger values have 32 buckets per power of 2. (Error < 3.2%)
+ * - No allocation by record(). Not thread-safe : One histogram per thread, merged by add() at the end.
+ */
+final class LatencyHistogram {
+
+    private static final int LINEAR_LIMIT = 64;
+    private static final int SUB_BUCKET_BITS = 5;
+    private static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+    private static final int LINEAR_LIMIT_SHIFT = 6; // log2(LINEAR_LIMIT)
+    private static final int BUCKET_COUNT = LINEAR_LIMIT + (63 - LINEAR_LIMIT_SHIFT) * SUB_BUCKET_COUNT;
+
+    private final long[] counts = new long[BUCKET_COUNT];
+    private long totalCount = 0;
+    private long max = 0;
+
+    ////////////////////////////////////////////////////////////////////
+
+    void record (long value) {
+        if (value < 0) {
+            value = 0;
+        }
+        counts[bucketIndex(value)]++;
+        totalCount++;
+        if (value > max) {
+            max = value;
+        }
+    }
+
+    void add (LatencyHistogram other) {
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            counts[i] += other.counts[i];
+        }
+        totalCount += other.totalCount;
+        max = Math.max(max, other.max);
+    }
+
+    /**
+     * @param percentile 0 ~ 100 (ex. 99.9)
+     * @return Lower bound of the bucket of the percentile, 0 if nothing is recorded
+     */
+    long getValueAtPercentile (double percentile) {
+        if (totalCount == 0) {
+            return 0;
+        }
+
+        long rank = Math.max(1, (long) Math.ceil(totalCount * percentile / 100.0));
+        long count = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            count += counts[i];
+            if (count >= rank) {
+                return Math.min(bucketValue(i), max);
+            }
+        }
+        return max;
+    }
+
+    long getTotalCount () {
+        return totalCount;
+    }
+
+    long getMax () {
+        return max;
+    }
+
+    ////////////////////////////////////////////////////////////////////
+
+    private static int bucketIndex (long value) {
+        if (value < LINEAR_LIMIT) {
+            return (int) value;
+        }
+
+        int msb = 63 - Long.numberOfLeadingZeros(value);
+        int subBucket = (int) (value >>> (msb - SUB_BUCKET_BITS)) - SUB_BUCKET_COUNT;
+        return LINEAR_LIMIT + (msb - LINEAR_LIMIT_SHIFT) * SUB_BUCKET_COUNT + subBucket;
+    }
+
+    private static long bucketValue (int index) {
+        if (index < LINEAR_LIMIT) {
+            return index;
+        }
+
+        int msb = (index - LINEAR_LIMIT) / SUB_BUCKET_COUNT + LINEAR_LIMIT_SHIFT;
+        long subBucket = (index - LINEAR_LIMIT) % SUB_BUCKET_COUNT;
+        return (SUB_BUCKET_COUNT + subBucket) << (msb - SUB_BUCKET_BITS);
+    }
+
+}
@@ -0,0 +1,89 @@
+package media.core.rtp.h265.benchmark;
+
+import media.core.rtp.RtpPacket;
+import media.core.rtp.h265.H265ApAggregator;
+import media.core.rtp.h265.H265Packer;
+import media.core.rtp.h265.H265Packet;
+import media.core.rtp.h265.base.FUPosition;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * H265Packer.packApByList() / packFu() and the incremental H265ApAggregator
+ * - 3 NAL units per AP (ex. VPS + SPS + PPS, or 3 small slices)
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class PackerBenchmark {
+
+    private static final int AP_UNITS = 3;
+
+    @Param({"PARAMETER_SET", "SLICE"})
+    public String naluSize;
+
+    private H265Packer h265Packer;
+    private H265ApAggregator h265ApAggregator;
+    private final List<H265Packet> naluList = new ArrayList<>();
+    private H265Packet nalu;
+
+    ////////////////////////////////////////////////////////////////////
+
+    @Setup
+    public void setup (Blackhole blackhole) {
+        h265Packer = new H265Packer();
+        h265ApAggregator = new H265ApAggregator(h265Packer, 64 * 1024, 1000, blackhole::consume);
+
+        int size = BenchmarkData.getNaluSize(naluSize);
+        int type = BenchmarkData.getNaluType(naluSize);
+        for (int i = 0; i < AP_UNITS; i++) {
+            byte[] data = BenchmarkData.makePacket(type, size, i, 0, i == AP_UNITS - 1);
+            naluList.add(new H265Packet(data, RtpPacket.RTP_PACKET_MAX_SIZE, true));
+        }
+        nalu = naluList.get(0);
+    }
+
+    ////////////////////////////////////////////////////////////////////
+
+    @Benchmark
+    public H265Packet packApByList () {
+        return h265Packer.packApByList(naluList);
+    }
+
+    @Benchmark
+    public H265Packet packFu () {
+        return h265Packer.packFu(nalu, FUPosition.START);
+    }
+
+    /**
+     * The last NAL unit has the marker bit : One AP per op
+     */
+    @Benchmark
+    public int apAggregator () {
+        int count = 0;
+        for (int i = 0; i < AP_UNITS; i++) {
+            if (h265ApAggregator.offer(naluList.get(i))) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+}
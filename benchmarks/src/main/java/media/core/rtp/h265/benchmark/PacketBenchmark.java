@@ -0,0 +1,75 @@
+package media.core.rtp.h265.benchmark;
+
+import media.core.rtp.RtpBufferPool;
+import media.core.rtp.RtpPacket;
+import media.core.rtp.h265.H265Packet;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * H265Packet construction and header parsing of a received packet
+ * - newPacket : Copy to a new direct buffer of RTP_PACKET_MAX_SIZE
+ * - newPooledPacket : Copy to a pooled direct buffer of the packet size, and release
+ * - resetPacket : One packet re-pointed at the received buffer (Flyweight, no copy)
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class PacketBenchmark {
+
+    @Param({"PARAMETER_SET", "SLICE"})
+    public String naluSize;
+
+    private byte[] data;
+    private ByteBuffer received;
+    private RtpBufferPool bufferPool;
+    private final H265Packet flyweight = new H265Packet(0, false);
+
+    ////////////////////////////////////////////////////////////////////
+
+    @Setup
+    public void setup () {
+        data = BenchmarkData.makePacket(BenchmarkData.getNaluType(naluSize), BenchmarkData.getNaluSize(naluSize), 0, 0, true);
+        received = ByteBuffer.wrap(data);
+        bufferPool = new RtpBufferPool();
+        bufferPool.setLeakDetectionEnabled(false);
+    }
+
+    ////////////////////////////////////////////////////////////////////
+
+    @Benchmark
+    public int newPacket () {
+        H265Packet h265Packet = new H265Packet(data, RtpPacket.RTP_PACKET_MAX_SIZE, true);
+        return h265Packet.getType() + h265Packet.getTid();
+    }
+
+    @Benchmark
+    public int newPooledPacket () {
+        H265Packet h265Packet = new H265Packet(data, bufferPool);
+        int result = h265Packet.getType() + h265Packet.getTid();
+        h265Packet.release();
+        return result;
+    }
+
+    @Benchmark
+    public int resetPacket () {
+        H265Packet h265Packet = flyweight.reset(received);
+        return h265Packet.getType() + h265Packet.getTid();
+    }
+
+}
@@ -0,0 +1,115 @@
+package media.core.rtp.h265.benchmark;
+
+import media.core.rtp.h265.base.MpscRingQueue;
+import media.core.rtp.h265.base.RingQueue;
+import media.core.rtp.h265.base.SpscRingQueue;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Queue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Hand-off of packet references between two stage threads (H265Pipeline)
+ * - One producer thread offers, one consumer thread polls. Non-blocking calls on both sides.
+ *      handOff counts every call (also on a full or empty queue), offered and polled count the references handed off. (AuxCounters)
+ * - SPSC_RING / MPSC_RING : SpscRingQueue, MpscRingQueue (no lock, no allocation per element)
+ * - ARRAY_BLOCKING / LINKED_BLOCKING : ArrayBlockingQueue (one lock), LinkedBlockingQueue (a node per element)
+ * - Run it on 2 cores at least. (The threads wait for each other on 1 core)
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Group)
+public class RingQueueBenchmark {
+
+    private static final Object PACKET = new Object();
+
+    @Param({"SPSC_RING", "MPSC_RING", "ARRAY_BLOCKING", "LINKED_BLOCKING"})
+    public String queueType;
+
+    @Param({"8192"})
+    public int capacity;
+
+    private RingQueue<Object> ringQueue;
+    private Queue<Object> queue;
+
+    ////////////////////////////////////////////////////////////////////
+
+    @Setup
+    public void setup () {
+        switch (queueType) {
+            case "SPSC_RING": ringQueue = new SpscRingQueue<>(capacity); break;
+            case "MPSC_RING": ringQueue = new MpscRingQueue<>(capacity); break;
+            case "ARRAY_BLOCKING": queue = new ArrayBlockingQueue<>(capacity); break;
+            case "LINKED_BLOCKING": queue = new LinkedBlockingQueue<>(capacity); break;
+            default: throw new IllegalArgumentException("Unknown queue type : " + queueType);
+        }
+    }
+
+    ////////////////////////////////////////////////////////////////////
+
+    @Benchmark
+    @Group("handOff")
+    @GroupThreads(1)
+    public void offer (OfferCounters counters) {
+        if (ringQueue != null ? ringQueue.offer(PACKET) : queue.offer(PACKET)) {
+            counters.offered++;
+        }
+    }
+
+    @Benchmark
+    @Group("handOff")
+    @GroupThreads(1)
+    public void poll (PollCounters counters) {
+        if ((ringQueue != null ? ringQueue.poll() : queue.poll()) != null) {
+            counters.polled++;
+        }
+    }
+
+    ////////////////////////////////////////////////////////////////////
+
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    public static class OfferCounters {
+
+        public long offered;
+
+        @Setup(Level.Iteration)
+        public void reset () {
+            offered = 0;
+        }
+
+    }
+
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    public static class PollCounters {
+
+        public long polled;
+
+        @Setup(Level.Iteration)
+        public void reset () {
+            polled = 0;
+        }
+
+    }
+
+}
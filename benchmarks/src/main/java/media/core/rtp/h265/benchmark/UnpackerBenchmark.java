@@ -0,0 +1,89 @@
+package media.core.rtp.h265.benchmark;
+
+import media.core.rtp.RtpPacket;
+import media.core.rtp.h265.H265Packer;
+import media.core.rtp.h265.H265Packet;
+import media.core.rtp.h265.H265Unpacker;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * H265Unpacker.handle() of the packets of one NAL unit (or one AP) per op
+ * - PARAMETER_SET : AP of VPS + SPS + PPS
+ * - SLICE : Single NAL Unit packet
+ * - IDR : FU train (about 220 FUs with the MTU 1400)
+ * - NAL units are pushed to a sink that consumes the header. (No copy)
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class UnpackerBenchmark {
+
+    @Param({"PARAMETER_SET", "SLICE", "IDR"})
+    public String naluSize;
+
+    private H265Unpacker h265Unpacker;
+    private final List<H265Packet> packetList = new ArrayList<>();
+
+    ////////////////////////////////////////////////////////////////////
+
+    @Setup
+    public void setup (final Blackhole blackhole) {
+        h265Unpacker = new H265Unpacker();
+        h265Unpacker.setNaluSink((nalu, timestamp, marker) -> blackhole.consume(nalu.getHeader()));
+
+        H265Packer h265Packer = new H265Packer();
+        int size = BenchmarkData.getNaluSize(naluSize);
+        switch (naluSize) {
+            case "PARAMETER_SET": {
+                List<H265Packet> naluList = new ArrayList<>();
+                int[] types = {BenchmarkData.TYPE_VPS, BenchmarkData.TYPE_SPS, BenchmarkData.TYPE_PPS};
+                for (int i = 0; i < types.length; i++) {
+                    byte[] data = BenchmarkData.makePacket(types[i], size, i, 0, false);
+                    naluList.add(new H265Packet(data, RtpPacket.RTP_PACKET_MAX_SIZE, true));
+                }
+                packetList.add(h265Packer.packApByList(naluList));
+                break;
+            }
+            case "SLICE":
+                packetList.add(new H265Packet(BenchmarkData.makePacket(BenchmarkData.TYPE_TRAIL_R, size, 0, 0, true), RtpPacket.RTP_PACKET_MAX_SIZE, true));
+                break;
+            default:
+                ByteBuffer nalu = ByteBuffer.wrap(BenchmarkData.makeNalu(BenchmarkData.TYPE_IDR_W_RADL, size));
+                h265Packer.fragment(nalu, BenchmarkData.MTU, packetList);
+                break;
+        }
+    }
+
+    ////////////////////////////////////////////////////////////////////
+
+    @Benchmark
+    public int handle () {
+        int count = 0;
+        for (int i = 0; i < packetList.size(); i++) {
+            if (h265Unpacker.handle(packetList.get(i))) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+}
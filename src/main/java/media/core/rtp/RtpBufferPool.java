@@ -0,0 +1,271 @@
+package media.core.rtp;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.lang.ref.PhantomReference;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.nio.ByteBuffer;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Pool of direct buffers in size classes
+ * - Size classes : Powers of 2 from MIN_CLASS_SIZE (256) to MAX_CLASS_SIZE (64K).
+ *      1) acquire() returns a buffer of the smallest class that fits the size.
+ *      2) release() keeps the buffer in its class (up to maxBuffersPerClass) for the next acquire().
+ *      3) Larger sizes are allocated and dropped without pooling.
+ * - Leak detection (Enabled in debug mode by default) :
+ *      The owner of a pooled buffer (ex. RtpPacket) is tracked by a PhantomReference.
+ *      If the owner is collected without release(), the stack trace of the acquisition is logged,
+ *      and the buffer is returned to the pool.
+ * - Thread-safe. (A lock per size class)
+ */
+public class RtpBufferPool {
+
+    private static final Logger logger = LoggerFactory.getLogger(RtpBufferPool.class);
+
+    public static final int MIN_CLASS_SIZE = 256;
+    public static final int MAX_CLASS_SIZE = 64 * 1024;
+    private static final int MIN_CLASS_SHIFT = 8; // log2(MIN_CLASS_SIZE)
+    private static final int DEFAULT_MAX_BUFFERS_PER_CLASS = 1024;
+
+    private final SizeClass[] sizeClasses;
+    private final int maxBuffersPerClass;
+
+    private volatile boolean isLeakDetectionEnabled;
+    private final ReferenceQueue<Object> leakQueue = new ReferenceQueue<>();
+    private final Set<LeakTracker> leakTrackers = ConcurrentHashMap.newKeySet(); // Keeps the trackers reachable
+
+    private final AtomicLong allocatedBuffers = new AtomicLong(0);
+    private final AtomicLong acquiredBuffers = new AtomicLong(0);
+    private final AtomicLong releasedBuffers = new AtomicLong(0);
+    private final AtomicLong leakedBuffers = new AtomicLong(0);
+
+    ////////////////////////////////////////////////////////////////////
+
+    public RtpBufferPool () {
+        this(DEFAULT_MAX_BUFFERS_PER_CLASS);
+    }
+
+    /**
+     * @param maxBuffersPerClass Max number of released buffers kept per size class
+     */
+    public RtpBufferPool (int maxBuffersPerClass) {
+        if (maxBuffersPerClass <= 0) {
+            throw new IllegalArgumentException("maxBuffersPerClass must be positive. (" + maxBuffersPerClass + ")");
+        }
+
+        this.maxBuffersPerClass = maxBuffersPerClass;
+        this.sizeClasses = new SizeClass[classIndex(MAX_CLASS_SIZE) + 1];
+        for (int i = 0; i < sizeClasses.length; i++) {
+            sizeClasses[i] = new SizeClass(MIN_CLASS_SIZE << i);
+        }
+        this.isLeakDetectionEnabled = logger.isDebugEnabled();
+    }
+
+    ////////////////////////////////////////////////////////////////////
+
+    /**
+     * @return Cleared direct buffer (capacity >= size, limit == capacity)
+     */
+    public ByteBuffer acquire (int size) {
+        if (size < 0) {
+            throw new IllegalArgumentException("size must not be negative. (" + size + ")");
+        }
+        if (isLeakDetectionEnabled) {
+            pollLeaks();
+        }
+        acquiredBuffers.incrementAndGet();
+
+        if (size > MAX_CLASS_SIZE) {
+            allocatedBuffers.incrementAndGet();
+            return ByteBuffer.allocateDirect(size);
+        }
+
+        SizeClass sizeClass = sizeClasses[classIndex(size)];
+        ByteBuffer buffer = sizeClass.poll();
+        if (buffer == null) {
+            allocatedBuffers.incrementAndGet();
+            return ByteBuffer.allocateDirect(sizeClass.size);
+        }
+        buffer.clear();
+        return buffer;
+    }
+
+    /**
+     * Returns the buffer to its size class. The buffer must not be used after this.
+     * - Heap buffers and buffers that don't fit a size class are dropped.
+     */
+    public void release (ByteBuffer buffer) {
+        if (buffer == null) {
+            return;
+        }
+        releasedBuffers.incrementAndGet();
+
+        int capacity = buffer.capacity();
+        if (!buffer.isDirect() || capacity < MIN_CLASS_SIZE || capacity > MAX_CLASS_SIZE || Integer.bitCount(capacity) != 1) {
+            return;
+        }
+        sizeClasses[classIndex(capacity)].offer(buffer);
+    }
+
+    /**
+     * Releases the buffer of the tracked owner.
+     */
+    public void release (ByteBuffer buffer, LeakTracker leakTracker) {
+        if (leakTracker != null) {
+            leakTrackers.remove(leakTracker);
+            leakTracker.clear();
+        }
+        release(buffer);
+    }
+
+    /**
+     * Tracks the owner of the buffer until release(buffer, tracker) is called.
+     * @return Tracker or null if the leak detection is disabled
+     */
+    public LeakTracker track (Object owner, ByteBuffer buffer) {
+        if (!isLeakDetectionEnabled || owner == null || buffer == null) {
+            return null;
+        }
+
+        LeakTracker leakTracker = new LeakTracker(owner, leakQueue, buffer);
+        leakTrackers.add(leakTracker);
+        return leakTracker;
+    }
+
+    /**
+     * Reports the buffers whose owners are collected without release(), and returns them to the pool.
+     * @return The number of leaked buffers found
+     */
+    public int pollLeaks () {
+        int count = 0;
+        Reference<?> reference;
+        while ((reference = leakQueue.poll()) != null) {
+            LeakTracker leakTracker = (LeakTracker) reference;
+            if (!leakTrackers.remove(leakTracker)) {
+                continue;
+            }
+
+            count++;
+            leakedBuffers.incrementAndGet();
+            logger.warn("Buffer is not released before its owner is collected. (capacity={})", leakTracker.buffer.capacity(), leakTracker.trace);
+            release(leakTracker.buffer);
+        }
+        return count;
+    }
+
+    ////////////////////////////////////////////////////////////////////
+
+    public boolean isLeakDetectionEnabled () {
+        return isLeakDetectionEnabled;
+    }
+
+    public void setLeakDetectionEnabled (boolean leakDetectionEnabled) {
+        isLeakDetectionEnabled = leakDetectionEnabled;
+    }
+
+    /**
+     * @return The number of buffers kept in the size class of the size
+     */
+    public int getPooledCount (int size) {
+        if (size > MAX_CLASS_SIZE) {
+            return 0;
+        }
+        return sizeClasses[classIndex(size)].getCount();
+    }
+
+    public int getMaxBuffersPerClass () {
+        return maxBuffersPerClass;
+    }
+
+    public long getAllocatedBuffers () {
+        return allocatedBuffers.get();
+    }
+
+    public long getAcquiredBuffers () {
+        return acquiredBuffers.get();
+    }
+
+    public long getReleasedBuffers () {
+        return releasedBuffers.get();
+    }
+
+    public long getLeakedBuffers () {
+        return leakedBuffers.get();
+    }
+
+    public int getTrackedCount () {
+        return leakTrackers.size();
+    }
+
+    ////////////////////////////////////////////////////////////////////
+
+    /**
+     * @return Index of the smallest class that fits the size (size <= MAX_CLASS_SIZE)
+     */
+    private static int classIndex (int size) {
+        if (size <= MIN_CLASS_SIZE) {
+            return 0;
+        }
+        return (32 - Integer.numberOfLeadingZeros(size - 1)) - MIN_CLASS_SHIFT;
+    }
+
+    private final class SizeClass {
+
+        private final int size;
+        private ByteBuffer[] stack = new ByteBuffer[Math.min(maxBuffersPerClass, 16)];
+        private int count = 0;
+
+        private SizeClass (int size) {
+            this.size = size;
+        }
+
+        private synchronized ByteBuffer poll () {
+            if (count == 0) {
+                return null;
+            }
+            ByteBuffer buffer = stack[--count];
+            stack[count] = null;
+            return buffer;
+        }
+
+        private synchronized void offer (ByteBuffer buffer) {
+            if (count == maxBuffersPerClass) {
+                return;
+            }
+            if (count == stack.length) {
+                ByteBuffer[] newStack = new ByteBuffer[Math.min(maxBuffersPerClass, stack.length * 2)];
+                System.arraycopy(stack, 0, newStack, 0, count);
+                stack = newStack;
+            }
+            stack[count++] = buffer;
+        }
+
+        private synchronized int getCount () {
+            return count;
+        }
+
+    }
+
+    /**
+     * Phantom reference to the owner of a pooled buffer
+     * - Keeps the buffer and the stack trace of the acquisition. (Not the owner)
+     */
+    public static final class LeakTracker extends PhantomReference<Object> {
+
+        private final ByteBuffer buffer;
+        private final Throwable trace;
+
+        private LeakTracker (Object owner, ReferenceQueue<Object> queue, ByteBuffer buffer) {
+            super(owner, queue);
+            this.buffer = buffer;
+            this.trace = new Throwable("Buffer is acquired here.");
+        }
+
+    }
+
+}
@@ -10,12 +10,39 @@ public class RtpPacket implements Serializable {
     public static final int EXT_HEADER_SIZE = 4;
     public static final int VERSION = 2;
     private static final long serialVersionUID = -1590053946635208723L;
+    private static final ByteBuffer EMPTY_BUFFER = ByteBuffer.allocate(0).asReadOnlyBuffer();
     private ByteBuffer buffer;
 
+    // Set if the buffer is taken from the pool (Returned by release())
+    private transient RtpBufferPool bufferPool = null;
+    private transient RtpBufferPool.LeakTracker leakTracker = null;
+
     public RtpPacket (int capacity, boolean allocateDirect) {
         this.buffer = allocateDirect ? ByteBuffer.allocateDirect(capacity) : ByteBuffer.allocate(capacity);
     }
 
+    /**
+     * Takes a direct buffer (capacity >= capacity) from the pool. release() returns it to the pool.
+     * @param bufferPool Pool or null to allocate a direct buffer of the capacity
+     */
+    public RtpPacket (int capacity, RtpBufferPool bufferPool) {
+        if (bufferPool == null) {
+            this.buffer = ByteBuffer.allocateDirect(capacity);
+            return;
+        }
+
+        this.bufferPool = bufferPool;
+        this.buffer = bufferPool.acquire(capacity);
+        this.leakTracker = bufferPool.track(this, buffer);
+    }
+
+    /**
+     * Wraps the buffer (from 0 to limit) without copy.
+     */
+    public RtpPacket (ByteBuffer buffer) {
+        this.buffer = buffer;
+    }
+
     public RtpPacket (boolean allocateDirect) {
         this(RTP_PACKET_MAX_SIZE, allocateDirect);
     }
@@ -24,6 +51,33 @@ public class RtpPacket implements Serializable {
         return buffer;
     }
 
+    /**
+     * Points the packet to another buffer (from 0 to limit) without copy. The pooled buffer is released.
+     */
+    protected void setBuffer (ByteBuffer buffer) {
+        release();
+        this.buffer = buffer;
+    }
+
+    /**
+     * Returns the pooled buffer to the pool. The packet is empty after this. (No effect if the buffer isn't pooled)
+     */
+    public void release ( ) {
+        if (bufferPool == null) {
+            return;
+        }
+
+        RtpBufferPool pool = bufferPool;
+        bufferPool = null;
+        pool.release(buffer, leakTracker);
+        leakTracker = null;
+        buffer = EMPTY_BUFFER;
+    }
+
+    public boolean isPooled ( ) {
+        return bufferPool != null;
+    }
+
     public byte[] getRawData ( ) {
         byte[] data = new byte[getLength()];
         this.buffer.rewind();
@@ -71,17 +125,9 @@ public class RtpPacket implements Serializable {
     }
 
     public void setSyncSource (long ssrc) {
-        byte[] data = getRawData();
-        if (data != null && data.length >= 12) {
-            setLong(ssrc, data, 8, 12);
-            buffer = ByteBuffer.wrap(data);
-        }
-    }
-
-    private static void setLong(long n, byte[] data, int begin, int end) {
-        for (end--; end >= begin; end--) {
-            data[end] = (byte) (n % 256);
-            n >>= 8;
+        if (buffer.limit() >= FIXED_HEADER_SIZE) {
+            // In place (The buffer may be pooled)
+            buffer.putInt(8, (int) ssrc);
         }
     }
 
@@ -114,37 +160,100 @@ public class RtpPacket implements Serializable {
 
     public void wrap (boolean mark, int payloadType, int seqNumber, long timestamp, long ssrc, byte[] data, int offset, int len) {
         buffer.clear();
+        writeHeader(mark, payloadType, seqNumber, timestamp, ssrc);
+
+        buffer.position(FIXED_HEADER_SIZE);
+        buffer.put(data, offset, len);
+        buffer.flip();
+        buffer.rewind();
+    }
+
+    public void wrap (boolean mark, int payloadType, int seqNumber, long timestamp, long ssrc, ByteBuffer data) {
+        buffer.clear();
+        writeHeader(mark, payloadType, seqNumber, timestamp, ssrc);
+
+        buffer.position(FIXED_HEADER_SIZE);
+        buffer.put(data);
+        buffer.flip();
         buffer.rewind();
+    }
 
+    /**
+     * Writes the fixed header (12 bytes) in place. The payload and the limit are not changed.
+     */
+    public void writeHeader (boolean mark, int payloadType, int seqNumber, long timestamp, long ssrc) {
         //no extensions, paddings and cc
-        buffer.put((byte) 0x80);
+        buffer.put(0, (byte) 0x80);
 
         byte b = (byte) (payloadType);
         if (mark) {
             b = (byte) (b | 0x80);
         }
 
-        buffer.put(b);
+        buffer.put(1, b);
 
         //sequence number
-        buffer.put((byte) ((seqNumber & 0xFF00) >> 8));
-        buffer.put((byte) (seqNumber & 0x00FF));
+        buffer.put(2, (byte) ((seqNumber & 0xFF00) >> 8));
+        buffer.put(3, (byte) (seqNumber & 0x00FF));
 
         //timestamp
-        buffer.put((byte) ((timestamp & 0xFF000000) >> 24));
-        buffer.put((byte) ((timestamp & 0x00FF0000) >> 16));
-        buffer.put((byte) ((timestamp & 0x0000FF00) >> 8));
-        buffer.put((byte) ((timestamp & 0x000000FF)));
+        buffer.put(4, (byte) ((timestamp & 0xFF000000) >> 24));
+        buffer.put(5, (byte) ((timestamp & 0x00FF0000) >> 16));
+        buffer.put(6, (byte) ((timestamp & 0x0000FF00) >> 8));
+        buffer.put(7, (byte) ((timestamp & 0x000000FF)));
 
         //ssrc
-        buffer.put((byte) ((ssrc & 0xFF000000) >> 24));
-        buffer.put((byte) ((ssrc & 0x00FF0000) >> 16));
-        buffer.put((byte) ((ssrc & 0x0000FF00) >> 8));
-        buffer.put((byte) ((ssrc & 0x000000FF)));
+        buffer.put(8, (byte) ((ssrc & 0xFF000000) >> 24));
+        buffer.put(9, (byte) ((ssrc & 0x00FF0000) >> 16));
+        buffer.put(10, (byte) ((ssrc & 0x0000FF00) >> 8));
+        buffer.put(11, (byte) ((ssrc & 0x000000FF)));
+    }
+
+    /**
+     * Reduces the RTP header of the datagram (from 0 to limit) to the fixed header in place.
+     * - CSRC list and header extension are removed, and the padding is cut. (P, X and CC are cleared)
+     * - The payload is moved forward only if the header is longer than the fixed header.
+     * @return false if the datagram is not a valid RTP packet (The buffer may be partially modified)
+     */
+    public static boolean reduceToFixedHeader (ByteBuffer buffer) {
+        int length = buffer.limit();
+        if (length < FIXED_HEADER_SIZE) {
+            return false;
+        }
 
-        buffer.put(data, offset, len);
-        buffer.flip();
-        buffer.rewind();
+        int first = buffer.get(0) & 0xff;
+        if ((first >> 6) != VERSION) {
+            return false;
+        }
+        if ((first & 0x3f) == 0) {
+            return true; // Fixed header only (Common case)
+        }
+
+        int headerSize = FIXED_HEADER_SIZE + (first & 0x0f) * 4;
+        if ((first & 0x10) != 0) {
+            if (length < headerSize + EXT_HEADER_SIZE) {
+                return false;
+            }
+            headerSize += EXT_HEADER_SIZE + (buffer.getShort(headerSize + 2) & 0xffff) * 4;
+        }
+        int end = length;
+        if ((first & 0x20) != 0) {
+            end -= buffer.get(length - 1) & 0xff;
+        }
+        if (end < headerSize) {
+            return false;
+        }
+
+        // Forward copy (The regions may overlap)
+        int shift = headerSize - FIXED_HEADER_SIZE;
+        if (shift > 0) {
+            for (int i = headerSize; i < end; i++) {
+                buffer.put(i - shift, buffer.get(i));
+            }
+        }
+        buffer.put(0, (byte) (first & 0xc0));
+        buffer.limit(end - shift);
+        return true;
     }
 
     @Override
@@ -228,11 +337,20 @@ public class RtpPacket implements Serializable {
             return;
         } else {
             // create a new bigger buffer
-            ByteBuffer newBuffer = buffer.isDirect() ? ByteBuffer.allocateDirect(newLen) : ByteBuffer.allocate(newLen);
+            ByteBuffer newBuffer;
+            if (bufferPool != null) {
+                newBuffer = bufferPool.acquire(newLen);
+            } else {
+                newBuffer = buffer.isDirect() ? ByteBuffer.allocateDirect(newLen) : ByteBuffer.allocate(newLen);
+            }
             buffer.rewind();
             newBuffer.put(buffer);
             newBuffer.limit(newLen);
-            // switch to new buffer
+            // switch to new buffer (the old pooled buffer is returned to the pool)
+            if (bufferPool != null) {
+                bufferPool.release(buffer, leakTracker);
+                leakTracker = bufferPool.track(this, newBuffer);
+            }
             buffer = newBuffer;
         }
     }
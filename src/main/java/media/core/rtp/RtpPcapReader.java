@@ -0,0 +1,524 @@
+package media.core.rtp;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Memory-mapped reader of RTP packets in a capture file (pcap or pcapng)
+ * - The file is mapped read-only, and each RTP packet is a read-only slice of the mapping. (No copy per packet)
+ *      H265Unpacker only reads the packets. Copy a packet before changing its header.
+ * - A packet with CSRC, header extension or padding is copied to a reused buffer (valid until the next call),
+ *      and its RTP header is reduced to the fixed header. (RtpPacket.reduceToFixedHeader())
+ * - pcap : Microsecond and nanosecond formats, both byte orders.
+ *   pcapng : Section Header, Interface Description (if_tsresol), Enhanced Packet and Simple Packet blocks. (Others are skipped)
+ * - Link types : NULL (BSD loopback), Ethernet (with VLAN tags), RAW, Linux cooked (SLL, SLL2), IPv4, IPv6.
+ * - Only unfragmented UDP datagrams that look like RTP (version 2, not RTCP) are returned.
+ * - Files up to 2 GB. Not thread-safe.
+ */
+public class RtpPcapReader implements AutoCloseable {
+
+    private static final Logger logger = LoggerFactory.getLogger(RtpPcapReader.class);
+
+    public static final int LINKTYPE_NULL = 0;
+    public static final int LINKTYPE_ETHERNET = 1;
+    public static final int LINKTYPE_RAW = 101;
+    public static final int LINKTYPE_LINUX_SLL = 113;
+    public static final int LINKTYPE_IPV4 = 228;
+    public static final int LINKTYPE_IPV6 = 229;
+    public static final int LINKTYPE_LINUX_SLL2 = 276;
+
+    static final int PCAP_MAGIC_MICROS = 0xa1b2c3d4;
+    static final int PCAP_MAGIC_NANOS = 0xa1b23c4d;
+    private static final int PCAP_HEADER_SIZE = 24;
+    private static final int PCAP_RECORD_HEADER_SIZE = 16;
+
+    private static final int PCAPNG_SHB = 0x0A0D0D0A;
+    private static final int PCAPNG_IDB = 0x00000001;
+    private static final int PCAPNG_SPB = 0x00000003;
+    private static final int PCAPNG_EPB = 0x00000006;
+    private static final int PCAPNG_BYTE_ORDER_MAGIC = 0x1A2B3C4D;
+    private static final int PCAPNG_OPTION_IF_TSRESOL = 9;
+
+    private static final int ETHERTYPE_IPV4 = 0x0800;
+    private static final int ETHERTYPE_IPV6 = 0x86DD;
+    private static final int ETHERTYPE_VLAN = 0x8100;
+    private static final int ETHERTYPE_QINQ = 0x88A8;
+    private static final int IP_PROTOCOL_UDP = 17;
+    private static final int UDP_HEADER_SIZE = 8;
+
+    private final Path path;
+    private final FileChannel channel;
+    private final MappedByteBuffer file;
+    private final boolean isPcapng;
+
+    // pcap
+    private int linkType = -1;
+    private boolean isNanos = false;
+
+    // pcapng (Interfaces of the current section)
+    private final List<PcapngInterface> interfaces = new ArrayList<>();
+
+    private int portFilter = 0;
+    private ByteBuffer scratch = null;
+
+    // Current record
+    private int frameLinkType = -1;
+    private long timestampNanos = 0;
+    private int srcPort = -1;
+    private int dstPort = -1;
+
+    private long records = 0;
+    private long rtpPackets = 0;
+    private long skippedRecords = 0;
+
+    ////////////////////////////////////////////////////////////////////
+
+    private RtpPcapReader (Path path, FileChannel channel, MappedByteBuffer file) throws IOException {
+        this.path = path;
+        this.channel = channel;
+        this.file = file;
+
+        if (file.limit() < 4) {
+            throw new IOException("File is too short. (" + path + ")");
+        }
+        int magic = file.order(ByteOrder.BIG_ENDIAN).getInt(0);
+        this.isPcapng = magic == PCAPNG_SHB;
+        if (isPcapng) {
+            file.position(0);
+        } else {
+            readPcapHeader(magic);
+        }
+    }
+
+    /**
+     * @throws IOException If the file can't be mapped or is not a pcap/pcapng file
+     */
+    public static RtpPcapReader open (Path path) throws IOException {
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.READ);
+        try {
+            long size = channel.size();
+            if (size > Integer.MAX_VALUE) {
+                throw new IOException("File is too large to map. (" + path + ", size=" + size + ")");
+            }
+            MappedByteBuffer file = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            return new RtpPcapReader(path, channel, file);
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    ////////////////////////////////////////////////////////////////////
+
+    /**
+     * The returned buffer can be given to H265Packet.reset() (flyweight) or new H265Packet(ByteBuffer).
+     * @return Next RTP packet ([RTP Header (fixed)] + [Payload], from 0 to limit) or null at the end of the file
+     */
+    public ByteBuffer next () {
+        ByteBuffer payload;
+        while (file.remaining() > 0) {
+            payload = isPcapng ? nextPcapngRecord() : nextPcapRecord();
+            if (payload == null) {
+                continue;
+            }
+
+            records++;
+            ByteBuffer rtp = extractUdpPayload(payload);
+            if (rtp == null || !isRtp(rtp)) {
+                skippedRecords++;
+                continue;
+            }
+            if ((rtp.get(0) & 0x3f) != 0) {
+                // Not only the fixed header : Reduced in the copy
+                if (scratch == null || scratch.capacity() < rtp.limit()) {
+                    scratch = ByteBuffer.allocateDirect(Math.max(RtpPacket.RTP_PACKET_MAX_SIZE, rtp.limit()));
+                }
+                scratch.clear();
+                scratch.put(rtp);
+                scratch.flip();
+                rtp = scratch;
+                if (!RtpPacket.reduceToFixedHeader(rtp)) {
+                    skippedRecords++;
+                    continue;
+                }
+            }
+            rtpPackets++;
+            return rtp;
+        }
+        return null;
+    }
+
+    /**
+     * Reads from the start of the file again.
+     */
+    public void rewind () {
+        interfaces.clear();
+        file.position(isPcapng ? 0 : PCAP_HEADER_SIZE);
+        records = 0;
+        rtpPackets = 0;
+        skippedRecords = 0;
+    }
+
+    @Override
+    public void close () {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            logger.warn("Fail to close the capture file. (path={})", path, e);
+        }
+    }
+
+    ////////////////////////////////////////////////////////////////////
+
+    /**
+     * @param port UDP port (source or destination) of the packets to read, 0 : All
+     */
+    public void setPortFilter (int port) {
+        this.portFilter = port;
+    }
+
+    public int getPortFilter () {
+        return portFilter;
+    }
+
+    /**
+     * @return Capture time (Nanoseconds since the epoch) of the current packet
+     */
+    public long getTimestampNanos () {
+        return timestampNanos;
+    }
+
+    public int getSrcPort () {
+        return srcPort;
+    }
+
+    public int getDstPort () {
+        return dstPort;
+    }
+
+    public boolean isPcapng () {
+        return isPcapng;
+    }
+
+    /**
+     * @return Link type of the pcap file, or of the interface of the current packet (pcapng)
+     */
+    public int getLinkType () {
+        return isPcapng ? frameLinkType : linkType;
+    }
+
+    public long getRecords () {
+        return records;
+    }
+
+    public long getRtpPackets () {
+        return rtpPackets;
+    }
+
+    /**
+     * @return The number of records that are not RTP over UDP (or filtered out)
+     */
+    public long getSkippedRecords () {
+        return skippedRecords;
+    }
+
+    ////////////////////////////////////////////////////////////////////
+
+    private void readPcapHeader (int magic) throws IOException {
+        if (magic == PCAP_MAGIC_MICROS || magic == PCAP_MAGIC_NANOS) {
+            file.order(ByteOrder.BIG_ENDIAN);
+        } else if (Integer.reverseBytes(magic) == PCAP_MAGIC_MICROS || Integer.reverseBytes(magic) == PCAP_MAGIC_NANOS) {
+            file.order(ByteOrder.LITTLE_ENDIAN);
+            magic = Integer.reverseBytes(magic);
+        } else {
+            throw new IOException("Not a pcap or pcapng file. (" + path + ", magic=" + Integer.toHexString(magic) + ")");
+        }
+        if (file.limit() < PCAP_HEADER_SIZE) {
+            throw new IOException("pcap header is too short. (" + path + ")");
+        }
+
+        isNanos = magic == PCAP_MAGIC_NANOS;
+        linkType = file.getInt(20) & 0x0FFFFFFF; // Upper bits : FCS length
+        file.position(PCAP_HEADER_SIZE);
+    }
+
+    /**
+     * @return Link layer frame or null if the record is skipped
+     */
+    private ByteBuffer nextPcapRecord () {
+        int offset = file.position();
+        if (file.remaining() < PCAP_RECORD_HEADER_SIZE) {
+            logger.warn("pcap record header is truncated. (path={}, offset={})", path, offset);
+            file.position(file.limit());
+            return null;
+        }
+
+        long seconds = file.getInt(offset) & 0xFFFFFFFFL;
+        long fraction = file.getInt(offset + 4) & 0xFFFFFFFFL;
+        int capturedLength = file.getInt(offset + 8);
+        int dataOffset = offset + PCAP_RECORD_HEADER_SIZE;
+        if (capturedLength < 0 || capturedLength > file.limit() - dataOffset) {
+            logger.warn("pcap record is truncated. (path={}, offset={}, capLen={})", path, offset, capturedLength);
+            file.position(file.limit());
+            return null;
+        }
+        file.position(dataOffset + capturedLength);
+
+        timestampNanos = seconds * 1_000_000_000L + (isNanos ? fraction : fraction * 1000);
+        return frame(linkType, dataOffset, capturedLength);
+    }
+
+    /**
+     * @return Link layer frame or null if the block is not a packet block (or skipped)
+     */
+    private ByteBuffer nextPcapngRecord () {
+        int offset = file.position();
+        if (file.remaining() < 12) {
+            file.position(file.limit());
+            return null;
+        }
+
+        int blockType = file.getInt(offset);
+        if (blockType == PCAPNG_SHB) {
+            // Byte order of the section
+            int byteOrderMagic = file.order(ByteOrder.BIG_ENDIAN).getInt(offset + 8);
+            file.order(byteOrderMagic == PCAPNG_BYTE_ORDER_MAGIC ? ByteOrder.BIG_ENDIAN : ByteOrder.LITTLE_ENDIAN);
+            interfaces.clear();
+        }
+
+        int blockLength = file.getInt(offset + 4);
+        if (blockLength < 12 || blockLength > file.limit() - offset || (blockLength & 3) != 0) {
+            logger.warn("pcapng block is broken. (path={}, offset={}, blockLen={})", path, offset, blockLength);
+            file.position(file.limit());
+            return null;
+        }
+        file.position(offset + blockLength);
+
+        switch (blockType) {
+            case PCAPNG_IDB:
+                readInterface(offset, blockLength);
+                return null;
+            case PCAPNG_EPB: {
+                int interfaceId = file.getInt(offset + 8);
+                long time = ((file.getInt(offset + 12) & 0xFFFFFFFFL) << 32) | (file.getInt(offset + 16) & 0xFFFFFFFFL);
+                int capturedLength = file.getInt(offset + 20);
+                if (interfaceId < 0 || interfaceId >= interfaces.size() || capturedLength < 0 || capturedLength > blockLength - 32) {
+                    skippedRecords++;
+                    return null;
+                }
+
+                PcapngInterface pcapngInterface = interfaces.get(interfaceId);
+                timestampNanos = toNanos(time, pcapngInterface.unitsPerSecond);
+                return frame(pcapngInterface.linkType, offset + 28, capturedLength);
+            }
+            case PCAPNG_SPB: {
+                int originalLength = file.getInt(offset + 8);
+                if (interfaces.isEmpty()) {
+                    skippedRecords++;
+                    return null;
+                }
+                timestampNanos = 0; // No timestamp
+                return frame(interfaces.get(0).linkType, offset + 12, Math.min(originalLength, blockLength - 16));
+            }
+            default:
+                return null;
+        }
+    }
+
+    private void readInterface (int offset, int blockLength) {
+        int interfaceLinkType = file.getShort(offset + 8) & 0xFFFF;
+        long unitsPerSecond = 1_000_000; // Default : Microseconds
+
+        // Options (code, length, value padded to 32 bits)
+        int optionOffset = offset + 16;
+        int end = offset + blockLength - 4;
+        while (optionOffset + 4 <= end) {
+            int code = file.getShort(optionOffset) & 0xFFFF;
+            int length = file.getShort(optionOffset + 2) & 0xFFFF;
+            if (code == 0) {
+                break;
+            }
+            if (code == PCAPNG_OPTION_IF_TSRESOL && length >= 1) {
+                int resolution = file.get(optionOffset + 4) & 0xff;
+                int exponent = resolution & 0x7f;
+                if ((resolution & 0x80) == 0) {
+                    unitsPerSecond = exponent <= 18 ? pow(10, exponent) : unitsPerSecond;
+                } else {
+                    unitsPerSecond = exponent <= 62 ? 1L << exponent : unitsPerSecond;
+                }
+            }
+            optionOffset += 4 + ((length + 3) & ~3);
+        }
+
+        interfaces.add(new PcapngInterface(interfaceLinkType, unitsPerSecond));
+    }
+
+    private ByteBuffer frame (int linkType, int offset, int length) {
+        frameLinkType = linkType;
+        ByteBuffer frame = file.duplicate();
+        frame.order(ByteOrder.BIG_ENDIAN); // Network order
+        frame.limit(offset + length);
+        frame.position(offset);
+        return frame.slice();
+    }
+
+    ////////////////////////////////////////////////////////////////////
+
+    /**
+     * Link layer > IPv4/IPv6 > UDP
+     * @return UDP payload (slice) or null if the frame is not an unfragmented UDP datagram (or filtered out)
+     */
+    private ByteBuffer extractUdpPayload (ByteBuffer frame) {
+        int length = frame.limit();
+        int ipOffset;
+        switch (frameLinkType) {
+            case LINKTYPE_NULL:
+                ipOffset = 4;
+                break;
+            case LINKTYPE_ETHERNET: {
+                ipOffset = 14;
+                if (length < ipOffset) {
+                    return null;
+                }
+                int etherType = frame.getShort(12) & 0xFFFF;
+                while ((etherType == ETHERTYPE_VLAN || etherType == ETHERTYPE_QINQ) && length >= ipOffset + 4) {
+                    etherType = frame.getShort(ipOffset + 2) & 0xFFFF;
+                    ipOffset += 4;
+                }
+                if (etherType != ETHERTYPE_IPV4 && etherType != ETHERTYPE_IPV6) {
+                    return null;
+                }
+                break;
+            }
+            case LINKTYPE_RAW:
+            case LINKTYPE_IPV4:
+            case LINKTYPE_IPV6:
+                ipOffset = 0;
+                break;
+            case LINKTYPE_LINUX_SLL:
+                ipOffset = 16;
+                break;
+            case LINKTYPE_LINUX_SLL2:
+                ipOffset = 20;
+                break;
+            default:
+                return null;
+        }
+        if (length < ipOffset + 1) {
+            return null;
+        }
+
+        // IP (The version is checked instead of the protocol field of the link layer)
+        int udpOffset;
+        int ipEnd;
+        int version = (frame.get(ipOffset) & 0xff) >> 4;
+        if (version == 4) {
+            if (length < ipOffset + 20) {
+                return null;
+            }
+            int headerLength = (frame.get(ipOffset) & 0x0f) * 4;
+            int fragment = frame.getShort(ipOffset + 6) & 0x3FFF; // MF + Fragment offset
+            if (fragment != 0 || (frame.get(ipOffset + 9) & 0xff) != IP_PROTOCOL_UDP || headerLength < 20) {
+                return null;
+            }
+            udpOffset = ipOffset + headerLength;
+            ipEnd = Math.min(length, ipOffset + (frame.getShort(ipOffset + 2) & 0xFFFF)); // Without the Ethernet padding
+        } else if (version == 6) {
+            if (length < ipOffset + 40) {
+                return null;
+            }
+            int nextHeader = frame.get(ipOffset + 6) & 0xff;
+            udpOffset = ipOffset + 40;
+            ipEnd = Math.min(length, udpOffset + (frame.getShort(ipOffset + 4) & 0xFFFF));
+            // Hop-by-hop, Routing, Destination options
+            while ((nextHeader == 0 || nextHeader == 43 || nextHeader == 60) && udpOffset + 2 <= ipEnd) {
+                nextHeader = frame.get(udpOffset) & 0xff;
+                udpOffset += ((frame.get(udpOffset + 1) & 0xff) + 1) * 8;
+            }
+            if (nextHeader != IP_PROTOCOL_UDP) {
+                return null; // Fragment (44) or not UDP
+            }
+        } else {
+            return null;
+        }
+
+        // UDP
+        if (ipEnd < udpOffset + UDP_HEADER_SIZE) {
+            return null;
+        }
+        srcPort = frame.getShort(udpOffset) & 0xFFFF;
+        dstPort = frame.getShort(udpOffset + 2) & 0xFFFF;
+        if (portFilter != 0 && srcPort != portFilter && dstPort != portFilter) {
+            return null;
+        }
+        int udpEnd = Math.min(ipEnd, udpOffset + (frame.getShort(udpOffset + 4) & 0xFFFF));
+        if (udpEnd < udpOffset + UDP_HEADER_SIZE) {
+            return null;
+        }
+
+        frame.limit(udpEnd);
+        frame.position(udpOffset + UDP_HEADER_SIZE);
+        return frame.slice();
+    }
+
+    /**
+     * RTP version 2 and not RTCP (RFC 5761, PT 72 ~ 76 with the marker bit)
+     */
+    private static boolean isRtp (ByteBuffer payload) {
+        if (payload.limit() < RtpPacket.FIXED_HEADER_SIZE || ((payload.get(0) & 0xff) >> 6) != RtpPacket.VERSION) {
+            return false;
+        }
+        int payloadType = payload.get(1) & 0x7f;
+        return payloadType < 72 || payloadType > 76;
+    }
+
+    /**
+     * @param time Timestamp in the units of if_tsresol
+     * @return Nanoseconds. The fraction of a second is converted without overflow for any resolution.
+     */
+    private static long toNanos (long time, long unitsPerSecond) {
+        long seconds = time / unitsPerSecond;
+        long fraction = time % unitsPerSecond;
+        if (unitsPerSecond <= Long.MAX_VALUE / 1_000_000_000L) {
+            fraction = fraction * 1_000_000_000L / unitsPerSecond; // Microseconds, nanoseconds, 2^-33 s or coarser
+        } else if (unitsPerSecond % 1_000_000_000L == 0) {
+            fraction = fraction / (unitsPerSecond / 1_000_000_000L); // 10^-10 s or finer
+        } else {
+            fraction = BigInteger.valueOf(fraction).multiply(BigInteger.valueOf(1_000_000_000L))
+                    .divide(BigInteger.valueOf(unitsPerSecond)).longValue(); // 2^-34 s or finer
+        }
+        return seconds * 1_000_000_000L + fraction;
+    }
+
+    private static long pow (long base, int exponent) {
+        long result = 1;
+        for (int i = 0; i < exponent; i++) {
+            result *= base;
+        }
+        return result;
+    }
+
+    private static final class PcapngInterface {
+
+        private final int linkType;
+        private final long unitsPerSecond;
+
+        private PcapngInterface (int linkType, long unitsPerSecond) {
+            this.linkType = linkType;
+            this.unitsPerSecond = unitsPerSecond;
+        }
+
+    }
+
+}
@@ -0,0 +1,230 @@
+package media.core.rtp;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Recorder of RTP packets to a pcap file (nanosecond format, LINKTYPE_RAW)
+ * - Each packet is written as IPv4 + UDP (source > destination) + RTP, so the file opens in Wireshark and RtpPcapReader.
+ * - Records are staged in a direct buffer and written to the file when it's full, by flush() or by close().
+ * - The capture time is the wall clock (nanoseconds) of the write, or given by the caller.
+ * - Thread-safe. (Packets from several receive threads can be recorded to one file)
+ */
+public class RtpPcapWriter implements AutoCloseable {
+
+    private static final Logger logger = LoggerFactory.getLogger(RtpPcapWriter.class);
+
+    private static final int STAGING_SIZE = 256 * 1024;
+    private static final int MAX_DATAGRAM_SIZE = 65507;
+    private static final int SNAP_LENGTH = 65535;
+    private static final int IPV4_HEADER_SIZE = 20;
+    private static final int UDP_HEADER_SIZE = 8;
+    private static final int RECORD_HEADER_SIZE = 16;
+
+    private final Path path;
+    private final FileChannel channel;
+    private final ByteBuffer staging = ByteBuffer.allocateDirect(STAGING_SIZE);
+    private final byte[] srcAddress;
+    private final byte[] dstAddress;
+    private final int srcPort;
+    private final int dstPort;
+
+    // Wall clock of System.nanoTime()
+    private final long baseEpochNanos = TimeUnit.MILLISECONDS.toNanos(System.currentTimeMillis());
+    private final long baseNanoTime = System.nanoTime();
+
+    private int ipId = 0;
+    private boolean isClosed = false;
+    private long writtenPackets = 0;
+    private long droppedPackets = 0;
+    private int stagedPackets = 0; // Records in the staging buffer (Not written to the file yet)
+
+    ////////////////////////////////////////////////////////////////////
+
+    /**
+     * Creates (or truncates) the file and writes the pcap header.
+     * @param source Address of the sender in the records (IPv4, otherwise 127.0.0.1)
+     * @param destination Address of the receiver in the records (IPv4, otherwise 127.0.0.1)
+     */
+    public RtpPcapWriter (Path path, InetSocketAddress source, InetSocketAddress destination) throws IOException {
+        this.path = path;
+        this.srcAddress = toIpv4(source.getAddress());
+        this.dstAddress = toIpv4(destination.getAddress());
+        this.srcPort = source.getPort();
+        this.dstPort = destination.getPort();
+        this.channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+
+        staging.putInt(RtpPcapReader.PCAP_MAGIC_NANOS);
+        staging.putShort((short) 2); // Version 2.4
+        staging.putShort((short) 4);
+        staging.putInt(0); // thiszone
+        staging.putInt(0); // sigfigs
+        staging.putInt(SNAP_LENGTH);
+        staging.putInt(RtpPcapReader.LINKTYPE_RAW);
+    }
+
+    ////////////////////////////////////////////////////////////////////
+
+    /**
+     * Records the packet (from 0 to limit) with the current time.
+     */
+    public boolean write (RtpPacket rtpPacket) {
+        return write(rtpPacket.getBuffer(), toEpochNanos(System.nanoTime()));
+    }
+
+    /**
+     * Records the datagram (from 0 to limit). The buffer is not changed.
+     * @param epochNanos Capture time (Nanoseconds since the epoch)
+     * @return false if it fails
+     */
+    public synchronized boolean write (ByteBuffer datagram, long epochNanos) {
+        if (isClosed) {
+            logger.warn("Writer is closed. Fail to write the packet. (path={})", path);
+            return false;
+        }
+
+        int length = datagram.limit();
+        if (length > MAX_DATAGRAM_SIZE) {
+            droppedPackets++;
+            logger.warn("Packet is too large for a UDP datagram. Fail to write. (len={})", length);
+            return false;
+        }
+
+        int recordLength = IPV4_HEADER_SIZE + UDP_HEADER_SIZE + length;
+        if (staging.remaining() < RECORD_HEADER_SIZE + recordLength && !flushStaging()) {
+            droppedPackets++;
+            return false;
+        }
+
+        // 1) Record header
+        staging.putInt((int) (epochNanos / 1_000_000_000L));
+        staging.putInt((int) (epochNanos % 1_000_000_000L));
+        staging.putInt(recordLength);
+        staging.putInt(recordLength);
+
+        // 2) IPv4 header
+        int ipOffset = staging.position();
+        staging.put((byte) 0x45);
+        staging.put((byte) 0);
+        staging.putShort((short) recordLength);
+        staging.putShort((short) ipId++);
+        staging.putShort((short) 0x4000); // DF
+        staging.put((byte) 64); // TTL
+        staging.put((byte) 17); // UDP
+        staging.putShort((short) 0); // Checksum (Filled below)
+        staging.put(srcAddress);
+        staging.put(dstAddress);
+        staging.putShort(ipOffset + 10, ipv4Checksum(ipOffset));
+
+        // 3) UDP header (No checksum)
+        staging.putShort((short) srcPort);
+        staging.putShort((short) dstPort);
+        staging.putShort((short) (UDP_HEADER_SIZE + length));
+        staging.putShort((short) 0);
+
+        // 4) RTP
+        ByteBuffer src = datagram.duplicate();
+        src.position(0);
+        staging.put(src);
+
+        writtenPackets++;
+        stagedPackets++;
+        return true;
+    }
+
+    /**
+     * Writes the staged records to the file.
+     */
+    public synchronized boolean flush () {
+        return !isClosed && flushStaging();
+    }
+
+    @Override
+    public synchronized void close () {
+        if (isClosed) {
+            return;
+        }
+
+        flushStaging();
+        isClosed = true;
+        try {
+            channel.close();
+        } catch (IOException e) {
+            logger.warn("Fail to close the pcap file. (path={})", path, e);
+        }
+    }
+
+    ////////////////////////////////////////////////////////////////////
+
+    public synchronized long getWrittenPackets () {
+        return writtenPackets;
+    }
+
+    public synchronized long getDroppedPackets () {
+        return droppedPackets;
+    }
+
+    public Path getPath () {
+        return path;
+    }
+
+    /**
+     * @param nanoTime System.nanoTime()
+     * @return Wall clock (Nanoseconds since the epoch) of the time
+     */
+    public long toEpochNanos (long nanoTime) {
+        return baseEpochNanos + (nanoTime - baseNanoTime);
+    }
+
+    ////////////////////////////////////////////////////////////////////
+
+    /**
+     * The staged records are discarded if it fails. They are counted as dropped, not written.
+     */
+    private boolean flushStaging () {
+        staging.flip();
+        try {
+            while (staging.hasRemaining()) {
+                channel.write(staging);
+            }
+            return true;
+        } catch (IOException e) {
+            logger.warn("Fail to write the pcap file. {} records are dropped. (path={})", stagedPackets, path, e);
+            writtenPackets -= stagedPackets;
+            droppedPackets += stagedPackets;
+            return false;
+        } finally {
+            staging.clear();
+            stagedPackets = 0;
+        }
+    }
+
+    private short ipv4Checksum (int offset) {
+        int sum = 0;
+        for (int i = 0; i < IPV4_HEADER_SIZE; i += 2) {
+            sum += staging.getShort(offset + i) & 0xFFFF;
+        }
+        while ((sum >> 16) != 0) {
+            sum = (sum & 0xFFFF) + (sum >> 16);
+        }
+        return (short) ~sum;
+    }
+
+    private static byte[] toIpv4 (InetAddress address) {
+        if (address instanceof Inet4Address) {
+            return address.getAddress();
+        }
+        return new byte[]{127, 0, 0, 1};
+    }
+
+}
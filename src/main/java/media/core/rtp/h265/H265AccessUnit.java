@@ -0,0 +1,187 @@
+package media.core.rtp.h265;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * One access unit (picture) of a stream
+ * - NAL units (NALU Hdr + NALU Body, without start code) are stored back to back in one buffer.
+ * - Offset and length of each NAL unit are kept in int arrays.
+ * - The buffer and the arrays grow when needed, and are reused for the next access unit. (H265AccessUnitAssembler)
+ */
+public class H265AccessUnit {
+
+    private static final int DEFAULT_BUFFER_SIZE = 256 * 1024;
+    private static final int DEFAULT_NALU_COUNT = 16;
+
+    private ByteBuffer buffer;
+    private int[] naluOffsets = new int[DEFAULT_NALU_COUNT];
+    private int[] naluLengths = new int[DEFAULT_NALU_COUNT];
+    private int naluCount = 0;
+
+    private long timestamp = -1;
+    private boolean isMarkerReceived = false;
+    private boolean isIrap = false;
+
+    ////////////////////////////////////////////////////////////////////
+
+    public H265AccessUnit () {
+        this(DEFAULT_BUFFER_SIZE);
+    }
+
+    public H265AccessUnit (int capacity) {
+        this.buffer = ByteBuffer.allocate(capacity);
+    }
+
+    ////////////////////////////////////////////////////////////////////
+
+    public void clear () {
+        buffer.clear();
+        naluCount = 0;
+        timestamp = -1;
+        isMarkerReceived = false;
+        isIrap = false;
+    }
+
+    /**
+     * Appends the NAL unit (NALU Hdr + NALU Body, from position to limit). The position of nalu is not changed.
+     */
+    public void add (ByteBuffer nalu) {
+        add(nalu, nalu.position(), nalu.remaining());
+    }
+
+    /**
+     * Appends the NAL unit at [offset, offset + length) of the buffer. The position and limit of the buffer are not changed.
+     * - No allocation if the buffer is a heap buffer. (Array copy)
+     */
+    public void add (ByteBuffer src, int offset, int length) {
+        ensureCapacity(length);
+
+        if (naluCount == naluOffsets.length) {
+            naluOffsets = Arrays.copyOf(naluOffsets, naluCount * 2);
+            naluLengths = Arrays.copyOf(naluLengths, naluCount * 2);
+        }
+        naluOffsets[naluCount] = buffer.position();
+        naluLengths[naluCount] = length;
+        naluCount++;
+
+        int type = (src.get(offset) >> 1) & 0b00111111;
+        if (H265ParameterSetCache.isIrap(type)) {
+            isIrap = true;
+        }
+
+        if (src.hasArray()) {
+            buffer.put(src.array(), src.arrayOffset() + offset, length);
+        } else {
+            ByteBuffer nalu = src.duplicate();
+            nalu.limit(offset + length);
+            nalu.position(offset);
+            buffer.put(nalu);
+        }
+    }
+
+    ////////////////////////////////////////////////////////////////////
+
+    /**
+     * @return Duplicate of the buffer that has all the NAL units (from 0 to the end of the last NAL unit)
+     */
+    public ByteBuffer getBuffer () {
+        ByteBuffer data = buffer.duplicate();
+        data.flip();
+        return data;
+    }
+
+    /**
+     * @return Total length of the NAL units
+     */
+    public int getLength () {
+        return buffer.position();
+    }
+
+    public int getNaluCount () {
+        return naluCount;
+    }
+
+    public int getNaluOffset (int index) {
+        return naluOffsets[index];
+    }
+
+    public int getNaluLength (int index) {
+        return naluLengths[index];
+    }
+
+    public int getNaluType (int index) {
+        return (buffer.get(naluOffsets[index]) >> 1) & 0b00111111;
+    }
+
+    /**
+     * @return View of the NAL unit (from position to limit)
+     */
+    public ByteBuffer getNalu (int index) {
+        ByteBuffer nalu = buffer.duplicate();
+        nalu.limit(naluOffsets[index] + naluLengths[index]);
+        nalu.position(naluOffsets[index]);
+        return nalu;
+    }
+
+    public long getTimestamp () {
+        return timestamp;
+    }
+
+    public void setTimestamp (long timestamp) {
+        this.timestamp = timestamp;
+    }
+
+    /**
+     * @return true if the last packet of the access unit (marker bit) is received,
+     *      false if the access unit is closed by the next timestamp (The last packet may be lost)
+     */
+    public boolean isMarkerReceived () {
+        return isMarkerReceived;
+    }
+
+    public void setMarkerReceived (boolean markerReceived) {
+        isMarkerReceived = markerReceived;
+    }
+
+    /**
+     * @return true if the access unit has an IRAP NAL unit (Random access point)
+     */
+    public boolean isIrap () {
+        return isIrap;
+    }
+
+    public boolean isEmpty () {
+        return naluCount == 0;
+    }
+
+    ////////////////////////////////////////////////////////////////////
+
+    private void ensureCapacity (int length) {
+        if (buffer.remaining() >= length) {
+            return;
+        }
+
+        int capacity = Math.max(1, buffer.capacity()); // Initial capacity can be 0
+        while (capacity - buffer.position() < length) {
+            capacity *= 2;
+        }
+
+        ByteBuffer newBuffer = ByteBuffer.allocate(capacity);
+        buffer.flip();
+        newBuffer.put(buffer);
+        buffer = newBuffer;
+    }
+
+    @Override
+    public String toString () {
+        return "H265AccessUnit{" +
+                "timestamp=" + timestamp +
+                ", naluCount=" + naluCount +
+                ", length=" + getLength() +
+                ", isMarkerReceived=" + isMarkerReceived +
+                ", isIrap=" + isIrap +
+                '}';
+    }
+
+}
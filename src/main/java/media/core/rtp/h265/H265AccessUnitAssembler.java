@@ -0,0 +1,154 @@
+package media.core.rtp.h265;
+
+import media.core.rtp.RtpPacket;
+import media.core.rtp.h265.base.H265AccessUnitListener;
+import media.core.rtp.h265.base.H265NaluSink;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Groups the depacketized NAL units of one stream to access units (pictures)
+ * - NAL units of the same RTP timestamp belong to one access unit.
+ * - The access unit is closed and delivered to the listener when
+ *      1) the NAL unit with the marker bit is added (last NAL unit of the access unit),
+ *      2) or a NAL unit of another timestamp is added. (The last packet of the previous access unit is lost)
+ * - One access unit is delivered per picture, with all the NAL units in one buffer. (H265AccessUnit)
+ * - The access unit is reused after the listener returns. Not thread-safe. (One assembler per stream)
+ * - Receives the NAL units from H265Unpacker as the NAL unit sink. (H265Unpacker.setNaluSink())
+ */
+public class H265AccessUnitAssembler implements H265NaluSink {
+
+    private static final Logger logger = LoggerFactory.getLogger(H265AccessUnitAssembler.class);
+
+    private final H265AccessUnitListener listener;
+    private final H265AccessUnit accessUnit;
+
+    private long completeCount = 0;
+    private long incompleteCount = 0;
+
+    ////////////////////////////////////////////////////////////////////
+
+    public H265AccessUnitAssembler (H265AccessUnitListener listener) {
+        this(listener, new H265AccessUnit());
+    }
+
+    public H265AccessUnitAssembler (H265AccessUnitListener listener, H265AccessUnit accessUnit) {
+        this.listener = listener;
+        this.accessUnit = accessUnit;
+    }
+
+    ////////////////////////////////////////////////////////////////////
+
+    /**
+     * @param h265Packet Single NAL Unit packet ([RTP Header] + [NALU Hdr + NALU Body]) without DONL
+     */
+    public boolean offer (H265Packet h265Packet) {
+        if (h265Packet == null || h265Packet.getLength() <= RtpPacket.FIXED_HEADER_SIZE + H265Packet.RTP_HEVC_PAYLOAD_HEADER_SIZE) {
+            logger.warn("Packet is null or too short. Fail to assemble.");
+            return false;
+        }
+
+        ByteBuffer nalu = h265Packet.getBuffer().duplicate();
+        nalu.limit(h265Packet.getLength());
+        nalu.position(RtpPacket.FIXED_HEADER_SIZE);
+        return offer(nalu, h265Packet.getTimestamp(), h265Packet.getMarker());
+    }
+
+    @Override
+    public void onNalu (H265NaluView nalu, long timestamp, boolean marker) {
+        offer(nalu, timestamp, marker);
+    }
+
+    /**
+     * @param naluView NAL unit view (Single NAL Unit packet, NAL unit of an AP, or reassembled FU)
+     * @param marker true if it's the last NAL unit of the packet that has the marker bit
+     */
+    public boolean offer (H265NaluView naluView, long timestamp, boolean marker) {
+        if (naluView == null || naluView.getLength() <= H265Packet.RTP_HEVC_PAYLOAD_HEADER_SIZE) {
+            logger.warn("NALU is null or too short. Fail to assemble.");
+            return false;
+        }
+
+        prepare(timestamp);
+        accessUnit.add(naluView.getBuffer(), naluView.getOffset(), naluView.getLength());
+        complete(marker);
+        return true;
+    }
+
+    /**
+     * @param nalu NAL unit (NALU Hdr + NALU Body, from position to limit)
+     */
+    public boolean offer (ByteBuffer nalu, long timestamp, boolean marker) {
+        prepare(timestamp);
+        accessUnit.add(nalu);
+        complete(marker);
+        return true;
+    }
+
+    /**
+     * Delivers the pending access unit. (End of stream)
+     */
+    public void flush () {
+        if (!accessUnit.isEmpty()) {
+            deliver();
+        }
+    }
+
+    /**
+     * Drops the pending access unit.
+     */
+    public void reset () {
+        accessUnit.clear();
+    }
+
+    ////////////////////////////////////////////////////////////////////
+
+    public long getCompleteCount () {
+        return completeCount;
+    }
+
+    public long getIncompleteCount () {
+        return incompleteCount;
+    }
+
+    public int getPendingNaluCount () {
+        return accessUnit.getNaluCount();
+    }
+
+    ////////////////////////////////////////////////////////////////////
+
+    private void prepare (long timestamp) {
+        if (!accessUnit.isEmpty() && accessUnit.getTimestamp() != timestamp) {
+            logger.debug("Timestamp is changed before the marker bit. (prev={}, cur={})", accessUnit.getTimestamp(), timestamp);
+            deliver();
+        }
+
+        if (accessUnit.isEmpty()) {
+            accessUnit.setTimestamp(timestamp);
+        }
+    }
+
+    private void complete (boolean marker) {
+        if (marker) {
+            accessUnit.setMarkerReceived(true);
+            deliver();
+        }
+    }
+
+    private void deliver () {
+        if (accessUnit.isMarkerReceived()) {
+            completeCount++;
+        } else {
+            incompleteCount++;
+        }
+
+        try {
+            listener.onAccessUnit(accessUnit);
+        } finally {
+            accessUnit.clear();
+        }
+    }
+
+}
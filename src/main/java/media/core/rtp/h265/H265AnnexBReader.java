@@ -0,0 +1,211 @@
+package media.core.rtp.h265;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * H.265 Annex-B elementary stream (.h265, .hevc) reader
+ * - The file is memory-mapped by windows (FileChannel.map), so files bigger than 2 GB can be read.
+ * - Start codes (0x000001, 0x00000001) are found 8 bytes at a time.
+ * - NAL units are returned as views of the mapped window (no copy).
+ *      A view is valid until the reader is closed.
+ * - Not thread-safe.
+ */
+public class H265AnnexBReader implements Closeable {
+
+    private static final Logger logger = LoggerFactory.getLogger(H265AnnexBReader.class);
+
+    public static final int DEFAULT_WINDOW_SIZE = 64 * 1024 * 1024;
+
+    private static final long ONES = 0x0101010101010101L;
+    private static final long HIGHS = 0x8080808080808080L;
+
+    private final FileChannel channel;
+    private final long fileSize;
+    private int windowSize;
+
+    private MappedByteBuffer window = null;
+    private long windowStart = 0;
+    private int naluStart = -1; // Position of the next NAL unit (after start code) in the window, -1 : End of stream
+    private boolean isVclReceived = false; // Current access unit has a VCL NAL unit
+
+    ////////////////////////////////////////////////////////////////////
+
+    public H265AnnexBReader (String fileName) throws IOException {
+        this(fileName, DEFAULT_WINDOW_SIZE);
+    }
+
+    public H265AnnexBReader (String fileName, int windowSize) throws IOException {
+        this.channel = FileChannel.open(Paths.get(fileName), StandardOpenOption.READ);
+        this.fileSize = channel.size();
+        this.windowSize = windowSize;
+
+        map(0);
+        int startCode = findStartCode(window, 0, window.limit());
+        if (startCode < 0) {
+            logger.warn("Start code is not found. ({})", fileName);
+        } else {
+            naluStart = startCode + 3;
+        }
+    }
+
+    ////////////////////////////////////////////////////////////////////
+
+    /**
+     * @return View of the next NAL unit (NALU Hdr + NALU Body, from position to limit), or null if the stream is ended
+     */
+    public ByteBuffer next () throws IOException {
+        while (naluStart >= 0) {
+            int naluEnd;
+            int startCode = findStartCode(window, naluStart, window.limit());
+            if (startCode >= 0) {
+                naluEnd = startCode;
+            } else if (isLastWindow()) {
+                naluEnd = window.limit();
+            } else {
+                // NAL unit continues in the next window : Remap from the NAL unit
+                if (naluStart == 0) {
+                    if (windowSize == Integer.MAX_VALUE) {
+                        logger.warn("NAL unit is too big. Fail to read. (offset={})", windowStart);
+                        naluStart = -1;
+                        return null;
+                    }
+                    windowSize = (int) Math.min(Integer.MAX_VALUE, windowSize * 2L);
+                }
+                map(windowStart + naluStart);
+                naluStart = 0;
+                continue;
+            }
+
+            // trailing_zero_8bits & zero_byte of the 4 bytes start code
+            int start = naluStart;
+            while (naluEnd > start && window.get(naluEnd - 1) == 0) {
+                naluEnd--;
+            }
+
+            naluStart = startCode >= 0 ? startCode + 3 : -1;
+            if (naluEnd - start < H265Packet.RTP_HEVC_PAYLOAD_HEADER_SIZE) {
+                continue; // empty
+            }
+
+            int naluHeader = ((window.get(start) & 0xff) << 8) | (window.get(start + 1) & 0xff);
+            byte firstPayloadByte = naluEnd - start > 2 ? window.get(start + 2) : 0;
+            if (isVclReceived && isFirstNaluOfAccessUnit(naluHeader, firstPayloadByte)) {
+                isVclReceived = false;
+            }
+            if (((naluHeader >> 9) & 0b00111111) <= 31) {
+                isVclReceived = true;
+            }
+
+            ByteBuffer nalu = window.duplicate();
+            nalu.limit(naluEnd);
+            nalu.position(start);
+            return nalu;
+        }
+
+        return null;
+    }
+
+    /**
+     * @return true if the NAL unit returned by next() is the last one of the access unit
+     *      (The next NAL unit starts a new access unit or the stream is ended)
+     */
+    public boolean isEndOfAccessUnit () throws IOException {
+        if (naluStart < 0) {
+            return true;
+        }
+        if (!isVclReceived) {
+            return false;
+        }
+        if (naluStart + 3 > window.limit()) {
+            if (isLastWindow()) {
+                return true;
+            }
+            map(windowStart + naluStart);
+            naluStart = 0;
+            if (naluStart + 3 > window.limit()) {
+                return true; // Truncated : The stream ends in less than 3 bytes after the start code
+            }
+        }
+
+        int naluHeader = ((window.get(naluStart) & 0xff) << 8) | (window.get(naluStart + 1) & 0xff);
+        return isFirstNaluOfAccessUnit(naluHeader, window.get(naluStart + 2));
+    }
+
+    /**
+     * H.265 7.4.2.4.4 Order of NAL units
+     * - After the last VCL NAL unit of a picture,
+     *      AUD, VPS, SPS, PPS, Prefix SEI, 41..44, 48..55 or the first slice segment of a picture starts a new access unit.
+     */
+    public static boolean isFirstNaluOfAccessUnit (int naluHeader, byte firstPayloadByte) {
+        int type = (naluHeader >> 9) & 0b00111111;
+        if (type <= 31) {
+            return (firstPayloadByte & 0x80) == 0x80; // first_slice_segment_in_pic_flag
+        }
+        return (type >= 32 && type <= 35) || type == 39
+                || (type >= 41 && type <= 44) || (type >= 48 && type <= 55);
+    }
+
+    /**
+     * Finds the start code (0x000001) in [from, to) of the buffer.
+     * - If 8 bytes have no zero byte, no start code can begin in the 8 bytes, so they are skipped at once.
+     * @return Position of the start code, or -1 if it's not found
+     */
+    public static int findStartCode (ByteBuffer buffer, int from, int to) {
+        int i = from;
+        while (i + 8 <= to) {
+            long word = buffer.getLong(i);
+            if (((word - ONES) & ~word & HIGHS) == 0) {
+                i += 8;
+                continue;
+            }
+
+            int end = Math.min(i + 8, to - 2);
+            for (; i < end; i++) {
+                if (buffer.get(i) == 0 && buffer.get(i + 1) == 0 && buffer.get(i + 2) == 1) {
+                    return i;
+                }
+            }
+        }
+
+        for (; i + 2 < to; i++) {
+            if (buffer.get(i) == 0 && buffer.get(i + 1) == 0 && buffer.get(i + 2) == 1) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    ////////////////////////////////////////////////////////////////////
+
+    public long getFileSize () {
+        return fileSize;
+    }
+
+    @Override
+    public void close () throws IOException {
+        naluStart = -1;
+        channel.close();
+    }
+
+    ////////////////////////////////////////////////////////////////////
+
+    private void map (long start) throws IOException {
+        long size = Math.min(windowSize, fileSize - start);
+        window = channel.map(FileChannel.MapMode.READ_ONLY, start, size);
+        windowStart = start;
+    }
+
+    private boolean isLastWindow () {
+        return windowStart + window.limit() >= fileSize;
+    }
+
+}
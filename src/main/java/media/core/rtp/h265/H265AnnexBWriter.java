@@ -0,0 +1,193 @@
+package media.core.rtp.h265;
+
+import media.core.rtp.h265.base.H265NaluSink;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * H.265 Annex-B elementary stream (.h265, .hevc) writer for depacketized NAL units
+ * - Sink of H265Unpacker (setNaluSink()) : Each NAL unit is written by one gathering write (start code + NAL unit view).
+ *      The NAL unit goes from the packet (or FU reassembly) buffer to the file without a copy in the heap.
+ * - Access units : A new RTP timestamp (or the NAL unit after the marker bit) starts an access unit.
+ *      The first NAL unit of an access unit and parameter sets get the 4-byte start code (zero_byte + 0x000001),
+ *      the others get the 3-byte start code.
+ * - The file is forced to the storage (FileChannel.force()) at access unit boundaries every flushIntervalMs.
+ *      (0 : Every access unit, negative : Never, left to the OS)
+ * - One writer per stream. Not thread-safe.
+ */
+public class H265AnnexBWriter implements H265NaluSink, Closeable {
+
+    private static final Logger logger = LoggerFactory.getLogger(H265AnnexBWriter.class);
+
+    public static final long DEFAULT_FLUSH_INTERVAL_MS = 1000;
+
+    private static final byte[] START_CODE = {0x00, 0x00, 0x00, 0x01};
+    private static final int TYPE_VPS = 32;
+    private static final int TYPE_PPS = 34;
+
+    private final Path path;
+    private final FileChannel channel;
+    private final long flushIntervalNanos;
+
+    private final ByteBuffer startCode = ByteBuffer.allocateDirect(START_CODE.length);
+    private final ByteBuffer[] gather = new ByteBuffer[2];
+    private ByteBuffer naluSource = null; // Buffer of the last NAL unit view
+    private ByteBuffer naluSlice = null; // Duplicate of naluSource (Reused while the source is the same)
+
+    private long lastTimestamp = -1;
+    private boolean isAccessUnitEnded = true;
+    private long lastFlushNanos = System.nanoTime();
+    private boolean isClosed = false;
+
+    private long writtenNalus = 0;
+    private long writtenBytes = 0;
+    private long accessUnits = 0;
+    private long failedNalus = 0;
+
+    ////////////////////////////////////////////////////////////////////
+
+    public H265AnnexBWriter (Path path) throws IOException {
+        this(path, DEFAULT_FLUSH_INTERVAL_MS);
+    }
+
+    /**
+     * Creates (or truncates) the file.
+     * @param flushIntervalMs Interval of FileChannel.force() (0 : Every access unit, negative : Never)
+     */
+    public H265AnnexBWriter (Path path, long flushIntervalMs) throws IOException {
+        this.path = path;
+        this.channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        this.flushIntervalNanos = flushIntervalMs < 0 ? -1 : TimeUnit.MILLISECONDS.toNanos(flushIntervalMs);
+        startCode.put(START_CODE).flip();
+        gather[0] = startCode;
+    }
+
+    ////////////////////////////////////////////////////////////////////
+
+    @Override
+    public void onNalu (H265NaluView nalu, long timestamp, boolean marker) {
+        if (isClosed || nalu.getLength() <= 0) {
+            return;
+        }
+
+        // 1) Access unit boundary
+        boolean isFirst = isAccessUnitEnded || timestamp != lastTimestamp;
+        if (isFirst) {
+            if (accessUnits > 0) {
+                flushIfNeeded();
+            }
+            accessUnits++;
+        }
+        lastTimestamp = timestamp;
+        isAccessUnitEnded = marker;
+
+        // 2) [Start code] + [NALU Hdr + NALU Body]
+        int type = nalu.getType();
+        startCode.limit(START_CODE.length);
+        startCode.position((isFirst || (type >= TYPE_VPS && type <= TYPE_PPS)) ? 0 : 1);
+
+        if (nalu.getBuffer() != naluSource) {
+            naluSource = nalu.getBuffer();
+            naluSlice = naluSource.duplicate();
+        }
+        naluSlice.limit(naluSlice.capacity());
+        naluSlice.position(nalu.getOffset());
+        naluSlice.limit(nalu.getOffset() + nalu.getLength());
+        gather[1] = naluSlice;
+
+        try {
+            long written = 0;
+            while (naluSlice.hasRemaining()) {
+                written += channel.write(gather);
+            }
+            writtenNalus++;
+            writtenBytes += written;
+        } catch (IOException e) {
+            failedNalus++;
+            logger.warn("Fail to write the NAL unit. (path={}, type={}, len={})", path, type, nalu.getLength(), e);
+        }
+    }
+
+    /**
+     * Forces the written NAL units to the storage.
+     */
+    public boolean flush () {
+        if (isClosed) {
+            return false;
+        }
+
+        try {
+            channel.force(false);
+            lastFlushNanos = System.nanoTime();
+            return true;
+        } catch (IOException e) {
+            logger.warn("Fail to flush the file. (path={})", path, e);
+            return false;
+        }
+    }
+
+    @Override
+    public void close () {
+        if (isClosed) {
+            return;
+        }
+
+        if (flushIntervalNanos >= 0) {
+            flush();
+        }
+        isClosed = true;
+        naluSource = null;
+        naluSlice = null;
+        gather[1] = null;
+        try {
+            channel.close();
+        } catch (IOException e) {
+            logger.warn("Fail to close the file. (path={})", path, e);
+        }
+    }
+
+    ////////////////////////////////////////////////////////////////////
+
+    public Path getPath () {
+        return path;
+    }
+
+    public long getWrittenNalus () {
+        return writtenNalus;
+    }
+
+    /**
+     * @return Bytes written to the file (Start codes included)
+     */
+    public long getWrittenBytes () {
+        return writtenBytes;
+    }
+
+    public long getAccessUnits () {
+        return accessUnits;
+    }
+
+    public long getFailedNalus () {
+        return failedNalus;
+    }
+
+    ////////////////////////////////////////////////////////////////////
+
+    private void flushIfNeeded () {
+        if (flushIntervalNanos < 0) {
+            return;
+        }
+        if (System.nanoTime() - lastFlushNanos >= flushIntervalNanos) {
+            flush();
+        }
+    }
+
+}
@@ -0,0 +1,265 @@
+package media.core.rtp.h265;
+
+import media.core.rtp.RtpPacket;
+import media.core.rtp.h265.base.H265PacketListener;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Incremental AP packer
+ * - NAL units are offered one at a time and kept as references until the AP is flushed.
+ * - The AP is flushed when
+ *      1) the next NAL unit would exceed mtu,
+ *      2) the next NAL unit has another RTP timestamp (another access unit),
+ *      3) the offered NAL unit has the marker bit (last NAL unit of the access unit),
+ *      4) the deadline (maxDelayMs from the first pending NAL unit) is expired.
+ * - A single pending NAL unit is sent as a Single NAL Unit packet (AP must have 2 or more aggregation units).
+ * - A NAL unit that doesn't fit in mtu is handed off to H265Packer.fragment().
+ * - Output packets are delivered to the H265PacketListener in offered order.
+ * - If the NAL units use DONL (isDonlUsing()), the AP has DONL of the first unit and DOND of the others.
+ *      The AP is also flushed when DOND doesn't fit in 8 bits.
+ * - NAL units copied into another packet (AP, Single NAL Unit packet with DONL) are released. (Pooled buffers, H265Packer.setBufferPool())
+ */
+public class H265ApAggregator {
+
+    private static final Logger logger = LoggerFactory.getLogger(H265ApAggregator.class);
+
+    private final H265Packer h265Packer;
+    private final H265PacketListener listener;
+    private final int mtu;
+    private final long maxDelayNanos;
+
+    private final List<H265Packet> pendingList = new ArrayList<>();
+    private final List<H265Packet> fuList = new ArrayList<>();
+    private int pendingApSize = 0;
+    private long pendingTimestamp = -1;
+    private int pendingDon = -1;
+    private long deadline = 0;
+
+    ////////////////////////////////////////////////////////////////////
+
+    public H265ApAggregator (H265Packer h265Packer, int mtu, long maxDelayMs, H265PacketListener listener) {
+        this.h265Packer = h265Packer;
+        this.mtu = mtu;
+        this.maxDelayNanos = TimeUnit.MILLISECONDS.toNanos(maxDelayMs);
+        this.listener = listener;
+    }
+
+    ////////////////////////////////////////////////////////////////////
+
+    public boolean offer (H265Packet nalu) {
+        return offer(nalu, System.nanoTime());
+    }
+
+    /**
+     * @param nalu Single NAL Unit packet ([RTP Header] + [NALU Hdr + NALU Body])
+     * @param now System.nanoTime()
+     * @return false if the NAL unit is rejected
+     */
+    public boolean offer (H265Packet nalu, long now) {
+        // 1) Check Single NALU Packet
+        if (nalu == null) {
+            logger.warn("Packet is null. Fail to offer.");
+            return false;
+        }
+
+        int naluHeader = nalu.getPayloadHeader();
+        if (naluHeader < 0) {
+            logger.warn("Payload is too short. Fail to offer. (packetLen={})", nalu.getLength());
+            return false;
+        }
+
+        int type = (naluHeader >> 9) & 0b00111111;
+        if (type == H265Packet.RTP_HEVC_TYPE_AP || type == H265Packet.RTP_HEVC_TYPE_FU || type == H265Packet.RTP_HEVC_TYPE_PACI) {
+            logger.warn("Nested. Fail to offer. (type={})", type);
+            return false;
+        }
+
+        // 2) Oversized NALU : Flush pending units & fragment
+        boolean isDonlUsing = nalu.isDonlUsing();
+        int donlSize = isDonlUsing ? H265Packet.RTP_HEVC_DONL_FIELD_SIZE : 0;
+        if (nalu.getLength() + donlSize > mtu) {
+            flush();
+
+            return fragmentAndDeliver(nalu);
+        }
+
+        // 3) Flush if the NALU can't be aggregated with the pending units
+        int naluLength = nalu.getLength() - RtpPacket.FIXED_HEADER_SIZE;
+        int dondSize = isDonlUsing ? H265Packet.RTP_HEVC_DOND_FIELD_SIZE : 0;
+        long timestamp = nalu.getTimestamp();
+        if (!pendingList.isEmpty()
+                && (timestamp != pendingTimestamp
+                || pendingApSize + dondSize + H265Packet.RTP_HEVC_AP_NALU_LENGTH_FIELD_SIZE + naluLength > mtu
+                || isDonlUsing != pendingList.get(0).isDonlUsing()
+                || (isDonlUsing && ((nalu.getDon() - pendingDon - 1) & 0xFFFF) > 0xFF))) {
+            flush();
+        }
+
+        // 4) Add to the pending units
+        if (pendingList.isEmpty()) {
+            pendingApSize = RtpPacket.FIXED_HEADER_SIZE + H265Packet.RTP_HEVC_PAYLOAD_HEADER_SIZE + donlSize - dondSize;
+            pendingTimestamp = timestamp;
+            deadline = now + maxDelayNanos;
+        }
+        pendingList.add(nalu);
+        pendingApSize += dondSize + H265Packet.RTP_HEVC_AP_NALU_LENGTH_FIELD_SIZE + naluLength;
+        pendingDon = nalu.getDon();
+
+        if (nalu.getMarker() || now - deadline >= 0) {
+            flush();
+        }
+        return true;
+    }
+
+    /**
+     * Flushes the pending units if the deadline is expired. (Called by the caller's timer)
+     * @return The number of packets delivered
+     */
+    public int poll () {
+        return poll(System.nanoTime());
+    }
+
+    public int poll (long now) {
+        if (pendingList.isEmpty() || now - deadline < 0) {
+            return 0;
+        }
+        return flush();
+    }
+
+    /**
+     * @return The number of packets delivered
+     */
+    public int flush () {
+        if (pendingList.isEmpty()) {
+            return 0;
+        }
+
+        if (pendingList.size() == 1) {
+            H265Packet single = pendingList.get(0);
+            if (single.isDonlUsing()) {
+                // DONL is inserted to the Single NAL Unit packet
+                fragmentAndDeliver(single);
+            } else {
+                h265Packer.getMetrics().recordPacketOut(single.getType());
+                listener.onPacket(single);
+            }
+        } else {
+            listener.onPacket(packAp());
+            for (H265Packet nalu : pendingList) {
+                nalu.release();
+            }
+        }
+
+        pendingList.clear();
+        pendingApSize = 0;
+        pendingTimestamp = -1;
+        pendingDon = -1;
+        return 1;
+    }
+
+    ////////////////////////////////////////////////////////////////////
+
+    public int getPendingCount () {
+        return pendingList.size();
+    }
+
+    public int getPendingApSize () {
+        return pendingApSize;
+    }
+
+    public int getMtu () {
+        return mtu;
+    }
+
+    ////////////////////////////////////////////////////////////////////
+
+    /**
+     * Delivers the Single NAL Unit packet (with DONL) or the FUs of the NAL unit, and releases the NAL unit.
+     * - The NAL unit is not released if it's delivered as it is. (No DON, fits in mtu : The listener owns it)
+     * @return false if it fails to fragment (The NAL unit is not released)
+     */
+    private boolean fragmentAndDeliver (H265Packet nalu) {
+        fuList.clear();
+        if (h265Packer.fragment(nalu, mtu, fuList) <= 0) {
+            fuList.clear();
+            return false;
+        }
+
+        boolean isDelivered = false;
+        for (H265Packet h265Packet : fuList) {
+            listener.onPacket(h265Packet);
+            if (h265Packet == nalu) {
+                isDelivered = true;
+            }
+        }
+        fuList.clear();
+        if (!isDelivered) {
+            nalu.release();
+        }
+        return true;
+    }
+
+    private H265Packet packAp () {
+        H265Packet ap = new H265Packet(pendingApSize, h265Packer.getBufferPool());
+        ByteBuffer dst = ap.getBuffer();
+        dst.clear();
+
+        // 1) Set RTP Header (first unit's header, marker of the last unit)
+        H265Packet first = pendingList.get(0);
+        ByteBuffer src = first.getBuffer().duplicate();
+        src.limit(RtpPacket.FIXED_HEADER_SIZE);
+        src.position(0);
+        dst.put(src);
+        boolean marker = pendingList.get(pendingList.size() - 1).getMarker();
+        dst.put(1, (byte) ((first.getBuffer().get(1) & 0x7f) | (marker ? 0x80 : 0)));
+
+        // 2) Set Aggregation Units (DONL / DOND (cond) + NALU size + NALU)
+        dst.position(RtpPacket.FIXED_HEADER_SIZE + H265Packet.RTP_HEVC_PAYLOAD_HEADER_SIZE);
+        boolean isDonlUsing = first.isDonlUsing();
+        int prevDon = -1;
+        int forbidden = 0;
+        int lid = 0b00111111;
+        int tid = 0b00000111;
+        for (H265Packet nalu : pendingList) {
+            if (isDonlUsing) {
+                if (prevDon < 0) {
+                    dst.putShort((short) nalu.getDon());
+                } else {
+                    dst.put((byte) (nalu.getDon() - prevDon - 1));
+                }
+                prevDon = nalu.getDon();
+            }
+
+            int naluHeader = nalu.getPayloadHeader();
+            forbidden |= (naluHeader >> 15) & 0x1;
+            lid = Math.min(lid, (naluHeader >> 3) & 0b00111111);
+            tid = Math.min(tid, naluHeader & 0b00000111);
+
+            src = nalu.getBuffer().duplicate();
+            src.limit(nalu.getLength());
+            src.position(RtpPacket.FIXED_HEADER_SIZE);
+            dst.putShort((short) src.remaining());
+            dst.put(src);
+        }
+
+        // 3) Set PayloadHdr (F = OR of all F bits, LayerId & TID = lowest of all units)
+        int payloadHdr = (forbidden << 15) | (H265Packet.RTP_HEVC_TYPE_AP << 9) | (lid << 3) | tid;
+        dst.putShort(RtpPacket.FIXED_HEADER_SIZE, (short) payloadHdr);
+        dst.flip();
+
+        ap.setType(H265Packet.RTP_HEVC_TYPE_AP);
+        h265Packer.getMetrics().recordApPacked(pendingList.size(), ap.getLength());
+        h265Packer.getMetrics().recordPacketOut(H265Packet.RTP_HEVC_TYPE_AP);
+        if (logger.isDebugEnabled()) {
+            logger.debug("Success to pack AP. (units={}, len={})", pendingList.size(), ap.getLength());
+        }
+        return ap;
+    }
+
+}
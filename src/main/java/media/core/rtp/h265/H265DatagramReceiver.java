@@ -0,0 +1,313 @@
+package media.core.rtp.h265;
+
+import media.core.rtp.RtpBufferPool;
+import media.core.rtp.RtpPacket;
+import media.core.rtp.RtpPcapWriter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+
+/**
+ * Batched NIO receive loop for H.265 RTP packets
+ * - Non-blocking DatagramChannels are registered to one Selector.
+ * - Per wakeup, each ready channel is read into the receive buffers (up to batchSize datagrams),
+ *      and then the batch is dispatched to H265SsrcDemuxer (per-SSRC H265Unpacker).
+ *      A busy channel doesn't starve the others : The rest of its datagrams is read in the next select pass.
+ * - Receive buffers are taken from the pool once and reused for every batch. (No allocation per datagram)
+ *      The RTP header is parsed in place, and one H265Packet is reset to each datagram. (H265Packet.reset())
+ *      The unpacker copies what it keeps (FU reassembly, DON reorder), so the buffers are reused after the dispatch.
+ * - The RTP header is reduced to the fixed header (12 bytes) in place :
+ *      CSRC list and header extension are removed, and the padding is cut. (H265Unpacker expects the fixed header)
+ * - poll() and run() must be called by one thread. close() may be called by any thread.
+ */
+public class H265DatagramReceiver implements Runnable, AutoCloseable {
+
+    private static final Logger logger = LoggerFactory.getLogger(H265DatagramReceiver.class);
+
+    public static final int DEFAULT_BATCH_SIZE = 64;
+    public static final int DEFAULT_MAX_DATAGRAM_SIZE = 2048;
+    private static final long RUN_SELECT_TIMEOUT_MS = 100;
+
+    private final H265SsrcDemuxer demuxer;
+    private final RtpBufferPool bufferPool;
+    private final Selector selector;
+    private final ByteBuffer[] buffers;
+    private final int maxDatagramSize;
+    private final H265Packet packet = new H265Packet(ByteBuffer.allocate(0));
+
+    private volatile RtpPcapWriter pcapWriter = null;
+    private volatile boolean isClosed = false;
+
+    private long wakeups = 0;
+    private long receivedDatagrams = 0;
+    private long receivedBytes = 0;
+    private long droppedDatagrams = 0;
+
+    ////////////////////////////////////////////////////////////////////
+
+    public H265DatagramReceiver (H265SsrcDemuxer demuxer) throws IOException {
+        this(demuxer, new RtpBufferPool(), DEFAULT_BATCH_SIZE, DEFAULT_MAX_DATAGRAM_SIZE);
+    }
+
+    /**
+     * @param batchSize Max number of datagrams read from a channel per wakeup
+     * @param maxDatagramSize Size of a receive buffer (Larger datagrams are truncated and dropped)
+     */
+    public H265DatagramReceiver (H265SsrcDemuxer demuxer, RtpBufferPool bufferPool, int batchSize, int maxDatagramSize) throws IOException {
+        if (demuxer == null || bufferPool == null) {
+            throw new IllegalArgumentException("demuxer and bufferPool must not be null.");
+        }
+        if (batchSize <= 0 || maxDatagramSize <= RtpPacket.FIXED_HEADER_SIZE) {
+            throw new IllegalArgumentException("Wrong batchSize or maxDatagramSize. (" + batchSize + ", " + maxDatagramSize + ")");
+        }
+
+        this.demuxer = demuxer;
+        this.bufferPool = bufferPool;
+        this.maxDatagramSize = maxDatagramSize;
+        this.selector = Selector.open();
+        this.buffers = new ByteBuffer[batchSize];
+        for (int i = 0; i < batchSize; i++) {
+            // One more byte than maxDatagramSize to detect the truncation
+            buffers[i] = bufferPool.acquire(maxDatagramSize + 1);
+        }
+    }
+
+    ////////////////////////////////////////////////////////////////////
+
+    /**
+     * Opens a channel bound to the address and registers it.
+     * @return Channel or null if it fails
+     */
+    public DatagramChannel bind (SocketAddress address) {
+        DatagramChannel channel = null;
+        try {
+            channel = DatagramChannel.open();
+            channel.bind(address);
+            if (register(channel)) {
+                return channel;
+            }
+        } catch (IOException e) {
+            logger.warn("Fail to bind the channel. (address={})", address, e);
+        }
+
+        if (channel != null) {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                // Ignore
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Records the received datagrams (as they arrive, before the header is reduced) to the pcap file.
+     * @param pcapWriter Writer or null to stop recording (The writer is not closed)
+     */
+    public void setPcapWriter (RtpPcapWriter pcapWriter) {
+        this.pcapWriter = pcapWriter;
+    }
+
+    public RtpPcapWriter getPcapWriter () {
+        return pcapWriter;
+    }
+
+    /**
+     * Registers the channel in non-blocking mode. The channel is closed by close().
+     * @return false if it fails
+     */
+    public boolean register (DatagramChannel channel) {
+        if (channel == null || isClosed) {
+            logger.warn("Channel is null or receiver is closed. Fail to register.");
+            return false;
+        }
+
+        try {
+            channel.configureBlocking(false);
+            // register() blocks while the selector is in select()
+            selector.wakeup();
+            channel.register(selector, SelectionKey.OP_READ);
+            return true;
+        } catch (IOException | ClosedSelectorException e) {
+            logger.warn("Fail to register the channel. (channel={})", channel, e);
+            return false;
+        }
+    }
+
+    /**
+     * Waits for datagrams and dispatches them.
+     * @param timeoutMs Max wait time (0 : No wait)
+     * @return The number of datagrams received, or -1 if the receiver is closed
+     */
+    public int poll (long timeoutMs) {
+        synchronized (buffers) {
+            if (isClosed) {
+                return -1;
+            }
+            return select(timeoutMs);
+        }
+    }
+
+    /**
+     * Receive loop until close()
+     */
+    @Override
+    public void run () {
+        while (poll(RUN_SELECT_TIMEOUT_MS) >= 0) {
+            // Nothing
+        }
+    }
+
+    /**
+     * Closes the selector and the registered channels, and returns the receive buffers to the pool.
+     * - Waits for the running poll() (at most one batch), and the loop thread exits.
+     */
+    @Override
+    public void close () {
+        if (isClosed) {
+            return;
+        }
+        isClosed = true;
+        selector.wakeup();
+
+        synchronized (buffers) {
+            try {
+                for (SelectionKey key : selector.keys()) {
+                    key.channel().close();
+                }
+                selector.close();
+            } catch (IOException | ClosedSelectorException e) {
+                logger.warn("Fail to close the channels.", e);
+            }
+
+            for (int i = 0; i < buffers.length; i++) {
+                bufferPool.release(buffers[i]);
+            }
+        }
+    }
+
+    ////////////////////////////////////////////////////////////////////
+
+    public boolean isClosed () {
+        return isClosed;
+    }
+
+    public int getBatchSize () {
+        return buffers.length;
+    }
+
+    public int getMaxDatagramSize () {
+        return maxDatagramSize;
+    }
+
+    public long getWakeups () {
+        return wakeups;
+    }
+
+    public long getReceivedDatagrams () {
+        return receivedDatagrams;
+    }
+
+    public long getReceivedBytes () {
+        return receivedBytes;
+    }
+
+    /**
+     * @return The number of datagrams dropped before the demuxer (Not RTP, truncated or wrong header)
+     */
+    public long getDroppedDatagrams () {
+        return droppedDatagrams;
+    }
+
+    /**
+     * @return Average number of datagrams per wakeup
+     */
+    public double getAverageBatch () {
+        return wakeups == 0 ? 0 : (double) receivedDatagrams / wakeups;
+    }
+
+    ////////////////////////////////////////////////////////////////////
+
+    private int select (long timeoutMs) {
+        int count = 0;
+        try {
+            int selected = timeoutMs > 0 ? selector.select(timeoutMs) : selector.selectNow();
+            if (selected == 0) {
+                return isClosed ? -1 : 0;
+            }
+            wakeups++;
+
+            Iterator<SelectionKey> iterator = selector.selectedKeys().iterator();
+            while (iterator.hasNext() && !isClosed) {
+                SelectionKey key = iterator.next();
+                iterator.remove();
+                if (key.isValid() && key.isReadable()) {
+                    count += drain((DatagramChannel) key.channel());
+                }
+            }
+        } catch (IOException | ClosedSelectorException e) {
+            if (!isClosed) {
+                logger.warn("Fail to poll the channels.", e);
+            }
+        }
+        return isClosed ? -1 : count;
+    }
+
+    /**
+     * 1) Reads up to batchSize datagrams
+     * 2) Dispatches them in the arrival order
+     * - The rest stays in the socket buffer : The channel is selected again in the next pass, after the other ready channels.
+     */
+    private int drain (DatagramChannel channel) throws IOException {
+        int count = 0;
+        while (count < buffers.length) {
+            ByteBuffer buffer = buffers[count];
+            buffer.clear();
+            buffer.limit(maxDatagramSize + 1);
+            if (channel.receive(buffer) == null) {
+                break;
+            }
+            buffer.flip();
+            count++;
+        }
+
+        long now = System.nanoTime();
+        for (int i = 0; i < count && !isClosed; i++) {
+            dispatch(buffers[i], now);
+        }
+        return count;
+    }
+
+    private void dispatch (ByteBuffer buffer, long now) {
+        int length = buffer.limit();
+        receivedDatagrams++;
+        receivedBytes += length;
+
+        RtpPcapWriter writer = pcapWriter;
+        if (writer != null) {
+            writer.write(buffer, writer.toEpochNanos(now));
+        }
+
+        if (length > maxDatagramSize) {
+            droppedDatagrams++;
+            logger.debug("Datagram is bigger than the max datagram size. Dropped. (max={})", maxDatagramSize);
+            return;
+        }
+        if (!RtpPacket.reduceToFixedHeader(buffer) || buffer.limit() < RtpPacket.FIXED_HEADER_SIZE + H265Packet.RTP_HEVC_PAYLOAD_HEADER_SIZE) {
+            droppedDatagrams++;
+            logger.debug("Datagram is not a valid RTP packet. Dropped. (len={})", length);
+            return;
+        }
+
+        demuxer.handle(packet.reset(buffer), now);
+    }
+
+}
@@ -0,0 +1,216 @@
+package media.core.rtp.h265;
+
+import media.core.rtp.RtpPacket;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+
+/**
+ * Scatter/gather egress for H.265 RTP packets
+ * - The channel must be connected. (gathering write on DatagramChannel)
+ * - A packet that fits in mtu is written as is.
+ * - A larger NAL unit is sent as a FU train without building FU packets :
+ *      RTP header + PayloadHdr + FU header are built in a small header buffer,
+ *      and the FU payload is referenced as a slice of the NAL unit buffer.
+ *      Both are sent as one datagram by a gathering write, so the payload is copied only once (to the kernel).
+ * - If the packet uses DONL (isDonlUsing()), DONL is written in the header buffer of the first FU or the Single NAL Unit packet.
+ * - A datagram that isn't written (socket buffer is full on a non-blocking channel) is dropped, not retried. (getDroppedPackets())
+ *      A dropped FU ends the FU train, because the NAL unit can't be reassembled without it.
+ * - Not thread-safe. (The header buffer is reused)
+ */
+public class H265DatagramSender {
+
+    private static final Logger logger = LoggerFactory.getLogger(H265DatagramSender.class);
+
+    private static final int FU_HEADER_TOTAL_SIZE = RtpPacket.FIXED_HEADER_SIZE + H265Packet.RTP_HEVC_PAYLOAD_HEADER_SIZE + H265Packet.RTP_HEVC_FU_HEADER_SIZE;
+
+    private final DatagramChannel channel;
+    private final int mtu;
+
+    private final ByteBuffer header = ByteBuffer.allocateDirect(FU_HEADER_TOTAL_SIZE + H265Packet.RTP_HEVC_DONL_FIELD_SIZE);
+    private final ByteBuffer[] gather = new ByteBuffer[2];
+
+    private long sentPackets = 0;
+    private long sentBytes = 0;
+    private long droppedPackets = 0;
+
+    ////////////////////////////////////////////////////////////////////
+
+    public H265DatagramSender (DatagramChannel channel, int mtu) {
+        this.channel = channel;
+        this.mtu = mtu;
+        this.gather[0] = header;
+    }
+
+    ////////////////////////////////////////////////////////////////////
+
+    /**
+     * @param nalu Single NAL Unit packet ([RTP Header] + [NALU Hdr + NALU Body]) or already packed packet (AP, FU)
+     * @return The number of RTP packets sent (dropped packets are not counted), or -1 if it fails
+     */
+    public int send (H265Packet nalu) {
+        if (nalu == null) {
+            logger.warn("Packet is null. Fail to send.");
+            return -1;
+        }
+        if (!channel.isConnected()) {
+            logger.warn("Channel is not connected. Fail to send.");
+            return -1;
+        }
+
+        int packetLength = nalu.getLength();
+        int naluHeader = nalu.getPayloadHeader();
+        int type = (naluHeader >> 9) & 0b00111111;
+        int donl = (nalu.isDonlUsing() && type != H265Packet.RTP_HEVC_TYPE_AP && type != H265Packet.RTP_HEVC_TYPE_FU) ? nalu.getDon() : -1;
+        if (donl < 0 && packetLength <= mtu) {
+            ByteBuffer src = nalu.getBuffer().duplicate();
+            src.limit(packetLength);
+            src.position(0);
+            return write(src);
+        }
+
+        int singleHdrSize = RtpPacket.FIXED_HEADER_SIZE + H265Packet.RTP_HEVC_PAYLOAD_HEADER_SIZE;
+        if (donl >= 0 && packetLength + H265Packet.RTP_HEVC_DONL_FIELD_SIZE <= mtu) {
+            // [RTP Header + PayloadHdr + DONL] + [NALU Body]
+            ByteBuffer src = nalu.getBuffer();
+            header.clear();
+            for (int i = 0; i < singleHdrSize; i++) {
+                header.put(i, src.get(i));
+            }
+            header.putShort(singleHdrSize, (short) donl);
+            header.limit(singleHdrSize + H265Packet.RTP_HEVC_DONL_FIELD_SIZE);
+            header.position(0);
+
+            ByteBuffer body = src.duplicate();
+            body.limit(packetLength);
+            body.position(singleHdrSize);
+            gather[1] = body;
+            int result = write(gather);
+            gather[1] = null;
+            return result;
+        }
+
+        // 1) Check NALU to be fragmented
+        if (type == H265Packet.RTP_HEVC_TYPE_AP || type == H265Packet.RTP_HEVC_TYPE_FU) {
+            logger.warn("Packet is bigger than MTU and can't be fragmented. Fail to send. (type={}, packetLen={}, mtu={})", type, packetLength, mtu);
+            return -1;
+        }
+        if (mtu <= FU_HEADER_TOTAL_SIZE + H265Packet.RTP_HEVC_DONL_FIELD_SIZE) {
+            logger.warn("MTU is too small. Fail to send. (mtu={})", mtu);
+            return -1;
+        }
+
+        // 2) Ready for FU header (PayloadHdr keeps F, LayerId and TID of the NAL unit header)
+        ByteBuffer src = nalu.getBuffer();
+        ByteBuffer body = src.duplicate();
+        byte payloadHdr1 = (byte) (((naluHeader >> 8) & 0b10000001) | (H265Packet.RTP_HEVC_TYPE_FU << 1));
+        byte payloadHdr2 = (byte) naluHeader;
+        boolean marker = nalu.getMarker();
+        int seqNumber = nalu.getSeqNumber();
+        int bodyOffset = RtpPacket.FIXED_HEADER_SIZE + H265Packet.RTP_HEVC_PAYLOAD_HEADER_SIZE;
+
+        header.clear();
+        for (int i = 0; i < RtpPacket.FIXED_HEADER_SIZE; i++) {
+            header.put(i, src.get(i));
+        }
+        header.put(RtpPacket.FIXED_HEADER_SIZE, payloadHdr1);
+        header.put(RtpPacket.FIXED_HEADER_SIZE + 1, payloadHdr2);
+        gather[1] = body;
+
+        // 3) Send FU train (header buffer + payload slice)
+        int count = 0;
+        int fuPayloadLength;
+        for (int offset = bodyOffset; offset < packetLength; offset += fuPayloadLength) {
+            boolean isStart = offset == bodyOffset;
+            int hdrSize = (isStart && donl >= 0) ? FU_HEADER_TOTAL_SIZE + H265Packet.RTP_HEVC_DONL_FIELD_SIZE : FU_HEADER_TOTAL_SIZE;
+            fuPayloadLength = Math.min(mtu - hdrSize, packetLength - offset);
+            boolean isEnd = offset + fuPayloadLength == packetLength;
+
+            header.clear();
+            header.put(1, (byte) ((src.get(1) & 0x7f) | ((isEnd && marker) ? 0x80 : 0)));
+            header.putShort(2, (short) (seqNumber + count));
+            header.put(FU_HEADER_TOTAL_SIZE - 1, (byte) ((isStart ? 0b10000000 : 0) | (isEnd ? 0b01000000 : 0) | type));
+            if (hdrSize > FU_HEADER_TOTAL_SIZE) {
+                header.putShort(FU_HEADER_TOTAL_SIZE, (short) donl);
+            }
+            header.limit(hdrSize);
+
+            body.limit(offset + fuPayloadLength);
+            body.position(offset);
+
+            int result = write(gather);
+            if (result <= 0) {
+                gather[1] = null;
+                return result < 0 ? -1 : count;
+            }
+            count++;
+        }
+
+        gather[1] = null;
+        return count;
+    }
+
+    ////////////////////////////////////////////////////////////////////
+
+    public long getSentPackets () {
+        return sentPackets;
+    }
+
+    public long getSentBytes () {
+        return sentBytes;
+    }
+
+    /**
+     * @return Datagrams that are not written because the socket buffer is full
+     */
+    public long getDroppedPackets () {
+        return droppedPackets;
+    }
+
+    public int getMtu () {
+        return mtu;
+    }
+
+    ////////////////////////////////////////////////////////////////////
+
+    /**
+     * @return 1 : Sent, 0 : Dropped (socket buffer is full), -1 : Failed
+     */
+    private int write (ByteBuffer src) {
+        try {
+            int written = channel.write(src);
+            if (written > 0) {
+                sentPackets++;
+                sentBytes += written;
+                return 1;
+            }
+            droppedPackets++;
+            logger.debug("Socket buffer is full. Packet is dropped. (len={})", src.remaining());
+            return 0;
+        } catch (IOException e) {
+            logger.warn("Fail to send packet.", e);
+            return -1;
+        }
+    }
+
+    private int write (ByteBuffer[] srcs) {
+        try {
+            long written = channel.write(srcs);
+            if (written > 0) {
+                sentPackets++;
+                sentBytes += written;
+                return 1;
+            }
+            droppedPackets++;
+            logger.debug("Socket buffer is full. FU packet is dropped.");
+            return 0;
+        } catch (IOException e) {
+            logger.warn("Fail to send FU packet.", e);
+            return -1;
+        }
+    }
+
+}
@@ -0,0 +1,221 @@
+package media.core.rtp.h265;
+
+import media.core.rtp.h265.base.H265PacketListener;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Receiver-side decoding order buffer for the interleaved mode (sprop-max-don-diff > 0, RFC 7798 6.)
+ * - NAL units are kept in a ring indexed by DON (16 bits), so the buffer never holds more than (maxDonDiff + 1) DONs.
+ * - Stream start (and after flush()) : The first NAL units are held until their DONs span maxDonDiff,
+ *      because a NAL unit with a lower DON can still be received. Then the lowest DON received is the next expected DON.
+ * - NAL units are delivered to the listener in DON order :
+ *      1) as soon as the next expected DON is received,
+ *      2) or when a NAL unit with DON bigger than (next expected DON + maxDonDiff) is received.
+ *         (No NAL unit preceding it by more than maxDonDiff can be received any more. The missing DONs are skipped.)
+ * - NAL units older than the next expected DON (late) and duplicated DONs are dropped and released. (H265Packet.release())
+ * - A DON jump longer than the ring releases the buffered NAL units and skips the rest at once. (No step per missing DON)
+ * - Not thread-safe. (One buffer per stream)
+ */
+public class H265DonReorderBuffer {
+
+    private static final Logger logger = LoggerFactory.getLogger(H265DonReorderBuffer.class);
+
+    private static final int DON_MASK = 0xFFFF;
+
+    private final int maxDonDiff;
+    private final H265PacketListener listener;
+    private final H265Packet[] slots;
+    private final int slotMask;
+
+    private int nextDon = -1;
+    private int count = 0;
+
+    // Stream start : DONs of the held NAL units relative to the first one (nextDon < 0)
+    private int startDon = -1;
+    private int lowOffset = 0;
+    private int highOffset = 0;
+
+    private long lateCount = 0;
+    private long duplicateCount = 0;
+    private long skipCount = 0;
+
+    ////////////////////////////////////////////////////////////////////
+
+    public H265DonReorderBuffer (int maxDonDiff, H265PacketListener listener) {
+        if (maxDonDiff <= 0 || maxDonDiff > 0x7FFF) {
+            throw new IllegalArgumentException("Invalid sprop-max-don-diff (" + maxDonDiff + ")");
+        }
+
+        int size = 1;
+        while (size < maxDonDiff + 1) {
+            size <<= 1;
+        }
+
+        this.maxDonDiff = maxDonDiff;
+        this.listener = listener;
+        this.slots = new H265Packet[size];
+        this.slotMask = size - 1;
+    }
+
+    ////////////////////////////////////////////////////////////////////
+
+    /**
+     * @param nalu NAL unit having DON (getDon())
+     * @return false if the NAL unit is dropped (late, duplicated or no DON). The dropped NAL unit is released.
+     */
+    public boolean offer (H265Packet nalu) {
+        if (nalu == null || nalu.getDon() < 0) {
+            logger.warn("Packet is null or has no DON. Fail to reorder.");
+            if (nalu != null) {
+                nalu.release();
+            }
+            return false;
+        }
+
+        int don = nalu.getDon();
+        if (nextDon < 0) {
+            if (startDon < 0) {
+                startDon = don;
+                lowOffset = 0;
+                highOffset = 0;
+            }
+
+            int offset = (short) (don - startDon);
+            if (offset < lowOffset && highOffset - offset > maxDonDiff) {
+                return dropLate(nalu);
+            }
+            int low = Math.min(lowOffset, offset);
+            int high = Math.max(highOffset, offset);
+            if (high - low < maxDonDiff) {
+                // 0) Hold : A NAL unit with a lower DON can still be received
+                if (!store(nalu)) {
+                    return false;
+                }
+                lowOffset = low;
+                highOffset = high;
+                return true;
+            }
+
+            nextDon = (startDon + low) & DON_MASK;
+            startDon = -1;
+        }
+
+        int distance = (don - nextDon) & DON_MASK;
+        if (distance > DON_MASK / 2) {
+            return dropLate(nalu);
+        }
+
+        // 1) Release all the DONs that can't be waited any more
+        if (distance - maxDonDiff > slots.length) {
+            skipTo((don - maxDonDiff) & DON_MASK);
+        } else {
+            while (distance > maxDonDiff) {
+                releaseNext();
+                distance--;
+            }
+        }
+
+        // 2) Store
+        if (!store(nalu)) {
+            return false;
+        }
+
+        // 3) Release in order
+        while (slots[nextDon & slotMask] != null) {
+            releaseNext();
+        }
+        return true;
+    }
+
+    /**
+     * Releases all the buffered NAL units in DON order. (End of stream)
+     */
+    public void flush () {
+        if (nextDon < 0 && startDon >= 0) {
+            nextDon = (startDon + lowOffset) & DON_MASK; // Held NAL units
+        }
+        while (count > 0) {
+            releaseNext();
+        }
+        nextDon = -1;
+        startDon = -1;
+    }
+
+    /**
+     * @return false if the DON is already stored (The NAL unit is dropped and released)
+     */
+    private boolean store (H265Packet nalu) {
+        int index = nalu.getDon() & slotMask;
+        if (slots[index] != null) {
+            duplicateCount++;
+            logger.debug("Duplicated NAL unit is dropped. (don={})", nalu.getDon());
+            nalu.release();
+            return false;
+        }
+        slots[index] = nalu;
+        count++;
+        return true;
+    }
+
+    private boolean dropLate (H265Packet nalu) {
+        lateCount++;
+        logger.debug("Late NAL unit is dropped. (don={}, nextDon={})", nalu.getDon(), nextDon);
+        nalu.release();
+        return false;
+    }
+
+    /**
+     * Releases all the buffered NAL units in DON order, and moves the next expected DON to the given DON.
+     * - The buffered NAL units are all older than the given DON. (Jump longer than the ring)
+     */
+    private void skipTo (int don) {
+        int firstDon = nextDon;
+        while (count > 0) {
+            releaseNext();
+        }
+        skipCount += ((don - firstDon) & DON_MASK) - ((nextDon - firstDon) & DON_MASK);
+        logger.debug("DON jump. Missing DONs are skipped. (firstDon={}, nextDon={})", firstDon, don);
+        nextDon = don;
+    }
+
+    private void releaseNext () {
+        int index = nextDon & slotMask;
+        H265Packet nalu = slots[index];
+        if (nalu != null) {
+            slots[index] = null;
+            count--;
+            listener.onPacket(nalu);
+        } else {
+            skipCount++;
+        }
+        nextDon = (nextDon + 1) & DON_MASK;
+    }
+
+    ////////////////////////////////////////////////////////////////////
+
+    public int getMaxDonDiff () {
+        return maxDonDiff;
+    }
+
+    public int getCount () {
+        return count;
+    }
+
+    public int getNextDon () {
+        return nextDon;
+    }
+
+    public long getLateCount () {
+        return lateCount;
+    }
+
+    public long getDuplicateCount () {
+        return duplicateCount;
+    }
+
+    public long getSkipCount () {
+        return skipCount;
+    }
+
+}
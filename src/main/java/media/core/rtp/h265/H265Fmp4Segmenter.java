@@ -0,0 +1,629 @@
+package media.core.rtp.h265;
+
+import media.core.rtp.h265.base.H265Fmp4Listener;
+import media.core.rtp.h265.base.H265NaluSink;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Fragmented MP4 (CMAF) segmenter of depacketized NAL units (ISO/IEC 14496-12, 14496-15)
+ * - Sink of H265Unpacker (setNaluSink()) : One sample per access unit (RTP timestamp), 4-byte length-prefixed NAL units.
+ * - Parameter sets (VPS, SPS, PPS) are cached (H265ParameterSetCache) and go to the hvcC of the init segment ('hvc1'),
+ *      not to the samples. A changed parameter set writes a new init segment at the next IRAP.
+ * - A fragment (moof + mdat) is written at each IRAP, so every fragment starts with a random access point.
+ *      The pictures before the first IRAP (or while the parameter sets are not received) are dropped.
+ * - Samples are written to one reusable buffer after a reserved area, and the moof is written into the reserved area
+ *      when the fragment is closed. (No copy of the samples, the buffer grows when needed)
+ * - Timescale is 90 kHz (RTP clock). Durations are the RTP timestamp deltas of the access units in the decoding order.
+ *      (Pictures are expected without reordering, as in low-delay streams. No composition time offsets)
+ * - One segmenter per stream. Not thread-safe.
+ */
+public class H265Fmp4Segmenter implements H265NaluSink {
+
+    private static final Logger logger = LoggerFactory.getLogger(H265Fmp4Segmenter.class);
+
+    public static final int TIMESCALE = 90000;
+    public static final int TRACK_ID = 1;
+
+    private static final int DEFAULT_BUFFER_SIZE = 512 * 1024;
+    private static final int DEFAULT_SAMPLE_COUNT = 64;
+    private static final int DEFAULT_DURATION = TIMESCALE / 30;
+    private static final int NALU_LENGTH_SIZE = 4;
+
+    // moof (8) + mfhd (16) + traf (8) + tfhd (16) + tfdt (20) + trun (20 + 12 per sample)
+    private static final int MOOF_FIXED_SIZE = 88;
+    private static final int TRUN_SAMPLE_SIZE = 12;
+    private static final int BOX_HEADER_SIZE = 8;
+
+    private static final int SAMPLE_FLAGS_SYNC = 0x02000000; // sample_depends_on = 2
+    private static final int SAMPLE_FLAGS_NON_SYNC = 0x01010000; // sample_depends_on = 1, sample_is_non_sync_sample
+
+    private static final int[] UNITY_MATRIX = {0x00010000, 0, 0, 0, 0x00010000, 0, 0, 0, 0x40000000};
+
+    private final H265Fmp4Listener listener;
+    private final H265ParameterSetCache parameterSetCache = new H265ParameterSetCache();
+
+    private ByteBuffer buffer = ByteBuffer.allocate(DEFAULT_BUFFER_SIZE);
+    private ByteBuffer fragmentView = buffer.duplicate();
+    private ByteBuffer initBuffer = ByteBuffer.allocate(1024);
+    private int reserved = getMoofSize(DEFAULT_SAMPLE_COUNT) + BOX_HEADER_SIZE;
+
+    // Closed samples of the fragment
+    private int[] sampleSizes = new int[DEFAULT_SAMPLE_COUNT];
+    private long[] sampleTimes = new long[DEFAULT_SAMPLE_COUNT];
+    private boolean[] sampleSyncs = new boolean[DEFAULT_SAMPLE_COUNT];
+    private int sampleCount = 0;
+
+    // Current sample (access unit)
+    private boolean isSampleOpen = false;
+    private boolean isSampleSync = false;
+    private boolean isSampleSkipped = false;
+    private int sampleStart;
+    private long sampleTime = 0;
+    private long lastTimestamp = -1;
+    private int lastDuration = DEFAULT_DURATION;
+    private boolean isAccessUnitEnded = true;
+
+    private boolean isFragmentStarted = false;
+    private boolean isInitWritten = false;
+    private boolean isConfigChanged = false;
+    private long sequenceNumber = 0;
+
+    private long fragmentCount = 0;
+    private long totalSampleCount = 0;
+    private long droppedSampleCount = 0;
+    private long initSegmentCount = 0;
+
+    ////////////////////////////////////////////////////////////////////
+
+    public H265Fmp4Segmenter (H265Fmp4Listener listener) {
+        this.listener = listener;
+        buffer.position(reserved);
+        sampleStart = reserved;
+    }
+
+    ////////////////////////////////////////////////////////////////////
+
+    @Override
+    public void onNalu (H265NaluView nalu, long timestamp, boolean marker) {
+        if (nalu.getLength() <= H265Packet.RTP_HEVC_PAYLOAD_HEADER_SIZE) {
+            return;
+        }
+
+        // 1) Access unit boundary
+        if (isAccessUnitEnded || timestamp != lastTimestamp) {
+            closeSample();
+            openSample(timestamp);
+        }
+        isAccessUnitEnded = marker;
+
+        // 2) Parameter sets > hvcC
+        int type = nalu.getType();
+        if (H265ParameterSetCache.isParameterSet(type)) {
+            if (parameterSetCache.update(nalu.asByteBuffer())) {
+                isConfigChanged = true;
+            }
+            return;
+        }
+
+        // 3) The first IRAP slice of the access unit closes the fragment and starts a new one
+        if (H265ParameterSetCache.isIrap(type) && !isSampleSync) {
+            isSampleSync = true;
+            if (!startFragment()) {
+                isSampleSkipped = true;
+            }
+        }
+        if (isSampleSkipped) {
+            return;
+        }
+
+        // 4) [NALU Length (4 bytes)] + [NALU Hdr + NALU Body]
+        int length = nalu.getLength();
+        ensureCapacity(NALU_LENGTH_SIZE + length);
+        buffer.putInt(length);
+        ByteBuffer src = nalu.getBuffer();
+        if (src.hasArray()) {
+            buffer.put(src.array(), src.arrayOffset() + nalu.getOffset(), length);
+        } else {
+            buffer.put(nalu.asByteBuffer());
+        }
+    }
+
+    /**
+     * Closes the current access unit and writes the fragment. (End of the stream)
+     * - The last sample gets the duration of the previous one.
+     * - The next fragment starts at the next IRAP.
+     */
+    public void flush () {
+        closeSample();
+        if (sampleCount > 0) {
+            writeFragment(sampleTimes[sampleCount - 1] + lastDuration);
+        }
+        isFragmentStarted = false;
+        isAccessUnitEnded = true;
+    }
+
+    ////////////////////////////////////////////////////////////////////
+
+    public H265ParameterSetCache getParameterSetCache () {
+        return parameterSetCache;
+    }
+
+    public long getFragmentCount () {
+        return fragmentCount;
+    }
+
+    /**
+     * @return The number of samples (access units) written in the fragments
+     */
+    public long getSampleCount () {
+        return totalSampleCount;
+    }
+
+    /**
+     * @return The number of access units dropped before the first IRAP or without the parameter sets
+     */
+    public long getDroppedSampleCount () {
+        return droppedSampleCount;
+    }
+
+    public long getInitSegmentCount () {
+        return initSegmentCount;
+    }
+
+    ////////////////////////////////////////////////////////////////////
+
+    private void openSample (long timestamp) {
+        if (lastTimestamp >= 0) {
+            int delta = (int) (timestamp - lastTimestamp); // 32-bit wraparound
+            if (delta > 0) {
+                lastDuration = delta;
+            }
+            sampleTime += lastDuration;
+        }
+        lastTimestamp = timestamp;
+
+        sampleStart = buffer.position();
+        isSampleOpen = true;
+        isSampleSync = false;
+        isSampleSkipped = false;
+    }
+
+    private void closeSample () {
+        if (!isSampleOpen) {
+            return;
+        }
+        isSampleOpen = false;
+
+        int size = buffer.position() - sampleStart;
+        if (size == 0) {
+            return;
+        }
+        if (isSampleSkipped || !isFragmentStarted) {
+            buffer.position(sampleStart);
+            droppedSampleCount++;
+            return;
+        }
+
+        if (sampleCount == sampleSizes.length) {
+            sampleSizes = Arrays.copyOf(sampleSizes, sampleCount * 2);
+            sampleTimes = Arrays.copyOf(sampleTimes, sampleCount * 2);
+            sampleSyncs = Arrays.copyOf(sampleSyncs, sampleCount * 2);
+        }
+        sampleSizes[sampleCount] = size;
+        sampleTimes[sampleCount] = sampleTime;
+        sampleSyncs[sampleCount] = isSampleSync;
+        sampleCount++;
+    }
+
+    /**
+     * Writes the previous fragment, and the init segment if it's not written or the parameter sets are changed.
+     * @return false if the init segment can't be made (The parameter sets are not received)
+     */
+    private boolean startFragment () {
+        if (sampleCount > 0) {
+            writeFragment(sampleTime);
+        }
+
+        if (!isInitWritten || isConfigChanged) {
+            if (!writeInitSegment()) {
+                isFragmentStarted = false;
+                return false;
+            }
+            isInitWritten = true;
+            isConfigChanged = false;
+        }
+        isFragmentStarted = true;
+        return true;
+    }
+
+    /**
+     * Writes moof + mdat header into the reserved area in front of the samples, and gives the fragment to the listener.
+     * - The bytes of the current (open) sample are moved to the start of the sample area for the next fragment.
+     * @param endTime Decode time of the end of the last sample
+     */
+    private void writeFragment (long endTime) {
+        int moofSize = getMoofSize(sampleCount);
+        int headerSize = moofSize + BOX_HEADER_SIZE;
+        if (headerSize > reserved) {
+            reserve(headerSize * 2);
+        }
+
+        int end = isSampleOpen ? sampleStart : buffer.position(); // End of the closed samples
+        int start = reserved - headerSize;
+        long baseTime = sampleTimes[0];
+        sequenceNumber++;
+
+        int position = buffer.position();
+        buffer.position(start);
+
+        // moof > mfhd, traf > tfhd, tfdt, trun
+        buffer.putInt(moofSize).put(BoxType.MOOF);
+        buffer.putInt(16).put(BoxType.MFHD).putInt(0).putInt((int) sequenceNumber);
+        buffer.putInt(moofSize - 24).put(BoxType.TRAF);
+        buffer.putInt(16).put(BoxType.TFHD).putInt(0x00020000).putInt(TRACK_ID); // default-base-is-moof
+        buffer.putInt(20).put(BoxType.TFDT).putInt(0x01000000).putLong(baseTime); // Version 1
+        buffer.putInt(20 + TRUN_SAMPLE_SIZE * sampleCount).put(BoxType.TRUN);
+        buffer.putInt(0x00000701); // data-offset, sample-duration, sample-size, sample-flags
+        buffer.putInt(sampleCount);
+        buffer.putInt(headerSize); // Data offset from the moof
+        for (int i = 0; i < sampleCount; i++) {
+            long next = (i + 1 < sampleCount) ? sampleTimes[i + 1] : endTime;
+            buffer.putInt((int) (next - sampleTimes[i]));
+            buffer.putInt(sampleSizes[i]);
+            buffer.putInt(sampleSyncs[i] ? SAMPLE_FLAGS_SYNC : SAMPLE_FLAGS_NON_SYNC);
+        }
+
+        // mdat
+        buffer.putInt(BOX_HEADER_SIZE + end - reserved).put(BoxType.MDAT);
+        buffer.position(position);
+
+        fragmentView.limit(end);
+        fragmentView.position(start);
+        fragmentCount++;
+        totalSampleCount += sampleCount;
+        try {
+            listener.onFragment(fragmentView, sequenceNumber, baseTime, endTime - baseTime);
+        } catch (Exception e) {
+            logger.warn("Fail to handle the fragment. (seq={})", sequenceNumber, e);
+        }
+
+        // Current sample > Start of the sample area
+        int remaining = buffer.position() - end;
+        if (remaining > 0) {
+            System.arraycopy(buffer.array(), end, buffer.array(), reserved, remaining);
+        }
+        buffer.position(reserved + remaining);
+        sampleStart = reserved;
+        sampleCount = 0;
+    }
+
+    /**
+     * ftyp + moov (mvhd, trak (tkhd, mdia (mdhd, hdlr, minf (vmhd, dinf, stbl (stsd (hvc1 (hvcC)))))), mvex (trex))
+     */
+    private boolean writeInitSegment () {
+        List<byte[]> parameterSetList = parameterSetCache.getParameterSets();
+        SpsInfo spsInfo = null;
+        int size = 1024;
+        for (byte[] parameterSet : parameterSetList) {
+            size += parameterSet.length + 3;
+            if (spsInfo == null && ((parameterSet[0] >> 1) & 0b00111111) == H265ParameterSetCache.TYPE_SPS) {
+                spsInfo = SpsInfo.parse(ByteBuffer.wrap(parameterSet));
+            }
+        }
+        if (spsInfo == null) {
+            logger.warn("SPS is not received or can't be parsed. Fail to write the init segment. (parameterSets={})", parameterSetList.size());
+            return false;
+        }
+        if (initBuffer.capacity() < size) {
+            initBuffer = ByteBuffer.allocate(size);
+        }
+
+        ByteBuffer out = initBuffer;
+        out.clear();
+
+        // ftyp
+        out.putInt(24).put(BoxType.FTYP).put(BoxType.ISO6).putInt(0).put(BoxType.ISO6).put(BoxType.CMFC);
+
+        int moov = startBox(out, BoxType.MOOV);
+        int mvhd = startFullBox(out, BoxType.MVHD, 0);
+        out.putInt(0).putInt(0).putInt(TIMESCALE).putInt(0); // creation, modification, timescale, duration
+        out.putInt(0x00010000).putShort((short) 0x0100).putShort((short) 0).putLong(0); // rate, volume, reserved
+        putMatrix(out);
+        out.put(new byte[24]); // pre_defined
+        out.putInt(TRACK_ID + 1); // next_track_ID
+        endBox(out, mvhd);
+
+        int trak = startBox(out, BoxType.TRAK);
+        int tkhd = startFullBox(out, BoxType.TKHD, 0x000003); // Enabled, in movie
+        out.putInt(0).putInt(0).putInt(TRACK_ID).putInt(0).putInt(0); // creation, modification, track_ID, reserved, duration
+        out.putLong(0).putShort((short) 0).putShort((short) 0).putShort((short) 0).putShort((short) 0); // reserved, layer, alternate_group, volume, reserved
+        putMatrix(out);
+        out.putInt(spsInfo.width << 16).putInt(spsInfo.height << 16);
+        endBox(out, tkhd);
+
+        int mdia = startBox(out, BoxType.MDIA);
+        int mdhd = startFullBox(out, BoxType.MDHD, 0);
+        out.putInt(0).putInt(0).putInt(TIMESCALE).putInt(0);
+        out.putShort((short) 0x55C4).putShort((short) 0); // Language (und), pre_defined
+        endBox(out, mdhd);
+        int hdlr = startFullBox(out, BoxType.HDLR, 0);
+        out.putInt(0).put(BoxType.VIDE).putInt(0).putInt(0).putInt(0);
+        out.put("VideoHandler".getBytes()).put((byte) 0);
+        endBox(out, hdlr);
+
+        int minf = startBox(out, BoxType.MINF);
+        int vmhd = startFullBox(out, BoxType.VMHD, 0x000001);
+        out.putShort((short) 0).putShort((short) 0).putShort((short) 0).putShort((short) 0); // graphicsmode, opcolor
+        endBox(out, vmhd);
+        int dinf = startBox(out, BoxType.DINF);
+        int dref = startFullBox(out, BoxType.DREF, 0);
+        out.putInt(1);
+        endBox(out, startFullBox(out, BoxType.URL, 0x000001)); // Self-contained
+        endBox(out, dref);
+        endBox(out, dinf);
+
+        int stbl = startBox(out, BoxType.STBL);
+        int stsd = startFullBox(out, BoxType.STSD, 0);
+        out.putInt(1);
+        int hvc1 = startBox(out, BoxType.HVC1);
+        out.putInt(0).putShort((short) 0).putShort((short) 1); // reserved, data_reference_index
+        out.putShort((short) 0).putShort((short) 0).putInt(0).putInt(0).putInt(0); // pre_defined, reserved, pre_defined
+        out.putShort((short) spsInfo.width).putShort((short) spsInfo.height);
+        out.putInt(0x00480000).putInt(0x00480000).putInt(0).putShort((short) 1); // 72 dpi, reserved, frame_count
+        out.put(new byte[32]); // compressorname
+        out.putShort((short) 0x0018).putShort((short) -1); // depth, pre_defined
+        writeHvcC(out, spsInfo, parameterSetList);
+        endBox(out, hvc1);
+        endBox(out, stsd);
+        endBox(out, startFullBox(out, BoxType.STTS, 0), 0);
+        endBox(out, startFullBox(out, BoxType.STSC, 0), 0);
+        endBox(out, startFullBox(out, BoxType.STSZ, 0), 0, 0);
+        endBox(out, startFullBox(out, BoxType.STCO, 0), 0);
+        endBox(out, stbl);
+        endBox(out, minf);
+        endBox(out, mdia);
+        endBox(out, trak);
+
+        int mvex = startBox(out, BoxType.MVEX);
+        int trex = startFullBox(out, BoxType.TREX, 0);
+        out.putInt(TRACK_ID).putInt(1).putInt(0).putInt(0).putInt(0); // default_sample_description_index, duration, size, flags
+        endBox(out, trex);
+        endBox(out, mvex);
+        endBox(out, moov);
+
+        out.flip();
+        initSegmentCount++;
+        logger.debug("Success to make the init segment. (len={}, {}x{}, profile={}, level={}, parameterSets={})",
+                out.remaining(), spsInfo.width, spsInfo.height, spsInfo.generalProfile[0] & 0x1f, spsInfo.generalProfile[11] & 0xff,
+                parameterSetList.size());
+        try {
+            listener.onInitSegment(out);
+        } catch (Exception e) {
+            logger.warn("Fail to handle the init segment.", e);
+        }
+        return true;
+    }
+
+    /**
+     * HEVCDecoderConfigurationRecord (ISO/IEC 14496-15 8.3.3.1)
+     */
+    private static void writeHvcC (ByteBuffer out, SpsInfo spsInfo, List<byte[]> parameterSetList) {
+        int hvcC = startBox(out, BoxType.HVCC);
+        out.put((byte) 1); // configurationVersion
+        out.put(spsInfo.generalProfile); // profile_space, tier, profile_idc, compatibility, constraint, level_idc
+        out.putShort((short) 0xF000); // min_spatial_segmentation_idc
+        out.put((byte) 0xFC); // parallelismType
+        out.put((byte) (0xFC | spsInfo.chromaFormatIdc));
+        out.put((byte) (0xF8 | spsInfo.bitDepthLumaMinus8));
+        out.put((byte) (0xF8 | spsInfo.bitDepthChromaMinus8));
+        out.putShort((short) 0); // avgFrameRate
+        out.put((byte) (((spsInfo.maxSubLayersMinus1 + 1) << 3) | (spsInfo.temporalIdNesting << 2) | (NALU_LENGTH_SIZE - 1)));
+
+        out.put((byte) 3); // numOfArrays
+        for (int type = H265ParameterSetCache.TYPE_VPS; type <= H265ParameterSetCache.TYPE_PPS; type++) {
+            out.put((byte) (0x80 | type)); // array_completeness
+            int countPosition = out.position();
+            out.putShort((short) 0);
+            int count = 0;
+            for (byte[] parameterSet : parameterSetList) {
+                if (((parameterSet[0] >> 1) & 0b00111111) == type) {
+                    out.putShort((short) parameterSet.length).put(parameterSet);
+                    count++;
+                }
+            }
+            out.putShort(countPosition, (short) count);
+        }
+        endBox(out, hvcC);
+    }
+
+    private void reserve (int newReserved) {
+        int shift = newReserved - reserved;
+        ensureCapacity(shift);
+        int position = buffer.position();
+        System.arraycopy(buffer.array(), reserved, buffer.array(), newReserved, position - reserved);
+        buffer.position(position + shift);
+        sampleStart += shift;
+        reserved = newReserved;
+    }
+
+    private void ensureCapacity (int length) {
+        if (buffer.remaining() >= length) {
+            return;
+        }
+
+        int capacity = buffer.capacity();
+        while (capacity - buffer.position() < length) {
+            capacity *= 2;
+        }
+
+        ByteBuffer newBuffer = ByteBuffer.allocate(capacity);
+        buffer.flip();
+        newBuffer.put(buffer);
+        buffer = newBuffer;
+        fragmentView = buffer.duplicate();
+    }
+
+    private static int getMoofSize (int sampleCount) {
+        return MOOF_FIXED_SIZE + TRUN_SAMPLE_SIZE * sampleCount;
+    }
+
+    private static int startBox (ByteBuffer out, byte[] type) {
+        int start = out.position();
+        out.putInt(0).put(type);
+        return start;
+    }
+
+    private static int startFullBox (ByteBuffer out, byte[] type, int flags) {
+        int start = startBox(out, type);
+        out.putInt(flags); // version (0) + flags
+        return start;
+    }
+
+    /**
+     * @param values 32-bit fields of an empty box (ex. entry_count)
+     */
+    private static void endBox (ByteBuffer out, int start, int... values) {
+        for (int value : values) {
+            out.putInt(value);
+        }
+        out.putInt(start, out.position() - start);
+    }
+
+    private static void putMatrix (ByteBuffer out) {
+        for (int value : UNITY_MATRIX) {
+            out.putInt(value);
+        }
+    }
+
+    ////////////////////////////////////////////////////////////////////
+
+    private static final class BoxType {
+
+        static final byte[] FTYP = "ftyp".getBytes();
+        static final byte[] ISO6 = "iso6".getBytes();
+        static final byte[] CMFC = "cmfc".getBytes();
+        static final byte[] MOOV = "moov".getBytes();
+        static final byte[] MVHD = "mvhd".getBytes();
+        static final byte[] TRAK = "trak".getBytes();
+        static final byte[] TKHD = "tkhd".getBytes();
+        static final byte[] MDIA = "mdia".getBytes();
+        static final byte[] MDHD = "mdhd".getBytes();
+        static final byte[] HDLR = "hdlr".getBytes();
+        static final byte[] VIDE = "vide".getBytes();
+        static final byte[] MINF = "minf".getBytes();
+        static final byte[] VMHD = "vmhd".getBytes();
+        static final byte[] DINF = "dinf".getBytes();
+        static final byte[] DREF = "dref".getBytes();
+        static final byte[] URL = "url ".getBytes();
+        static final byte[] STBL = "stbl".getBytes();
+        static final byte[] STSD = "stsd".getBytes();
+        static final byte[] HVC1 = "hvc1".getBytes();
+        static final byte[] HVCC = "hvcC".getBytes();
+        static final byte[] STTS = "stts".getBytes();
+        static final byte[] STSC = "stsc".getBytes();
+        static final byte[] STSZ = "stsz".getBytes();
+        static final byte[] STCO = "stco".getBytes();
+        static final byte[] MVEX = "mvex".getBytes();
+        static final byte[] TREX = "trex".getBytes();
+        static final byte[] MOOF = "moof".getBytes();
+        static final byte[] MFHD = "mfhd".getBytes();
+        static final byte[] TRAF = "traf".getBytes();
+        static final byte[] TFHD = "tfhd".getBytes();
+        static final byte[] TFDT = "tfdt".getBytes();
+        static final byte[] TRUN = "trun".getBytes();
+        static final byte[] MDAT = "mdat".getBytes();
+
+        private BoxType () {
+        }
+
+    }
+
+    /**
+     * Fields of the SPS for hvcC and the sample entry (H.265 7.3.2.2)
+     */
+    private static final class SpsInfo {
+
+        final byte[] generalProfile = new byte[12];
+        int maxSubLayersMinus1;
+        int temporalIdNesting;
+        int chromaFormatIdc;
+        int width;
+        int height;
+        int bitDepthLumaMinus8;
+        int bitDepthChromaMinus8;
+
+        /**
+         * @param nalu SPS NAL unit (NALU Hdr + NALU Body)
+         * @return null if it fails
+         */
+        static SpsInfo parse (ByteBuffer nalu) {
+            SpsInfo spsInfo = new SpsInfo();
+            H265RbspReader reader = new H265RbspReader(nalu);
+            if (reader.readBits(4) < 0) { // sps_video_parameter_set_id
+                return null;
+            }
+            spsInfo.maxSubLayersMinus1 = (int) reader.readBits(3);
+            spsInfo.temporalIdNesting = (int) reader.readBits(1);
+            for (int i = 0; i < spsInfo.generalProfile.length; i++) {
+                long value = reader.readBits(8);
+                if (value < 0) {
+                    return null;
+                }
+                spsInfo.generalProfile[i] = (byte) value;
+            }
+            if (spsInfo.maxSubLayersMinus1 < 0 || !reader.skipSubLayerProfileTierLevel(spsInfo.maxSubLayersMinus1)) {
+                return null;
+            }
+
+            if (reader.readUe() < 0) { // sps_seq_parameter_set_id
+                return null;
+            }
+            int chromaFormatIdc = (int) reader.readUe();
+            if (chromaFormatIdc < 0 || chromaFormatIdc > 3) {
+                return null;
+            }
+            spsInfo.chromaFormatIdc = chromaFormatIdc;
+            if (chromaFormatIdc == 3 && reader.readBits(1) == 1) {
+                chromaFormatIdc = 0; // separate_colour_plane_flag
+            }
+
+            long width = reader.readUe();
+            long height = reader.readUe();
+            long conformanceWindow = reader.readBits(1);
+            if (width <= 0 || height <= 0 || width > 0xFFFF || height > 0xFFFF || conformanceWindow < 0) {
+                return null;
+            }
+            if (conformanceWindow == 1) {
+                int subWidthC = (chromaFormatIdc == 1 || chromaFormatIdc == 2) ? 2 : 1;
+                int subHeightC = (chromaFormatIdc == 1) ? 2 : 1;
+                long left = reader.readUe();
+                long right = reader.readUe();
+                long top = reader.readUe();
+                long bottom = reader.readUe();
+                if (left < 0 || right < 0 || top < 0 || bottom < 0) {
+                    return null;
+                }
+                width -= subWidthC * (left + right);
+                height -= subHeightC * (top + bottom);
+            }
+            spsInfo.width = (int) width;
+            spsInfo.height = (int) height;
+
+            long bitDepthLumaMinus8 = reader.readUe();
+            long bitDepthChromaMinus8 = reader.readUe();
+            if (bitDepthLumaMinus8 < 0 || bitDepthLumaMinus8 > 7 || bitDepthChromaMinus8 < 0 || bitDepthChromaMinus8 > 7) {
+                return null;
+            }
+            spsInfo.bitDepthLumaMinus8 = (int) bitDepthLumaMinus8;
+            spsInfo.bitDepthChromaMinus8 = (int) bitDepthChromaMinus8;
+            return spsInfo;
+        }
+
+    }
+
+}
@@ -0,0 +1,380 @@
+package media.core.rtp.h265;
+
+import media.core.rtp.h265.base.H265GapListener;
+import media.core.rtp.h265.base.H265PacketListener;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Sequence number reorder (jitter) buffer of one stream
+ * - Packets are kept in a ring indexed by the extended sequence number (16 bits sequence number + wraparound cycles).
+ * - Packets are delivered to the listener in sequence number order :
+ *      1) as soon as the next expected sequence number is received,
+ *      2) or the missing packets are regarded as lost if
+ *          the ring is full (depth), or the packet after the gap has waited for maxDelayMs (latency budget).
+ * - Lost packets are reported to the gap listener. (ex. H265Unpacker.reset() to drop the broken FU)
+ * - Resync (RFC 3550 A.1) : A packet beyond MAX_DROPOUT ahead or MAX_MISORDER behind the highest sequence number is held.
+ *      If the next packet follows it, the sender has restarted the sequence :
+ *      The buffered packets are delivered, and the buffer is anchored on the new sequence. Otherwise it's dropped.
+ * - Late (already delivered or skipped) and duplicated packets are dropped and released. (Bitmap of the buffered sequence numbers)
+ * - No allocation per packet. Not thread-safe. (One buffer per stream)
+ */
+public class H265JitterBuffer {
+
+    private static final Logger logger = LoggerFactory.getLogger(H265JitterBuffer.class);
+
+    public static final int MAX_DROPOUT = 3000;
+    public static final int MAX_MISORDER = 100;
+
+    private final H265PacketListener listener;
+    private H265GapListener gapListener = null;
+    private H265Metrics metrics = H265Metrics.getGlobal();
+
+    private final int capacity;
+    private final int mask;
+    private final long maxDelayNanos;
+
+    private final H265Packet[] slots;
+    private final long[] arrivalTimes;
+    private final long[] bitmap; // 1 : slot is occupied
+
+    private long nextSeqNumber = -1; // Extended
+    private long highestSeqNumber = -1; // Extended
+    private int count = 0;
+    private H265Packet probationPacket = null; // Beyond the window, may start a new sequence
+
+    private long receivedPackets = 0;
+    private long deliveredPackets = 0;
+    private long latePackets = 0;
+    private long duplicatedPackets = 0;
+    private long lostPackets = 0;
+    private long resyncs = 0;
+
+    ////////////////////////////////////////////////////////////////////
+
+    /**
+     * @param depth Max number of sequence numbers to wait for (rounded up to a power of 2, 64 at least)
+     * @param maxDelayMs Max time for a packet to wait for the missing packets before it
+     */
+    public H265JitterBuffer (int depth, long maxDelayMs, H265PacketListener listener) {
+        int size = 64;
+        while (size < depth) {
+            size <<= 1;
+        }
+
+        this.capacity = size;
+        this.mask = size - 1;
+        this.maxDelayNanos = TimeUnit.MILLISECONDS.toNanos(maxDelayMs);
+        this.listener = listener;
+        this.slots = new H265Packet[size];
+        this.arrivalTimes = new long[size];
+        this.bitmap = new long[size >> 6];
+    }
+
+    /**
+     * Jitter buffer in front of the unpacker. The FU in progress is dropped when packets are lost.
+     */
+    public H265JitterBuffer (int depth, long maxDelayMs, final H265Unpacker h265Unpacker) {
+        this(depth, maxDelayMs, h265Unpacker::handle);
+        this.gapListener = (firstSeqNumber, count) -> h265Unpacker.reset();
+        this.metrics = h265Unpacker.getMetrics();
+    }
+
+    public void setGapListener (H265GapListener gapListener) {
+        this.gapListener = gapListener;
+    }
+
+    /**
+     * @param metrics Metrics of the stream, null to use the global metrics
+     */
+    public void setMetrics (H265Metrics metrics) {
+        this.metrics = metrics == null ? H265Metrics.getGlobal() : metrics;
+    }
+
+    ////////////////////////////////////////////////////////////////////
+
+    public boolean offer (H265Packet h265Packet) {
+        return offer(h265Packet, System.nanoTime());
+    }
+
+    /**
+     * @param now System.nanoTime()
+     * @return false if the packet is dropped (late or duplicated). The dropped packet is released. (H265Packet.release())
+     */
+    public boolean offer (H265Packet h265Packet, long now) {
+        if (h265Packet == null) {
+            logger.warn("Packet is null. Fail to offer.");
+            return false;
+        }
+        receivedPackets++;
+        return store(h265Packet, now);
+    }
+
+    private boolean store (H265Packet h265Packet, long now) {
+        // 1) Extend the sequence number (wraparound)
+        int seqNumber = h265Packet.getSeqNumber();
+        long extSeqNumber;
+        if (highestSeqNumber < 0) {
+            extSeqNumber = seqNumber;
+            nextSeqNumber = extSeqNumber;
+            highestSeqNumber = extSeqNumber;
+        } else {
+            int delta = (short) (seqNumber - (int) (highestSeqNumber & 0xFFFF));
+            extSeqNumber = highestSeqNumber + delta;
+            if (delta >= MAX_DROPOUT || delta < -MAX_MISORDER) {
+                return probe(h265Packet, now);
+            }
+            if (probationPacket != null) {
+                dropProbation();
+            }
+        }
+
+        // 2) Drop late or duplicated packets
+        if (extSeqNumber < nextSeqNumber) {
+            latePackets++;
+            metrics.recordPacketLate();
+            logger.debug("Late packet is dropped. (seq={}, nextSeq={})", seqNumber, nextSeqNumber & 0xFFFF);
+            h265Packet.release();
+            return false;
+        }
+        int index = (int) (extSeqNumber & mask);
+        if (isOccupied(index) && extSeqNumber < nextSeqNumber + capacity) {
+            duplicatedPackets++;
+            metrics.recordPacketDuplicated();
+            logger.debug("Duplicated packet is dropped. (seq={})", seqNumber);
+            h265Packet.release();
+            return false;
+        }
+
+        // 3) Make room : The packets that can't be waited any more are delivered
+        while (extSeqNumber >= nextSeqNumber + capacity) {
+            long limit = extSeqNumber - capacity + 1;
+            if (count == 0) {
+                skipTo(limit);
+                break;
+            }
+            long firstSeqNumber = findFirstOccupied();
+            if (firstSeqNumber > nextSeqNumber) {
+                skipTo(Math.min(firstSeqNumber, limit));
+            } else {
+                releaseNext();
+            }
+        }
+
+        // 4) Store
+        slots[index] = h265Packet;
+        arrivalTimes[index] = now;
+        setOccupied(index);
+        count++;
+        if (extSeqNumber > highestSeqNumber) {
+            highestSeqNumber = extSeqNumber;
+        }
+
+        drain();
+        poll(now);
+        return true;
+    }
+
+    /**
+     * Skips the missing packets if the packet after them has waited for maxDelayMs. (Called by the caller's timer)
+     * @return The number of packets delivered
+     */
+    public int poll (long now) {
+        long before = deliveredPackets;
+        while (count > 0) {
+            long firstSeqNumber = findFirstOccupied();
+            if (now - arrivalTimes[(int) (firstSeqNumber & mask)] < maxDelayNanos) {
+                break;
+            }
+            skipTo(firstSeqNumber);
+            drain();
+        }
+        return (int) (deliveredPackets - before);
+    }
+
+    /**
+     * Delivers all the buffered packets in order. (End of stream)
+     */
+    public int flush () {
+        long before = deliveredPackets;
+        while (count > 0) {
+            skipTo(findFirstOccupied());
+            drain();
+        }
+        return (int) (deliveredPackets - before);
+    }
+
+    /**
+     * Drops and releases all the buffered packets.
+     */
+    public void reset () {
+        for (H265Packet h265Packet : slots) {
+            if (h265Packet != null) {
+                h265Packet.release();
+            }
+        }
+        if (probationPacket != null) {
+            probationPacket.release();
+            probationPacket = null;
+        }
+        Arrays.fill(slots, null);
+        Arrays.fill(bitmap, 0);
+        nextSeqNumber = -1;
+        highestSeqNumber = -1;
+        count = 0;
+    }
+
+    ////////////////////////////////////////////////////////////////////
+
+    public int getCapacity () {
+        return capacity;
+    }
+
+    public int getCount () {
+        return count;
+    }
+
+    /**
+     * @return Extended sequence number of the next packet to deliver, or -1
+     */
+    public long getNextSeqNumber () {
+        return nextSeqNumber;
+    }
+
+    public long getHighestSeqNumber () {
+        return highestSeqNumber;
+    }
+
+    public long getReceivedPackets () {
+        return receivedPackets;
+    }
+
+    public long getDeliveredPackets () {
+        return deliveredPackets;
+    }
+
+    public long getLatePackets () {
+        return latePackets;
+    }
+
+    public long getDuplicatedPackets () {
+        return duplicatedPackets;
+    }
+
+    public long getLostPackets () {
+        return lostPackets;
+    }
+
+    /**
+     * @return The number of the sequence restarts (Resync)
+     */
+    public long getResyncs () {
+        return resyncs;
+    }
+
+    ////////////////////////////////////////////////////////////////////
+
+    /**
+     * Holds the packet beyond the window. Two sequential packets beyond the window restart the sequence. (RFC 3550 A.1)
+     */
+    private boolean probe (H265Packet h265Packet, long now) {
+        if (probationPacket != null && h265Packet.getSeqNumber() == ((probationPacket.getSeqNumber() + 1) & 0xFFFF)) {
+            H265Packet firstPacket = probationPacket;
+            probationPacket = null;
+            resyncs++;
+            logger.debug("Sequence is restarted. (seq={}, prevHighestSeq={})", firstPacket.getSeqNumber(), highestSeqNumber & 0xFFFF);
+
+            flush();
+            reset();
+            store(firstPacket, now);
+            return store(h265Packet, now);
+        }
+
+        if (probationPacket != null) {
+            dropProbation();
+        }
+        probationPacket = h265Packet;
+        return true;
+    }
+
+    /**
+     * The held packet is not followed by the next sequence number : Dropped as late.
+     */
+    private void dropProbation () {
+        latePackets++;
+        metrics.recordPacketLate();
+        logger.debug("Packet beyond the window is dropped. (seq={}, highestSeq={})", probationPacket.getSeqNumber(), highestSeqNumber & 0xFFFF);
+        probationPacket.release();
+        probationPacket = null;
+    }
+
+    private void drain () {
+        while (count > 0 && isOccupied((int) (nextSeqNumber & mask))) {
+            releaseNext();
+        }
+    }
+
+    private void releaseNext () {
+        int index = (int) (nextSeqNumber & mask);
+        H265Packet h265Packet = slots[index];
+        slots[index] = null;
+        clearOccupied(index);
+        count--;
+        nextSeqNumber++;
+        deliveredPackets++;
+        listener.onPacket(h265Packet);
+    }
+
+    /**
+     * Regards [nextSeqNumber, seqNumber) as lost.
+     */
+    private void skipTo (long seqNumber) {
+        int lost = (int) (seqNumber - nextSeqNumber);
+        if (lost <= 0) {
+            return;
+        }
+
+        long firstSeqNumber = nextSeqNumber;
+        nextSeqNumber = seqNumber;
+        lostPackets += lost;
+        metrics.recordPacketsLost(lost);
+        logger.debug("Packets are lost. (firstSeq={}, count={})", firstSeqNumber & 0xFFFF, lost);
+        if (gapListener != null) {
+            gapListener.onGap(firstSeqNumber, lost);
+        }
+    }
+
+    /**
+     * @return Extended sequence number of the first buffered packet (count > 0)
+     */
+    private long findFirstOccupied () {
+        int start = (int) (nextSeqNumber & mask);
+        int word = start >> 6;
+        long bits = bitmap[word] & (-1L << (start & 63));
+        for (int i = 0; i <= bitmap.length; i++) {
+            if (bits != 0) {
+                int index = (word << 6) + Long.numberOfTrailingZeros(bits);
+                return nextSeqNumber + ((index - start) & mask);
+            }
+            word = (word + 1) % bitmap.length;
+            bits = bitmap[word];
+        }
+        return nextSeqNumber;
+    }
+
+    private boolean isOccupied (int index) {
+        return (bitmap[index >> 6] & (1L << index)) != 0;
+    }
+
+    private void setOccupied (int index) {
+        bitmap[index >> 6] |= 1L << index;
+    }
+
+    private void clearOccupied (int index) {
+        bitmap[index >> 6] &= ~(1L << index);
+    }
+
+}
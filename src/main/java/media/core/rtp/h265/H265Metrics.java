@@ -0,0 +1,390 @@
+package media.core.rtp.h265;
+
+import media.core.rtp.h265.base.FUAbortReason;
+import media.core.rtp.h265.base.H265MetricsMXBean;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Packetization counters of a stream (or of all the streams)
+ * - Striped counters (LongAdder) : Cheap to update from many threads, summed only when read.
+ * - A stream metrics updates its parent too. (ex. Per-SSRC metrics > getGlobal())
+ * - Registered as an MXBean by register(). (ObjectName : media.core.rtp.h265:type=H265Metrics,name=...)
+ * - Updated by H265Packer, H265PacketizerSession, H265ApAggregator, H265Unpacker and H265JitterBuffer.
+ */
+public class H265Metrics implements H265MetricsMXBean {
+
+    private static final Logger logger = LoggerFactory.getLogger(H265Metrics.class);
+
+    public static final String DOMAIN = "media.core.rtp.h265";
+    private static final int TYPE_COUNT = 64;
+    private static final FUAbortReason[] FU_ABORT_REASONS = FUAbortReason.values();
+
+    private static final H265Metrics GLOBAL = new H265Metrics(null);
+
+    private final H265Metrics parent;
+
+    private final LongAdder[] packetsInByType = newAdders(TYPE_COUNT);
+    private final LongAdder[] packetsOutByType = newAdders(TYPE_COUNT);
+    private final LongAdder apPacked = new LongAdder();
+    private final LongAdder apPackedUnits = new LongAdder();
+    private final LongAdder apPackedBytes = new LongAdder();
+    private final LongAdder apUnpacked = new LongAdder();
+    private final LongAdder apUnpackedUnits = new LongAdder();
+    private final LongAdder apOversized = new LongAdder();
+    private final LongAdder fuCompleted = new LongAdder();
+    private final LongAdder[] fuAbortedByReason = newAdders(FU_ABORT_REASONS.length);
+    private final LongAdder bytesReassembled = new LongAdder();
+    private final LongAdder packetsLost = new LongAdder();
+    private final LongAdder packetsLate = new LongAdder();
+    private final LongAdder packetsDuplicated = new LongAdder();
+
+    private ObjectName objectName = null;
+
+    ////////////////////////////////////////////////////////////////////
+
+    public H265Metrics () {
+        this(GLOBAL);
+    }
+
+    /**
+     * @param parent Metrics updated together (ex. getGlobal()) or null
+     */
+    public H265Metrics (H265Metrics parent) {
+        this.parent = parent;
+    }
+
+    /**
+     * @return Metrics of all the streams (Parent of the metrics created by the default constructor)
+     */
+    public static H265Metrics getGlobal () {
+        return GLOBAL;
+    }
+
+    ////////////////////////////////////////////////////////////////////
+
+    /**
+     * Registers the metrics to the platform MBean server.
+     * @param name Name key of the ObjectName (ex. "global", "ssrc-1234")
+     * @return false if it fails
+     */
+    public synchronized boolean register (String name) {
+        if (objectName != null) {
+            logger.warn("Metrics is already registered. Fail to register. (objectName={})", objectName);
+            return false;
+        }
+
+        try {
+            ObjectName newObjectName = new ObjectName(DOMAIN + ":type=H265Metrics,name=" + ObjectName.quote(name));
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, newObjectName);
+            objectName = newObjectName;
+            logger.debug("Success to register the metrics. (objectName={})", objectName);
+            return true;
+        } catch (Exception e) {
+            logger.warn("Fail to register the metrics. (name={})", name, e);
+            return false;
+        }
+    }
+
+    public synchronized void unregister () {
+        if (objectName == null) {
+            return;
+        }
+
+        try {
+            MBeanServer mBeanServer = ManagementFactory.getPlatformMBeanServer();
+            if (mBeanServer.isRegistered(objectName)) {
+                mBeanServer.unregisterMBean(objectName);
+            }
+        } catch (Exception e) {
+            logger.warn("Fail to unregister the metrics. (objectName={})", objectName, e);
+        }
+        objectName = null;
+    }
+
+    public synchronized ObjectName getObjectName () {
+        return objectName;
+    }
+
+    ////////////////////////////////////////////////////////////////////
+
+    /**
+     * @param type Type of PayloadHdr
+     */
+    public void recordPacketIn (int type) {
+        if (type >= 0 && type < TYPE_COUNT) {
+            packetsInByType[type].increment();
+        }
+        if (parent != null) {
+            parent.recordPacketIn(type);
+        }
+    }
+
+    public void recordPacketOut (int type) {
+        if (type >= 0 && type < TYPE_COUNT) {
+            packetsOutByType[type].increment();
+        }
+        if (parent != null) {
+            parent.recordPacketOut(type);
+        }
+    }
+
+    /**
+     * @param units The number of aggregation units
+     * @param bytes Packet length (RTP header included)
+     */
+    public void recordApPacked (int units, int bytes) {
+        apPacked.increment();
+        apPackedUnits.add(units);
+        apPackedBytes.add(bytes);
+        if (parent != null) {
+            parent.recordApPacked(units, bytes);
+        }
+    }
+
+    public void recordApUnpacked (int units) {
+        apUnpacked.increment();
+        apUnpackedUnits.add(units);
+        if (parent != null) {
+            parent.recordApUnpacked(units);
+        }
+    }
+
+    /**
+     * AP is rejected because it exceeds the max packet size.
+     */
+    public void recordApOversized () {
+        apOversized.increment();
+        if (parent != null) {
+            parent.recordApOversized();
+        }
+    }
+
+    /**
+     * @param bytes Length of the reassembled NAL unit
+     */
+    public void recordFuCompleted (int bytes) {
+        fuCompleted.increment();
+        bytesReassembled.add(bytes);
+        if (parent != null) {
+            parent.recordFuCompleted(bytes);
+        }
+    }
+
+    public void recordFuAborted (FUAbortReason reason) {
+        fuAbortedByReason[reason.ordinal()].increment();
+        if (parent != null) {
+            parent.recordFuAborted(reason);
+        }
+    }
+
+    public void recordPacketsLost (int count) {
+        packetsLost.add(count);
+        if (parent != null) {
+            parent.recordPacketsLost(count);
+        }
+    }
+
+    public void recordPacketLate () {
+        packetsLate.increment();
+        if (parent != null) {
+            parent.recordPacketLate();
+        }
+    }
+
+    public void recordPacketDuplicated () {
+        packetsDuplicated.increment();
+        if (parent != null) {
+            parent.recordPacketDuplicated();
+        }
+    }
+
+    ////////////////////////////////////////////////////////////////////
+
+    @Override
+    public long getPacketsIn () {
+        return sum(packetsInByType);
+    }
+
+    @Override
+    public long getPacketsOut () {
+        return sum(packetsOutByType);
+    }
+
+    @Override
+    public long[] getPacketsInByType () {
+        return sumEach(packetsInByType);
+    }
+
+    @Override
+    public long[] getPacketsOutByType () {
+        return sumEach(packetsOutByType);
+    }
+
+    public long getPacketsIn (int type) {
+        return packetsInByType[type].sum();
+    }
+
+    public long getPacketsOut (int type) {
+        return packetsOutByType[type].sum();
+    }
+
+    @Override
+    public long getApPacked () {
+        return apPacked.sum();
+    }
+
+    @Override
+    public long getApUnpacked () {
+        return apUnpacked.sum();
+    }
+
+    @Override
+    public double getAveragePackedApUnits () {
+        return average(apPackedUnits.sum(), apPacked.sum());
+    }
+
+    @Override
+    public double getAveragePackedApSize () {
+        return average(apPackedBytes.sum(), apPacked.sum());
+    }
+
+    @Override
+    public double getAverageUnpackedApUnits () {
+        return average(apUnpackedUnits.sum(), apUnpacked.sum());
+    }
+
+    @Override
+    public long getApOversized () {
+        return apOversized.sum();
+    }
+
+    @Override
+    public long getFuCompleted () {
+        return fuCompleted.sum();
+    }
+
+    @Override
+    public long getFuAborted () {
+        return sum(fuAbortedByReason);
+    }
+
+    public long getFuAborted (FUAbortReason reason) {
+        return fuAbortedByReason[reason.ordinal()].sum();
+    }
+
+    @Override
+    public Map<String, Long> getFuAbortedByReason () {
+        Map<String, Long> map = new LinkedHashMap<>();
+        for (FUAbortReason reason : FU_ABORT_REASONS) {
+            map.put(reason.name(), fuAbortedByReason[reason.ordinal()].sum());
+        }
+        return map;
+    }
+
+    @Override
+    public double getFuAbortRatio () {
+        long aborted = getFuAborted();
+        return average(aborted, aborted + fuCompleted.sum());
+    }
+
+    @Override
+    public long getBytesReassembled () {
+        return bytesReassembled.sum();
+    }
+
+    @Override
+    public long getPacketsLost () {
+        return packetsLost.sum();
+    }
+
+    @Override
+    public long getPacketsLate () {
+        return packetsLate.sum();
+    }
+
+    @Override
+    public long getPacketsDuplicated () {
+        return packetsDuplicated.sum();
+    }
+
+    /**
+     * Resets the counters of this metrics only. (Not the parent)
+     */
+    @Override
+    public void resetCounters () {
+        resetAll(packetsInByType);
+        resetAll(packetsOutByType);
+        apPacked.reset();
+        apPackedUnits.reset();
+        apPackedBytes.reset();
+        apUnpacked.reset();
+        apUnpackedUnits.reset();
+        apOversized.reset();
+        fuCompleted.reset();
+        resetAll(fuAbortedByReason);
+        bytesReassembled.reset();
+        packetsLost.reset();
+        packetsLate.reset();
+        packetsDuplicated.reset();
+    }
+
+    ////////////////////////////////////////////////////////////////////
+
+    private static LongAdder[] newAdders (int count) {
+        LongAdder[] adders = new LongAdder[count];
+        for (int i = 0; i < count; i++) {
+            adders[i] = new LongAdder();
+        }
+        return adders;
+    }
+
+    private static long sum (LongAdder[] adders) {
+        long sum = 0;
+        for (LongAdder adder : adders) {
+            sum += adder.sum();
+        }
+        return sum;
+    }
+
+    private static long[] sumEach (LongAdder[] adders) {
+        long[] sums = new long[adders.length];
+        for (int i = 0; i < adders.length; i++) {
+            sums[i] = adders[i].sum();
+        }
+        return sums;
+    }
+
+    private static void resetAll (LongAdder[] adders) {
+        for (LongAdder adder : adders) {
+            adder.reset();
+        }
+    }
+
+    private static double average (long total, long count) {
+        return count == 0 ? 0 : (double) total / count;
+    }
+
+    @Override
+    public String toString () {
+        return "H265Metrics{" +
+                "packetsIn=" + getPacketsIn() +
+                ", packetsOut=" + getPacketsOut() +
+                ", apPacked=" + getApPacked() +
+                ", apUnpacked=" + getApUnpacked() +
+                ", apOversized=" + getApOversized() +
+                ", fuCompleted=" + getFuCompleted() +
+                ", fuAborted=" + getFuAborted() +
+                ", bytesReassembled=" + getBytesReassembled() +
+                ", packetsLost=" + getPacketsLost() +
+                '}';
+    }
+
+}
@@ -0,0 +1,139 @@
+package media.core.rtp.h265;
+
+import media.core.rtp.RtpBufferPool;
+import media.core.rtp.RtpPacket;
+
+import java.nio.ByteBuffer;
+
+/**
+ * View of one NAL unit (NALU Hdr + NALU Body) in a packet buffer
+ * - No bytes are copied. The view refers to [offset, offset + length) of the buffer.
+ * - The NAL unit header is parsed once when the view is set.
+ * - A view is valid as long as the packet buffer isn't reused. (Views of an AP are reused by the next AP)
+ */
+public class H265NaluView {
+
+    private ByteBuffer buffer = null;
+    private int offset = 0;
+    private int length = 0;
+    private int header = -1;
+    private int don = -1;
+
+    ////////////////////////////////////////////////////////////////////
+
+    public H265NaluView () {
+        // Nothing
+    }
+
+    public H265NaluView (ByteBuffer buffer, int offset, int length) {
+        set(buffer, offset, length, -1);
+    }
+
+    ////////////////////////////////////////////////////////////////////
+
+    public H265NaluView set (ByteBuffer buffer, int offset, int length, int don) {
+        this.buffer = buffer;
+        this.offset = offset;
+        this.length = length;
+        this.header = length >= H265Packet.RTP_HEVC_PAYLOAD_HEADER_SIZE
+                ? ((buffer.get(offset) & 0xff) << 8) | (buffer.get(offset + 1) & 0xff)
+                : -1;
+        this.don = don;
+        return this;
+    }
+
+    public void clear () {
+        buffer = null;
+        offset = 0;
+        length = 0;
+        header = -1;
+        don = -1;
+    }
+
+    /**
+     * @return Duplicate of the buffer from the NAL unit header to the end of the NAL unit (position to limit)
+     */
+    public ByteBuffer asByteBuffer () {
+        ByteBuffer nalu = buffer.duplicate();
+        nalu.limit(offset + length);
+        nalu.position(offset);
+        return nalu;
+    }
+
+    /**
+     * Copies the NAL unit to a new Single NAL Unit packet. ([RTP Header] + [NALU Hdr + NALU Body])
+     * - Used when the NAL unit must outlive the packet buffer. (ex. DON reorder buffer)
+     * @param rtpHeader Buffer that has the RTP header at 0
+     */
+    public H265Packet toPacket (ByteBuffer rtpHeader) {
+        return toPacket(rtpHeader, null);
+    }
+
+    /**
+     * @param bufferPool Pool of the packet buffer or null to allocate a direct buffer
+     */
+    public H265Packet toPacket (ByteBuffer rtpHeader, RtpBufferPool bufferPool) {
+        H265Packet h265Packet = new H265Packet(RtpPacket.FIXED_HEADER_SIZE + length, bufferPool);
+        ByteBuffer dst = h265Packet.getBuffer();
+        dst.clear();
+
+        ByteBuffer src = rtpHeader.duplicate();
+        src.limit(RtpPacket.FIXED_HEADER_SIZE);
+        src.position(0);
+        dst.put(src);
+        dst.put(asByteBuffer());
+        dst.flip();
+
+        h265Packet.setDon(don);
+        return h265Packet;
+    }
+
+    ////////////////////////////////////////////////////////////////////
+
+    public ByteBuffer getBuffer () {
+        return buffer;
+    }
+
+    public int getOffset () {
+        return offset;
+    }
+
+    public int getLength () {
+        return length;
+    }
+
+    public int getHeader () {
+        return header;
+    }
+
+    public int getForbidden () {
+        return (header >> 15) & 0x1;
+    }
+
+    public int getType () {
+        return (header >> 9) & 0b00111111;
+    }
+
+    public int getLid () {
+        return (header >> 3) & 0b00111111;
+    }
+
+    public int getTid () {
+        return header & 0b00000111;
+    }
+
+    public int getDon () {
+        return don;
+    }
+
+    @Override
+    public String toString () {
+        return "H265NaluView{" +
+                "offset=" + offset +
+                ", length=" + length +
+                ", type=" + getType() +
+                ", don=" + don +
+                '}';
+    }
+
+}
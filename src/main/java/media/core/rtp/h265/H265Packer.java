@@ -1,10 +1,12 @@
 package media.core.rtp.h265;
 
+import media.core.rtp.RtpBufferPool;
 import media.core.rtp.RtpPacket;
 import media.core.rtp.h265.base.FUPosition;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
@@ -13,10 +15,33 @@ public class H265Packer {
 
     private static final Logger logger = LoggerFactory.getLogger(H265Packer.class);
 
+    // Packets take right-sized direct buffers from the pool if it's set (Returned by H265Packet.release())
+    private RtpBufferPool bufferPool = null;
+    private H265Metrics metrics = H265Metrics.getGlobal();
+
     public H265Packer() {
         // Nothing
     }
 
+    public void setBufferPool (RtpBufferPool bufferPool) {
+        this.bufferPool = bufferPool;
+    }
+
+    public RtpBufferPool getBufferPool () {
+        return bufferPool;
+    }
+
+    /**
+     * @param metrics Metrics of the stream, null to use the global metrics
+     */
+    public void setMetrics (H265Metrics metrics) {
+        this.metrics = metrics == null ? H265Metrics.getGlobal() : metrics;
+    }
+
+    public H265Metrics getMetrics () {
+        return metrics;
+    }
+
     ////////////////////////////////////////////////////////////////////
 
     @Deprecated
@@ -63,7 +88,9 @@ public class H265Packer {
         logger.debug("\tAP: {}", Arrays.toString(apData));
         logger.info("Success to pack AP.");
 
-        return new H265Packet(apData, RtpPacket.RTP_PACKET_MAX_SIZE, true);
+        metrics.recordApPacked(2, apData.length);
+        metrics.recordPacketOut(H265Packet.RTP_HEVC_TYPE_AP);
+        return newPacket(apData);
     }
 
     public H265Packet packApByList (List<H265Packet> naluList) {
@@ -76,6 +103,8 @@ public class H265Packer {
         }
 
         int totalDataLen = 0;
+        int prevDon = -1;
+        boolean isDonlUsing = naluList.get(0).isDonlUsing(); // DONL of the first unit, DOND of the others
         List<byte[]> apList = new ArrayList<>();
 
         for (H265Packet h265Packet : naluList) {
@@ -105,7 +134,7 @@ public class H265Packer {
             int totalApDataLen;
             if (totalDataLen == 0) {
                 totalApDataLen = RtpPacket.FIXED_HEADER_SIZE + H265Packet.RTP_HEVC_PAYLOAD_HEADER_SIZE + H265Packet.RTP_HEVC_AP_NALU_LENGTH_FIELD_SIZE;
-                if (h265Packet.isDonlUsing()) {
+                if (isDonlUsing) {
                     totalApDataLen += H265Packet.RTP_HEVC_DONL_FIELD_SIZE;
                 }
 
@@ -116,10 +145,9 @@ public class H265Packer {
 
                 // 3) Set Header (Payload hdr + NALU size hdr)
                 if (h265Packet.isDonlUsing()) { // 2 Bytes
-                    // TODO: Insert DONL Data
-                    apData[1 + RtpPacket.FIXED_HEADER_SIZE] = 1; // #
-                    apData[2 + RtpPacket.FIXED_HEADER_SIZE] = 1; // #
-                    apData[3 + RtpPacket.FIXED_HEADER_SIZE] = 1;
+                    apData[1 + RtpPacket.FIXED_HEADER_SIZE] = 1;
+                    apData[2 + RtpPacket.FIXED_HEADER_SIZE] = (byte) (h265Packet.getDon() >> 8); // DONL
+                    apData[3 + RtpPacket.FIXED_HEADER_SIZE] = (byte) (h265Packet.getDon());
                     apData[4 + RtpPacket.FIXED_HEADER_SIZE] = (byte) (rtpPayloadNalu.length >> 8);
                     apData[5 + RtpPacket.FIXED_HEADER_SIZE] = (byte) (rtpPayloadNalu.length);
                 } else {
@@ -129,15 +157,20 @@ public class H265Packer {
                 }
             } else {
                 totalApDataLen = H265Packet.RTP_HEVC_AP_NALU_LENGTH_FIELD_SIZE;
-                if (h265Packet.isDondUsing()) {
+                if (isDonlUsing) {
                     totalApDataLen += H265Packet.RTP_HEVC_DOND_FIELD_SIZE;
                 }
 
                 apData = new byte[rtpPayloadNalu.length + totalApDataLen];
 
-                if (h265Packet.isDondUsing()) { // 1 Byte
-                    // TODO: Insert DOND Data
-                    apData[0] = 1; // #
+                if (isDonlUsing) { // 1 Byte
+                    // DOND = DON(i) - DON(i-1) - 1
+                    int dond = (h265Packet.getDon() - prevDon - 1) & 0xFFFF;
+                    if (dond > 0xFF) {
+                        logger.warn("DON difference is too big. Fail to pack AP. (prevDon={}, don={})", prevDon, h265Packet.getDon());
+                        return null;
+                    }
+                    apData[0] = (byte) dond;
                     apData[1] = (byte) (rtpPayloadNalu.length >> 8);
                     apData[2] = (byte) (rtpPayloadNalu.length);
                 } else {
@@ -149,6 +182,7 @@ public class H265Packer {
             // 4) Set AP Payload
             System.arraycopy(rtpPayloadNalu, 0, apData, totalApDataLen, rtpPayloadNalu.length);
             apList.add(apData);
+            prevDon = h265Packet.getDon();
 
             logger.debug("\tNALU: {} (len={})", apData, apData.length);
             totalDataLen += apData.length;
@@ -157,6 +191,7 @@ public class H265Packer {
         if (totalDataLen > RtpPacket.RTP_PACKET_MAX_SIZE) {
             logger.warn("Total payload length is more than RTP Packet max size. Fail to pack AP. (payloadLen={}, rtpMaxSize={})",
                     totalDataLen, RtpPacket.RTP_PACKET_MAX_SIZE);
+            metrics.recordApOversized();
             return null;
         }
 
@@ -171,7 +206,9 @@ public class H265Packer {
         logger.debug("\tAP: {}", totalData);
         logger.info("Success to pack AP.");
 
-        return new H265Packet(totalData, RtpPacket.RTP_PACKET_MAX_SIZE, true);
+        metrics.recordApPacked(naluList.size(), totalDataLen);
+        metrics.recordPacketOut(H265Packet.RTP_HEVC_TYPE_AP);
+        return newPacket(totalData);
     }
 
     ////////////////////////////////////////////////////////////////////
@@ -195,7 +232,8 @@ public class H265Packer {
         int packetLength = h265Packet.getLength();
         int payloadLength = packetLength - RtpPacket.FIXED_HEADER_SIZE;
         int totalHdrSize = H265Packet.RTP_HEVC_PAYLOAD_HEADER_SIZE + H265Packet.RTP_HEVC_FU_HEADER_SIZE;
-        if (h265Packet.isDonlUsing()) {
+        boolean isDonlUsing = h265Packet.isDonlUsing() && fuPosition == FUPosition.START; // DONL is only in the first FU
+        if (isDonlUsing) {
             totalHdrSize += H265Packet.RTP_HEVC_DONL_FIELD_SIZE;
         }
 
@@ -222,10 +260,9 @@ public class H265Packer {
             header[2] += 0b01000000; // E = 1
         }
 
-        if (h265Packet.isDonlUsing()) { // 2 Bytes
-            // TODO: Insert DONL Data
-            header[3] = 1; // #
-            header[4] = 1; // #
+        if (isDonlUsing) { // 2 Bytes
+            header[3] = (byte) (h265Packet.getDon() >> 8);
+            header[4] = (byte) (h265Packet.getDon());
         }
 
         // 4) Set FU Payload
@@ -236,7 +273,226 @@ public class H265Packer {
         logger.debug("Packed FU: {}, len: {}", buffer, buffer.length);
 
         logger.info("Success to pack FU.");
-        return new H265Packet(buffer, RtpPacket.RTP_PACKET_MAX_SIZE, true);
+        metrics.recordPacketOut(H265Packet.RTP_HEVC_TYPE_FU);
+        return newPacket(buffer);
+    }
+
+    ////////////////////////////////////////////////////////////////////
+
+    /**
+     * Splits one NAL unit into a full FU train in a single pass.
+     * - mtu : Max size of an output RTP packet (RTP header + PayloadHdr + FU header + FU payload)
+     * - The NAL unit header is moved to PayloadHdr (Type=49) and FU header (FuType), so FU payload starts from the NALU body.
+     * - Each fragment takes the RTP header of the input packet with an increasing sequence number,
+     *   and the marker bit of the input packet is kept only on the last fragment.
+     * - If the NAL unit fits in mtu, the input packet itself is returned as a Single NAL Unit packet.
+     * - If the packet uses DONL, DONL (getDon()) is written in the first FU, or in the Single NAL Unit packet.
+     */
+    public List<H265Packet> fragment (H265Packet nalu, int mtu) {
+        List<H265Packet> fuList = new ArrayList<>();
+        if (fragment(nalu, mtu, fuList) <= 0) {
+            return null;
+        }
+        return fuList;
+    }
+
+    /**
+     * @return The number of packets added to fuList, or -1 if it fails
+     */
+    public int fragment (H265Packet nalu, int mtu, List<H265Packet> fuList) {
+        // 1) Check Single NALU Packet
+        if (nalu == null || fuList == null) {
+            logger.warn("Packet is null. Fail to fragment.");
+            return -1;
+        }
+
+        int packetLength = nalu.getLength();
+        int naluHeader = nalu.getPayloadHeader();
+        if (naluHeader < 0 || packetLength <= RtpPacket.FIXED_HEADER_SIZE + H265Packet.RTP_HEVC_PAYLOAD_HEADER_SIZE) {
+            logger.warn("Payload is too short. Fail to fragment. (packetLen={})", packetLength);
+            return -1;
+        }
+        if (!checkFragmentable(naluHeader, mtu)) {
+            return -1;
+        }
+
+        int donl = nalu.isDonlUsing() ? nalu.getDon() : -1;
+        if (donl < 0 && packetLength <= mtu) {
+            fuList.add(nalu);
+            return 1;
+        }
+        if (donl >= 0 && packetLength + H265Packet.RTP_HEVC_DONL_FIELD_SIZE <= mtu) {
+            fuList.add(packSingle(nalu.getBuffer(), RtpPacket.FIXED_HEADER_SIZE, packetLength, true, donl));
+            return 1;
+        }
+
+        return fragment(nalu.getBuffer(), RtpPacket.FIXED_HEADER_SIZE, packetLength, true, donl, mtu, fuList);
+    }
+
+    /**
+     * Fragments a raw NAL unit (NALU Hdr + NALU Body, from position to limit of the buffer).
+     * - The RTP header of the output packets is left empty, and must be written by the caller. (RtpPacket.writeHeader())
+     * - If the NAL unit fits in mtu, one Single NAL Unit packet is added.
+     * @return The number of packets added to fuList, or -1 if it fails
+     */
+    public int fragment (ByteBuffer nalu, int mtu, List<H265Packet> fuList) {
+        return fragment(nalu, -1, mtu, fuList);
+    }
+
+    /**
+     * @param don DON of the NAL unit written in DONL, or -1 if DONL is not used
+     */
+    public int fragment (ByteBuffer nalu, int don, int mtu, List<H265Packet> fuList) {
+        // 1) Check NALU
+        if (nalu == null || fuList == null) {
+            logger.warn("NALU is null. Fail to fragment.");
+            return -1;
+        }
+
+        int naluOffset = nalu.position();
+        int naluLength = nalu.remaining();
+        if (naluLength <= H265Packet.RTP_HEVC_PAYLOAD_HEADER_SIZE) {
+            logger.warn("NALU is too short. Fail to fragment. (naluLen={})", naluLength);
+            return -1;
+        }
+
+        int naluHeader = ((nalu.get(naluOffset) & 0xff) << 8) | (nalu.get(naluOffset + 1) & 0xff);
+        if (!checkFragmentable(naluHeader, mtu)) {
+            return -1;
+        }
+
+        int donl = don < 0 ? -1 : don & 0xFFFF;
+        int singleLength = RtpPacket.FIXED_HEADER_SIZE + naluLength + (donl >= 0 ? H265Packet.RTP_HEVC_DONL_FIELD_SIZE : 0);
+        if (singleLength <= mtu) {
+            fuList.add(packSingle(nalu, naluOffset, naluOffset + naluLength, false, donl));
+            return 1;
+        }
+
+        return fragment(nalu, naluOffset, naluOffset + naluLength, false, donl, mtu, fuList);
+    }
+
+    private boolean checkFragmentable (int naluHeader, int mtu) {
+        int type = (naluHeader >> 9) & 0b00111111;
+        if (type == H265Packet.RTP_HEVC_TYPE_AP || type == H265Packet.RTP_HEVC_TYPE_FU) {
+            logger.warn("Nested. Fail to fragment. (type={})", type);
+            return false;
+        }
+
+        if (mtu <= RtpPacket.FIXED_HEADER_SIZE + H265Packet.RTP_HEVC_PAYLOAD_HEADER_SIZE + H265Packet.RTP_HEVC_FU_HEADER_SIZE + H265Packet.RTP_HEVC_DONL_FIELD_SIZE) {
+            logger.warn("MTU is too small. Fail to fragment. (mtu={})", mtu);
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Single NAL Unit packet : [RTP Header] + [PayloadHdr] + [DONL (cond)] + [NALU Body]
+     */
+    private H265Packet packSingle (ByteBuffer src, int naluOffset, int naluEnd, boolean hasRtpHeader, int donl) {
+        int donlSize = donl >= 0 ? H265Packet.RTP_HEVC_DONL_FIELD_SIZE : 0;
+        H265Packet single = new H265Packet(RtpPacket.FIXED_HEADER_SIZE + donlSize + naluEnd - naluOffset, bufferPool);
+        ByteBuffer dst = single.getBuffer();
+        ByteBuffer body = src.duplicate();
+        dst.clear();
+
+        if (hasRtpHeader) {
+            body.limit(RtpPacket.FIXED_HEADER_SIZE);
+            body.position(0);
+            dst.put(body);
+        } else {
+            dst.position(RtpPacket.FIXED_HEADER_SIZE);
+        }
+
+        dst.put(src.get(naluOffset));
+        dst.put(src.get(naluOffset + 1));
+        metrics.recordPacketOut((src.get(naluOffset) >> 1) & 0b00111111);
+        if (donl >= 0) {
+            dst.putShort((short) donl);
+        }
+
+        body.limit(naluEnd);
+        body.position(naluOffset + H265Packet.RTP_HEVC_PAYLOAD_HEADER_SIZE);
+        dst.put(body);
+        dst.flip();
+        return single;
+    }
+
+    /**
+     * @param src Buffer having the NAL unit in [naluOffset, naluEnd)
+     * @param hasRtpHeader true if src has the RTP header in [0, 12) to be copied to the fragments
+     * @param donl DONL of the first FU, or -1 if DONL is not used
+     */
+    private int fragment (ByteBuffer src, int naluOffset, int naluEnd, boolean hasRtpHeader, int donl, int mtu, List<H265Packet> fuList) {
+        // 2) Ready for FU Payload (PayloadHdr keeps F, LayerId and TID of the NAL unit header)
+        int naluHeader = ((src.get(naluOffset) & 0xff) << 8) | (src.get(naluOffset + 1) & 0xff);
+        int type = (naluHeader >> 9) & 0b00111111;
+        ByteBuffer body = src.duplicate();
+        byte payloadHdr1 = (byte) (((naluHeader >> 8) & 0b10000001) | (H265Packet.RTP_HEVC_TYPE_FU << 1));
+        byte payloadHdr2 = (byte) naluHeader;
+        int totalHdrSize = RtpPacket.FIXED_HEADER_SIZE + H265Packet.RTP_HEVC_PAYLOAD_HEADER_SIZE + H265Packet.RTP_HEVC_FU_HEADER_SIZE;
+        int bodyOffset = naluOffset + H265Packet.RTP_HEVC_PAYLOAD_HEADER_SIZE;
+
+        boolean marker = false;
+        int seqNumber = 0;
+        if (hasRtpHeader) {
+            marker = (src.get(1) & 0x80) == 0x80;
+            seqNumber = src.getShort(2) & 0xFFFF;
+        }
+
+        int count = 0;
+        int fuPayloadLength;
+        for (int offset = bodyOffset; offset < naluEnd; offset += fuPayloadLength) {
+            boolean isStart = offset == bodyOffset;
+            int hdrSize = (isStart && donl >= 0) ? totalHdrSize + H265Packet.RTP_HEVC_DONL_FIELD_SIZE : totalHdrSize;
+            fuPayloadLength = Math.min(mtu - hdrSize, naluEnd - offset);
+            boolean isEnd = offset + fuPayloadLength == naluEnd;
+
+            H265Packet fu = new H265Packet(hdrSize + fuPayloadLength, bufferPool);
+            ByteBuffer dst = fu.getBuffer();
+            dst.clear();
+
+            // 3) Set RTP Header
+            if (hasRtpHeader) {
+                body.limit(RtpPacket.FIXED_HEADER_SIZE);
+                body.position(0);
+                dst.put(body);
+                dst.put(1, (byte) ((src.get(1) & 0x7f) | ((isEnd && marker) ? 0x80 : 0)));
+                dst.putShort(2, (short) (seqNumber + count));
+            } else {
+                dst.position(RtpPacket.FIXED_HEADER_SIZE);
+            }
+
+            // 4) Set Header (Payload hdr + FU hdr + DONL (cond))
+            dst.put(payloadHdr1);
+            dst.put(payloadHdr2);
+            dst.put((byte) ((isStart ? 0b10000000 : 0) | (isEnd ? 0b01000000 : 0) | type));
+            if (hdrSize > totalHdrSize) {
+                dst.putShort((short) donl);
+            }
+
+            // 5) Set FU Payload
+            body.limit(offset + fuPayloadLength);
+            body.position(offset);
+            dst.put(body);
+            dst.flip();
+
+            fu.setType(H265Packet.RTP_HEVC_TYPE_FU);
+            fuList.add(fu);
+            metrics.recordPacketOut(H265Packet.RTP_HEVC_TYPE_FU);
+            count++;
+        }
+
+        if (logger.isDebugEnabled()) {
+            logger.debug("Success to fragment. (naluType={}, naluLen={}, mtu={}, fuCount={})", type, naluEnd - naluOffset, mtu, count);
+        }
+        return count;
+    }
+
+    private H265Packet newPacket (byte[] data) {
+        if (bufferPool == null) {
+            return new H265Packet(data, RtpPacket.RTP_PACKET_MAX_SIZE, true);
+        }
+        return new H265Packet(data, bufferPool);
     }
 
 }
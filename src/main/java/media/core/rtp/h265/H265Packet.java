@@ -1,5 +1,6 @@
 package media.core.rtp.h265;
 
+import media.core.rtp.RtpBufferPool;
 import media.core.rtp.RtpPacket;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -19,16 +20,11 @@ public class H265Packet extends RtpPacket {
     public static final int RTP_HEVC_TYPE_FU = 49;
     public static final int RTP_HEVC_TYPE_PACI = 50;
 
-    private ByteBuffer payload;
-    private byte[] rawPayload;
+    private byte[] rawPayload; // Copied only when asked for (getRawPayload())
 
     private boolean isDonlUsing;
     private boolean isDondUsing;
-
-    private int forbidden;
-    private int type;
-    private int lid;
-    private int tid;
+    private int don = -1; // Decoding order number (16 bits), -1 : Not set
 
     ////////////////////////////////////////////////////////////////////
 
@@ -37,69 +33,174 @@ public class H265Packet extends RtpPacket {
         initialize(data);
     }
 
+    public H265Packet (int capacity, boolean allocateDirect) {
+        super(capacity, allocateDirect);
+        this.getBuffer().limit(0);
+    }
+
+    /**
+     * Empty packet on a pooled direct buffer (capacity >= capacity). release() returns the buffer to the pool.
+     * @param bufferPool Pool or null to allocate a direct buffer of the capacity
+     */
+    public H265Packet (int capacity, RtpBufferPool bufferPool) {
+        super(capacity, bufferPool);
+        this.getBuffer().limit(0);
+    }
+
+    /**
+     * Copies the data to a pooled direct buffer of the data size.
+     */
+    public H265Packet (byte[] data, RtpBufferPool bufferPool) {
+        super(data == null ? 0 : data.length, bufferPool);
+        initialize(data);
+    }
+
+    /**
+     * Wraps the packet buffer ([RTP Header] + [NALU Hdr + NALU Body], from 0 to limit) without copy.
+     */
+    public H265Packet (ByteBuffer buffer) {
+        super(buffer);
+    }
+
     public void initialize (byte[] data) {
+        rawPayload = null;
+        isDonlUsing = false;
+        isDondUsing = false;
+        don = -1;
+
         if (data == null || data.length == 0) {
             logger.warn("Packet raw data is null or empty. Fail to initialize packet.");
-            payload = null;
-            rawPayload = null;
-            forbidden = -1;
-            type = -1;
-            lid = -1;
-            tid = -1;
+            this.getBuffer().limit(0);
             return;
         }
 
         this.wrap(data);
-        this.getPayload(this.getRawData());
-        payload = this.getBuffer();
-
-        rawPayload = new byte[this.getRawData().length - RtpPacket.FIXED_HEADER_SIZE];
-        System.arraycopy(this.getRawData(), RtpPacket.FIXED_HEADER_SIZE, rawPayload, 0, this.getRawData().length - RtpPacket.FIXED_HEADER_SIZE);
+    }
 
+    /**
+     * Points the packet to another buffer ([RTP Header] + [NALU Hdr + NALU Body], from 0 to limit) without copy.
+     * - One instance can be reused for every received packet. (Flyweight)
+     * - DON and the DONL/DOND flags are reset.
+     */
+    public H265Packet reset (ByteBuffer buffer) {
+        setBuffer(buffer);
+        rawPayload = null;
         isDonlUsing = false;
         isDondUsing = false;
+        don = -1;
+        return this;
     }
 
     ////////////////////////////////////////////////////////////////////
 
     public ByteBuffer getPayload() {
-        return payload;
+        return this.getBuffer();
     }
 
     public byte[] getRawPayload() {
+        if (rawPayload == null && this.getLength() > RtpPacket.FIXED_HEADER_SIZE) {
+            rawPayload = new byte[this.getLength() - RtpPacket.FIXED_HEADER_SIZE];
+            this.getBuffer().position(RtpPacket.FIXED_HEADER_SIZE);
+            this.getBuffer().get(rawPayload);
+        }
         return rawPayload;
     }
 
+    /**
+     * PayloadHdr (NAL unit header, 2 bytes) read directly from the buffer
+     * @return 16 bits header or -1 if the packet is too short
+     */
+    public int getPayloadHeader() {
+        ByteBuffer buffer = this.getBuffer();
+        if (buffer.limit() < RtpPacket.FIXED_HEADER_SIZE + RTP_HEVC_PAYLOAD_HEADER_SIZE) {
+            return -1;
+        }
+        return ((buffer.get(RtpPacket.FIXED_HEADER_SIZE) & 0xff) << 8) | (buffer.get(RtpPacket.FIXED_HEADER_SIZE + 1) & 0xff);
+    }
+
+    /**
+     * Header fields are read on demand from the buffer (absolute offsets), and written to the buffer by the setters.
+     *
+     *      +---------------+---------------+
+     *      |0|1|2|3|4|5|6|7|0|1|2|3|4|5|6|7|
+     *      +-------------+-----------------+
+     *      |F|   Type    |  LayerId  | TID |
+     *      +-------------+-----------------+
+     */
     public void setForbidden(int forbidden) {
-        this.forbidden = forbidden;
+        setHeaderBits(0, 0b10000000, forbidden != 0 ? 0b10000000 : 0);
     }
 
+    /**
+     * @return 0x80 if F is set, 0 if not, -1 if the packet is too short
+     */
     public int getForbidden() {
-        return forbidden;
+        int header = getPayloadHeader();
+        return header < 0 ? -1 : (header >> 8) & 0b10000000;
     }
 
     public void setType(int type) {
-        this.type = type;
+        setHeaderBits(0, 0b01111110, (type & 0b00111111) << 1);
     }
 
     public int getType() {
-        return type;
+        int header = getPayloadHeader();
+        return header < 0 ? -1 : (header >> 9) & 0b00111111;
     }
 
     public long getLid() {
-        return lid;
+        int header = getPayloadHeader();
+        return header < 0 ? -1 : (header >> 3) & 0b00111111;
     }
 
     public void setLid(int lid) {
-        this.lid = lid;
+        setHeaderBits(0, 0b00000001, (lid >> 5) & 0b00000001);
+        setHeaderBits(1, 0b11111000, (lid & 0b00011111) << 3);
     }
 
     public int getTid() {
-        return tid;
+        int header = getPayloadHeader();
+        return header < 0 ? -1 : header & 0b00000111;
     }
 
     public void setTid(int tid) {
-        this.tid = tid;
+        setHeaderBits(1, 0b00000111, tid & 0b00000111);
+    }
+
+    /**
+     * FU header (FU only)
+     *      +---------------+
+     *      |0|1|2|3|4|5|6|7|
+     *      +-+-+-+-+-+-+-+-+
+     *      |S|E|  FuType   |
+     *      +---------------+
+     * @return FU header or -1 if it's not a FU
+     */
+    public int getFuHeader() {
+        ByteBuffer buffer = this.getBuffer();
+        int offset = RtpPacket.FIXED_HEADER_SIZE + RTP_HEVC_PAYLOAD_HEADER_SIZE;
+        if (buffer.limit() <= offset || getType() != RTP_HEVC_TYPE_FU) {
+            return -1;
+        }
+        return buffer.get(offset) & 0xff;
+    }
+
+    public boolean isFuStart() {
+        int fuHeader = getFuHeader();
+        return fuHeader >= 0 && (fuHeader & 0b10000000) != 0;
+    }
+
+    public boolean isFuEnd() {
+        int fuHeader = getFuHeader();
+        return fuHeader >= 0 && (fuHeader & 0b01000000) != 0;
+    }
+
+    /**
+     * @return NAL unit type of the fragmented NAL unit or -1 if it's not a FU
+     */
+    public int getFuType() {
+        int fuHeader = getFuHeader();
+        return fuHeader < 0 ? -1 : fuHeader & 0b00111111;
     }
 
     public boolean isDonlUsing() {
@@ -117,4 +218,25 @@ public class H265Packet extends RtpPacket {
     public void setDondUsing(boolean dondUsing) {
         isDondUsing = dondUsing;
     }
+
+    public int getDon() {
+        return don;
+    }
+
+    public void setDon(int don) {
+        this.don = don < 0 ? -1 : don & 0xFFFF;
+    }
+
+    ////////////////////////////////////////////////////////////////////
+
+    private void setHeaderBits(int index, int mask, int bits) {
+        ByteBuffer buffer = this.getBuffer();
+        int offset = RtpPacket.FIXED_HEADER_SIZE + index;
+        if (buffer.limit() <= offset) {
+            return;
+        }
+        buffer.put(offset, (byte) ((buffer.get(offset) & ~mask) | (bits & mask)));
+        rawPayload = null;
+    }
+
 }
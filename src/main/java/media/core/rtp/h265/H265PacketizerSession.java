@@ -0,0 +1,295 @@
+package media.core.rtp.h265;
+
+import media.core.rtp.RtpPacket;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * RTP state of one outgoing H.265 stream
+ * - SSRC, Payload type, Sequence number (+1 per packet), Timestamp (90 kHz, per access unit)
+ * - Marker bit is set on the last packet of an access unit.
+ * - The fixed RTP header (12 bytes) is written in place of every output packet. (RtpPacket.writeHeader())
+ * - If a parameter set cache is set, VPS, SPS and PPS are cached,
+ *      and the cached ones are sent as one AP before an IRAP picture that doesn't follow its parameter sets.
+ *      (Decoders that join in the middle of the stream can start at the next IRAP picture)
+ * - Not thread-safe. (One session per stream)
+ */
+public class H265PacketizerSession {
+
+    private static final Logger logger = LoggerFactory.getLogger(H265PacketizerSession.class);
+
+    public static final int RTP_HEVC_CLOCK_RATE = 90000;
+
+    private final H265Packer h265Packer;
+    private final long ssrc;
+    private final int payloadType;
+    private final int mtu;
+    private final long timestampOffset;
+
+    private int seqNumber;
+    private long timestamp;
+
+    private final List<H265Packet> fuList = new ArrayList<>();
+
+    private H265ParameterSetCache parameterSetCache = null;
+    private boolean isParameterSetSent = false; // Parameter sets are sent after the last IRAP picture
+
+    ////////////////////////////////////////////////////////////////////
+
+    /**
+     * Initial sequence number and timestamp are random. (RFC 3550)
+     */
+    public H265PacketizerSession (H265Packer h265Packer, long ssrc, int payloadType, int mtu) {
+        this(h265Packer, ssrc, payloadType, mtu,
+                ThreadLocalRandom.current().nextInt(0x10000),
+                ThreadLocalRandom.current().nextLong(0x100000000L));
+    }
+
+    public H265PacketizerSession (H265Packer h265Packer, long ssrc, int payloadType, int mtu, int initialSeqNumber, long initialTimestamp) {
+        this.h265Packer = h265Packer;
+        this.ssrc = ssrc & 0xFFFFFFFFL;
+        this.payloadType = payloadType & 0x7f;
+        this.mtu = mtu;
+        this.seqNumber = initialSeqNumber & 0xFFFF;
+        this.timestampOffset = initialTimestamp & 0xFFFFFFFFL;
+        this.timestamp = this.timestampOffset;
+    }
+
+    ////////////////////////////////////////////////////////////////////
+
+    /**
+     * Sets the RTP timestamp of the next access unit.
+     */
+    public void setTimestamp (long timestamp) {
+        this.timestamp = timestamp & 0xFFFFFFFFL;
+    }
+
+    /**
+     * Sets the RTP timestamp of the next access unit from the presentation time. (90 kHz)
+     */
+    public void setPresentationTime (long presentationTimeUs) {
+        this.timestamp = (timestampOffset + presentationTimeUs * RTP_HEVC_CLOCK_RATE / 1000000) & 0xFFFFFFFFL;
+    }
+
+    public void advanceTimestamp (long delta) {
+        this.timestamp = (timestamp + delta) & 0xFFFFFFFFL;
+    }
+
+    public void setParameterSetCache (H265ParameterSetCache parameterSetCache) {
+        this.parameterSetCache = parameterSetCache;
+        this.isParameterSetSent = false;
+    }
+
+    public H265ParameterSetCache getParameterSetCache () {
+        return parameterSetCache;
+    }
+
+    ////////////////////////////////////////////////////////////////////
+
+    /**
+     * Packetizes a raw NAL unit (NALU Hdr + NALU Body, from position to limit of the buffer).
+     * @param endOfAccessUnit true if the NAL unit is the last one of the access unit (marker bit)
+     * @return The number of packets added to out, or -1 if it fails
+     */
+    public int packetize (ByteBuffer nalu, boolean endOfAccessUnit, List<H265Packet> out) {
+        return packetize(nalu, -1, endOfAccessUnit, out);
+    }
+
+    /**
+     * Packetizes a raw NAL unit with DONL. (sprop-max-don-diff > 0)
+     * - NAL units can be packetized out of decoding order. The receiver restores the order by DON.
+     * - Parameter sets are not re-sent in this mode. (DONs are numbered by the caller)
+     * @param don DON of the NAL unit, or -1 if DONL is not used
+     */
+    public int packetize (ByteBuffer nalu, int don, boolean endOfAccessUnit, List<H265Packet> out) {
+        if (nalu == null || out == null) {
+            logger.warn("NALU is null. Fail to packetize.");
+            return -1;
+        }
+
+        int apCount = 0;
+        if (don < 0) {
+            apCount = checkParameterSet(nalu, nalu.position(), nalu.limit(), out);
+            if (apCount < 0) {
+                return -1;
+            }
+        }
+
+        int count = packetizeNalu(nalu, don, endOfAccessUnit, out);
+        return count < 0 ? -1 : apCount + count;
+    }
+
+    private int packetizeNalu (ByteBuffer nalu, int don, boolean endOfAccessUnit, List<H265Packet> out) {
+        if (don < 0 && RtpPacket.FIXED_HEADER_SIZE + nalu.remaining() <= mtu) {
+            H265Packet single = new H265Packet(RtpPacket.FIXED_HEADER_SIZE + nalu.remaining(), h265Packer.getBufferPool());
+            single.wrap(endOfAccessUnit, payloadType, nextSeqNumber(), timestamp, ssrc, nalu.duplicate());
+            h265Packer.getMetrics().recordPacketOut(single.getType());
+            out.add(single);
+            return 1;
+        }
+
+        fuList.clear();
+        if (h265Packer.fragment(nalu, don, mtu, fuList) <= 0) {
+            return -1;
+        }
+        return stampAll(endOfAccessUnit, out);
+    }
+
+    /**
+     * Packetizes a Single NAL Unit packet. The RTP header of the packet is replaced.
+     * @return The number of packets added to out, or -1 if it fails
+     */
+    public int packetize (H265Packet nalu, boolean endOfAccessUnit, List<H265Packet> out) {
+        if (nalu == null || out == null) {
+            logger.warn("Packet is null. Fail to packetize.");
+            return -1;
+        }
+
+        int apCount = 0;
+        if (!nalu.isDonlUsing()) {
+            apCount = checkParameterSet(nalu.getBuffer(), RtpPacket.FIXED_HEADER_SIZE, nalu.getLength(), out);
+            if (apCount < 0) {
+                return -1;
+            }
+        }
+
+        fuList.clear();
+        if (h265Packer.fragment(nalu, mtu, fuList) <= 0) {
+            return -1;
+        }
+        return apCount + stampAll(endOfAccessUnit, out);
+    }
+
+    /**
+     * Caches the parameter set, or sends the cached parameter sets before the first slice of an IRAP picture.
+     * @return The number of packets added to out, or -1 if it fails
+     */
+    private int checkParameterSet (ByteBuffer buffer, int naluOffset, int naluEnd, List<H265Packet> out) {
+        if (parameterSetCache == null || naluEnd - naluOffset <= H265Packet.RTP_HEVC_PAYLOAD_HEADER_SIZE) {
+            return 0;
+        }
+
+        int type = (buffer.get(naluOffset) >> 1) & 0b00111111;
+        if (H265ParameterSetCache.isParameterSet(type)) {
+            ByteBuffer nalu = buffer.duplicate();
+            nalu.limit(naluEnd);
+            nalu.position(naluOffset);
+            parameterSetCache.update(nalu);
+            isParameterSetSent = true;
+            return 0;
+        }
+
+        boolean isFirstSlice = (buffer.get(naluOffset + H265Packet.RTP_HEVC_PAYLOAD_HEADER_SIZE) & 0x80) == 0x80; // first_slice_segment_in_pic_flag
+        if (!H265ParameterSetCache.isIrap(type) || !isFirstSlice) {
+            return 0;
+        }
+
+        int count = 0;
+        if (!isParameterSetSent && !parameterSetCache.isEmpty()) {
+            count = packParameterSets(out);
+        }
+        isParameterSetSent = false;
+        return count;
+    }
+
+    /**
+     * Packs the cached parameter sets as one AP, or as Single NAL Unit packets if they don't fit in mtu.
+     */
+    private int packParameterSets (List<H265Packet> out) {
+        List<byte[]> parameterSetList = parameterSetCache.getParameterSets();
+
+        int apSize = RtpPacket.FIXED_HEADER_SIZE + H265Packet.RTP_HEVC_PAYLOAD_HEADER_SIZE;
+        for (byte[] parameterSet : parameterSetList) {
+            apSize += H265Packet.RTP_HEVC_AP_NALU_LENGTH_FIELD_SIZE + parameterSet.length;
+        }
+
+        if (parameterSetList.size() < 2 || apSize > mtu) {
+            int count = 0;
+            for (byte[] parameterSet : parameterSetList) {
+                int result = packetizeNalu(ByteBuffer.wrap(parameterSet), -1, false, out);
+                if (result < 0) {
+                    return -1;
+                }
+                count += result;
+            }
+            return count;
+        }
+
+        H265Packet ap = new H265Packet(apSize, h265Packer.getBufferPool());
+        ByteBuffer dst = ap.getBuffer();
+        dst.clear();
+        dst.position(RtpPacket.FIXED_HEADER_SIZE + H265Packet.RTP_HEVC_PAYLOAD_HEADER_SIZE);
+
+        // PayloadHdr : LayerId & TID = lowest of all units
+        int lid = 0b00111111;
+        int tid = 0b00000111;
+        for (byte[] parameterSet : parameterSetList) {
+            lid = Math.min(lid, ((parameterSet[0] & 0x1) << 5) | ((parameterSet[1] & 0xff) >> 3));
+            tid = Math.min(tid, parameterSet[1] & 0b00000111);
+            dst.putShort((short) parameterSet.length);
+            dst.put(parameterSet);
+        }
+        dst.putShort(RtpPacket.FIXED_HEADER_SIZE, (short) ((H265Packet.RTP_HEVC_TYPE_AP << 9) | (lid << 3) | tid));
+        dst.flip();
+
+        ap.setType(H265Packet.RTP_HEVC_TYPE_AP);
+        h265Packer.getMetrics().recordApPacked(parameterSetList.size(), apSize);
+        h265Packer.getMetrics().recordPacketOut(H265Packet.RTP_HEVC_TYPE_AP);
+        stamp(ap, false);
+        out.add(ap);
+        logger.debug("Success to pack the parameter sets. (count={}, len={})", parameterSetList.size(), apSize);
+        return 1;
+    }
+
+    /**
+     * Writes the RTP header of an already packed packet. (ex. AP from H265ApAggregator)
+     */
+    public void stamp (H265Packet h265Packet, boolean marker) {
+        h265Packet.writeHeader(marker, payloadType, nextSeqNumber(), timestamp, ssrc);
+    }
+
+    private int stampAll (boolean endOfAccessUnit, List<H265Packet> out) {
+        int count = fuList.size();
+        for (int i = 0; i < count; i++) {
+            H265Packet h265Packet = fuList.get(i);
+            stamp(h265Packet, endOfAccessUnit && i == count - 1);
+            out.add(h265Packet);
+        }
+        fuList.clear();
+        return count;
+    }
+
+    private int nextSeqNumber () {
+        int cur = seqNumber;
+        seqNumber = (seqNumber + 1) & 0xFFFF;
+        return cur;
+    }
+
+    ////////////////////////////////////////////////////////////////////
+
+    public long getSsrc () {
+        return ssrc;
+    }
+
+    public int getPayloadType () {
+        return payloadType;
+    }
+
+    public int getMtu () {
+        return mtu;
+    }
+
+    public int getSeqNumber () {
+        return seqNumber;
+    }
+
+    public long getTimestamp () {
+        return timestamp;
+    }
+
+}
@@ -0,0 +1,229 @@
+package media.core.rtp.h265;
+
+import media.core.rtp.RtpPacket;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Parameter set (VPS, SPS, PPS) cache of one stream
+ * - Parameter sets are kept by type and ID. (vps_video_parameter_set_id, sps_seq_parameter_set_id, pps_pic_parameter_set_id)
+ * - A parameter set identical to the cached one (same content hash and same bytes) is reported as duplicated,
+ *      so the receiver can drop the repeated parameter sets.
+ * - The cached parameter sets can be re-sent before each IRAP picture. (H265PacketizerSession)
+ * - Not thread-safe. (One cache per stream)
+ */
+public class H265ParameterSetCache {
+
+    private static final Logger logger = LoggerFactory.getLogger(H265ParameterSetCache.class);
+
+    public static final int TYPE_VPS = 32;
+    public static final int TYPE_SPS = 33;
+    public static final int TYPE_PPS = 34;
+
+    private static final int MAX_VPS_COUNT = 16;
+    private static final int MAX_SPS_COUNT = 16;
+    private static final int MAX_PPS_COUNT = 64;
+
+    private final byte[][] vpsArray = new byte[MAX_VPS_COUNT][];
+    private final byte[][] spsArray = new byte[MAX_SPS_COUNT][];
+    private final byte[][] ppsArray = new byte[MAX_PPS_COUNT][];
+    private final int[] vpsHashes = new int[MAX_VPS_COUNT];
+    private final int[] spsHashes = new int[MAX_SPS_COUNT];
+    private final int[] ppsHashes = new int[MAX_PPS_COUNT];
+
+    private int count = 0;
+    private long updateCount = 0;
+    private long duplicateCount = 0;
+
+    ////////////////////////////////////////////////////////////////////
+
+    public H265ParameterSetCache () {
+        // Nothing
+    }
+
+    ////////////////////////////////////////////////////////////////////
+
+    public static boolean isParameterSet (int type) {
+        return type == TYPE_VPS || type == TYPE_SPS || type == TYPE_PPS;
+    }
+
+    /**
+     * @return true if the type is IRAP (BLA_W_LP ~ RSV_IRAP_VCL23)
+     */
+    public static boolean isIrap (int type) {
+        return type >= 16 && type <= 23;
+    }
+
+    /**
+     * @param h265Packet Single NAL Unit packet ([RTP Header] + [NALU Hdr + NALU Body])
+     * @see #update(ByteBuffer)
+     */
+    public boolean update (H265Packet h265Packet) {
+        if (h265Packet == null || h265Packet.getLength() <= RtpPacket.FIXED_HEADER_SIZE) {
+            return true;
+        }
+
+        ByteBuffer nalu = h265Packet.getBuffer().duplicate();
+        nalu.limit(h265Packet.getLength());
+        nalu.position(RtpPacket.FIXED_HEADER_SIZE);
+        return update(nalu);
+    }
+
+    /**
+     * Caches the parameter set.
+     * @param nalu NAL unit (NALU Hdr + NALU Body, from position to limit)
+     * @return false if the NAL unit is the same as the cached one (duplicated),
+     *      true if it's new or changed, or it's not a parameter set that can be parsed (to be forwarded as is)
+     */
+    public boolean update (ByteBuffer nalu) {
+        if (nalu == null || nalu.remaining() <= H265Packet.RTP_HEVC_PAYLOAD_HEADER_SIZE) {
+            return true;
+        }
+
+        int type = (nalu.get(nalu.position()) >> 1) & 0b00111111;
+        if (!isParameterSet(type)) {
+            return true;
+        }
+
+        int id = getParameterSetId(type, nalu);
+        if (id < 0) {
+            logger.warn("Fail to parse the parameter set ID. (type={}, len={})", type, nalu.remaining());
+            return true;
+        }
+
+        byte[][] array = getArray(type);
+        int[] hashes = getHashes(type);
+        int hash = nalu.hashCode(); // Content hash of the remaining bytes
+        byte[] cached = array[id];
+        if (cached != null && hashes[id] == hash && isSame(cached, nalu)) {
+            duplicateCount++;
+            return false;
+        }
+
+        byte[] data = new byte[nalu.remaining()];
+        nalu.duplicate().get(data);
+        if (cached == null) {
+            count++;
+        }
+        array[id] = data;
+        hashes[id] = hash;
+        updateCount++;
+        logger.debug("Success to update the parameter set. (type={}, id={}, len={})", type, id, data.length);
+        return true;
+    }
+
+    /**
+     * @return Parameter set ID, or -1 if it fails
+     */
+    public static int getParameterSetId (int type, ByteBuffer nalu) {
+        H265RbspReader reader = new H265RbspReader(nalu);
+        switch (type) {
+            case TYPE_VPS:
+                return (int) reader.readBits(4);
+            case TYPE_SPS: {
+                long vpsId = reader.readBits(4);
+                long maxSubLayersMinus1 = reader.readBits(3);
+                if (vpsId < 0 || maxSubLayersMinus1 < 0 || !reader.skipBits(1)) {
+                    return -1;
+                }
+                if (!reader.skipProfileTierLevel((int) maxSubLayersMinus1)) {
+                    return -1;
+                }
+                long spsId = reader.readUe();
+                return (spsId >= 0 && spsId < MAX_SPS_COUNT) ? (int) spsId : -1;
+            }
+            case TYPE_PPS: {
+                long ppsId = reader.readUe();
+                return (ppsId >= 0 && ppsId < MAX_PPS_COUNT) ? (int) ppsId : -1;
+            }
+            default:
+                return -1;
+        }
+    }
+
+    /**
+     * @return Cached NAL units (NALU Hdr + NALU Body) in the order of VPS, SPS, PPS
+     */
+    public List<byte[]> getParameterSets () {
+        List<byte[]> parameterSetList = new ArrayList<>(count);
+        addAll(vpsArray, parameterSetList);
+        addAll(spsArray, parameterSetList);
+        addAll(ppsArray, parameterSetList);
+        return parameterSetList;
+    }
+
+    /**
+     * @return Cached NAL unit (NALU Hdr + NALU Body), or null if it's not cached
+     */
+    public byte[] get (int type, int id) {
+        byte[][] array = getArray(type);
+        if (array == null || id < 0 || id >= array.length) {
+            return null;
+        }
+        return array[id];
+    }
+
+    public void clear () {
+        Arrays.fill(vpsArray, null);
+        Arrays.fill(spsArray, null);
+        Arrays.fill(ppsArray, null);
+        count = 0;
+    }
+
+    public boolean isEmpty () {
+        return count == 0;
+    }
+
+    public int getCount () {
+        return count;
+    }
+
+    public long getUpdateCount () {
+        return updateCount;
+    }
+
+    public long getDuplicateCount () {
+        return duplicateCount;
+    }
+
+    ////////////////////////////////////////////////////////////////////
+
+    private byte[][] getArray (int type) {
+        switch (type) {
+            case TYPE_VPS: return vpsArray;
+            case TYPE_SPS: return spsArray;
+            case TYPE_PPS: return ppsArray;
+            default: return null;
+        }
+    }
+
+    private int[] getHashes (int type) {
+        switch (type) {
+            case TYPE_VPS: return vpsHashes;
+            case TYPE_SPS: return spsHashes;
+            case TYPE_PPS: return ppsHashes;
+            default: return null;
+        }
+    }
+
+    private static boolean isSame (byte[] cached, ByteBuffer nalu) {
+        if (cached.length != nalu.remaining()) {
+            return false;
+        }
+        return ByteBuffer.wrap(cached).equals(nalu);
+    }
+
+    private static void addAll (byte[][] array, List<byte[]> parameterSetList) {
+        for (byte[] data : array) {
+            if (data != null) {
+                parameterSetList.add(data);
+            }
+        }
+    }
+
+}
@@ -0,0 +1,115 @@
+package media.core.rtp.h265;
+
+import media.core.rtp.RtpPacket;
+import media.core.rtp.RtpPcapReader;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Replays the RTP packets of a capture (RtpPcapReader) through H265SsrcDemuxer
+ * - Speed 1 : Original pacing (capture time), N : N times faster, 0 (FLAT_OUT) : As fast as possible.
+ * - The packets are slices of the mapped file given to one reused H265Packet. (No copy, no allocation per packet)
+ * - The demuxer gets the replay time (System.nanoTime()) of each packet, so the idle-stream timeouts follow the pacing.
+ * - replay() runs in the calling thread. stop() may be called by any thread.
+ */
+public class H265PcapReplayer {
+
+    private static final Logger logger = LoggerFactory.getLogger(H265PcapReplayer.class);
+
+    public static final double FLAT_OUT = 0;
+
+    private final RtpPcapReader reader;
+    private final H265SsrcDemuxer demuxer;
+    private final H265Packet packet = new H265Packet(ByteBuffer.allocate(0));
+
+    private double speed = 1;
+    private volatile boolean isStopped = false;
+
+    private long replayedPackets = 0;
+    private long failedPackets = 0;
+
+    ////////////////////////////////////////////////////////////////////
+
+    public H265PcapReplayer (RtpPcapReader reader, H265SsrcDemuxer demuxer) {
+        this.reader = reader;
+        this.demuxer = demuxer;
+    }
+
+    ////////////////////////////////////////////////////////////////////
+
+    /**
+     * @param speed 1 : Original pacing, N : N times faster, 0 (or negative) : As fast as possible
+     */
+    public void setSpeed (double speed) {
+        this.speed = speed;
+    }
+
+    public double getSpeed () {
+        return speed;
+    }
+
+    /**
+     * Replays the rest of the capture.
+     * @return The number of packets given to the demuxer
+     */
+    public long replay () {
+        isStopped = false;
+        long count = 0;
+        long firstCaptureNanos = -1;
+        long startNanos = System.nanoTime();
+
+        ByteBuffer buffer;
+        while (!isStopped && (buffer = reader.next()) != null) {
+            if (buffer.limit() < RtpPacket.FIXED_HEADER_SIZE + H265Packet.RTP_HEVC_PAYLOAD_HEADER_SIZE) {
+                failedPackets++;
+                continue;
+            }
+
+            long now;
+            if (speed > 0) {
+                long captureNanos = reader.getTimestampNanos();
+                if (firstCaptureNanos < 0) {
+                    firstCaptureNanos = captureNanos;
+                }
+                long due = startNanos + (long) ((captureNanos - firstCaptureNanos) / speed);
+                now = System.nanoTime();
+                while (due - now > 0 && !isStopped) {
+                    LockSupport.parkNanos(due - now);
+                    now = System.nanoTime();
+                }
+            } else {
+                now = System.nanoTime();
+            }
+
+            if (!demuxer.handle(packet.reset(buffer), now)) {
+                failedPackets++;
+            }
+            count++;
+        }
+
+        replayedPackets += count;
+        logger.debug("Success to replay the capture. (packets={}, failed={}, speed={})", count, failedPackets, speed);
+        return count;
+    }
+
+    public void stop () {
+        isStopped = true;
+    }
+
+    ////////////////////////////////////////////////////////////////////
+
+    public long getReplayedPackets () {
+        return replayedPackets;
+    }
+
+    /**
+     * @return The number of packets that are too short or failed in the unpacker
+     */
+    public long getFailedPackets () {
+        return failedPackets;
+    }
+
+}
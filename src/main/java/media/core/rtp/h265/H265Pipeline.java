@@ -0,0 +1,572 @@
+package media.core.rtp.h265;
+
+import media.core.rtp.RtpBufferPool;
+import media.core.rtp.RtpPacket;
+import media.core.rtp.h265.base.H265NaluSink;
+import media.core.rtp.h265.base.H265PacketListener;
+import media.core.rtp.h265.base.H265UnpackerFactory;
+import media.core.rtp.h265.base.LongObjectMap;
+import media.core.rtp.h265.base.MpscRingQueue;
+import media.core.rtp.h265.base.RingQueue;
+import media.core.rtp.h265.base.RingWaitStrategy;
+import media.core.rtp.h265.base.SpscRingQueue;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+/**
+ * Staged depacketization pipeline : receive > reorder > depacketize > sink, one thread per stage after receive
+ * - Receive : Any threads call ingest(). (ex. H265DatagramReceiver, H265StreamLoop, H265PcapReplayer)
+ *      Packets are handed to the reorder stage by a lock-free ring (MpscRingQueue).
+ *      A full ring drops the packet, so a slow stage or sink never stalls the socket.
+ * - Reorder ("h265-pipeline-reorder") : A jitter buffer per SSRC (H265JitterBuffer). Disabled if the depth is 0.
+ * - Depacketize ("h265-pipeline-depacketize") : An unpacker per SSRC (H265UnpackerFactory).
+ *      A sequence number gap after the reorder stage resets the unpacker. (The broken FU is dropped)
+ *      Each NAL unit is copied to a pooled packet ([RTP Header] + [NAL unit], marker : marker of the sink call).
+ * - Sink ("h265-pipeline-sink") : Calls the NAL unit sink, and releases the packet.
+ * - The stages are linked by SpscRingQueue. A stage waits by the wait strategy while its input ring is empty,
+ *      or while the ring to the next stage is full. (Back pressure up to the ingest ring, which drops)
+ * - The per-stream state (jitter buffer, unpacker) is owned by one stage thread. (LongObjectMap, no lock)
+ *      The NAL unit sink set to the unpackers by the factory is replaced by the pipeline.
+ * - Packets are owned by the pipeline after ingest() : Pooled packets are released after they are depacketized.
+ */
+public class H265Pipeline implements AutoCloseable {
+
+    private static final Logger logger = LoggerFactory.getLogger(H265Pipeline.class);
+
+    public static final int DEFAULT_RING_SIZE = 8192;
+    public static final int DEFAULT_BATCH_SIZE = 64;
+    public static final int DEFAULT_JITTER_DEPTH = 512;
+    public static final long DEFAULT_JITTER_DELAY_MS = 50;
+    public static final long DEFAULT_SHUTDOWN_TIMEOUT_MS = 5000;
+
+    private static final long JITTER_POLL_INTERVAL_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+
+    private final H265UnpackerFactory unpackerFactory;
+    private final H265NaluSink naluSink;
+    private final RtpBufferPool bufferPool;
+    private final RingWaitStrategy waitStrategy;
+
+    private final MpscRingQueue<H265Packet> ingestRing;
+    private final SpscRingQueue<H265Packet> reorderRing;
+    private final SpscRingQueue<H265Packet> sinkRing;
+
+    private final ReorderStage reorderStage;
+    private final DepacketizeStage depacketizeStage;
+    private final SinkStage sinkStage;
+
+    private final AtomicLong droppedPackets = new AtomicLong(0);
+    private volatile boolean isAccepting = false;
+    private volatile boolean isStopping = false;
+    private volatile boolean isAborted = false;
+
+    private int jitterDepth = DEFAULT_JITTER_DEPTH;
+    private long jitterDelayMs = DEFAULT_JITTER_DELAY_MS;
+
+    ////////////////////////////////////////////////////////////////////
+
+    public H265Pipeline (H265UnpackerFactory unpackerFactory, H265NaluSink naluSink) {
+        this(unpackerFactory, naluSink, DEFAULT_RING_SIZE, RingWaitStrategy.PARK, new RtpBufferPool());
+    }
+
+    /**
+     * @param ringSize Packets queued between two stages (rounded up to a power of 2)
+     * @param waitStrategy How the stage threads wait (PARK : Shared cores, YIELD or SPIN : Dedicated cores)
+     * @param bufferPool Pool of the NAL unit copies and the packets copied by ingest(ByteBuffer)
+     */
+    public H265Pipeline (H265UnpackerFactory unpackerFactory, H265NaluSink naluSink, int ringSize,
+                         RingWaitStrategy waitStrategy, RtpBufferPool bufferPool) {
+        this.unpackerFactory = unpackerFactory;
+        this.naluSink = naluSink;
+        this.bufferPool = bufferPool;
+        this.waitStrategy = waitStrategy;
+
+        this.ingestRing = new MpscRingQueue<>(ringSize);
+        this.reorderRing = new SpscRingQueue<>(ringSize);
+        this.sinkRing = new SpscRingQueue<>(ringSize);
+
+        this.reorderStage = new ReorderStage();
+        this.depacketizeStage = new DepacketizeStage();
+        this.sinkStage = new SinkStage();
+    }
+
+    /**
+     * Sets the jitter buffer of the streams. Call it before start().
+     * @param depth Max number of sequence numbers to wait for (0 : No reorder stage, packets are passed through)
+     * @param maxDelayMs Max time for a packet to wait for the missing packets before it
+     */
+    public void setJitterBuffer (int depth, long maxDelayMs) {
+        this.jitterDepth = depth;
+        this.jitterDelayMs = maxDelayMs;
+    }
+
+    ////////////////////////////////////////////////////////////////////
+
+    public void start () {
+        isAccepting = true;
+        sinkStage.thread.start();
+        depacketizeStage.thread.start();
+        reorderStage.thread.start();
+        logger.debug("Success to start the pipeline. (ringSize={}, waitStrategy={}, jitterDepth={})",
+                ingestRing.capacity(), waitStrategy, jitterDepth);
+    }
+
+    /**
+     * Hands the packet to the reorder stage. The pipeline owns the packet after this call.
+     * @param h265Packet Packet that is not reused by the caller (ex. A pooled packet, released after it's depacketized)
+     * @return false if the pipeline is not running, or the ring is full (The packet is released)
+     */
+    public boolean ingest (H265Packet h265Packet) {
+        if (h265Packet == null || h265Packet.getLength() < RtpPacket.FIXED_HEADER_SIZE) {
+            logger.warn("Packet is null or too short. Fail to ingest.");
+            return false;
+        }
+
+        if (!isAccepting || !ingestRing.offer(h265Packet)) {
+            droppedPackets.incrementAndGet();
+            h265Packet.release();
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Copies the datagram (RTP packet, from 0 to limit) to a pooled packet and ingests it. The buffer can be reused after this call.
+     */
+    public boolean ingest (ByteBuffer datagram) {
+        int length = datagram.limit();
+        if (length < RtpPacket.FIXED_HEADER_SIZE) {
+            logger.warn("Datagram is too short. Fail to ingest. (len={})", length);
+            return false;
+        }
+
+        H265Packet h265Packet = new H265Packet(length, bufferPool);
+        ByteBuffer buffer = h265Packet.getBuffer();
+        ByteBuffer src = datagram.duplicate();
+        src.position(0);
+        buffer.clear();
+        buffer.put(src).flip();
+        return ingest(h265Packet);
+    }
+
+    /**
+     * Stops accepting packets, and waits until the stages handle the queued packets.
+     * - The jitter buffers and the DON reorder buffers are flushed, so every queued NAL unit reaches the sink.
+     * - Packets ingested after the reorder stage has ended are released and counted as dropped.
+     * @return true if all the stage threads are ended in the timeout (Otherwise they are aborted)
+     */
+    public boolean shutdown (long timeoutMs) {
+        isAccepting = false;
+        isStopping = true;
+
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMs);
+        boolean isTerminated = true;
+        for (Stage stage : new Stage[]{reorderStage, depacketizeStage, sinkStage}) {
+            if (!stage.thread.isAlive()) {
+                continue;
+            }
+            try {
+                stage.thread.join(Math.max(1, TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime())));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            if (stage.thread.isAlive()) {
+                logger.warn("Stage is not ended in the timeout. It's aborted. (stage={}, queued={})",
+                        stage.thread.getName(), stage.input.size());
+                isTerminated = false;
+            }
+        }
+        if (!isTerminated) {
+            isAborted = true;
+        }
+
+        // An ingest() racing the shutdown can offer after the last drain of the reorder stage : Released here
+        if (!reorderStage.thread.isAlive()) {
+            H265Packet h265Packet;
+            while ((h265Packet = ingestRing.poll()) != null) {
+                droppedPackets.incrementAndGet();
+                h265Packet.release();
+            }
+        }
+
+        logger.debug("Pipeline is shut down. (terminated={})", isTerminated);
+        return isTerminated;
+    }
+
+    @Override
+    public void close () {
+        shutdown(DEFAULT_SHUTDOWN_TIMEOUT_MS);
+    }
+
+    ////////////////////////////////////////////////////////////////////
+
+    public RingWaitStrategy getWaitStrategy () {
+        return waitStrategy;
+    }
+
+    /**
+     * @return Packets dropped by ingest() (full ring or not running)
+     */
+    public long getDroppedPackets () {
+        return droppedPackets.get();
+    }
+
+    /**
+     * @return Packets taken by the reorder stage
+     */
+    public long getReceivedPackets () {
+        return reorderStage.publishedReceived;
+    }
+
+    /**
+     * @return Packets dropped by the jitter buffers (late or duplicated)
+     */
+    public long getLatePackets () {
+        return reorderStage.publishedLate;
+    }
+
+    /**
+     * @return Packets handled by the unpackers
+     */
+    public long getDepacketizedPackets () {
+        return depacketizeStage.publishedHandled;
+    }
+
+    /**
+     * @return Packets that failed in the unpackers (or no unpacker is created)
+     */
+    public long getFailedPackets () {
+        return depacketizeStage.publishedFailed;
+    }
+
+    /**
+     * @return Unpacker resets by sequence number gaps (lost packets)
+     */
+    public long getGapResets () {
+        return depacketizeStage.publishedGapResets;
+    }
+
+    /**
+     * @return NAL units delivered to the sink
+     */
+    public long getNaluCount () {
+        return sinkStage.publishedDelivered;
+    }
+
+    public int getStreamCount () {
+        return depacketizeStage.publishedStreamCount;
+    }
+
+    /**
+     * @return Packets and NAL units in the rings between the stages
+     */
+    public int getQueuedPackets () {
+        return ingestRing.size() + reorderRing.size() + sinkRing.size();
+    }
+
+    ////////////////////////////////////////////////////////////////////
+
+    /**
+     * Hands the packet to the next stage. Waits while the ring is full (back pressure), until the pipeline is aborted.
+     */
+    private void forward (RingQueue<H265Packet> ring, H265Packet h265Packet) {
+        int idleCount = 0;
+        while (!ring.offer(h265Packet)) {
+            if (isAborted) {
+                h265Packet.release();
+                return;
+            }
+            idleCount = waitStrategy.idle(idleCount);
+        }
+    }
+
+    private abstract class Stage implements Runnable, Consumer<H265Packet> {
+
+        final Thread thread;
+        final RingQueue<H265Packet> input;
+        volatile boolean isDone = false;
+
+        long now = System.nanoTime();
+
+        Stage (String name, RingQueue<H265Packet> input) {
+            this.input = input;
+            this.thread = new Thread(this, name);
+            this.thread.setDaemon(true);
+        }
+
+        @Override
+        public void run () {
+            int idleCount = 0;
+            while (!isAborted) {
+                boolean isUpstreamDone = isUpstreamDone(); // Read before the drain : Nothing is added after it
+                now = System.nanoTime();
+                int drained = input.drain(this, DEFAULT_BATCH_SIZE);
+                onBatch();
+
+                if (drained > 0) {
+                    idleCount = 0;
+                } else if (isUpstreamDone && input.isEmpty()) {
+                    break;
+                } else {
+                    idleCount = waitStrategy.idle(idleCount);
+                }
+            }
+
+            if (!isAborted) {
+                onEnd();
+            }
+            isDone = true;
+            logger.debug("Stage is ended. (stage={})", thread.getName());
+        }
+
+        @Override
+        public void accept (H265Packet h265Packet) {
+            try {
+                handle(h265Packet);
+            } catch (RuntimeException e) {
+                logger.warn("Fail to handle the packet. (stage={})", thread.getName(), e);
+            }
+        }
+
+        abstract boolean isUpstreamDone ();
+
+        abstract void handle (H265Packet h265Packet);
+
+        /**
+         * Called after each drain (also when nothing is drained). Publishes the counters.
+         */
+        abstract void onBatch ();
+
+        /**
+         * Called once after the upstream is done and the input is empty.
+         */
+        abstract void onEnd ();
+
+    }
+
+    private final class ReorderStage extends Stage {
+
+        private final LongObjectMap<H265JitterBuffer> jitterBuffers = new LongObjectMap<>();
+        private final List<H265JitterBuffer> jitterBufferList = new ArrayList<>();
+        private final H265PacketListener forwarder = h265Packet -> forward(reorderRing, h265Packet);
+        private long lastPollNanos = System.nanoTime();
+
+        private long received = 0;
+        private long late = 0;
+        volatile long publishedReceived = 0;
+        volatile long publishedLate = 0;
+
+        ReorderStage () {
+            super("h265-pipeline-reorder", ingestRing);
+        }
+
+        @Override
+        boolean isUpstreamDone () {
+            return isStopping;
+        }
+
+        @Override
+        void handle (H265Packet h265Packet) {
+            received++;
+            if (jitterDepth <= 0) {
+                forwarder.onPacket(h265Packet);
+                return;
+            }
+
+            long ssrc = h265Packet.getSyncSource();
+            H265JitterBuffer jitterBuffer = jitterBuffers.get(ssrc);
+            if (jitterBuffer == null) {
+                jitterBuffer = new H265JitterBuffer(jitterDepth, jitterDelayMs, forwarder);
+                jitterBuffers.put(ssrc, jitterBuffer);
+            }
+            if (!jitterBuffer.offer(h265Packet, now)) {
+                late++; // Released by the jitter buffer
+            }
+        }
+
+        @Override
+        void onBatch () {
+            if (!jitterBuffers.isEmpty() && now - lastPollNanos >= JITTER_POLL_INTERVAL_NANOS) {
+                lastPollNanos = now;
+                jitterBuffers.values(jitterBufferList);
+                for (H265JitterBuffer jitterBuffer : jitterBufferList) {
+                    jitterBuffer.poll(now);
+                }
+                jitterBufferList.clear();
+            }
+            publishedReceived = received;
+            publishedLate = late;
+        }
+
+        @Override
+        void onEnd () {
+            jitterBuffers.values(jitterBufferList);
+            for (H265JitterBuffer jitterBuffer : jitterBufferList) {
+                jitterBuffer.flush();
+            }
+            jitterBufferList.clear();
+            onBatch();
+        }
+
+    }
+
+    private final class DepacketizeStage extends Stage {
+
+        private final LongObjectMap<Stream> streams = new LongObjectMap<>();
+
+        private long handled = 0;
+        private long failed = 0;
+        private long gapResets = 0;
+        volatile long publishedHandled = 0;
+        volatile long publishedFailed = 0;
+        volatile long publishedGapResets = 0;
+        volatile int publishedStreamCount = 0;
+
+        DepacketizeStage () {
+            super("h265-pipeline-depacketize", reorderRing);
+        }
+
+        @Override
+        boolean isUpstreamDone () {
+            return reorderStage.isDone;
+        }
+
+        @Override
+        void handle (H265Packet h265Packet) {
+            long ssrc = h265Packet.getSyncSource();
+            Stream stream = streams.get(ssrc);
+            if (stream == null) {
+                H265Unpacker h265Unpacker = unpackerFactory.create(ssrc);
+                if (h265Unpacker == null) {
+                    logger.warn("Fail to create the unpacker. (ssrc={})", ssrc);
+                    failed++;
+                    h265Packet.release();
+                    return;
+                }
+                stream = new Stream(ssrc, h265Unpacker);
+                streams.put(ssrc, stream);
+                logger.debug("New stream is detected. (ssrc={})", ssrc);
+            }
+
+            // Packets are in order after the reorder stage : A forward jump means lost packets
+            int seqNumber = h265Packet.getSeqNumber();
+            if (stream.lastSeqNumber >= 0) {
+                int delta = (short) (seqNumber - stream.lastSeqNumber);
+                if (delta > 1) {
+                    stream.h265Unpacker.reset();
+                    gapResets++;
+                }
+                if (delta > 0) {
+                    stream.lastSeqNumber = seqNumber;
+                }
+            } else {
+                stream.lastSeqNumber = seqNumber;
+            }
+
+            stream.current = h265Packet;
+            try {
+                handled++;
+                if (!stream.h265Unpacker.handle(h265Packet)) {
+                    failed++;
+                }
+            } finally {
+                stream.current = null;
+                h265Packet.release();
+            }
+        }
+
+        @Override
+        void onBatch () {
+            publishedHandled = handled;
+            publishedFailed = failed;
+            publishedGapResets = gapResets;
+            publishedStreamCount = streams.size();
+        }
+
+        @Override
+        void onEnd () {
+            List<Stream> streamList = new ArrayList<>();
+            streams.values(streamList);
+            for (Stream stream : streamList) {
+                stream.h265Unpacker.flushDonReorderBuffer();
+            }
+            onBatch();
+        }
+
+    }
+
+    /**
+     * Unpacker of one stream. Its NAL units are copied and forwarded to the sink stage.
+     */
+    private final class Stream implements H265NaluSink {
+
+        final long ssrc;
+        final H265Unpacker h265Unpacker;
+        int lastSeqNumber = -1;
+        H265Packet current = null; // Packet in the unpacker, null while the DON reorder buffer is flushed
+
+        Stream (long ssrc, H265Unpacker h265Unpacker) {
+            this.ssrc = ssrc;
+            this.h265Unpacker = h265Unpacker;
+            h265Unpacker.setNaluSink(this);
+        }
+
+        @Override
+        public void onNalu (H265NaluView nalu, long timestamp, boolean marker) {
+            H265Packet copy = new H265Packet(RtpPacket.FIXED_HEADER_SIZE + nalu.getLength(), bufferPool);
+            copy.wrap(marker, current == null ? 0 : current.getPayloadType(), current == null ? lastSeqNumber : current.getSeqNumber(),
+                    timestamp, ssrc, nalu.asByteBuffer());
+            copy.setDon(nalu.getDon());
+            forward(sinkRing, copy);
+        }
+
+    }
+
+    private final class SinkStage extends Stage {
+
+        private final H265NaluView view = new H265NaluView();
+
+        private long delivered = 0;
+        volatile long publishedDelivered = 0;
+
+        SinkStage () {
+            super("h265-pipeline-sink", sinkRing);
+        }
+
+        @Override
+        boolean isUpstreamDone () {
+            return depacketizeStage.isDone;
+        }
+
+        @Override
+        void handle (H265Packet h265Packet) {
+            ByteBuffer buffer = h265Packet.getBuffer();
+            try {
+                view.set(buffer, RtpPacket.FIXED_HEADER_SIZE, buffer.limit() - RtpPacket.FIXED_HEADER_SIZE, h265Packet.getDon());
+                naluSink.onNalu(view, h265Packet.getTimestamp(), h265Packet.getMarker());
+                delivered++;
+            } finally {
+                view.clear();
+                h265Packet.release();
+            }
+        }
+
+        @Override
+        void onBatch () {
+            publishedDelivered = delivered;
+        }
+
+        @Override
+        void onEnd () {
+            onBatch();
+        }
+
+    }
+
+}
@@ -0,0 +1,146 @@
+package media.core.rtp.h265;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Bit reader of the RBSP (Raw Byte Sequence Payload) of a NAL unit
+ * - Emulation prevention bytes (0x000003) are skipped while reading. (H.265 7.3.1.1)
+ * - u(n), ue(v) are supported. (H.265 7.2, 9.2)
+ * - Reading past the end returns -1.
+ */
+public class H265RbspReader {
+
+    private final ByteBuffer buffer;
+    private final int end;
+
+    private int offset;
+    private int zeroCount = 0;
+    private int curByte = 0;
+    private int bitsLeft = 0;
+
+    ////////////////////////////////////////////////////////////////////
+
+    /**
+     * @param nalu NAL unit (NALU Hdr + NALU Body, from position to limit), the NAL unit header is skipped
+     */
+    public H265RbspReader (ByteBuffer nalu) {
+        this.buffer = nalu;
+        this.end = nalu.limit();
+        this.offset = nalu.position() + H265Packet.RTP_HEVC_PAYLOAD_HEADER_SIZE;
+    }
+
+    ////////////////////////////////////////////////////////////////////
+
+    /**
+     * @return u(n) (n <= 32), or -1 if the RBSP is ended
+     */
+    public long readBits (int n) {
+        long value = 0;
+        for (int i = 0; i < n; i++) {
+            int bit = readBit();
+            if (bit < 0) {
+                return -1;
+            }
+            value = (value << 1) | bit;
+        }
+        return value;
+    }
+
+    /**
+     * @return ue(v) (Exp-Golomb), or -1 if the RBSP is ended or the code is too long
+     */
+    public long readUe () {
+        int leadingZeroBits = 0;
+        while (true) {
+            int bit = readBit();
+            if (bit < 0 || leadingZeroBits > 31) {
+                return -1;
+            }
+            if (bit == 1) {
+                break;
+            }
+            leadingZeroBits++;
+        }
+
+        long suffix = readBits(leadingZeroBits);
+        if (suffix < 0) {
+            return -1;
+        }
+        return (1L << leadingZeroBits) - 1 + suffix;
+    }
+
+    public boolean skipBits (int n) {
+        for (int i = 0; i < n; i++) {
+            if (readBit() < 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * profile_tier_level(1, maxSubLayersMinus1) (H.265 7.3.3)
+     */
+    public boolean skipProfileTierLevel (int maxSubLayersMinus1) {
+        // general profile (88 bits) + general_level_idc (8 bits)
+        return skipBits(96) && skipSubLayerProfileTierLevel(maxSubLayersMinus1);
+    }
+
+    /**
+     * Sub-layer part of profile_tier_level(1, maxSubLayersMinus1) that follows general_level_idc (H.265 7.3.3)
+     * - Used after the general profile is read by readBits(). (ex. hvcC of H265Fmp4Segmenter)
+     */
+    public boolean skipSubLayerProfileTierLevel (int maxSubLayersMinus1) {
+        boolean[] subLayerProfilePresent = new boolean[maxSubLayersMinus1];
+        boolean[] subLayerLevelPresent = new boolean[maxSubLayersMinus1];
+        for (int i = 0; i < maxSubLayersMinus1; i++) {
+            long flags = readBits(2);
+            if (flags < 0) {
+                return false;
+            }
+            subLayerProfilePresent[i] = (flags & 0b10) != 0;
+            subLayerLevelPresent[i] = (flags & 0b01) != 0;
+        }
+        if (maxSubLayersMinus1 > 0 && !skipBits(2 * (8 - maxSubLayersMinus1))) {
+            return false; // reserved_zero_2bits
+        }
+
+        for (int i = 0; i < maxSubLayersMinus1; i++) {
+            if (subLayerProfilePresent[i] && !skipBits(88)) {
+                return false;
+            }
+            if (subLayerLevelPresent[i] && !skipBits(8)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    ////////////////////////////////////////////////////////////////////
+
+    private int readBit () {
+        if (bitsLeft == 0) {
+            if (offset >= end) {
+                return -1;
+            }
+
+            int b = buffer.get(offset++) & 0xff;
+            if (zeroCount >= 2 && b == 0x03) {
+                // emulation_prevention_three_byte
+                if (offset >= end) {
+                    return -1;
+                }
+                b = buffer.get(offset++) & 0xff;
+                zeroCount = 0;
+            }
+            zeroCount = (b == 0) ? zeroCount + 1 : 0;
+
+            curByte = b;
+            bitsLeft = 8;
+        }
+
+        bitsLeft--;
+        return (curByte >> bitsLeft) & 0x1;
+    }
+
+}
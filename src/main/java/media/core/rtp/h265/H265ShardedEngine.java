@@ -0,0 +1,634 @@
+package media.core.rtp.h265;
+
+import media.core.rtp.RtpBufferPool;
+import media.core.rtp.RtpPacket;
+import media.core.rtp.h265.base.ConcurrentLongObjectMap;
+import media.core.rtp.h265.base.H265UnpackerFactory;
+import media.core.rtp.h265.base.LongObjectMap;
+import media.core.rtp.h265.base.MpscRingQueue;
+import media.core.rtp.h265.base.RingWaitStrategy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Depacketization engine with one worker thread per shard (thread per core)
+ * - Each SSRC is pinned to one shard (hash of the SSRC), and its H265Unpacker is used only by the shard thread.
+ *      The streams of a shard are in a map of the shard (LongObjectMap), so the stream state has no lock and no volatile access.
+ *      (The NAL unit sinks of the unpackers are called in the shard threads)
+ * - ingest() routes the packet to the queue of the shard (MpscRingQueue, lock-free). The shard thread drains the queue in batches,
+ *      and waits by the wait strategy while it's empty. (RingWaitStrategy, PARK by default)
+ *      A full queue drops the packet. (Counted in the shard stats)
+ * - Rebalancing : rebalance() compares the packets handled by the shards since the last call.
+ *      If the busiest shard is over the average by the threshold, it moves its hottest streams to the least busy shard.
+ *      1) The busiest shard removes the stream from its map, and hands it to the target shard. (Control queue)
+ *      2) Then the route of the SSRC is changed to the target shard. (ConcurrentLongObjectMap, lock-free lookup)
+ *      3) Packets queued to the old shard before the route change are forwarded to the target shard,
+ *          so they may be reordered with the packets that are routed directly (like network reordering).
+ * - Packets are owned by the engine after ingest() : Pooled packets are released after they are handled.
+ */
+public class H265ShardedEngine implements AutoCloseable {
+
+    private static final Logger logger = LoggerFactory.getLogger(H265ShardedEngine.class);
+
+    public static final int DEFAULT_QUEUE_SIZE = 8192;
+    public static final int DEFAULT_BATCH_SIZE = 64;
+    public static final double DEFAULT_REBALANCE_THRESHOLD = 1.25;
+    public static final long DEFAULT_SHUTDOWN_TIMEOUT_MS = 5000;
+
+    private static final long IDLE_CHECK_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+    private final Shard[] shards;
+    private final H265UnpackerFactory unpackerFactory;
+    private final RtpBufferPool bufferPool;
+    private final ConcurrentLongObjectMap<Shard> routes = new ConcurrentLongObjectMap<>(); // Moved streams only
+
+    private volatile boolean isAccepting = false;
+    private volatile long idleNanos = -1;
+    private volatile RingWaitStrategy waitStrategy = RingWaitStrategy.PARK;
+    private double rebalanceThreshold = DEFAULT_REBALANCE_THRESHOLD;
+
+    // Guarded by this (rebalance())
+    private final long[] lastHandledPackets;
+
+    ////////////////////////////////////////////////////////////////////
+
+    /**
+     * One shard per available processor.
+     */
+    public H265ShardedEngine (H265UnpackerFactory unpackerFactory) {
+        this(unpackerFactory, Runtime.getRuntime().availableProcessors(), DEFAULT_QUEUE_SIZE, new RtpBufferPool());
+    }
+
+    /**
+     * @param queueSize Packets queued per shard (rounded up to a power of 2)
+     * @param bufferPool Pool of the packets copied by ingest(ByteBuffer)
+     */
+    public H265ShardedEngine (H265UnpackerFactory unpackerFactory, int shardCount, int queueSize, RtpBufferPool bufferPool) {
+        if (shardCount <= 0) {
+            throw new IllegalArgumentException("shardCount must be positive. (" + shardCount + ")");
+        }
+
+        this.unpackerFactory = unpackerFactory;
+        this.bufferPool = bufferPool;
+        this.shards = new Shard[shardCount];
+        for (int i = 0; i < shardCount; i++) {
+            shards[i] = new Shard(i, queueSize);
+        }
+        this.lastHandledPackets = new long[shardCount];
+    }
+
+    ////////////////////////////////////////////////////////////////////
+
+    public void start () {
+        isAccepting = true;
+        for (Shard shard : shards) {
+            shard.thread.start();
+        }
+        logger.debug("Success to start the engine. (shards={})", shards.length);
+    }
+
+    /**
+     * Routes the packet to the shard of its SSRC. The engine owns the packet after this call.
+     * @param h265Packet Packet that is not reused by the caller (ex. A pooled packet, released after it's handled)
+     * @return false if the engine is not running, or the queue of the shard is full (The packet is released)
+     */
+    public boolean ingest (H265Packet h265Packet) {
+        if (h265Packet == null || h265Packet.getLength() < RtpPacket.FIXED_HEADER_SIZE) {
+            logger.warn("Packet is null or too short. Fail to ingest.");
+            return false;
+        }
+
+        Shard shard = route(h265Packet.getSyncSource());
+        if (!isAccepting || !shard.queue.offer(h265Packet)) {
+            shard.droppedPackets.incrementAndGet();
+            h265Packet.release();
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Copies the datagram (RTP packet, from 0 to limit) to a pooled packet and routes it. The buffer can be reused after this call.
+     */
+    public boolean ingest (ByteBuffer datagram) {
+        int length = datagram.limit();
+        if (length < RtpPacket.FIXED_HEADER_SIZE) {
+            logger.warn("Datagram is too short. Fail to ingest. (len={})", length);
+            return false;
+        }
+
+        H265Packet h265Packet = new H265Packet(length, bufferPool);
+        ByteBuffer buffer = h265Packet.getBuffer();
+        ByteBuffer src = datagram.duplicate();
+        src.position(0);
+        buffer.clear();
+        buffer.put(src).flip();
+        return ingest(h265Packet);
+    }
+
+    /**
+     * Moves the hottest streams of the busiest shard to the least busy shard, if the load is unbalanced.
+     * - Load : Packets handled since the last call. Call it periodically. (ex. Every second)
+     * - The streams are moved asynchronously by the shard threads.
+     * @return true if the busiest shard is requested to move streams
+     */
+    public synchronized boolean rebalance () {
+        int shardCount = shards.length;
+        long[] loads = new long[shardCount];
+        long total = 0;
+        int max = 0;
+        int min = 0;
+        for (int i = 0; i < shardCount; i++) {
+            long handled = shards[i].handledPackets;
+            loads[i] = handled - lastHandledPackets[i];
+            lastHandledPackets[i] = handled;
+            total += loads[i];
+            if (loads[i] > loads[max]) {
+                max = i;
+            }
+            if (loads[i] < loads[min]) {
+                min = i;
+            }
+        }
+
+        boolean isUnbalanced = isAccepting && shardCount > 1 && total > 0
+                && loads[max] > (double) total / shardCount * rebalanceThreshold;
+        for (int i = 0; i < shardCount; i++) {
+            Shard shard = shards[i];
+            if (isUnbalanced && i == max) {
+                final Shard target = shards[min];
+                final long gap = (loads[max] - loads[min]) / 2;
+                shard.control.offer(() -> shard.shed(target, gap));
+            } else {
+                shard.control.offer(shard::resetWindow);
+            }
+        }
+
+        if (isUnbalanced) {
+            logger.debug("Load is unbalanced. Streams are moved. (from={}({}), to={}({}), average={})",
+                    max, loads[max], min, loads[min], total / shardCount);
+        }
+        return isUnbalanced;
+    }
+
+    /**
+     * Stops accepting packets, and waits until the shards handle the queued packets.
+     * - Packets left in the queue of an ended shard (ex. Forwarded by another shard) are released and counted as dropped.
+     * @return true if all the shard threads are ended in the timeout
+     */
+    public boolean shutdown (long timeoutMs) {
+        isAccepting = false;
+        for (Shard shard : shards) {
+            shard.isStopping = true;
+        }
+
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMs);
+        boolean isTerminated = true;
+        for (Shard shard : shards) {
+            if (!shard.thread.isAlive()) {
+                continue;
+            }
+            try {
+                shard.thread.join(Math.max(1, TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime())));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            if (shard.thread.isAlive()) {
+                logger.warn("Shard is not ended in the timeout. (shard={}, queued={})", shard.index, shard.queue.size());
+                isTerminated = false;
+            }
+        }
+
+        // Packets forwarded to a shard after its loop has ended (or ingested while stopping) are released
+        for (Shard shard : shards) {
+            if (!shard.thread.isAlive()) {
+                shard.releaseQueued();
+            }
+        }
+
+        logger.debug("Engine is shut down. (terminated={})", isTerminated);
+        return isTerminated;
+    }
+
+    @Override
+    public void close () {
+        shutdown(DEFAULT_SHUTDOWN_TIMEOUT_MS);
+    }
+
+    ////////////////////////////////////////////////////////////////////
+
+    /**
+     * @param idleTimeoutMs Streams that have received no packet for this time are removed by their shard (0 or negative : Never)
+     */
+    public void setIdleTimeout (long idleTimeoutMs) {
+        this.idleNanos = idleTimeoutMs > 0 ? TimeUnit.MILLISECONDS.toNanos(idleTimeoutMs) : -1;
+    }
+
+    /**
+     * @param waitStrategy How the shard threads wait for packets (PARK : Default, YIELD or SPIN for dedicated cores)
+     */
+    public void setWaitStrategy (RingWaitStrategy waitStrategy) {
+        this.waitStrategy = waitStrategy;
+    }
+
+    public RingWaitStrategy getWaitStrategy () {
+        return waitStrategy;
+    }
+
+    /**
+     * @param rebalanceThreshold Ratio of the busiest shard load to the average load that triggers rebalancing (ex. 1.25)
+     */
+    public synchronized void setRebalanceThreshold (double rebalanceThreshold) {
+        this.rebalanceThreshold = rebalanceThreshold;
+    }
+
+    public int getShardCount () {
+        return shards.length;
+    }
+
+    /**
+     * @return Index of the shard that the packets of the SSRC are routed to
+     */
+    public int getShardOf (long ssrc) {
+        return route(ssrc).index;
+    }
+
+    public ShardStats getShardStats (int index) {
+        return shards[index].getStats();
+    }
+
+    public List<ShardStats> getShardStats () {
+        List<ShardStats> statsList = new ArrayList<>(shards.length);
+        for (Shard shard : shards) {
+            statsList.add(shard.getStats());
+        }
+        return statsList;
+    }
+
+    /**
+     * @return Total number of streams of the shards
+     */
+    public int getStreamCount () {
+        int count = 0;
+        for (Shard shard : shards) {
+            count += shard.streamCount;
+        }
+        return count;
+    }
+
+    ////////////////////////////////////////////////////////////////////
+
+    private Shard route (long ssrc) {
+        Shard shard = routes.get(ssrc);
+        return shard != null ? shard : shards[homeOf(ssrc)];
+    }
+
+    private int homeOf (long ssrc) {
+        int hash = (int) (ssrc ^ (ssrc >>> 32)) * 0x9E3779B9; // Fibonacci hashing
+        return (int) ((hash & 0xFFFFFFFFL) % shards.length);
+    }
+
+    ////////////////////////////////////////////////////////////////////
+
+    /**
+     * Snapshot of the load of a shard
+     */
+    public static final class ShardStats {
+
+        private final int index;
+        private final int streamCount;
+        private final int queuedPackets;
+        private final long handledPackets;
+        private final long failedPackets;
+        private final long droppedPackets;
+        private final long busyNanos;
+        private final long movedInStreams;
+        private final long movedOutStreams;
+
+        ShardStats (int index, int streamCount, int queuedPackets, long handledPackets, long failedPackets,
+                    long droppedPackets, long busyNanos, long movedInStreams, long movedOutStreams) {
+            this.index = index;
+            this.streamCount = streamCount;
+            this.queuedPackets = queuedPackets;
+            this.handledPackets = handledPackets;
+            this.failedPackets = failedPackets;
+            this.droppedPackets = droppedPackets;
+            this.busyNanos = busyNanos;
+            this.movedInStreams = movedInStreams;
+            this.movedOutStreams = movedOutStreams;
+        }
+
+        public int getIndex () {
+            return index;
+        }
+
+        public int getStreamCount () {
+            return streamCount;
+        }
+
+        public int getQueuedPackets () {
+            return queuedPackets;
+        }
+
+        public long getHandledPackets () {
+            return handledPackets;
+        }
+
+        public long getFailedPackets () {
+            return failedPackets;
+        }
+
+        /**
+         * @return Packets dropped by the full queue or after shutdown
+         */
+        public long getDroppedPackets () {
+            return droppedPackets;
+        }
+
+        /**
+         * @return Time spent in handling the packets (Not waiting for them)
+         */
+        public long getBusyNanos () {
+            return busyNanos;
+        }
+
+        public long getMovedInStreams () {
+            return movedInStreams;
+        }
+
+        public long getMovedOutStreams () {
+            return movedOutStreams;
+        }
+
+        @Override
+        public String toString () {
+            return "ShardStats{" +
+                    "index=" + index +
+                    ", streamCount=" + streamCount +
+                    ", queuedPackets=" + queuedPackets +
+                    ", handledPackets=" + handledPackets +
+                    ", failedPackets=" + failedPackets +
+                    ", droppedPackets=" + droppedPackets +
+                    ", busyMs=" + TimeUnit.NANOSECONDS.toMillis(busyNanos) +
+                    ", movedInStreams=" + movedInStreams +
+                    ", movedOutStreams=" + movedOutStreams +
+                    '}';
+        }
+
+    }
+
+    /**
+     * Stream owned by a shard (Accessed only by the shard thread)
+     */
+    private static final class Stream {
+
+        final long ssrc;
+        final H265Unpacker h265Unpacker;
+        long packets = 0;
+        long windowStartPackets = 0;
+        long lastActivityNanos;
+
+        Stream (long ssrc, H265Unpacker h265Unpacker, long now) {
+            this.ssrc = ssrc;
+            this.h265Unpacker = h265Unpacker;
+            this.lastActivityNanos = now;
+        }
+
+        long getWindowPackets () {
+            return packets - windowStartPackets;
+        }
+
+    }
+
+    private final class Shard implements Runnable {
+
+        final int index;
+        final Thread thread;
+        final MpscRingQueue<H265Packet> queue;
+        final ConcurrentLinkedQueue<Runnable> control = new ConcurrentLinkedQueue<>();
+        final AtomicLong droppedPackets = new AtomicLong(0);
+        volatile boolean isStopping = false;
+
+        // Owned by the shard thread
+        private final LongObjectMap<Stream> streams = new LongObjectMap<>();
+        private final List<H265Packet> batch = new ArrayList<>(DEFAULT_BATCH_SIZE);
+        private final List<Stream> streamList = new ArrayList<>();
+        private long lastIdleCheckNanos = System.nanoTime();
+
+        // Published by the shard thread once per batch
+        volatile int streamCount = 0;
+        volatile long handledPackets = 0;
+        volatile long failedPackets = 0;
+        volatile long busyNanos = 0;
+        volatile long movedInStreams = 0;
+        volatile long movedOutStreams = 0;
+
+        Shard (int index, int queueSize) {
+            this.index = index;
+            this.queue = new MpscRingQueue<>(queueSize);
+            this.thread = new Thread(this, "h265-shard-" + index);
+            this.thread.setDaemon(true);
+        }
+
+        @Override
+        public void run () {
+            long handled = 0;
+            long failed = 0;
+            long busy = 0;
+            int idleCount = 0;
+
+            while (true) {
+                runControl();
+
+                if (queue.drainTo(batch, DEFAULT_BATCH_SIZE) == 0) {
+                    if (isStopping) {
+                        break;
+                    }
+                    idleCount = waitStrategy.idle(idleCount);
+                    removeIdleStreams(System.nanoTime());
+                    continue;
+                }
+                idleCount = 0;
+
+                long start = System.nanoTime();
+                for (int i = 0; i < batch.size(); i++) {
+                    H265Packet h265Packet = batch.get(i);
+                    int result = handle(h265Packet, start);
+                    if (result >= 0) {
+                        handled++;
+                        if (result == 0) {
+                            failed++;
+                        }
+                        h265Packet.release();
+                    }
+                }
+                batch.clear();
+                long end = System.nanoTime();
+                busy += end - start;
+
+                handledPackets = handled;
+                failedPackets = failed;
+                busyNanos = busy;
+                removeIdleStreams(end);
+            }
+
+            runControl();
+            int released = releaseQueued(); // Forwarded by the other shards after the last drain
+            logger.debug("Shard is ended. (shard={}, streams={}, handled={}, released={})", index, streams.size(), handled, released);
+        }
+
+        /**
+         * Releases the packets left in the queue. They are counted as dropped.
+         * - Called only by the consumer of the queue. (The shard thread, or the engine after the thread is ended)
+         * @return The number of released packets
+         */
+        private int releaseQueued () {
+            int count = 0;
+            H265Packet h265Packet;
+            while ((h265Packet = queue.poll()) != null) {
+                h265Packet.release();
+                count++;
+            }
+            if (count > 0) {
+                droppedPackets.addAndGet(count);
+            }
+            return count;
+        }
+
+        /**
+         * @return 1 : Handled, 0 : Failed in the unpacker, -1 : Forwarded to another shard (Not released)
+         */
+        private int handle (H265Packet h265Packet, long now) {
+            long ssrc = h265Packet.getSyncSource();
+            Stream stream = streams.get(ssrc);
+            if (stream == null) {
+                runControl(); // The stream may be handed to this shard
+                stream = streams.get(ssrc);
+            }
+
+            if (stream == null) {
+                Shard owner = route(ssrc);
+                if (owner != this) {
+                    if (!owner.queue.offer(h265Packet)) {
+                        owner.droppedPackets.incrementAndGet();
+                        h265Packet.release();
+                    }
+                    return -1;
+                }
+
+                H265Unpacker h265Unpacker = unpackerFactory.create(ssrc);
+                if (h265Unpacker == null) {
+                    logger.warn("Fail to create the unpacker. (shard={}, ssrc={})", index, ssrc);
+                    return 0;
+                }
+                stream = new Stream(ssrc, h265Unpacker, now);
+                streams.put(ssrc, stream);
+                streamCount = streams.size();
+                logger.debug("New stream is detected. (shard={}, ssrc={})", index, ssrc);
+            }
+
+            stream.packets++;
+            stream.lastActivityNanos = now;
+            return stream.h265Unpacker.handle(h265Packet) ? 1 : 0;
+        }
+
+        private void runControl () {
+            Runnable task;
+            while ((task = control.poll()) != null) {
+                task.run();
+            }
+        }
+
+        /**
+         * Moves the hottest streams (packets in the window) to the target shard, up to gap packets.
+         * - A stream that is hotter than the gap is not moved. (Moving it makes the target the busiest)
+         */
+        private void shed (Shard target, long gap) {
+            streams.values(streamList);
+            streamList.sort((a, b) -> Long.compare(b.getWindowPackets(), a.getWindowPackets()));
+            long remaining = gap;
+            for (Stream stream : streamList) {
+                long load = stream.getWindowPackets();
+                if (load == 0 || remaining <= 0) {
+                    break;
+                }
+                if (load <= remaining) {
+                    moveTo(stream, target);
+                    remaining -= load;
+                }
+            }
+            streamList.clear();
+            resetWindow();
+        }
+
+        private void moveTo (Stream stream, Shard target) {
+            streams.remove(stream.ssrc);
+            streamCount = streams.size();
+
+            // Handed over before the route is changed, so the target has it before the routed packets
+            target.control.offer(() -> target.adopt(stream));
+            if (target.index == homeOf(stream.ssrc)) {
+                routes.remove(stream.ssrc);
+            } else {
+                routes.put(stream.ssrc, target);
+            }
+            movedOutStreams++; // Published after the route
+            logger.debug("Stream is moved. (ssrc={}, from={}, to={}, packets={})", stream.ssrc, index, target.index, stream.getWindowPackets());
+        }
+
+        private void adopt (Stream stream) {
+            stream.windowStartPackets = stream.packets;
+            streams.put(stream.ssrc, stream);
+            streamCount = streams.size();
+            movedInStreams++;
+        }
+
+        private void resetWindow () {
+            streams.values(streamList);
+            for (Stream stream : streamList) {
+                stream.windowStartPackets = stream.packets;
+            }
+            streamList.clear();
+        }
+
+        private void removeIdleStreams (long now) {
+            long idle = idleNanos;
+            if (idle <= 0 || now - lastIdleCheckNanos < IDLE_CHECK_INTERVAL_NANOS) {
+                return;
+            }
+            lastIdleCheckNanos = now;
+
+            streams.values(streamList);
+            for (Stream stream : streamList) {
+                if (now - stream.lastActivityNanos < idle) {
+                    continue;
+                }
+                streams.remove(stream.ssrc);
+                if (routes.get(stream.ssrc) == this) {
+                    routes.remove(stream.ssrc);
+                }
+                H265Metrics metrics = stream.h265Unpacker.getMetrics();
+                if (metrics != null && metrics != H265Metrics.getGlobal()) {
+                    metrics.unregister();
+                }
+                logger.debug("Stream is removed. (shard={}, ssrc={})", index, stream.ssrc);
+            }
+            streamList.clear();
+            streamCount = streams.size();
+        }
+
+        ShardStats getStats () {
+            return new ShardStats(index, streamCount, queue.size(), handledPackets, failedPackets,
+                    droppedPackets.get(), busyNanos, movedInStreams, movedOutStreams);
+        }
+
+    }
+
+}
@@ -0,0 +1,160 @@
+package media.core.rtp.h265;
+
+import media.core.rtp.RtpPacket;
+import media.core.rtp.h265.base.ConcurrentLongObjectMap;
+import media.core.rtp.h265.base.H265UnpackerFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Demultiplexer of incoming H.265 streams by SSRC
+ * - Each SSRC has its own H265Unpacker (FU reassembly, DON reorder, parameter sets). (H265StreamContext)
+ * - Thread-safe without a global lock :
+ *      1) Stream lookup is lock-free. (ConcurrentLongObjectMap, primitive SSRC key)
+ *      2) A new stream locks only one segment of the map.
+ *      3) Packets of a stream are handled under the lock of the stream,
+ *          so packets of other streams are handled in parallel.
+ *      4) A stream is removed under its lock, and only if it's still mapped to its SSRC. (Conditional remove)
+ *          A packet that has found a removed stream looks up the SSRC again.
+ */
+public class H265SsrcDemuxer {
+
+    private static final Logger logger = LoggerFactory.getLogger(H265SsrcDemuxer.class);
+
+    private static final int DEFAULT_CONCURRENCY_LEVEL = 64;
+
+    private final ConcurrentLongObjectMap<H265StreamContext> streamMap;
+    private final H265UnpackerFactory unpackerFactory;
+
+    ////////////////////////////////////////////////////////////////////
+
+    /**
+     * Each stream has its own metrics. (Global metrics is updated too)
+     */
+    public H265SsrcDemuxer () {
+        this(ssrc -> {
+            H265Unpacker h265Unpacker = new H265Unpacker();
+            h265Unpacker.setMetrics(new H265Metrics());
+            return h265Unpacker;
+        });
+    }
+
+    public H265SsrcDemuxer (H265UnpackerFactory unpackerFactory) {
+        this(unpackerFactory, DEFAULT_CONCURRENCY_LEVEL);
+    }
+
+    public H265SsrcDemuxer (H265UnpackerFactory unpackerFactory, int concurrencyLevel) {
+        this.unpackerFactory = unpackerFactory;
+        this.streamMap = new ConcurrentLongObjectMap<>(concurrencyLevel);
+    }
+
+    ////////////////////////////////////////////////////////////////////
+
+    public boolean handle (H265Packet h265Packet) {
+        return handle(h265Packet, System.nanoTime());
+    }
+
+    /**
+     * Routes the packet to the unpacker of its SSRC. A new SSRC creates a new stream.
+     * @param now System.nanoTime()
+     * @return Result of H265Unpacker.handle()
+     */
+    public boolean handle (H265Packet h265Packet, long now) {
+        if (h265Packet == null || h265Packet.getLength() < RtpPacket.FIXED_HEADER_SIZE) {
+            logger.warn("Packet is null or too short. Fail to demux.");
+            return false;
+        }
+
+        long ssrc = h265Packet.getSyncSource();
+        while (true) {
+            H265StreamContext streamContext = streamMap.get(ssrc);
+            if (streamContext == null) {
+                streamContext = streamMap.computeIfAbsent(ssrc, key -> createStream(key, now));
+                if (streamContext == null) {
+                    return false;
+                }
+            }
+            synchronized (streamContext) {
+                if (!streamContext.isRemoved()) {
+                    return streamContext.handle(h265Packet, now);
+                }
+            }
+            // Removed after the lookup : A new stream is created for the SSRC
+        }
+    }
+
+    public H265StreamContext getStream (long ssrc) {
+        return streamMap.get(ssrc);
+    }
+
+    public H265StreamContext removeStream (long ssrc) {
+        H265StreamContext streamContext;
+        do {
+            streamContext = streamMap.get(ssrc);
+            if (streamContext == null) {
+                return null;
+            }
+        } while (!removeStream(streamContext, Long.MIN_VALUE, 0));
+        return streamContext;
+    }
+
+    /**
+     * Removes the streams that have received no packet for idleNanos.
+     * - The idle time is checked again under the lock of the stream, so a stream handling a packet is not removed.
+     * @return The number of removed streams
+     */
+    public int removeIdleStreams (long idleNanos, long now) {
+        int count = 0;
+        for (H265StreamContext streamContext : streamMap.values()) {
+            if (now - streamContext.getLastActivityNanos() >= idleNanos && removeStream(streamContext, idleNanos, now)) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    public int getStreamCount () {
+        return streamMap.size();
+    }
+
+    public long[] getSsrcs () {
+        return streamMap.keys();
+    }
+
+    ////////////////////////////////////////////////////////////////////
+
+    /**
+     * Removes the stream if it's still mapped to its SSRC, and has been idle for idleNanos. (Long.MIN_VALUE : Always)
+     * @return true if the stream is removed
+     */
+    private boolean removeStream (H265StreamContext streamContext, long idleNanos, long now) {
+        long ssrc = streamContext.getSsrc();
+        synchronized (streamContext) {
+            if (idleNanos != Long.MIN_VALUE && now - streamContext.getLastActivityNanos() < idleNanos) {
+                return false;
+            }
+            if (!streamMap.remove(ssrc, streamContext)) {
+                return false;
+            }
+            streamContext.setRemoved();
+        }
+
+        if (streamContext.getMetrics() != H265Metrics.getGlobal()) {
+            streamContext.getMetrics().unregister();
+        }
+        logger.debug("Stream is removed. (ssrc={})", ssrc);
+        return true;
+    }
+
+    private H265StreamContext createStream (long ssrc, long now) {
+        H265Unpacker h265Unpacker = unpackerFactory.create(ssrc);
+        if (h265Unpacker == null) {
+            logger.warn("Fail to create the unpacker. (ssrc={})", ssrc);
+            return null;
+        }
+
+        logger.debug("New stream is detected. (ssrc={})", ssrc);
+        return new H265StreamContext(ssrc, h265Unpacker, now);
+    }
+
+}
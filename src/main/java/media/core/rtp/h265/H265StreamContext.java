@@ -0,0 +1,87 @@
+package media.core.rtp.h265;
+
+/**
+ * Depacketizer state of one incoming stream (SSRC)
+ * - The unpacker is accessed only under the lock of the context. (H265SsrcDemuxer)
+ */
+public class H265StreamContext {
+
+    private final long ssrc;
+    private final H265Unpacker h265Unpacker;
+    private final long createdNanos;
+
+    // Guarded by this
+    private long receivedPackets = 0;
+    private long failedPackets = 0;
+    private boolean isRemoved = false; // Removed from the demuxer : No more packet is handled
+    private volatile long lastActivityNanos;
+
+    ////////////////////////////////////////////////////////////////////
+
+    public H265StreamContext (long ssrc, H265Unpacker h265Unpacker, long now) {
+        this.ssrc = ssrc;
+        this.h265Unpacker = h265Unpacker;
+        this.createdNanos = now;
+        this.lastActivityNanos = now;
+    }
+
+    ////////////////////////////////////////////////////////////////////
+
+    /**
+     * @param now System.nanoTime()
+     */
+    public synchronized boolean handle (H265Packet h265Packet, long now) {
+        lastActivityNanos = now;
+        receivedPackets++;
+        boolean result = h265Unpacker.handle(h265Packet);
+        if (!result) {
+            failedPackets++;
+        }
+        return result;
+    }
+
+    ////////////////////////////////////////////////////////////////////
+
+    public long getSsrc () {
+        return ssrc;
+    }
+
+    /**
+     * The unpacker must be used under the lock of this context. (synchronized (context))
+     */
+    public H265Unpacker getH265Unpacker () {
+        return h265Unpacker;
+    }
+
+    /**
+     * Metrics of the stream (H265Unpacker.setMetrics()). register("ssrc-" + ssrc) exposes it via JMX.
+     */
+    public H265Metrics getMetrics () {
+        return h265Unpacker.getMetrics();
+    }
+
+    public long getCreatedNanos () {
+        return createdNanos;
+    }
+
+    public long getLastActivityNanos () {
+        return lastActivityNanos;
+    }
+
+    public synchronized long getReceivedPackets () {
+        return receivedPackets;
+    }
+
+    public synchronized long getFailedPackets () {
+        return failedPackets;
+    }
+
+    public synchronized boolean isRemoved () {
+        return isRemoved;
+    }
+
+    synchronized void setRemoved () {
+        isRemoved = true;
+    }
+
+}
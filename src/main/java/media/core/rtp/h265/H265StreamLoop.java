@@ -0,0 +1,136 @@
+package media.core.rtp.h265;
+
+import media.core.rtp.RtpPacket;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
+
+/**
+ * Blocking receive loop of one stream : DatagramChannel.receive() > H265Unpacker.handle() > NAL unit sink of the unpacker
+ * - For many low-bitrate streams on virtual threads (H265StreamLoopExecutor), one loop per stream (socket).
+ * - Made to not pin the carrier thread of a virtual thread :
+ *      1) No synchronized block or method around the blocking receive. (The unpacker is used only by the loop thread)
+ *      2) The receive buffer is owned by the loop, not by a ThreadLocal. (A virtual thread per stream would allocate one per thread anyway)
+ * - The RTP header is reduced to the fixed header in place. (RtpPacket.reduceToFixedHeader())
+ * - stop() may be called by any thread : The channel is closed, and the blocking receive returns.
+ */
+public class H265StreamLoop implements Runnable {
+
+    private static final Logger logger = LoggerFactory.getLogger(H265StreamLoop.class);
+
+    private final DatagramChannel channel;
+    private final H265Unpacker h265Unpacker;
+    private final ByteBuffer buffer;
+    private final int maxDatagramSize;
+    private final H265Packet packet = new H265Packet(ByteBuffer.allocate(0));
+
+    private volatile boolean isStopped = false;
+
+    // Written by the loop thread only
+    private volatile long receivedDatagrams = 0;
+    private volatile long droppedDatagrams = 0;
+    private volatile long failedPackets = 0;
+
+    ////////////////////////////////////////////////////////////////////
+
+    /**
+     * @param channel Bound (or connected) channel of the stream. It's set to blocking mode.
+     * @param maxDatagramSize Bigger datagrams are dropped (ex. H265DatagramReceiver.DEFAULT_MAX_DATAGRAM_SIZE)
+     */
+    public H265StreamLoop (DatagramChannel channel, H265Unpacker h265Unpacker, int maxDatagramSize) throws IOException {
+        this.channel = channel;
+        this.h265Unpacker = h265Unpacker;
+        this.maxDatagramSize = maxDatagramSize;
+        this.buffer = ByteBuffer.allocateDirect(maxDatagramSize + 1); // +1 : Detects the truncated datagrams
+        channel.configureBlocking(true);
+    }
+
+    ////////////////////////////////////////////////////////////////////
+
+    @Override
+    public void run () {
+        try {
+            while (!isStopped) {
+                buffer.clear();
+                SocketAddress source = channel.receive(buffer);
+                if (source == null) {
+                    continue;
+                }
+                buffer.flip();
+                receivedDatagrams++;
+
+                if (buffer.limit() > maxDatagramSize
+                        || !RtpPacket.reduceToFixedHeader(buffer)
+                        || buffer.limit() < RtpPacket.FIXED_HEADER_SIZE + H265Packet.RTP_HEVC_PAYLOAD_HEADER_SIZE) {
+                    droppedDatagrams++;
+                    continue;
+                }
+                if (!h265Unpacker.handle(packet.reset(buffer))) {
+                    failedPackets++;
+                }
+            }
+        } catch (ClosedChannelException e) {
+            // stop() (AsynchronousCloseException) or closed by the owner
+        } catch (IOException e) {
+            if (!isStopped) {
+                logger.warn("Fail to receive the datagram. Loop is ended. (channel={})", channel, e);
+            }
+        } finally {
+            isStopped = true;
+            closeChannel();
+        }
+    }
+
+    public void stop () {
+        isStopped = true;
+        closeChannel();
+    }
+
+    ////////////////////////////////////////////////////////////////////
+
+    public boolean isStopped () {
+        return isStopped;
+    }
+
+    public DatagramChannel getChannel () {
+        return channel;
+    }
+
+    public H265Unpacker getH265Unpacker () {
+        return h265Unpacker;
+    }
+
+    public long getReceivedDatagrams () {
+        return receivedDatagrams;
+    }
+
+    /**
+     * @return Datagrams that are too big or not valid RTP packets
+     */
+    public long getDroppedDatagrams () {
+        return droppedDatagrams;
+    }
+
+    /**
+     * @return Packets that failed in the unpacker
+     */
+    public long getFailedPackets () {
+        return failedPackets;
+    }
+
+    ////////////////////////////////////////////////////////////////////
+
+    private void closeChannel () {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            logger.warn("Fail to close the channel. (channel={})", channel, e);
+        }
+    }
+
+}
@@ -0,0 +1,172 @@
+package media.core.rtp.h265;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.nio.channels.DatagramChannel;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Thread-per-stream execution mode : One blocking loop (H265StreamLoop) per stream on its own thread
+ * - Virtual threads on Java 21+ (multi-release jar, H265StreamThreads), so tens of thousands of streams are cheap.
+ *      A blocked loop holds no carrier thread.
+ * - Platform threads on Java 8 ~ 20, or if they are requested. (ex. Comparison, few streams)
+ * - An alternative to H265DatagramReceiver (one selector thread for many channels) + H265SsrcDemuxer.
+ *      Each stream has its own socket and unpacker, so no demultiplexing and no lock is needed.
+ * - Thread-safe.
+ */
+public class H265StreamLoopExecutor implements AutoCloseable {
+
+    private static final Logger logger = LoggerFactory.getLogger(H265StreamLoopExecutor.class);
+
+    public static final long DEFAULT_CLOSE_TIMEOUT_MS = 5000;
+
+    private final boolean isVirtual;
+    private final ThreadFactory threadFactory;
+    private final int maxDatagramSize;
+    private final Map<H265StreamLoop, Thread> loopMap = new ConcurrentHashMap<>();
+
+    private volatile boolean isClosed = false;
+
+    ////////////////////////////////////////////////////////////////////
+
+    /**
+     * Virtual threads if they are supported, otherwise platform threads.
+     */
+    public H265StreamLoopExecutor () {
+        this(true, H265DatagramReceiver.DEFAULT_MAX_DATAGRAM_SIZE);
+    }
+
+    /**
+     * @param useVirtualThreads true to use virtual threads (Platform threads if they are not supported)
+     */
+    public H265StreamLoopExecutor (boolean useVirtualThreads, int maxDatagramSize) {
+        this.isVirtual = useVirtualThreads && H265StreamThreads.isVirtualThreadSupported();
+        if (useVirtualThreads && !isVirtual) {
+            logger.warn("Virtual threads are not supported in this runtime. (java.version={}) Platform threads are used.",
+                    System.getProperty("java.version"));
+        }
+        this.threadFactory = isVirtual
+                ? H265StreamThreads.newVirtualThreadFactory("h265-stream-")
+                : H265StreamThreads.newPlatformThreadFactory("h265-stream-");
+        this.maxDatagramSize = maxDatagramSize;
+    }
+
+    ////////////////////////////////////////////////////////////////////
+
+    /**
+     * Opens a channel bound to the address and starts the loop of the stream.
+     * @return The loop, or null if it fails
+     */
+    public H265StreamLoop start (SocketAddress localAddress, H265Unpacker h265Unpacker) {
+        DatagramChannel channel = null;
+        try {
+            channel = DatagramChannel.open();
+            channel.bind(localAddress);
+            return start(channel, h265Unpacker);
+        } catch (IOException e) {
+            logger.warn("Fail to open the channel. (address={})", localAddress, e);
+            if (channel != null) {
+                try {
+                    channel.close();
+                } catch (IOException e2) {
+                    // Ignore
+                }
+            }
+            return null;
+        }
+    }
+
+    /**
+     * Starts the loop of the stream on a new thread. The loop closes the channel when it's ended.
+     * @param channel Bound (or connected) channel of the stream
+     * @return The loop, or null if the executor is closed or it fails
+     */
+    public H265StreamLoop start (DatagramChannel channel, H265Unpacker h265Unpacker) {
+        if (isClosed) {
+            logger.warn("Executor is closed. Fail to start the loop.");
+            return null;
+        }
+
+        final H265StreamLoop loop;
+        try {
+            loop = new H265StreamLoop(channel, h265Unpacker, maxDatagramSize);
+        } catch (IOException e) {
+            logger.warn("Fail to set the channel to blocking mode. (channel={})", channel, e);
+            return null;
+        }
+
+        Thread thread = threadFactory.newThread(() -> {
+            try {
+                loop.run();
+            } finally {
+                loopMap.remove(loop);
+            }
+        });
+        loopMap.put(loop, thread);
+        thread.start();
+
+        if (isClosed) {
+            loop.stop(); // Closed while it's started
+        }
+        return loop;
+    }
+
+    /**
+     * Stops all the loops, and waits until their threads are ended.
+     * @return true if all the threads are ended in the timeout
+     */
+    public boolean close (long timeoutMs) {
+        isClosed = true;
+        for (H265StreamLoop loop : loopMap.keySet()) {
+            loop.stop();
+        }
+
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMs);
+        for (Thread thread : loopMap.values()) {
+            try {
+                thread.join(Math.max(1, TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime())));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+
+        int remaining = loopMap.size();
+        if (remaining > 0) {
+            logger.warn("Loops are not ended in the timeout. (remaining={})", remaining);
+        }
+        return remaining == 0;
+    }
+
+    @Override
+    public void close () {
+        close(DEFAULT_CLOSE_TIMEOUT_MS);
+    }
+
+    ////////////////////////////////////////////////////////////////////
+
+    /**
+     * @return true if the loops run on virtual threads
+     */
+    public boolean isVirtual () {
+        return isVirtual;
+    }
+
+    /**
+     * @return The number of running loops
+     */
+    public int getLoopCount () {
+        return loopMap.size();
+    }
+
+    public boolean isClosed () {
+        return isClosed;
+    }
+
+}
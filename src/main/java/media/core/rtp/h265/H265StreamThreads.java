@@ -0,0 +1,44 @@
+package media.core.rtp.h265;
+
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Threads of the per-stream loops (H265StreamLoopExecutor)
+ * - Multi-release class :
+ *      1) Java 8 ~ 20 : This class. Virtual threads are not supported, the loops run on platform threads.
+ *      2) Java 21+ : src/main/java21 (META-INF/versions/21 of the jar), the loops can run on virtual threads.
+ * - Both versions must have the same public API.
+ */
+public final class H265StreamThreads {
+
+    private H265StreamThreads () {
+        // Nothing
+    }
+
+    ////////////////////////////////////////////////////////////////////
+
+    public static boolean isVirtualThreadSupported () {
+        return false;
+    }
+
+    /**
+     * @return Factory of virtual threads (namePrefix + number), or null if they are not supported
+     */
+    public static ThreadFactory newVirtualThreadFactory (String namePrefix) {
+        return null;
+    }
+
+    /**
+     * @return Factory of daemon platform threads (namePrefix + number)
+     */
+    public static ThreadFactory newPlatformThreadFactory (String namePrefix) {
+        final AtomicLong count = new AtomicLong(0);
+        return runnable -> {
+            Thread thread = new Thread(runnable, namePrefix + count.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+
+}
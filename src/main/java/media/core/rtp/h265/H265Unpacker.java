@@ -1,10 +1,15 @@
 package media.core.rtp.h265;
 
+import media.core.rtp.RtpBufferPool;
 import media.core.rtp.RtpPacket;
+import media.core.rtp.h265.base.FUAbortReason;
 import media.core.rtp.h265.base.FUPosition;
+import media.core.rtp.h265.base.H265NaluSink;
+import media.core.rtp.h265.base.H265PacketListener;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
@@ -13,35 +18,189 @@ public class H265Unpacker {
 
     private static final Logger logger = LoggerFactory.getLogger(H265Unpacker.class);
 
+    private static final int DEFAULT_FU_BUFFER_SIZE = 64 * 1024;
+
+    // FU reassembly : One growable buffer for the NAL unit being reassembled (Taken from the buffer pool if it's set, and reused)
     private FUPosition curFuPosition = FUPosition.NONE;
-    private final List<H265Packet> fuList = new ArrayList<>();
+    private ByteBuffer fuBuffer = null;
+    private RtpBufferPool fuBufferPool = null; // Pool of fuBuffer
+    private int fuBufferCapacity = DEFAULT_FU_BUFFER_SIZE;
+    private int fuType = -1;
+    private int fuDon = -1;
+
+    // Reused views of the aggregated NAL units
+    private final List<H265NaluView> apViewPool = new ArrayList<>();
+    private final List<H265NaluView> apViewList = new ArrayList<>();
+
+    // Interleaved mode (sprop-max-don-diff > 0) : NAL units are delivered in DON order
+    private H265DonReorderBuffer donReorderBuffer = null;
+
+    // Repeated identical VPS, SPS, PPS are dropped if it's set
+    private H265ParameterSetCache parameterSetCache = null;
+
+    private H265Metrics metrics = H265Metrics.getGlobal();
+
+    // Copied NAL units (Interleaved mode) take direct buffers from the pool if it's set
+    private RtpBufferPool bufferPool = null;
+
+    // Unpacked NAL units are pushed to the sink (ex. H265AccessUnitAssembler, decoder, recorder)
+    private H265NaluSink naluSink = null;
+    private final H265NaluView sinkView = new H265NaluView(); // Reused for Single NAL Unit packets and FUs
 
     public H265Unpacker() {
         // Nothing
     }
 
+    /**
+     * Sets sprop-max-don-diff of the stream.
+     * - If it's bigger than 0, all packets have DONL/DOND fields,
+     *      and the unpacked NAL units (DONL removed, getDon()) are delivered to the listener in decoding order.
+     * - 0 disables the interleaved mode.
+     * - Duplicated parameter sets (setParameterSetCache()) are dropped and released after the reordering,
+     *      so every DON reaches the reorder buffer and no DON is skipped for them.
+     */
+    public void setMaxDonDiff (int maxDonDiff, H265PacketListener listener) {
+        if (maxDonDiff <= 0) {
+            donReorderBuffer = null;
+        } else {
+            donReorderBuffer = new H265DonReorderBuffer(maxDonDiff, nalu -> {
+                if (isDuplicatedParameterSet(nalu)) {
+                    nalu.release();
+                    return;
+                }
+                listener.onPacket(nalu);
+            });
+        }
+    }
+
+    /**
+     * Sets sprop-max-don-diff of the stream. The NAL units are delivered to the NAL unit sink in decoding order.
+     * - The copied NAL units are released after the sink returns.
+     */
+    public void setMaxDonDiff (int maxDonDiff) {
+        setMaxDonDiff(maxDonDiff, nalu -> {
+            deliver(nalu);
+            nalu.release();
+        });
+    }
+
+    public H265DonReorderBuffer getDonReorderBuffer () {
+        return donReorderBuffer;
+    }
+
+    /**
+     * Drops the NAL unit being reassembled from FUs. (ex. Packets are lost)
+     */
+    public void reset () {
+        if (curFuPosition != FUPosition.NONE) {
+            logger.debug("FU is dropped. (curFuPos={}, fuType={})", getFuPositionStr(curFuPosition), fuType);
+            metrics.recordFuAborted(FUAbortReason.RESET);
+        }
+        resetFu();
+    }
+
+    /**
+     * @param metrics Metrics of the stream (ex. new H265Metrics() : Global metrics is updated too), null to use the global metrics
+     */
+    public void setMetrics (H265Metrics metrics) {
+        this.metrics = metrics == null ? H265Metrics.getGlobal() : metrics;
+    }
+
+    public H265Metrics getMetrics () {
+        return metrics;
+    }
+
+    /**
+     * Unpacked NAL units (Single NAL Unit packet, AP, reassembled FU) are pushed to the sink in the arrival order.
+     * - No allocation per NAL unit : The sink gets a reused view of the packet (or FU reassembly) buffer.
+     * - In the interleaved mode, the NAL units are pushed in decoding order. (setMaxDonDiff(int))
+     */
+    public void setNaluSink (H265NaluSink naluSink) {
+        this.naluSink = naluSink;
+    }
+
+    public H265NaluSink getNaluSink () {
+        return naluSink;
+    }
+
+    /**
+     * NAL units copied out of the received packets (DON reorder buffer) take their buffers from the pool.
+     * The listener of setMaxDonDiff() releases them. (H265Packet.release())
+     * - The late or duplicated ones are released by the reorder buffer.
+     * - The FU reassembly buffer is taken from the pool too. It's kept and reused for the next FUs.
+     */
+    public void setBufferPool (RtpBufferPool bufferPool) {
+        this.bufferPool = bufferPool;
+        if (curFuPosition == FUPosition.NONE) {
+            releaseFuBuffer(); // Taken from the new pool by the next START FU
+        }
+    }
+
+    public RtpBufferPool getBufferPool () {
+        return bufferPool;
+    }
+
+    public void setParameterSetCache (H265ParameterSetCache parameterSetCache) {
+        this.parameterSetCache = parameterSetCache;
+    }
+
+    public H265ParameterSetCache getParameterSetCache () {
+        return parameterSetCache;
+    }
+
+    /**
+     * Delivers all the NAL units in the reorder buffer. (End of stream)
+     */
+    public void flushDonReorderBuffer () {
+        if (donReorderBuffer != null) {
+            donReorderBuffer.flush();
+        }
+    }
+
     public boolean handle (H265Packet h265Packet) {
         if (h265Packet == null) { return false; }
 
-        logger.debug("\tRaw Data Length: {}", h265Packet.getRawPayload().length);
-        logger.debug("\tRTP Version: {}", h265Packet.getVersion());
-        logger.debug("\tSSRC: {}", h265Packet.getSyncSource());
-        logger.debug("\tPayload Type: {}", h265Packet.getPayloadType());
-        logger.debug("\tPayload Length: {}", h265Packet.getPayloadLength());
-        logger.debug("\tRaw data: {}", h265Packet.getRawData());
-        logger.debug("\tPayload: {}", h265Packet.getRawPayload());
+        if (logger.isDebugEnabled()) {
+            logger.debug("\tRaw Data Length: {}", h265Packet.getLength());
+            logger.debug("\tRTP Version: {}", h265Packet.getVersion());
+            logger.debug("\tSSRC: {}", h265Packet.getSyncSource());
+            logger.debug("\tPayload Type: {}", h265Packet.getPayloadType());
+            logger.debug("\tPayload Length: {}", h265Packet.getPayloadLength());
+            logger.debug("\tRaw data: {}", h265Packet.getRawData());
+            logger.debug("\tPayload: {}", h265Packet.getRawPayload());
+        }
 
         unPackHeader(h265Packet);
+        metrics.recordPacketIn(h265Packet.getType());
+        if (donReorderBuffer != null) {
+            h265Packet.setDonlUsing(true);
+            h265Packet.setDondUsing(true);
+        }
         boolean result = false;
 
         switch (h265Packet.getType()) {
             case H265Packet.RTP_HEVC_TYPE_AP:
                 logger.debug("AP is detected.");
-                List<H265Packet> unPackedAps = unPackAp(h265Packet);
+                isFuBroken(h265Packet.getType());
+                List<H265NaluView> unPackedAps = unPackAp(h265Packet);
                 if (unPackedAps != null && !unPackedAps.isEmpty()) {
                     result = true;
-                    for (H265Packet unpackedPacket : unPackedAps) {
-                        handle(unpackedPacket);
+                    metrics.recordApUnpacked(unPackedAps.size());
+                    // Pushed to the sink one unit later : The marker goes to the last unit delivered (not a dropped parameter set)
+                    H265NaluView pendingView = null;
+                    for (H265NaluView naluView : unPackedAps) {
+                        if (donReorderBuffer != null) {
+                            // Reordered NAL units outlive the AP buffer (A dropped copy is released by the reorder buffer)
+                            donReorderBuffer.offer(naluView.toPacket(h265Packet.getBuffer(), bufferPool));
+                        } else if (!isDuplicatedParameterSet(naluView.getType(), naluView.asByteBuffer())) {
+                            if (pendingView != null && naluSink != null) {
+                                naluSink.onNalu(pendingView, h265Packet.getTimestamp(), false);
+                            }
+                            pendingView = naluView;
+                        }
+                    }
+                    if (pendingView != null && naluSink != null) {
+                        naluSink.onNalu(pendingView, h265Packet.getTimestamp(), h265Packet.getMarker());
                     }
                 }
                 break;
@@ -50,25 +209,37 @@ public class H265Unpacker {
                 H265Packet unPackedFu = unPackFu(h265Packet);
                 if (unPackedFu != null) {
                     result = true;
+                    if (unPackedFu != h265Packet) {
+                        if (donReorderBuffer != null) {
+                            donReorderBuffer.offer(unPackedFu);
+                        } else if (!isDuplicatedParameterSet(unPackedFu)) {
+                            deliver(unPackedFu);
+                        }
+                    }
                 }
                 break;
             case H265Packet.RTP_HEVC_TYPE_PACI:
                 logger.debug("PACI is detected. Discarded.");
                 break;
             default:
-                if (curFuPosition != FUPosition.NONE && !fuList.isEmpty()) {
-                    H265Packet curFu = fuList.get(fuList.size() - 1);
-                    if (curFu.getType() != h265Packet.getType()) {
-                        // FU 패킷을 받은 상태에서(fuList is not flushed and FUPosition is not NONE.)
-                        // 다른 타입의 NAL 패킷을 받게 되면 이전에 받았던 모든 FU 버린다.
-                        logger.warn("FU Packet sequence is broken. FU List is cleared. (listSize={}) (curFuPos={}, packetType={})",
-                                fuList.size(), curFuPosition, h265Packet.getType());
-                        curFuPosition = FUPosition.NONE;
-                        fuList.clear();
+                if (isFuBroken(h265Packet.getType())) {
+                    return false;
+                }
+                H265Packet single = h265Packet;
+                if (donReorderBuffer != null) {
+                    single = unPackSingle(h265Packet);
+                    if (single == null) {
                         return false;
                     }
                 }
-                result = true;
+                if (donReorderBuffer != null) {
+                    result = donReorderBuffer.offer(single);
+                } else {
+                    if (!isDuplicatedParameterSet(single)) {
+                        deliver(single);
+                    }
+                    result = true;
+                }
                 break;
         }
 
@@ -104,48 +275,96 @@ public class H265Unpacker {
      *      Total 16 bits > 2 bytes
      */
 
-    private void unPackHeader (H265Packet h265Packet) {
-        if (h265Packet.getRawData() == null) { return; }
-        setForbidden(h265Packet);
-        setType(h265Packet);
-        setLid(h265Packet);
-        setTid(h265Packet);
+    /**
+     * Pushes the Single NAL Unit packet ([RTP Header] + [NALU Hdr + NALU Body]) to the sink.
+     */
+    private void deliver (H265Packet nalu) {
+        if (naluSink == null) {
+            return;
+        }
+
+        int length = nalu.getLength() - RtpPacket.FIXED_HEADER_SIZE;
+        if (length < H265Packet.RTP_HEVC_PAYLOAD_HEADER_SIZE) {
+            return;
+        }
+        sinkView.set(nalu.getBuffer(), RtpPacket.FIXED_HEADER_SIZE, length, nalu.getDon());
+        try {
+            naluSink.onNalu(sinkView, nalu.getTimestamp(), nalu.getMarker());
+        } finally {
+            sinkView.clear();
+        }
     }
 
-    private void setForbidden(H265Packet h265Packet) {
-        byte forbiddenByte = h265Packet.getRawPayload()[0];
-        int forbidden = forbiddenByte & 0b10000000; // 0x80
-        logger.debug("\tForbidden: {} ({})", forbidden, bytesToBinaryString(forbiddenByte));
-        h265Packet.setForbidden(forbidden);
+    private boolean isFuBroken (int type) {
+        if (curFuPosition != FUPosition.NONE) {
+            // FU 패킷을 받은 상태에서(FUPosition is not NONE.)
+            // 다른 NAL 패킷을 받게 되면 이전에 받았던 모든 FU 버린다. (FU 는 연속된 RTP 패킷으로만 전송된다, RFC 7798 4.4.3)
+            logger.warn("FU Packet sequence is broken. FU buffer is cleared. (curFuPos={}, fuType={}, packetType={})",
+                    getFuPositionStr(curFuPosition), fuType, type);
+            metrics.recordFuAborted(FUAbortReason.INTERRUPTED);
+            resetFu();
+            return true;
+        }
+        return false;
+    }
+
+    private boolean isDuplicatedParameterSet (H265Packet nalu) {
+        if (parameterSetCache == null) {
+            return false;
+        }
+
+        ByteBuffer buffer = nalu.getBuffer().duplicate();
+        buffer.limit(nalu.getLength());
+        buffer.position(RtpPacket.FIXED_HEADER_SIZE);
+        return isDuplicatedParameterSet((nalu.getPayloadHeader() >> 9) & 0b00111111, buffer);
     }
 
-    private void setType(H265Packet h265Packet) {
-        byte typeByte = h265Packet.getRawPayload()[0];
-        int type = typeByte & 0b01111110;
-        type >>= 1;
-        logger.debug("\tType: {} ({}, {})", checkType(type), type, bytesToBinaryString(typeByte));
-        h265Packet.setType(type);
+    private boolean isDuplicatedParameterSet (int type, ByteBuffer nalu) {
+        if (parameterSetCache == null || !H265ParameterSetCache.isParameterSet(type) || parameterSetCache.update(nalu)) {
+            return false;
+        }
+
+        logger.debug("Duplicated parameter set is dropped. (type={})", checkType(type));
+        return true;
     }
 
-    private void setLid(H265Packet h265Packet) {
-        byte res = 0b000000000;
-        byte[] lidBytes = new byte[2];
-        System.arraycopy(h265Packet.getRawPayload(), 0, lidBytes, 0, 2);
-        byte temp1 = (byte) (lidBytes[0] & 0b00000001);
-        byte temp2 = (byte) (lidBytes[1] & 0b11111000);
-        res &= temp1;
-        res <<= 7; // shift left 7 bits
-        res &= temp2;
-        int lid = res;
-        logger.debug("\tLayer ID: {} ({} {})", lid, bytesToBinaryString(temp1), bytesToBinaryString(temp2));
-        h265Packet.setLid(lid);
+    /**
+     * Removes DONL from the Single NAL Unit packet. (Interleaved mode)
+     * @return [RTP Header] + [NALU Hdr + NALU Body] with DON, or null if it fails
+     */
+    private H265Packet unPackSingle (H265Packet h265Packet) {
+        ByteBuffer src = h265Packet.getBuffer().duplicate();
+        int hdrSize = RtpPacket.FIXED_HEADER_SIZE + H265Packet.RTP_HEVC_PAYLOAD_HEADER_SIZE;
+        int packetLength = h265Packet.getLength();
+        if (packetLength <= hdrSize + H265Packet.RTP_HEVC_DONL_FIELD_SIZE) {
+            logger.warn("Packet is too short. Fail to unpack DONL.");
+            return null;
+        }
+
+        H265Packet nalu = new H265Packet(packetLength - H265Packet.RTP_HEVC_DONL_FIELD_SIZE, bufferPool);
+        ByteBuffer dst = nalu.getBuffer();
+        dst.clear();
+        src.limit(hdrSize);
+        src.position(0);
+        dst.put(src);
+        src.limit(packetLength);
+        src.position(hdrSize + H265Packet.RTP_HEVC_DONL_FIELD_SIZE);
+        dst.put(src);
+        dst.flip();
+
+        nalu.setDon(h265Packet.getBuffer().getShort(hdrSize) & 0xFFFF);
+        return nalu;
     }
 
-    private void setTid(H265Packet h265Packet) {
-        byte tidByte = h265Packet.getRawPayload()[1];
-        int tid = tidByte & 0b00000111;
-        logger.debug("\tTemporal ID: {} ({})", tid, bytesToBinaryString(tidByte));
-        h265Packet.setTid(tid);
+    /**
+     * Header fields are read on demand from the packet buffer. (No copy)
+     */
+    private void unPackHeader (H265Packet h265Packet) {
+        if (!logger.isDebugEnabled() || h265Packet.getPayloadHeader() < 0) { return; }
+        logger.debug("\tForbidden: {}", h265Packet.getForbidden());
+        logger.debug("\tType: {} ({})", checkType(h265Packet.getType()), h265Packet.getType());
+        logger.debug("\tLayer ID: {}", h265Packet.getLid());
+        logger.debug("\tTemporal ID: {}", h265Packet.getTid());
     }
 
     ////////////////////////////////////////////////////////////////////
@@ -174,87 +393,90 @@ public class H265Unpacker {
      *      +-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+
      */
 
-    private List<H265Packet> unPackAp (H265Packet h265Packet) {
-        logger.info("Starting to unpack AP...");
+    /**
+     * Unpacks the AP to the views of the aggregated NAL units. (No copy)
+     * - The views refer to the buffer of the AP packet, and are reused by the next AP.
+     * @return Views of the NAL units (DON is set if DONL is used), or null if it fails
+     */
+    public List<H265NaluView> unPackAp (H265Packet h265Packet) {
+        logger.debug("Starting to unpack AP...");
 
-        // 2) Check AP Packet Payload (hdr + body) null or length
+        // 1) Check AP Packet Payload (hdr + body) null or length
         if (h265Packet == null) {
             logger.warn("Packet is null. Fail to unpack AP.");
             return Collections.emptyList();
         }
 
-        byte[] rawData = h265Packet.getRawData();
-        if (rawData == null || rawData.length == 0) {
-            logger.warn("Raw data is null or empty. Fail to unpack AP.");
-            return Collections.emptyList();
-        }
-
-        int rawDataLength = rawData.length;
-        if (rawDataLength <= RtpPacket.FIXED_HEADER_SIZE) {
+        ByteBuffer buffer = h265Packet.getBuffer();
+        int packetLength = h265Packet.getLength();
+        if (packetLength <= RtpPacket.FIXED_HEADER_SIZE + H265Packet.RTP_HEVC_PAYLOAD_HEADER_SIZE) {
             logger.warn("Packet is too short. Fail to unpack AP.");
             return Collections.emptyList();
         }
 
-        // 2) Ready for packing Divided AP Packet list
-        List<H265Packet> naluList = new ArrayList<>();
-        byte[] rtpHeader = new byte[RtpPacket.FIXED_HEADER_SIZE];
-        System.arraycopy(rawData, 0, rtpHeader, 0, RtpPacket.FIXED_HEADER_SIZE);
-
-        byte[] rawPayload = new byte[rawDataLength - RtpPacket.FIXED_HEADER_SIZE];
-        System.arraycopy(rawData, RtpPacket.FIXED_HEADER_SIZE, rawPayload, 0, rawData.length - RtpPacket.FIXED_HEADER_SIZE); // ignore PayloadHdr
-
-        int totalDataLen = 0;
+        // 2) Divide AP Packet to the views
+        apViewList.clear();
+        int offset = RtpPacket.FIXED_HEADER_SIZE + H265Packet.RTP_HEVC_PAYLOAD_HEADER_SIZE;
         int curNaluSize;
-
-        while (true) {
-            if (totalDataLen >= rawPayload.length) {
-                break;
-            }
-
-            if (totalDataLen == 0) {
-                totalDataLen += H265Packet.RTP_HEVC_PAYLOAD_HEADER_SIZE;
-                if (h265Packet.isDonlUsing()) {
-                    totalDataLen += H265Packet.RTP_HEVC_DONL_FIELD_SIZE;
+        int curDon = -1;
+
+        while (offset < packetLength) {
+            // DONL of the first unit, DOND of the others (DON = prev DON + DOND + 1)
+            if (h265Packet.isDonlUsing()) {
+                if (curDon < 0) {
+                    if (offset + H265Packet.RTP_HEVC_DONL_FIELD_SIZE > packetLength) {
+                        break;
+                    }
+                    curDon = buffer.getShort(offset) & 0xFFFF;
+                    offset += H265Packet.RTP_HEVC_DONL_FIELD_SIZE;
+                } else {
+                    curDon = (curDon + (buffer.get(offset) & 0xff) + 1) & 0xFFFF;
+                    offset += H265Packet.RTP_HEVC_DOND_FIELD_SIZE;
                 }
             }
 
-            curNaluSize = getNaluSize(rawPayload, totalDataLen);
-            if (curNaluSize <= 0) {
+            if (offset + H265Packet.RTP_HEVC_AP_NALU_LENGTH_FIELD_SIZE > packetLength) {
                 break;
             }
-            totalDataLen += H265Packet.RTP_HEVC_AP_NALU_LENGTH_FIELD_SIZE;
-            if (h265Packet.isDondUsing()) {
-                totalDataLen += H265Packet.RTP_HEVC_DOND_FIELD_SIZE;
+            curNaluSize = buffer.getShort(offset) & 0xFFFF;
+            offset += H265Packet.RTP_HEVC_AP_NALU_LENGTH_FIELD_SIZE;
+            if (curNaluSize <= 0 || offset + curNaluSize > packetLength) {
+                logger.warn("Wrong NALU size. (naluSize={}, remaining={})", curNaluSize, packetLength - offset);
+                break;
             }
 
-            // 3) Divide AP Packet & Add to the list
-            byte[] curNalu = new byte[RtpPacket.FIXED_HEADER_SIZE + curNaluSize + H265Packet.RTP_HEVC_AP_NALU_LENGTH_FIELD_SIZE];
-
-            // TODO: Set RTP Header
-            System.arraycopy(rtpHeader, 0, curNalu, 0, RtpPacket.FIXED_HEADER_SIZE); // [RTP Header]
-            System.arraycopy(rawPayload, totalDataLen, curNalu, RtpPacket.FIXED_HEADER_SIZE, curNaluSize); // [NALU Payload (hdr + body)]
-
-            logger.debug("\tNALU len: {} (bytes), remaining: {} (bytes)", totalDataLen, (rawPayload.length - totalDataLen));
-            logger.debug("\tCur NALU: (payloadLen={}) {}", curNaluSize, curNalu);
-            logger.debug("---------------------------");
-
-            H265Packet curH265Packet = new H265Packet(curNalu, RtpPacket.RTP_PACKET_MAX_SIZE, true); // [RTP Header] + [NALU Hdr + NALU Body]
-            if (curH265Packet.getType() == H265Packet.RTP_HEVC_TYPE_AP) {
+            // 3) Add the view to the list
+            H265NaluView view = nextApView();
+            view.set(buffer, offset, curNaluSize, curDon);
+            if (view.getType() == H265Packet.RTP_HEVC_TYPE_AP || view.getType() == H265Packet.RTP_HEVC_TYPE_FU) {
                 logger.warn("Nested. Fail to unpack AP.");
+                apViewList.clear();
                 return null;
             }
+            if (logger.isDebugEnabled()) {
+                logger.debug("\tCur NALU: {}, remaining: {} (bytes)", view, packetLength - offset - curNaluSize);
+            }
 
-            naluList.add(curH265Packet);
-            totalDataLen += curNaluSize;
+            offset += curNaluSize;
         }
 
-        if (naluList.isEmpty() || totalDataLen == 0) {
-            logger.info("Fail to unpack AP. (listSize={}, totalLen={})", naluList.size(), totalDataLen);
-        } else {
-            logger.info("Success to unpack AP. (listSize={}, totalLen={})", naluList.size(), totalDataLen);
+        if (apViewList.isEmpty()) {
+            logger.info("Fail to unpack AP. (listSize={}, totalLen={})", apViewList.size(), offset);
+        } else if (logger.isDebugEnabled()) {
+            logger.debug("Success to unpack AP. (listSize={}, totalLen={})", apViewList.size(), offset);
         }
 
-        return naluList;
+        return apViewList;
+    }
+
+    private H265NaluView nextApView () {
+        int index = apViewList.size();
+        if (index == apViewPool.size()) {
+            apViewPool.add(new H265NaluView());
+        }
+        H265NaluView view = apViewPool.get(index);
+        apViewList.add(view);
+        return view;
     }
 
     ////////////////////////////////////////////////////////////////////
@@ -289,137 +511,181 @@ public class H265Unpacker {
      */
 
     /**
-     * 1. Remove the 12 bytes RTP header and 3 bytes of FU header.
-     * 2. Combine all the FU packets till the end packet is found/received to from a Video Encoded frame.
-     * 3. The Combined all packets (if multiple packets form a frame) to form Video Frame, it can be feed to the decoder.
+     * 1. Remove the 12 bytes RTP header (except the first FU) and 3 bytes of FU header (+ DONL of the first FU).
+     * 2. Rebuild the NAL unit header from PayloadHdr (F, LayerId, TID) and FU header (FuType).
+     * 3. Append the FU payloads (START > MIDDLE * n > END) to one reassembly buffer.
+     * 4. The reassembled NAL unit ([RTP Header] + [NALU Hdr + NALU Body]) is returned on the END FU.
+     *      It refers to the reassembly buffer, and is valid until the next START FU.
+     *      (In the interleaved mode, it's copied to a pooled packet, and the reassembly buffer is reused.)
      */
     private H265Packet unPackFu (H265Packet h265Packet) {
-        logger.info("Starting to unpack FU...");
+        logger.debug("Starting to unpack FU...");
 
-        // 1) Check FU Packet Payload (hdr + body) null or length
-        byte[] rawPayload = h265Packet.getRawData();
-        if (rawPayload == null || rawPayload.length == 0) {
-            logger.warn("Payload is null. Fail to unpack FU.");
-            return null;
-        }
-        if (rawPayload.length <= H265Packet.RTP_HEVC_PAYLOAD_HEADER_SIZE) {
-            logger.warn("Payload is too short. Fail to unpack FU.");
+        // 1) Check FU Packet Payload (hdr + body) length
+        ByteBuffer buffer = h265Packet.getBuffer();
+        int packetLength = h265Packet.getLength();
+        int totalHdrSize = RtpPacket.FIXED_HEADER_SIZE + H265Packet.RTP_HEVC_PAYLOAD_HEADER_SIZE + H265Packet.RTP_HEVC_FU_HEADER_SIZE;
+        if (packetLength <= totalHdrSize) {
+            logger.warn("Payload is too short. Fail to unpack FU. (packetLen={})", packetLength);
+            metrics.recordFuAborted(FUAbortReason.INVALID);
             return null;
         }
 
         // 2) Ready for unpacking FU Payload
-        int packetLength = h265Packet.getLength();
-        int payloadLength = packetLength - RtpPacket.FIXED_HEADER_SIZE;
-        byte[] rtpHdrNalu = new byte[RtpPacket.FIXED_HEADER_SIZE];
-        byte[] rtpPayloadNalu = new byte[payloadLength];
-        System.arraycopy(rawPayload, 0, rtpHdrNalu, 0, RtpPacket.FIXED_HEADER_SIZE);
-        System.arraycopy(rawPayload, RtpPacket.FIXED_HEADER_SIZE, rtpPayloadNalu, 0, payloadLength);
-
-        int totalHdrSize = H265Packet.RTP_HEVC_PAYLOAD_HEADER_SIZE + H265Packet.RTP_HEVC_FU_HEADER_SIZE;
-        if (h265Packet.isDonlUsing()) {
-            totalHdrSize += H265Packet.RTP_HEVC_DONL_FIELD_SIZE;
-        }
-
-        byte[] header = new byte[totalHdrSize];
-        System.arraycopy(rtpPayloadNalu, 0, header, 0, totalHdrSize);
-        byte fuHeader = header[2];
-        int type = fuHeader & 0b00111111; // expected: NALU Type
-        int start = fuHeader & 0b10000000; // expected: 128 > S = 1
-        int end = fuHeader & 0b01000000; // expected: 64 > E = 1
+        int type = h265Packet.getFuType(); // expected: NALU Type
+        boolean start = h265Packet.isFuStart(); // S = 1
+        boolean end = h265Packet.isFuEnd(); // E = 1
 
         if (type == H265Packet.RTP_HEVC_TYPE_FU) {
             logger.warn("Nested. Fail to unpack FU.");
+            metrics.recordFuAborted(FUAbortReason.INVALID);
             return null;
         }
 
         // 3) Check FU Position
         FUPosition fuPosition;
-        if (start == 128) {
-            if (end == 64) {
+        if (start) {
+            if (end) {
                 logger.warn("FU Packet START & END bit is 1. Fail to process FU unpacking.");
-                logger.debug("START: {}, END: {}, fuHeader: {}", start, end, bytesToBinaryString(fuHeader));
+                logger.debug("fuHeader: {}", bytesToBinaryString((byte) h265Packet.getFuHeader()));
+                metrics.recordFuAborted(FUAbortReason.INVALID);
                 return null;
             } else {
                 fuPosition = FUPosition.START;
             }
-        } else if (end == 0) {
+        } else if (!end) {
             fuPosition = FUPosition.MIDDLE;
         } else {
             fuPosition = FUPosition.END;
         }
 
-        if (curFuPosition == FUPosition.NONE) {
-            if (fuPosition == FUPosition.START) {
-                curFuPosition = fuPosition;
-            } else {
-                logger.warn("unPackFu: Wrong position. Not started yet. (expected: START) (decoder's FuPosition: {}, curFuPosition: {})",
+        if (fuPosition == FUPosition.START) {
+            if (curFuPosition != FUPosition.NONE) {
+                logger.warn("unPackFu: Unexpected position. (expected: MIDDLE or END) (decoder's FuPosition: {}, curFuPosition: {})",
                         getFuPositionStr(curFuPosition), getFuPositionStr(fuPosition));
+                metrics.recordFuAborted(FUAbortReason.UNEXPECTED_START);
+                resetFu();
                 return null;
             }
-        } else {
-            if (curFuPosition == FUPosition.START) {
-                if (fuPosition == FUPosition.MIDDLE) {
-                    curFuPosition = fuPosition;
-                } else {
-                    fuList.clear();
-                    curFuPosition = FUPosition.NONE;
-                    logger.warn("unPackFu:  Unexpected position. (expected: MIDDLE) (decoder's FuPosition: {}, curFuPosition: {})",
-                            getFuPositionStr(curFuPosition), getFuPositionStr(fuPosition));
-                    return null;
-                }
-            } else if (curFuPosition == FUPosition.MIDDLE) {
-                if (fuPosition == FUPosition.END) {
-                    curFuPosition = fuPosition;
-                } else {
-                    fuList.clear();
-                    curFuPosition = FUPosition.NONE;
-                    logger.warn("unPackFu:  Unexpected position. (expected: END) (decoder's FuPosition: {}, curFuPosition: {})",
-                            getFuPositionStr(curFuPosition), getFuPositionStr(fuPosition));
-                    return null;
-                }
-            }
+        } else if (curFuPosition == FUPosition.NONE) {
+            logger.warn("unPackFu: Wrong position. Not started yet. (expected: START) (decoder's FuPosition: {}, curFuPosition: {})",
+                    getFuPositionStr(curFuPosition), getFuPositionStr(fuPosition));
+            metrics.recordFuAborted(FUAbortReason.MISSING_START);
+            return null;
+        } else if (type != fuType) {
+            logger.warn("unPackFu: FU type is changed. (expected: {}, type: {})", fuType, type);
+            metrics.recordFuAborted(FUAbortReason.TYPE_CHANGED);
+            resetFu();
+            return null;
         }
+        curFuPosition = fuPosition;
         logger.debug("Cur FU Position : {}", getFuPositionStr(curFuPosition));
 
-        // 4) Aggregate the FUs
-        byte[] fuPayload = new byte[payloadLength - totalHdrSize];
-        System.arraycopy(rtpPayloadNalu, totalHdrSize, fuPayload, 0, payloadLength - totalHdrSize);
-
-        if (curFuPosition == FUPosition.END) {
-            int totalLength = 0;
-            for (H265Packet fuPacket : fuList) {
-                totalLength += fuPacket.getLength();
+        // 4) Start the NAL unit : [RTP Header] + [NALU Hdr]
+        if (fuPosition == FUPosition.START) {
+            // DONL is only in the first FU
+            if (h265Packet.isDonlUsing()) {
+                if (packetLength <= totalHdrSize + H265Packet.RTP_HEVC_DONL_FIELD_SIZE) {
+                    resetFu();
+                    logger.warn("Payload is too short. Fail to unpack DONL of FU.");
+                    metrics.recordFuAborted(FUAbortReason.INVALID);
+                    return null;
+                }
+                fuDon = buffer.getShort(totalHdrSize) & 0xFFFF;
+                totalHdrSize += H265Packet.RTP_HEVC_DONL_FIELD_SIZE;
             }
 
-            byte[] totalData = new byte[totalLength];
-            int accumLength = 0;
-            for (H265Packet fuPacket : fuList) {
-                byte[] data = fuPacket.getRawData();
-                System.arraycopy(data, 0, totalData, accumLength, data.length);
-                accumLength += data.length;
+            fuType = type;
+            if (fuBuffer == null) {
+                fuBuffer = allocateFuBuffer(fuBufferCapacity);
+                fuBufferPool = bufferPool;
+            }
+            fuBuffer.clear();
+            for (int i = 0; i < RtpPacket.FIXED_HEADER_SIZE; i++) {
+                fuBuffer.put(buffer.get(i));
             }
+            fuBuffer.put((byte) ((buffer.get(RtpPacket.FIXED_HEADER_SIZE) & 0b10000001) | (type << 1)));
+            fuBuffer.put(buffer.get(RtpPacket.FIXED_HEADER_SIZE + 1));
+        }
+
+        // 5) Append FU payload
+        ensureFuCapacity(packetLength - totalHdrSize);
+        ByteBuffer fuPayload = buffer.duplicate();
+        fuPayload.limit(packetLength);
+        fuPayload.position(totalHdrSize);
+        fuBuffer.put(fuPayload);
 
-            logger.debug("Total Aggregated FU: {},  len: {}", totalData, totalData.length);
-            H265Packet totalPacket = new H265Packet(totalData, RtpPacket.RTP_PACKET_MAX_SIZE, true);
-            fuList.clear();
-            curFuPosition = FUPosition.NONE;
-            logger.info("Success to unpack FU.");
-            return totalPacket;
-        } else if (curFuPosition == FUPosition.START) {
-            byte[] rtpPacketExceptFuHeader = new byte[packetLength - totalHdrSize];
-            System.arraycopy(rtpHdrNalu, 0, rtpPacketExceptFuHeader, 0, RtpPacket.FIXED_HEADER_SIZE);
-            System.arraycopy(fuPayload, 0, rtpPacketExceptFuHeader, RtpPacket.FIXED_HEADER_SIZE, payloadLength - 3);
-
-            H265Packet fuPacket = new H265Packet(rtpPacketExceptFuHeader, RtpPacket.RTP_PACKET_MAX_SIZE, true);
-            this.fuList.add(fuPacket);
+        if (fuPosition != FUPosition.END) {
+            return h265Packet;
+        }
+
+        // 6) Complete the NAL unit (Marker bit of the END FU)
+        fuBuffer.put(1, (byte) ((fuBuffer.get(1) & 0x7f) | (buffer.get(1) & 0x80)));
+        fuBuffer.flip();
+
+        H265Packet totalPacket;
+        if (donReorderBuffer != null) {
+            // Kept by the reorder buffer : Copied out of the reassembly buffer
+            totalPacket = new H265Packet(fuBuffer.remaining(), bufferPool);
+            ByteBuffer dst = totalPacket.getBuffer();
+            dst.clear();
+            dst.put(fuBuffer);
+            dst.flip();
         } else {
-            H265Packet fuPacket = new H265Packet(fuPayload, RtpPacket.RTP_PACKET_MAX_SIZE, true);
-            this.fuList.add(fuPacket);
+            totalPacket = new H265Packet(fuBuffer);
+        }
+        totalPacket.setType(fuType);
+        totalPacket.setDon(fuDon);
+        curFuPosition = FUPosition.NONE;
+        fuType = -1;
+        fuDon = -1;
+        metrics.recordFuCompleted(totalPacket.getLength() - RtpPacket.FIXED_HEADER_SIZE);
+
+        if (logger.isDebugEnabled()) {
+            logger.debug("Success to unpack FU. (len={})", totalPacket.getLength());
+        }
+        return totalPacket;
+    }
+
+    private void resetFu () {
+        curFuPosition = FUPosition.NONE;
+        fuType = -1;
+        fuDon = -1;
+        if (fuBuffer != null) {
+            fuBuffer.clear();
+        }
+    }
+
+    private void ensureFuCapacity (int length) {
+        if (fuBuffer.remaining() >= length) {
+            return;
         }
 
-        return h265Packet;
+        int capacity = fuBuffer.capacity();
+        while (capacity - fuBuffer.position() < length) {
+            capacity *= 2;
+        }
+        fuBufferCapacity = capacity;
+
+        ByteBuffer newBuffer = allocateFuBuffer(capacity);
+        fuBuffer.flip();
+        newBuffer.put(fuBuffer);
+        releaseFuBuffer();
+        fuBuffer = newBuffer;
+        fuBufferPool = bufferPool;
     }
 
+    private ByteBuffer allocateFuBuffer (int capacity) {
+        return bufferPool != null ? bufferPool.acquire(capacity) : ByteBuffer.allocate(capacity);
+    }
+
+    private void releaseFuBuffer () {
+        if (fuBuffer != null && fuBufferPool != null) {
+            fuBufferPool.release(fuBuffer);
+        }
+        fuBuffer = null;
+        fuBufferPool = null;
+    }
 
     ////////////////////////////////////////////////////////////////////
     // Util Functions
@@ -436,12 +702,6 @@ public class H265Unpacker {
         }
     }
 
-    private int getNaluSize (byte[] buf, int startIndex) {
-        byte[] lenBytes = new byte[2];
-        System.arraycopy(buf, startIndex, lenBytes, 0, 2);
-        return (lenBytes[0] << 8) + (lenBytes[1] & 0xff);
-    }
-
     private static String bytesToBinaryString(Byte b) {
         StringBuilder builder = new StringBuilder();
         for (int i = 0; i < 8; i++) {
@@ -0,0 +1,314 @@
+package media.core.rtp.h265.base;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.LongFunction;
+
+/**
+ * Concurrent map with primitive long keys (no Long boxing)
+ * - Keys are spread to striped segments. Each segment has an open addressing table (linear probing).
+ * - Reads are lock-free : A segment table is never modified after it's published (volatile),
+ *      so a reader always sees a consistent table.
+ * - Writes lock only the segment, copy the table and publish the new one. (Copy-on-write)
+ *      It's for read-mostly maps. (ex. SSRC > stream, streams are added/removed rarely)
+ * - null values are not allowed.
+ */
+public class ConcurrentLongObjectMap<V> {
+
+    private static final int DEFAULT_SEGMENT_COUNT = 16;
+    private static final int MIN_TABLE_SIZE = 4;
+
+    private final Segment<V>[] segments;
+    private final int segmentMask;
+
+    ////////////////////////////////////////////////////////////////////
+
+    public ConcurrentLongObjectMap () {
+        this(DEFAULT_SEGMENT_COUNT);
+    }
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public ConcurrentLongObjectMap (int concurrencyLevel) {
+        int segmentCount = 1;
+        while (segmentCount < concurrencyLevel) {
+            segmentCount <<= 1;
+        }
+
+        this.segments = new Segment[segmentCount];
+        for (int i = 0; i < segmentCount; i++) {
+            segments[i] = new Segment<>();
+        }
+        this.segmentMask = segmentCount - 1;
+    }
+
+    ////////////////////////////////////////////////////////////////////
+
+    public V get (long key) {
+        int hash = hash(key);
+        return segmentFor(hash).get(key, hash);
+    }
+
+    public boolean containsKey (long key) {
+        return get(key) != null;
+    }
+
+    /**
+     * @return Previous value, or null
+     */
+    public V put (long key, V value) {
+        if (value == null) {
+            throw new NullPointerException("value");
+        }
+        int hash = hash(key);
+        return segmentFor(hash).put(key, hash, value, false);
+    }
+
+    /**
+     * @return Current value if it exists (the value is not put), or null
+     */
+    public V putIfAbsent (long key, V value) {
+        if (value == null) {
+            throw new NullPointerException("value");
+        }
+        int hash = hash(key);
+        return segmentFor(hash).put(key, hash, value, true);
+    }
+
+    /**
+     * The mapping function is called once at most for a key, under the segment lock.
+     * @return Current or created value
+     */
+    public V computeIfAbsent (long key, LongFunction<? extends V> mappingFunction) {
+        int hash = hash(key);
+        Segment<V> segment = segmentFor(hash);
+        V value = segment.get(key, hash);
+        if (value != null) {
+            return value;
+        }
+        return segment.computeIfAbsent(key, hash, mappingFunction);
+    }
+
+    /**
+     * @return Removed value, or null
+     */
+    public V remove (long key) {
+        int hash = hash(key);
+        return segmentFor(hash).remove(key, hash, null);
+    }
+
+    /**
+     * Removes the entry only if the key is mapped to the value. (Same instance)
+     * @return true if the entry is removed
+     */
+    public boolean remove (long key, V value) {
+        if (value == null) {
+            return false;
+        }
+        int hash = hash(key);
+        return segmentFor(hash).remove(key, hash, value) != null;
+    }
+
+    public int size () {
+        int size = 0;
+        for (Segment<V> segment : segments) {
+            size += segment.table.size;
+        }
+        return size;
+    }
+
+    public boolean isEmpty () {
+        return size() == 0;
+    }
+
+    /**
+     * @return Snapshot of the keys
+     */
+    public long[] keys () {
+        List<Table> tables = new ArrayList<>(segments.length);
+        int size = 0;
+        for (Segment<V> segment : segments) {
+            Table table = segment.table;
+            tables.add(table);
+            size += table.size;
+        }
+
+        long[] keys = new long[size];
+        int index = 0;
+        for (Table table : tables) {
+            for (int i = 0; i < table.keys.length && index < size; i++) {
+                if (table.values[i] != null) {
+                    keys[index++] = table.keys[i];
+                }
+            }
+        }
+        return index == size ? keys : Arrays.copyOf(keys, index);
+    }
+
+    /**
+     * @return Snapshot of the values
+     */
+    @SuppressWarnings("unchecked")
+    public List<V> values () {
+        List<V> values = new ArrayList<>();
+        for (Segment<V> segment : segments) {
+            Table table = segment.table;
+            for (Object value : table.values) {
+                if (value != null) {
+                    values.add((V) value);
+                }
+            }
+        }
+        return values;
+    }
+
+    public void clear () {
+        for (Segment<V> segment : segments) {
+            segment.clear();
+        }
+    }
+
+    ////////////////////////////////////////////////////////////////////
+
+    private Segment<V> segmentFor (int hash) {
+        return segments[(hash >>> 16) & segmentMask];
+    }
+
+    private static int hash (long key) {
+        // Murmur3 fmix64
+        key ^= key >>> 33;
+        key *= 0xff51afd7ed558ccdL;
+        key ^= key >>> 33;
+        key *= 0xc4ceb9fe1a85ec53L;
+        key ^= key >>> 33;
+        return (int) key;
+    }
+
+    ////////////////////////////////////////////////////////////////////
+
+    private static final class Table {
+
+        final long[] keys;
+        final Object[] values; // null : Empty slot
+        final int size;
+
+        Table (int capacity, int size) {
+            this.keys = new long[capacity];
+            this.values = new Object[capacity];
+            this.size = size;
+        }
+
+        int indexOf (long key, int hash) {
+            int mask = keys.length - 1;
+            for (int i = hash & mask; ; i = (i + 1) & mask) {
+                if (values[i] == null) {
+                    return -(i + 1);
+                }
+                if (keys[i] == key) {
+                    return i;
+                }
+            }
+        }
+
+    }
+
+    private static final class Segment<V> {
+
+        volatile Table table = new Table(MIN_TABLE_SIZE, 0);
+
+        @SuppressWarnings("unchecked")
+        V get (long key, int hash) {
+            Table t = table;
+            int index = t.indexOf(key, hash);
+            return index >= 0 ? (V) t.values[index] : null;
+        }
+
+        @SuppressWarnings("unchecked")
+        synchronized V put (long key, int hash, V value, boolean onlyIfAbsent) {
+            Table t = table;
+            int index = t.indexOf(key, hash);
+            if (index >= 0) {
+                V prev = (V) t.values[index];
+                if (!onlyIfAbsent) {
+                    Table newTable = copy(t, t.keys.length, t.size, Long.MIN_VALUE, false);
+                    newTable.values[newTable.indexOf(key, hash)] = value;
+                    table = newTable;
+                }
+                return prev;
+            }
+
+            insert(t, key, hash, value);
+            return null;
+        }
+
+        @SuppressWarnings("unchecked")
+        synchronized V computeIfAbsent (long key, int hash, LongFunction<? extends V> mappingFunction) {
+            Table t = table;
+            int index = t.indexOf(key, hash);
+            if (index >= 0) {
+                return (V) t.values[index];
+            }
+
+            V value = mappingFunction.apply(key);
+            if (value != null) {
+                insert(t, key, hash, value);
+            }
+            return value;
+        }
+
+        /**
+         * @param expected Value to remove only, or null to remove any value
+         */
+        @SuppressWarnings("unchecked")
+        synchronized V remove (long key, int hash, V expected) {
+            Table t = table;
+            int index = t.indexOf(key, hash);
+            if (index < 0 || (expected != null && t.values[index] != expected)) {
+                return null;
+            }
+
+            V prev = (V) t.values[index];
+            int capacity = t.keys.length;
+            while (capacity > MIN_TABLE_SIZE && (t.size - 1) * 8 < capacity) {
+                capacity >>= 1;
+            }
+            table = copy(t, capacity, t.size - 1, key, true);
+            return prev;
+        }
+
+        synchronized void clear () {
+            table = new Table(MIN_TABLE_SIZE, 0);
+        }
+
+        private void insert (Table t, long key, int hash, V value) {
+            int capacity = t.keys.length;
+            while ((t.size + 1) * 2 > capacity) {
+                capacity <<= 1;
+            }
+            Table newTable = copy(t, capacity, t.size + 1, Long.MIN_VALUE, false);
+            int slot = -(newTable.indexOf(key, hash) + 1);
+            newTable.keys[slot] = key;
+            newTable.values[slot] = value;
+            table = newTable;
+        }
+
+        /**
+         * Rehashes all entries of the table to a new table (except the excluded key).
+         */
+        private static Table copy (Table t, int capacity, int size, long excludedKey, boolean exclude) {
+            Table newTable = new Table(capacity, size);
+            for (int i = 0; i < t.keys.length; i++) {
+                Object value = t.values[i];
+                if (value == null || (exclude && t.keys[i] == excludedKey)) {
+                    continue;
+                }
+                int slot = -(newTable.indexOf(t.keys[i], hash(t.keys[i])) + 1);
+                newTable.keys[slot] = t.keys[i];
+                newTable.values[slot] = value;
+            }
+            return newTable;
+        }
+
+    }
+
+}
@@ -0,0 +1,14 @@
+package media.core.rtp.h265.base;
+
+/**
+ * Reason of a dropped FU train (NAL unit being reassembled)
+ * - INVALID : S and E are both set, nested FU, or too short
+ * - UNEXPECTED_START : START is received before END of the previous FU
+ * - MISSING_START : MIDDLE or END is received without START
+ * - TYPE_CHANGED : FuType is changed in the middle of the FU
+ * - INTERRUPTED : Another packet is received in the middle of the FU (RFC 7798 4.4.3)
+ * - RESET : Dropped by H265Unpacker.reset() (ex. Packets are lost)
+ */
+public enum FUAbortReason {
+    INVALID, UNEXPECTED_START, MISSING_START, TYPE_CHANGED, INTERRUPTED, RESET
+}
@@ -0,0 +1,12 @@
+package media.core.rtp.h265.base;
+
+import media.core.rtp.h265.H265AccessUnit;
+
+public interface H265AccessUnitListener {
+
+    /**
+     * @param accessUnit Valid only in this call (The access unit is reused)
+     */
+    void onAccessUnit (H265AccessUnit accessUnit);
+
+}
@@ -0,0 +1,22 @@
+package media.core.rtp.h265.base;
+
+import java.nio.ByteBuffer;
+
+public interface H265Fmp4Listener {
+
+    /**
+     * Called before the first fragment and again when the parameter sets change. (New hvcC)
+     * @param initSegment ftyp + moov (from position to limit). Valid only in this call (The buffer is reused)
+     */
+    void onInitSegment (ByteBuffer initSegment);
+
+    /**
+     * Called for each fragment (One IRAP and the pictures until the next IRAP)
+     * @param fragment moof + mdat (from position to limit). Valid only in this call (The buffer is reused)
+     * @param sequenceNumber Sequence number of the fragment (mfhd, from 1)
+     * @param baseMediaDecodeTime Decode time of the first sample (tfdt, 90 kHz)
+     * @param duration Duration of the fragment (90 kHz)
+     */
+    void onFragment (ByteBuffer fragment, long sequenceNumber, long baseMediaDecodeTime, long duration);
+
+}
@@ -0,0 +1,12 @@
+package media.core.rtp.h265.base;
+
+public interface H265GapListener {
+
+    /**
+     * Called when packets are regarded as lost.
+     * @param firstSeqNumber Extended sequence number of the first lost packet
+     * @param count The number of lost packets
+     */
+    void onGap (long firstSeqNumber, int count);
+
+}
@@ -0,0 +1,64 @@
+package media.core.rtp.h265.base;
+
+import java.util.Map;
+
+/**
+ * JMX view of H265Metrics
+ * - Counters are cumulative since the creation (or resetCounters()).
+ */
+public interface H265MetricsMXBean {
+
+    long getPacketsIn ();
+
+    long getPacketsOut ();
+
+    /**
+     * @return Received packets indexed by the type of PayloadHdr (0 ~ 63, AP = 48, FU = 49, PACI = 50)
+     */
+    long[] getPacketsInByType ();
+
+    /**
+     * @return Sent packets indexed by the type of PayloadHdr
+     */
+    long[] getPacketsOutByType ();
+
+    long getApPacked ();
+
+    long getApUnpacked ();
+
+    /**
+     * @return Average number of aggregation units per packed AP
+     */
+    double getAveragePackedApUnits ();
+
+    /**
+     * @return Average size (bytes) of packed APs
+     */
+    double getAveragePackedApSize ();
+
+    double getAverageUnpackedApUnits ();
+
+    long getApOversized ();
+
+    long getFuCompleted ();
+
+    long getFuAborted ();
+
+    Map<String, Long> getFuAbortedByReason ();
+
+    /**
+     * @return Ratio of aborted FU trains (0.0 ~ 1.0)
+     */
+    double getFuAbortRatio ();
+
+    long getBytesReassembled ();
+
+    long getPacketsLost ();
+
+    long getPacketsLate ();
+
+    long getPacketsDuplicated ();
+
+    void resetCounters ();
+
+}
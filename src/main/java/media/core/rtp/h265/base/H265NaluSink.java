@@ -0,0 +1,15 @@
+package media.core.rtp.h265.base;
+
+import media.core.rtp.h265.H265NaluView;
+
+public interface H265NaluSink {
+
+    /**
+     * Called for each unpacked NAL unit. (Single NAL Unit packet, AP, reassembled FU)
+     * @param nalu View of the NAL unit (buffer, offset, length, header, DON). Valid only in this call (The view is reused)
+     * @param timestamp RTP timestamp
+     * @param marker true if it's the last NAL unit of the packet that has the marker bit
+     */
+    void onNalu (H265NaluView nalu, long timestamp, boolean marker);
+
+}
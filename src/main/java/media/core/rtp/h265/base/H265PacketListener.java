@@ -0,0 +1,9 @@
+package media.core.rtp.h265.base;
+
+import media.core.rtp.h265.H265Packet;
+
+public interface H265PacketListener {
+
+    void onPacket (H265Packet h265Packet);
+
+}
@@ -0,0 +1,12 @@
+package media.core.rtp.h265.base;
+
+import media.core.rtp.h265.H265Unpacker;
+
+public interface H265UnpackerFactory {
+
+    /**
+     * Creates the depacketizer of a new stream. (ex. setMaxDonDiff(), setParameterSetCache())
+     */
+    H265Unpacker create (long ssrc);
+
+}
@@ -0,0 +1,173 @@
+package media.core.rtp.h265.base;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Map with primitive long keys (no Long boxing) for a single thread
+ * - Open addressing table (linear probing), removal by backward shift (no tombstones).
+ * - Not thread-safe. (ex. Streams owned by one shard thread of H265ShardedEngine)
+ *      Use ConcurrentLongObjectMap for the maps shared by threads.
+ * - null values are not allowed.
+ */
+public class LongObjectMap<V> {
+
+    private static final int MIN_TABLE_SIZE = 16;
+
+    private long[] keys;
+    private Object[] values; // null : Empty slot
+    private int size = 0;
+
+    ////////////////////////////////////////////////////////////////////
+
+    public LongObjectMap () {
+        this(MIN_TABLE_SIZE);
+    }
+
+    public LongObjectMap (int expectedSize) {
+        int capacity = MIN_TABLE_SIZE;
+        while (capacity < expectedSize * 2) {
+            capacity <<= 1;
+        }
+        this.keys = new long[capacity];
+        this.values = new Object[capacity];
+    }
+
+    ////////////////////////////////////////////////////////////////////
+
+    @SuppressWarnings("unchecked")
+    public V get (long key) {
+        int mask = keys.length - 1;
+        for (int i = hash(key) & mask; ; i = (i + 1) & mask) {
+            Object value = values[i];
+            if (value == null) {
+                return null;
+            }
+            if (keys[i] == key) {
+                return (V) value;
+            }
+        }
+    }
+
+    /**
+     * @return Previous value, or null
+     */
+    @SuppressWarnings("unchecked")
+    public V put (long key, V value) {
+        if (value == null) {
+            throw new NullPointerException("value");
+        }
+
+        int mask = keys.length - 1;
+        int i = hash(key) & mask;
+        for (; values[i] != null; i = (i + 1) & mask) {
+            if (keys[i] == key) {
+                V prev = (V) values[i];
+                values[i] = value;
+                return prev;
+            }
+        }
+
+        keys[i] = key;
+        values[i] = value;
+        if (++size * 2 > keys.length) {
+            resize(keys.length << 1);
+        }
+        return null;
+    }
+
+    /**
+     * @return Removed value, or null
+     */
+    @SuppressWarnings("unchecked")
+    public V remove (long key) {
+        int mask = keys.length - 1;
+        int i = hash(key) & mask;
+        for (; values[i] != null; i = (i + 1) & mask) {
+            if (keys[i] == key) {
+                break;
+            }
+        }
+        if (values[i] == null) {
+            return null;
+        }
+
+        V prev = (V) values[i];
+        values[i] = null;
+        size--;
+
+        // Backward shift : Moves the following entries of the cluster to the hole if their probe passes it
+        for (int j = (i + 1) & mask; values[j] != null; j = (j + 1) & mask) {
+            int home = hash(keys[j]) & mask;
+            if (((j - home) & mask) >= ((j - i) & mask)) {
+                keys[i] = keys[j];
+                values[i] = values[j];
+                values[j] = null;
+                i = j;
+            }
+        }
+        return prev;
+    }
+
+    public boolean containsKey (long key) {
+        return get(key) != null;
+    }
+
+    public int size () {
+        return size;
+    }
+
+    public boolean isEmpty () {
+        return size == 0;
+    }
+
+    /**
+     * Adds the values to the list. (No allocation if the list has the capacity)
+     */
+    @SuppressWarnings("unchecked")
+    public void values (List<V> out) {
+        for (Object value : values) {
+            if (value != null) {
+                out.add((V) value);
+            }
+        }
+    }
+
+    public void clear () {
+        Arrays.fill(values, null);
+        size = 0;
+    }
+
+    ////////////////////////////////////////////////////////////////////
+
+    private void resize (int capacity) {
+        long[] oldKeys = keys;
+        Object[] oldValues = values;
+        keys = new long[capacity];
+        values = new Object[capacity];
+
+        int mask = capacity - 1;
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldValues[i] == null) {
+                continue;
+            }
+            int j = hash(oldKeys[i]) & mask;
+            while (values[j] != null) {
+                j = (j + 1) & mask;
+            }
+            keys[j] = oldKeys[i];
+            values[j] = oldValues[i];
+        }
+    }
+
+    private static int hash (long key) {
+        // Murmur3 fmix64
+        key ^= key >>> 33;
+        key *= 0xff51afd7ed558ccdL;
+        key ^= key >>> 33;
+        key *= 0xc4ceb9fe1a85ec53L;
+        key ^= key >>> 33;
+        return (int) key;
+    }
+
+}
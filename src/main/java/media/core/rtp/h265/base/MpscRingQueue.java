@@ -0,0 +1,132 @@
+package media.core.rtp.h265.base;
+
+import java.util.Collection;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.Consumer;
+
+/**
+ * Multi-producer single-consumer ring queue (RingQueue)
+ * - Producers claim a slot by a CAS on the tail, then publish the element to the slot by an ordered store.
+ *      The consumer never writes the tail, and the producers never write the head.
+ * - The consumer takes the slots in order until it finds an empty slot.
+ *      A slot that is claimed but not published yet ends the drain, so it's taken by the next call. (No wait for the producer)
+ * - Exactly one consumer thread. (ex. Receiver threads to the first stage of H265Pipeline, packets to a shard of H265ShardedEngine)
+ */
+public class MpscRingQueue<E> implements RingQueue<E> {
+
+    private final AtomicReferenceArray<E> buffer;
+    private final int capacity;
+    private final int mask;
+
+    private final PaddedSequence head = new PaddedSequence(); // Consumer index
+    private final PaddedSequence tail = new PaddedSequence(); // Next slot to claim
+
+    ////////////////////////////////////////////////////////////////////
+
+    /**
+     * @param capacity Max number of elements (rounded up to a power of 2)
+     */
+    public MpscRingQueue (int capacity) {
+        if (capacity <= 0 || capacity > (1 << 30)) {
+            throw new IllegalArgumentException("capacity must be in (0, 2^30]. (" + capacity + ")");
+        }
+        int size = 1;
+        while (size < capacity) {
+            size <<= 1;
+        }
+
+        this.buffer = new AtomicReferenceArray<>(size);
+        this.capacity = size;
+        this.mask = size - 1;
+    }
+
+    ////////////////////////////////////////////////////////////////////
+
+    @Override
+    public boolean offer (E e) {
+        if (e == null) {
+            throw new NullPointerException("e");
+        }
+
+        long t;
+        do {
+            t = tail.get();
+            if (t - head.get() >= capacity) {
+                return false;
+            }
+        } while (!tail.compareAndSet(t, t + 1));
+
+        // The consumer has cleared the slot before it has moved the head over it
+        buffer.lazySet((int) t & mask, e);
+        return true;
+    }
+
+    @Override
+    public E poll () {
+        long h = head.get();
+        int index = (int) h & mask;
+        E e = buffer.get(index);
+        if (e == null) {
+            return null; // Empty, or claimed but not published yet
+        }
+
+        buffer.lazySet(index, null);
+        head.lazySet(h + 1);
+        return e;
+    }
+
+    @Override
+    public int drain (Consumer<? super E> handler, int limit) {
+        long h = head.get();
+        int drained = 0;
+        try {
+            while (drained < limit) {
+                int index = (int) (h + drained) & mask;
+                E e = buffer.get(index);
+                if (e == null) {
+                    break;
+                }
+                buffer.lazySet(index, null);
+                drained++;
+                handler.accept(e);
+            }
+        } finally {
+            if (drained > 0) {
+                head.lazySet(h + drained);
+            }
+        }
+        return drained;
+    }
+
+    @Override
+    public int drainTo (Collection<? super E> out, int limit) {
+        return drain(out::add, limit);
+    }
+
+    @Override
+    public int size () {
+        long h = head.get();
+        long t = tail.get();
+        return (int) Math.max(0, Math.min(t - h, capacity));
+    }
+
+    @Override
+    public boolean isEmpty () {
+        return tail.get() == head.get();
+    }
+
+    @Override
+    public int capacity () {
+        return capacity;
+    }
+
+    @Override
+    public String toString () {
+        return "MpscRingQueue{" +
+                "capacity=" + capacity +
+                ", head=" + head +
+                ", tail=" + tail +
+                '}';
+    }
+
+}
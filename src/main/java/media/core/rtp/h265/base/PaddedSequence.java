@@ -0,0 +1,77 @@
+package media.core.rtp.h265.base;
+
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
+
+/**
+ * Index (sequence) of a ring queue on its own cache line
+ * - The value is padded by 56 bytes on each side, so the producer and the consumer indexes never share a cache line. (False sharing)
+ *      Padding by the class hierarchy : The JVM lays out the fields of a super class before the fields of its subclass.
+ * - cache : Plain field for the owner thread of the index. (ex. Last value of the other index it has read)
+ */
+public final class PaddedSequence extends PaddedSequenceValue {
+
+    private static final AtomicLongFieldUpdater<PaddedSequenceValue> UPDATER =
+            AtomicLongFieldUpdater.newUpdater(PaddedSequenceValue.class, "value");
+
+    @SuppressWarnings("unused")
+    private long p10, p11, p12, p13, p14, p15, p16;
+
+    ////////////////////////////////////////////////////////////////////
+
+    public PaddedSequence () {
+        this(0);
+    }
+
+    public PaddedSequence (long initialValue) {
+        UPDATER.set(this, initialValue);
+    }
+
+    ////////////////////////////////////////////////////////////////////
+
+    public long get () {
+        return value;
+    }
+
+    public void set (long newValue) {
+        value = newValue;
+    }
+
+    /**
+     * Ordered store : The previous writes of the thread are visible before it, without the full fence of set(). (Publishing an index)
+     */
+    public void lazySet (long newValue) {
+        UPDATER.lazySet(this, newValue);
+    }
+
+    public boolean compareAndSet (long expect, long update) {
+        return UPDATER.compareAndSet(this, expect, update);
+    }
+
+    public long getCache () {
+        return cache;
+    }
+
+    public void setCache (long cache) {
+        this.cache = cache;
+    }
+
+    @Override
+    public String toString () {
+        return Long.toString(value);
+    }
+
+}
+
+abstract class PaddedSequencePad {
+
+    @SuppressWarnings("unused")
+    private long p00, p01, p02, p03, p04, p05, p06;
+
+}
+
+abstract class PaddedSequenceValue extends PaddedSequencePad {
+
+    volatile long value;
+    long cache;
+
+}
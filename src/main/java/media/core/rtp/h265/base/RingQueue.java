@@ -0,0 +1,47 @@
+package media.core.rtp.h265.base;
+
+import java.util.Collection;
+import java.util.function.Consumer;
+
+/**
+ * Bounded lock-free queue of references on a ring (power of 2 capacity), no allocation per element
+ * - SpscRingQueue : One producer thread, one consumer thread.
+ * - MpscRingQueue : Many producer threads, one consumer thread.
+ * - offer() never blocks : A full ring returns false, and the caller decides. (Drop, or wait by a RingWaitStrategy)
+ * - poll(), drain() and drainTo() must be called by the consumer thread only.
+ * - null elements are not allowed.
+ */
+public interface RingQueue<E> {
+
+    /**
+     * @return false if the ring is full
+     */
+    boolean offer (E e);
+
+    /**
+     * @return The oldest element, or null if the ring is empty
+     */
+    E poll ();
+
+    /**
+     * Hands up to limit elements to the handler in order. The consumer index is published once per call.
+     * @return The number of drained elements
+     */
+    int drain (Consumer<? super E> handler, int limit);
+
+    /**
+     * Adds up to limit elements to the collection in order. (Like BlockingQueue.drainTo())
+     * @return The number of drained elements
+     */
+    int drainTo (Collection<? super E> out, int limit);
+
+    /**
+     * @return Estimated number of the elements (Exact if the producers and the consumer are not running)
+     */
+    int size ();
+
+    boolean isEmpty ();
+
+    int capacity ();
+
+}
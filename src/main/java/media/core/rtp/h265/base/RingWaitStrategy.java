@@ -0,0 +1,63 @@
+package media.core.rtp.h265.base;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * How a thread waits for a ring queue (empty ring for a consumer, full ring for a producer)
+ * - SPIN : Busy spin. Lowest latency, but a waiting thread burns a core. (Dedicated cores only)
+ * - YIELD : Spins, then yields the core. Low latency, the core is shared with the runnable threads.
+ * - PARK : Spins, yields, then parks for PARK_NANOS. Almost no CPU while idle, wakes up late by PARK_NANOS at most.
+ *
+ * ex. int idleCount = 0;
+ *     while (true) {
+ *         if (ring.drain(handler, 64) > 0) { idleCount = 0; }
+ *         else { idleCount = waitStrategy.idle(idleCount); }
+ *     }
+ */
+public enum RingWaitStrategy {
+
+    SPIN {
+        @Override
+        public int idle (int idleCount) {
+            return idleCount + 1;
+        }
+    },
+
+    YIELD {
+        @Override
+        public int idle (int idleCount) {
+            if (idleCount >= SPIN_TRIES) {
+                Thread.yield();
+            }
+            return idleCount + 1;
+        }
+    },
+
+    PARK {
+        @Override
+        public int idle (int idleCount) {
+            if (idleCount >= SPIN_TRIES + YIELD_TRIES) {
+                LockSupport.parkNanos(PARK_NANOS);
+                return idleCount;
+            } else if (idleCount >= SPIN_TRIES) {
+                Thread.yield();
+            }
+            return idleCount + 1;
+        }
+    };
+
+    public static final int SPIN_TRIES = 100;
+    public static final int YIELD_TRIES = 10;
+    public static final long PARK_NANOS = TimeUnit.MICROSECONDS.toNanos(50);
+
+    ////////////////////////////////////////////////////////////////////
+
+    /**
+     * Waits once. Reset the count to 0 when the ring makes progress.
+     * @param idleCount The number of the waits since the last progress
+     * @return The next idle count
+     */
+    public abstract int idle (int idleCount);
+
+}
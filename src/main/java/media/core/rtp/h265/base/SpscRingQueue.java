@@ -0,0 +1,135 @@
+package media.core.rtp.h265.base;
+
+import java.util.Collection;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.Consumer;
+
+/**
+ * Single-producer single-consumer ring queue (RingQueue)
+ * - No lock and no CAS : Each index is written by one thread only, and published by an ordered store. (PaddedSequence.lazySet())
+ * - Each side caches the last index of the other side it has read,
+ *      so the other cache line is read only when the ring looks full (producer) or empty (consumer).
+ * - Exactly one producer thread and one consumer thread. (ex. A stage of H265Pipeline to the next stage)
+ */
+public class SpscRingQueue<E> implements RingQueue<E> {
+
+    private final AtomicReferenceArray<E> buffer;
+    private final int capacity;
+    private final int mask;
+
+    private final PaddedSequence head = new PaddedSequence(); // Consumer index, cache : Tail read by the consumer
+    private final PaddedSequence tail = new PaddedSequence(); // Producer index, cache : Head read by the producer
+
+    ////////////////////////////////////////////////////////////////////
+
+    /**
+     * @param capacity Max number of elements (rounded up to a power of 2)
+     */
+    public SpscRingQueue (int capacity) {
+        if (capacity <= 0 || capacity > (1 << 30)) {
+            throw new IllegalArgumentException("capacity must be in (0, 2^30]. (" + capacity + ")");
+        }
+        int size = 1;
+        while (size < capacity) {
+            size <<= 1;
+        }
+
+        this.buffer = new AtomicReferenceArray<>(size);
+        this.capacity = size;
+        this.mask = size - 1;
+    }
+
+    ////////////////////////////////////////////////////////////////////
+
+    @Override
+    public boolean offer (E e) {
+        if (e == null) {
+            throw new NullPointerException("e");
+        }
+
+        long t = tail.get();
+        if (t - tail.getCache() >= capacity) {
+            tail.setCache(head.get());
+            if (t - tail.getCache() >= capacity) {
+                return false;
+            }
+        }
+        buffer.lazySet((int) t & mask, e);
+        tail.lazySet(t + 1);
+        return true;
+    }
+
+    @Override
+    public E poll () {
+        long h = head.get();
+        if (h >= head.getCache()) {
+            head.setCache(tail.get());
+            if (h >= head.getCache()) {
+                return null;
+            }
+        }
+
+        int index = (int) h & mask;
+        E e = buffer.get(index);
+        buffer.lazySet(index, null);
+        head.lazySet(h + 1);
+        return e;
+    }
+
+    @Override
+    public int drain (Consumer<? super E> handler, int limit) {
+        long h = head.get();
+        if (head.getCache() - h < limit) {
+            head.setCache(tail.get());
+        }
+        int count = (int) Math.min(head.getCache() - h, limit);
+
+        int drained = 0;
+        try {
+            while (drained < count) {
+                int index = (int) (h + drained) & mask;
+                E e = buffer.get(index);
+                buffer.lazySet(index, null);
+                drained++;
+                handler.accept(e);
+            }
+        } finally {
+            if (drained > 0) {
+                head.lazySet(h + drained);
+            }
+        }
+        return drained;
+    }
+
+    @Override
+    public int drainTo (Collection<? super E> out, int limit) {
+        return drain(out::add, limit);
+    }
+
+    @Override
+    public int size () {
+        long h = head.get();
+        long t = tail.get();
+        return (int) Math.max(0, Math.min(t - h, capacity));
+    }
+
+    @Override
+    public boolean isEmpty () {
+        return tail.get() == head.get();
+    }
+
+    @Override
+    public int capacity () {
+        return capacity;
+    }
+
+    @Override
+    public String toString () {
+        return "SpscRingQueue{" +
+                "capacity=" + capacity +
+                ", head=" + head +
+                ", tail=" + tail +
+                '}';
+    }
+
+}
@@ -0,0 +1,43 @@
+package media.core.rtp.h265;
+
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Threads of the per-stream loops (H265StreamLoopExecutor)
+ * - Multi-release class : Java 21+ version (META-INF/versions/21 of the jar), src/main/java has the Java 8 version.
+ * - Virtual threads are unmounted from their carrier while a loop blocks in DatagramChannel.receive().
+ * - Both versions must have the same public API.
+ */
+public final class H265StreamThreads {
+
+    private H265StreamThreads () {
+        // Nothing
+    }
+
+    ////////////////////////////////////////////////////////////////////
+
+    public static boolean isVirtualThreadSupported () {
+        return true;
+    }
+
+    /**
+     * @return Factory of virtual threads (namePrefix + number)
+     */
+    public static ThreadFactory newVirtualThreadFactory (String namePrefix) {
+        return Thread.ofVirtual().name(namePrefix, 0).factory();
+    }
+
+    /**
+     * @return Factory of daemon platform threads (namePrefix + number)
+     */
+    public static ThreadFactory newPlatformThreadFactory (String namePrefix) {
+        final AtomicLong count = new AtomicLong(0);
+        return runnable -> {
+            Thread thread = new Thread(runnable, namePrefix + count.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+
+}
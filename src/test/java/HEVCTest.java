@@ -1,15 +1,74 @@
+import media.core.rtp.RtpBufferPool;
 import media.core.rtp.RtpPacket;
+import media.core.rtp.RtpPcapReader;
+import media.core.rtp.RtpPcapWriter;
+import media.core.rtp.h265.H265AccessUnit;
+import media.core.rtp.h265.H265AccessUnitAssembler;
+import media.core.rtp.h265.H265AnnexBReader;
+import media.core.rtp.h265.H265AnnexBWriter;
+import media.core.rtp.h265.H265ApAggregator;
+import media.core.rtp.h265.H265DatagramReceiver;
+import media.core.rtp.h265.H265DatagramSender;
+import media.core.rtp.h265.H265DonReorderBuffer;
+import media.core.rtp.h265.H265Fmp4Segmenter;
+import media.core.rtp.h265.H265JitterBuffer;
+import media.core.rtp.h265.H265Metrics;
+import media.core.rtp.h265.H265NaluView;
+import media.core.rtp.h265.H265PcapReplayer;
+import media.core.rtp.h265.H265Pipeline;
+import media.core.rtp.h265.H265PacketizerSession;
+import media.core.rtp.h265.H265ParameterSetCache;
+import media.core.rtp.h265.H265ShardedEngine;
+import media.core.rtp.h265.H265SsrcDemuxer;
+import media.core.rtp.h265.H265StreamContext;
+import media.core.rtp.h265.H265StreamLoop;
+import media.core.rtp.h265.H265StreamLoopExecutor;
+import media.core.rtp.h265.H265StreamThreads;
 import media.core.rtp.h265.H265Unpacker;
 import media.core.rtp.h265.H265Packer;
 import media.core.rtp.h265.H265Packet;
+import media.core.rtp.h265.base.ConcurrentLongObjectMap;
+import media.core.rtp.h265.base.FUAbortReason;
 import media.core.rtp.h265.base.FUPosition;
+import media.core.rtp.h265.base.H265Fmp4Listener;
+import media.core.rtp.h265.base.LongObjectMap;
+import media.core.rtp.h265.base.MpscRingQueue;
+import media.core.rtp.h265.base.RingWaitStrategy;
+import media.core.rtp.h265.base.SpscRingQueue;
 import org.junit.BeforeClass;
 import org.junit.Test;
 
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.DatagramChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
 
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
 
 public class HEVCTest {
@@ -42,9 +101,34 @@ public class HEVCTest {
 
         // AP
         APtest();
+        ApViewTest();
+        ApAggregatorTest();
 
         // FU
         FUTest();
+        FragmentTest();
+        FuReassemblyTest();
+        DatagramSenderTest();
+        PacketizerSessionTest();
+        AnnexBReaderTest();
+        DonReorderTest();
+        ParameterSetCacheTest();
+        LongObjectMapTest();
+        SsrcDemuxerTest();
+        JitterBufferTest();
+        AccessUnitAssemblerTest();
+        NaluSinkTest();
+        PacketFlyweightTest();
+        BufferPoolTest();
+        MetricsTest();
+        DatagramReceiverTest();
+        PcapTest();
+        AnnexBWriterTest();
+        Fmp4SegmenterTest();
+        ShardedEngineTest();
+        StreamLoopExecutorTest();
+        RingQueueTest();
+        PipelineTest();
     }
 
     @Test
@@ -90,19 +174,1746 @@ public class HEVCTest {
         assertTrue(h265Unpacker.handle(ap));
     }
 
+    @Test
+    public void ApViewTest () {
+        List<H265Packet> packetList = new ArrayList<>();
+        byte[][] rawDataArray = {rawVPSData, rawSPSData, rawPPSData, rawSEIData};
+        for (byte[] rawData : rawDataArray) {
+            packetList.add(new H265Packet(rawData, RtpPacket.RTP_PACKET_MAX_SIZE, true));
+        }
+        H265Packet ap = h265Packer.packApByList(packetList);
+        assertNotNull(ap);
+
+        // Views refer to the AP buffer
+        List<H265NaluView> viewList = h265Unpacker.unPackAp(ap);
+        assertNotNull(viewList);
+        assertEquals(rawDataArray.length, viewList.size());
+        int offset = RtpPacket.FIXED_HEADER_SIZE + H265Packet.RTP_HEVC_PAYLOAD_HEADER_SIZE;
+        for (int i = 0; i < rawDataArray.length; i++) {
+            H265NaluView view = viewList.get(i);
+            offset += H265Packet.RTP_HEVC_AP_NALU_LENGTH_FIELD_SIZE;
+            assertSame(ap.getBuffer(), view.getBuffer());
+            assertEquals(offset, view.getOffset());
+            assertEquals(rawDataArray[i].length - RtpPacket.FIXED_HEADER_SIZE, view.getLength());
+            assertEquals((rawDataArray[i][RtpPacket.FIXED_HEADER_SIZE] >> 1) & 0x3f, view.getType());
+            assertEquals(ByteBuffer.wrap(rawDataArray[i], RtpPacket.FIXED_HEADER_SIZE, view.getLength()), view.asByteBuffer());
+            offset += view.getLength();
+        }
+
+        // Views are reused by the next AP
+        H265NaluView first = viewList.get(0);
+        assertSame(first, h265Unpacker.unPackAp(ap).get(0));
+        assertArrayEquals(rawVPSData, first.toPacket(ByteBuffer.wrap(rawVPSData)).getRawData());
+    }
+
+    @Test
+    public void ApAggregatorTest () {
+        List<H265Packet> outList = new ArrayList<>();
+        H265ApAggregator apAggregator = new H265ApAggregator(h265Packer, 1400, 1000, outList::add);
+
+        // VPS, SPS, PPS, SEI (same timestamp) > 1 AP
+        long now = System.nanoTime();
+        assertTrue(apAggregator.offer(new H265Packet(rawVPSData, RtpPacket.RTP_PACKET_MAX_SIZE, true), now));
+        assertTrue(apAggregator.offer(new H265Packet(rawSPSData, RtpPacket.RTP_PACKET_MAX_SIZE, true), now));
+        assertTrue(apAggregator.offer(new H265Packet(rawPPSData, RtpPacket.RTP_PACKET_MAX_SIZE, true), now));
+        assertTrue(apAggregator.offer(new H265Packet(rawSEIData, RtpPacket.RTP_PACKET_MAX_SIZE, true), now));
+        assertEquals(0, outList.size());
+        assertEquals(4, apAggregator.getPendingCount());
+
+        // Timestamp is changed > flush, marker bit > flush
+        H265Packet nalu = new H265Packet(rawRtpData, RtpPacket.RTP_PACKET_MAX_SIZE, true);
+        assertTrue(apAggregator.offer(nalu, now));
+        assertEquals(2, outList.size());
+        H265Packet ap = outList.get(0);
+        assertEquals(H265Packet.RTP_HEVC_TYPE_AP, (ap.getPayloadHeader() >> 9) & 0x3f);
+        assertEquals(RtpPacket.FIXED_HEADER_SIZE + 2 + 4 * 2
+                + (rawVPSData.length + rawSPSData.length + rawPPSData.length + rawSEIData.length - 4 * RtpPacket.FIXED_HEADER_SIZE), ap.getLength());
+        assertTrue(h265Unpacker.handle(ap));
+        assertSame(nalu, outList.get(1));
+
+        // Deadline is not expired > keep, expired > single NALU as is
+        outList.clear();
+        H265Packet sps = new H265Packet(rawSPSData, RtpPacket.RTP_PACKET_MAX_SIZE, true);
+        assertTrue(apAggregator.offer(sps, now));
+        assertEquals(0, apAggregator.poll(now));
+        assertEquals(1, apAggregator.poll(now + 1000_000_000L));
+        assertSame(sps, outList.get(0));
+
+        // Oversized NALU > FU train
+        outList.clear();
+        assertTrue(apAggregator.offer(new H265Packet(rawSPSData, RtpPacket.RTP_PACKET_MAX_SIZE, true), now));
+        assertTrue(apAggregator.offer(makeLargeNalu(5000), now));
+        assertEquals(1 + 4, outList.size());
+        for (int i = 1; i < outList.size(); i++) {
+            assertEquals(H265Packet.RTP_HEVC_TYPE_FU, (outList.get(i).getPayloadHeader() >> 9) & 0x3f);
+        }
+        assertEquals(0, apAggregator.getPendingCount());
+
+        // Pooled oversized NALU : Released after its FUs are delivered
+        RtpBufferPool bufferPool = new RtpBufferPool();
+        outList.clear();
+        H265Packet largeNalu = makeLargeNalu(5000);
+        H265Packet pooledNalu = new H265Packet(largeNalu.getRawData(), bufferPool);
+        assertTrue(apAggregator.offer(pooledNalu, now));
+        assertEquals(4, outList.size());
+        assertFalse(pooledNalu.isPooled());
+        assertEquals(1, bufferPool.getReleasedBuffers());
+
+        // Single unit with DONL but no DON : Delivered as it is, so it's not released
+        outList.clear();
+        H265Packet noDon = new H265Packet(rawSPSData, bufferPool);
+        noDon.setDonlUsing(true);
+        assertEquals(-1, noDon.getDon());
+        assertTrue(apAggregator.offer(noDon, now));
+        assertEquals(1, apAggregator.flush());
+        assertEquals(1, outList.size());
+        assertSame(noDon, outList.get(0));
+        assertTrue(noDon.isPooled());
+        assertArrayEquals(rawSPSData, noDon.getRawData());
+        assertEquals(1, bufferPool.getReleasedBuffers());
+    }
+
     @Test
     public void FUTest () {
-        H265Packet hevcPacket1 = new H265Packet(rawFuData1, RtpPacket.RTP_PACKET_MAX_SIZE, true);
-        H265Packet fu1 = h265Packer.packFu(hevcPacket1, FUPosition.START);
+        // rawFuData2 (S) > rawFuData1 > rawFuData3 (E) : FUs of one IDR_W_RADL NAL unit
+        H265Packet fu1 = new H265Packet(rawFuData2, RtpPacket.RTP_PACKET_MAX_SIZE, true);
+        assertTrue(fu1.isFuStart());
+        assertEquals(19, fu1.getFuType());
         assertTrue(h265Unpacker.handle(fu1));
 
-        H265Packet hevcPacket2 = new H265Packet(rawFuData2, RtpPacket.RTP_PACKET_MAX_SIZE, true);
-        H265Packet fu2 = h265Packer.packFu(hevcPacket2, FUPosition.MIDDLE);
+        H265Packet fu2 = new H265Packet(rawFuData1, RtpPacket.RTP_PACKET_MAX_SIZE, true);
+        assertFalse(fu2.isFuStart());
+        assertFalse(fu2.isFuEnd());
         assertTrue(h265Unpacker.handle(fu2));
 
-        H265Packet hevcPacket3 = new H265Packet(rawFuData3, RtpPacket.RTP_PACKET_MAX_SIZE, true);
-        H265Packet fu3 = h265Packer.packFu(hevcPacket3, FUPosition.END);
+        H265Packet fu3 = new H265Packet(rawFuData3, RtpPacket.RTP_PACKET_MAX_SIZE, true);
+        assertTrue(fu3.isFuEnd());
         assertTrue(h265Unpacker.handle(fu3));
+
+        // FU of a FU is not allowed
+        assertNull(h265Packer.packFu(fu1, FUPosition.START));
+    }
+
+    @Test
+    public void FragmentTest () {
+        int mtu = 1400;
+        H265Packet nalu = makeLargeNalu(300000);
+        List<H265Packet> fuList = h265Packer.fragment(nalu, mtu);
+        assertNotNull(fuList);
+
+        int maxFuPayloadSize = mtu - RtpPacket.FIXED_HEADER_SIZE - H265Packet.RTP_HEVC_PAYLOAD_HEADER_SIZE - H265Packet.RTP_HEVC_FU_HEADER_SIZE;
+        int bodyLength = nalu.getLength() - RtpPacket.FIXED_HEADER_SIZE - H265Packet.RTP_HEVC_PAYLOAD_HEADER_SIZE;
+        assertEquals((bodyLength + maxFuPayloadSize - 1) / maxFuPayloadSize, fuList.size());
+
+        byte[] naluData = nalu.getRawData();
+        int bodyIndex = RtpPacket.FIXED_HEADER_SIZE + H265Packet.RTP_HEVC_PAYLOAD_HEADER_SIZE;
+        for (int i = 0; i < fuList.size(); i++) {
+            byte[] fuData = fuList.get(i).getRawData();
+            assertTrue(fuData.length <= mtu);
+            assertEquals(H265Packet.RTP_HEVC_TYPE_FU, (fuData[RtpPacket.FIXED_HEADER_SIZE] >> 1) & 0x3f);
+            assertEquals((nalu.getSeqNumber() + i) & 0xffff, fuList.get(i).getSeqNumber());
+            assertEquals(i == fuList.size() - 1, fuList.get(i).getMarker());
+
+            int fuHeader = fuData[RtpPacket.FIXED_HEADER_SIZE + H265Packet.RTP_HEVC_PAYLOAD_HEADER_SIZE] & 0xff;
+            assertEquals(i == 0, (fuHeader & 0b10000000) != 0);
+            assertEquals(i == fuList.size() - 1, (fuHeader & 0b01000000) != 0);
+            assertEquals(19, fuHeader & 0b00111111);
+
+            for (int j = RtpPacket.FIXED_HEADER_SIZE + 3; j < fuData.length; j++) {
+                assertEquals(naluData[bodyIndex++], fuData[j]);
+            }
+        }
+        assertEquals(naluData.length, bodyIndex);
+
+        // Fits in MTU : returned as is
+        H265Packet smallNalu = new H265Packet(rawRtpData, RtpPacket.RTP_PACKET_MAX_SIZE, true);
+        List<H265Packet> singleList = h265Packer.fragment(smallNalu, mtu);
+        assertEquals(1, singleList.size());
+        assertSame(smallNalu, singleList.get(0));
+    }
+
+    @Test
+    public void FuReassemblyTest () {
+        // START > MIDDLE * n > END
+        H265Packet nalu = makeLargeNalu(300000);
+        List<H265Packet> fuList = h265Packer.fragment(nalu, 1400);
+        assertNotNull(fuList);
+        assertTrue(fuList.size() > 3);
+
+        H265Unpacker fuUnpacker = new H265Unpacker();
+        for (H265Packet fu : fuList) {
+            assertTrue(fuUnpacker.handle(fu));
+        }
+
+        // Reassembled NAL unit (interleaved mode delivers it to the listener)
+        final List<H265Packet> outList = new ArrayList<>();
+        fuUnpacker.setMaxDonDiff(1, outList::add);
+        nalu.setDonlUsing(true);
+        nalu.setDon(100);
+        fuList = h265Packer.fragment(nalu, 1400);
+        assertNotNull(fuList);
+        for (H265Packet fu : fuList) {
+            assertTrue(fuUnpacker.handle(fu));
+        }
+        assertEquals(0, outList.size()); // Held until the DONs span maxDonDiff
+
+        // START > END
+        H265Packet small = makeLargeNalu(1500);
+        small.setDonlUsing(true);
+        small.setDon(101);
+        fuList = h265Packer.fragment(small, 1400);
+        assertNotNull(fuList);
+        assertEquals(2, fuList.size());
+        assertTrue(fuUnpacker.handle(fuList.get(0)));
+        assertTrue(fuUnpacker.handle(fuList.get(1)));
+        assertEquals(2, outList.size());
+        assertEquals(100, outList.get(0).getDon());
+        assertEquals(19, outList.get(0).getType());
+        assertArrayEquals(small.getRawData(), outList.get(1).getRawData());
+        assertArrayEquals(nalu.getRawData(), outList.get(0).getRawData()); // Not overwritten
+    }
+
+    @Test
+    public void DatagramSenderTest () {
+        try (DatagramChannel receiver = DatagramChannel.open(); DatagramChannel sender = DatagramChannel.open()) {
+            receiver.bind(new InetSocketAddress("127.0.0.1", 0));
+            sender.connect(receiver.getLocalAddress());
+
+            int mtu = 1400;
+            H265Packet nalu = makeLargeNalu(5000);
+            H265DatagramSender h265DatagramSender = new H265DatagramSender(sender, mtu);
+            List<H265Packet> fuList = h265Packer.fragment(nalu, mtu);
+            assertEquals(fuList.size(), h265DatagramSender.send(nalu));
+
+            // Gathering write == H265Packer.fragment()
+            ByteBuffer recvBuffer = ByteBuffer.allocate(RtpPacket.RTP_PACKET_MAX_SIZE);
+            for (H265Packet fu : fuList) {
+                recvBuffer.clear();
+                receiver.receive(recvBuffer);
+                recvBuffer.flip();
+                byte[] recvData = new byte[recvBuffer.remaining()];
+                recvBuffer.get(recvData);
+                assertArrayEquals(fu.getRawData(), recvData);
+            }
+
+            // Fits in MTU : sent as is
+            H265Packet smallNalu = new H265Packet(rawRtpData, RtpPacket.RTP_PACKET_MAX_SIZE, true);
+            assertEquals(1, h265DatagramSender.send(smallNalu));
+            recvBuffer.clear();
+            receiver.receive(recvBuffer);
+            assertEquals(rawRtpData.length, recvBuffer.position());
+            assertEquals(fuList.size() + 1, h265DatagramSender.getSentPackets());
+            assertEquals(0, h265DatagramSender.getDroppedPackets());
+        } catch (IOException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    @Test
+    public void PacketizerSessionTest () {
+        H265PacketizerSession session = new H265PacketizerSession(h265Packer, 0x12345678L, 96, 1400, 65534, 1000);
+        session.setPresentationTime(1000000); // 1 sec
+        long timestamp = 1000 + H265PacketizerSession.RTP_HEVC_CLOCK_RATE;
+        assertEquals(timestamp, session.getTimestamp());
+
+        // Raw NALU (ByteBuffer) > FU train (seq wraparound, marker on the last packet)
+        byte[] naluData = makeLargeNalu(5000).getRawData();
+        ByteBuffer nalu = ByteBuffer.wrap(naluData, RtpPacket.FIXED_HEADER_SIZE, naluData.length - RtpPacket.FIXED_HEADER_SIZE);
+        List<H265Packet> outList = new ArrayList<>();
+        assertEquals(4, session.packetize(nalu, true, outList));
+        for (int i = 0; i < outList.size(); i++) {
+            H265Packet packet = outList.get(i);
+            assertEquals(RtpPacket.VERSION, packet.getVersion());
+            assertEquals((65534 + i) & 0xffff, packet.getSeqNumber());
+            assertEquals(timestamp, packet.getTimestamp());
+            assertEquals(0x12345678L, packet.getSyncSource());
+            assertEquals(96, packet.getPayloadType());
+            assertEquals(i == outList.size() - 1, packet.getMarker());
+        }
+
+        // Single NALU packet > RTP header is replaced
+        outList.clear();
+        session.advanceTimestamp(3000);
+        H265Packet single = new H265Packet(rawRtpData, RtpPacket.RTP_PACKET_MAX_SIZE, true);
+        assertEquals(1, session.packetize(single, false, outList));
+        assertSame(single, outList.get(0));
+        assertEquals(2, single.getSeqNumber());
+        assertEquals(timestamp + 3000, single.getTimestamp());
+        assertFalse(single.getMarker());
+        assertTrue(h265Unpacker.handle(single));
+    }
+
+    @Test
+    public void AnnexBReaderTest () {
+        // VPS, SPS, PPS (4 bytes start code) + 2 slices of 1 picture + 1 slice of the next picture (3 bytes start code)
+        byte[][] naluArray = new byte[6][];
+        naluArray[0] = Arrays.copyOfRange(rawVPSData, RtpPacket.FIXED_HEADER_SIZE, rawVPSData.length);
+        naluArray[1] = Arrays.copyOfRange(rawSPSData, RtpPacket.FIXED_HEADER_SIZE, rawSPSData.length);
+        naluArray[2] = Arrays.copyOfRange(rawPPSData, RtpPacket.FIXED_HEADER_SIZE, rawPPSData.length);
+        for (int i = 3; i < naluArray.length; i++) {
+            naluArray[i] = new byte[3000 * i];
+            naluArray[i][0] = 0x26; // IDR_W_RADL
+            naluArray[i][1] = 0x01;
+            naluArray[i][2] = (byte) (i == 4 ? 0x00 : 0x80); // first_slice_segment_in_pic_flag
+            for (int j = 3; j < naluArray[i].length; j++) {
+                naluArray[i][j] = (byte) ((j % 5 == 0) ? 0 : (j % 100) + 2); // Zero bytes without start code
+            }
+        }
+
+        try {
+            File file = File.createTempFile("jhevc", ".h265");
+            file.deleteOnExit();
+            try (FileOutputStream outputStream = new FileOutputStream(file)) {
+                for (int i = 0; i < naluArray.length; i++) {
+                    outputStream.write(i < 3 ? new byte[]{0, 0, 0, 1} : new byte[]{0, 0, 1});
+                    outputStream.write(naluArray[i]);
+                }
+            }
+
+            // Small window to remap in the middle of NAL units
+            boolean[] endOfAccessUnits = {false, false, false, false, true, true};
+            try (H265AnnexBReader annexBReader = new H265AnnexBReader(file.getAbsolutePath(), 4096)) {
+                for (int i = 0; i < naluArray.length; i++) {
+                    ByteBuffer nalu = annexBReader.next();
+                    assertNotNull(nalu);
+                    byte[] naluData = new byte[nalu.remaining()];
+                    nalu.get(naluData);
+                    assertArrayEquals(naluArray[i], naluData);
+                    assertEquals(endOfAccessUnits[i], annexBReader.isEndOfAccessUnit());
+                }
+                assertNull(annexBReader.next());
+            }
+        } catch (IOException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    @Test
+    public void DonReorderTest () {
+        // Interleaved mode : AP (DON 0, 1, 2) > FU (DON 4) > Single NALU (DON 3)
+        List<H265Packet> apList = new ArrayList<>();
+        byte[][] rawDataArray = {rawVPSData, rawSPSData, rawPPSData};
+        for (int i = 0; i < rawDataArray.length; i++) {
+            H265Packet hevcPacket = new H265Packet(rawDataArray[i], RtpPacket.RTP_PACKET_MAX_SIZE, true);
+            hevcPacket.setDonlUsing(true);
+            hevcPacket.setDon(i);
+            apList.add(hevcPacket);
+        }
+        H265Packet ap = h265Packer.packApByList(apList);
+        assertNotNull(ap);
+
+        H265Packet large = makeLargeNalu(3000);
+        large.setDonlUsing(true);
+        large.setDon(4);
+        List<H265Packet> fuList = h265Packer.fragment(large, 1400);
+        assertNotNull(fuList);
+        assertEquals(3, fuList.size());
+
+        H265Packet single = new H265Packet(rawSEIData, RtpPacket.RTP_PACKET_MAX_SIZE, true);
+        single.setDonlUsing(true);
+        single.setDon(3);
+        List<H265Packet> singleList = h265Packer.fragment(single, 1400);
+        assertNotNull(singleList);
+        assertEquals(1, singleList.size());
+        assertEquals(rawSEIData.length + H265Packet.RTP_HEVC_DONL_FIELD_SIZE, singleList.get(0).getLength());
+
+        final List<H265Packet> outList = new ArrayList<>();
+        H265Unpacker donUnpacker = new H265Unpacker();
+        donUnpacker.setMaxDonDiff(4, outList::add);
+
+        assertTrue(donUnpacker.handle(ap));
+        assertEquals(0, outList.size()); // Held until the DONs span maxDonDiff
+        for (H265Packet fu : fuList) {
+            assertTrue(donUnpacker.handle(new H265Packet(fu.getRawData(), RtpPacket.RTP_PACKET_MAX_SIZE, true)));
+        }
+        assertEquals(3, outList.size());
+        assertTrue(donUnpacker.handle(new H265Packet(singleList.get(0).getRawData(), RtpPacket.RTP_PACKET_MAX_SIZE, true)));
+        assertEquals(5, outList.size());
+        for (int i = 0; i < outList.size(); i++) {
+            assertEquals(i, outList.get(i).getDon());
+        }
+        assertArrayEquals(Arrays.copyOfRange(rawVPSData, RtpPacket.FIXED_HEADER_SIZE, rawVPSData.length), outList.get(0).getRawPayload());
+        assertArrayEquals(Arrays.copyOfRange(rawPPSData, RtpPacket.FIXED_HEADER_SIZE, rawPPSData.length), outList.get(2).getRawPayload());
+        assertArrayEquals(rawSEIData, outList.get(3).getRawData());
+
+        // Late & duplicated DONs are dropped, missing DONs are skipped after maxDonDiff
+        H265DonReorderBuffer donReorderBuffer = donUnpacker.getDonReorderBuffer();
+        H265Packet late = new H265Packet(rawSEIData, RtpPacket.RTP_PACKET_MAX_SIZE, true);
+        late.setDon(1);
+        assertFalse(donReorderBuffer.offer(late));
+        assertEquals(1, donReorderBuffer.getLateCount());
+
+        H265Packet next = new H265Packet(rawSEIData, RtpPacket.RTP_PACKET_MAX_SIZE, true);
+        next.setDon(7);
+        assertTrue(donReorderBuffer.offer(next));
+        assertFalse(donReorderBuffer.offer(next));
+        assertEquals(1, donReorderBuffer.getDuplicateCount());
+        assertEquals(5, outList.size());
+
+        H265Packet far = new H265Packet(rawSEIData, RtpPacket.RTP_PACKET_MAX_SIZE, true);
+        far.setDon(11);
+        assertTrue(donReorderBuffer.offer(far));
+        assertEquals(6, outList.size());
+        assertEquals(7, outList.get(5).getDon());
+
+        donUnpacker.flushDonReorderBuffer();
+        assertEquals(7, outList.size());
+        assertEquals(11, outList.get(6).getDon());
+
+        // Dropped pooled NAL units are released
+        RtpBufferPool bufferPool = new RtpBufferPool();
+        H265Packet pooledNext = new H265Packet(rawSEIData, bufferPool);
+        pooledNext.setDon(20);
+        assertTrue(donReorderBuffer.offer(pooledNext));
+        assertEquals(7, outList.size()); // Held (after flush())
+        H265Packet pooledLate = new H265Packet(rawSEIData, bufferPool);
+        pooledLate.setDon(3);
+        assertFalse(donReorderBuffer.offer(pooledLate));
+        assertFalse(pooledLate.isPooled());
+        assertEquals(1, bufferPool.getReleasedBuffers());
+
+        // DON jump longer than the ring : The buffered NAL unit is delivered, the missing DONs are skipped at once
+        H265Packet waiting = new H265Packet(rawSEIData, bufferPool);
+        waiting.setDon(23);
+        assertTrue(donReorderBuffer.offer(waiting));
+        long skipCount = donReorderBuffer.getSkipCount();
+        H265Packet jump = new H265Packet(rawSEIData, bufferPool);
+        jump.setDon(20000);
+        assertTrue(donReorderBuffer.offer(jump));
+        assertEquals(9, outList.size());
+        assertEquals(20, outList.get(7).getDon());
+        assertEquals(23, outList.get(8).getDon());
+        assertEquals(skipCount + (20000 - 4 - 21 - 1), donReorderBuffer.getSkipCount());
+        assertEquals(20000 - 4, donReorderBuffer.getNextDon());
+
+        H265Packet pooledDuplicate = new H265Packet(rawSEIData, bufferPool);
+        pooledDuplicate.setDon(20000);
+        assertFalse(donReorderBuffer.offer(pooledDuplicate));
+        assertFalse(pooledDuplicate.isPooled());
+        assertEquals(2, bufferPool.getReleasedBuffers());
+
+        donReorderBuffer.flush();
+        assertEquals(10, outList.size());
+        assertEquals(20000, outList.get(9).getDon());
+
+        // Stream start out of order (DON 1, 0, 2, 3) : The lowest DON is delivered first
+        final List<Integer> donList = new ArrayList<>();
+        H265DonReorderBuffer startBuffer = new H265DonReorderBuffer(4, nalu -> donList.add(nalu.getDon()));
+        int[] startDons = {1, 0, 2, 3};
+        for (int don : startDons) {
+            H265Packet nalu = new H265Packet(rawSEIData, RtpPacket.RTP_PACKET_MAX_SIZE, true);
+            nalu.setDon(don);
+            assertTrue(startBuffer.offer(nalu));
+        }
+        assertTrue(donList.isEmpty());
+        H265Packet fifth = new H265Packet(rawSEIData, RtpPacket.RTP_PACKET_MAX_SIZE, true);
+        fifth.setDon(4);
+        assertTrue(startBuffer.offer(fifth));
+        assertEquals(Arrays.asList(0, 1, 2, 3, 4), donList);
+        assertEquals(0, startBuffer.getLateCount());
+
+        // Same after flush() : Held NAL units are delivered in DON order
+        for (int don : new int[]{11, 10}) {
+            H265Packet nalu = new H265Packet(rawSEIData, RtpPacket.RTP_PACKET_MAX_SIZE, true);
+            nalu.setDon(don);
+            assertTrue(startBuffer.offer(nalu));
+        }
+        startBuffer.flush();
+        assertEquals(Arrays.asList(0, 1, 2, 3, 4, 10, 11), donList);
+        assertEquals(0, startBuffer.getLateCount());
+    }
+
+    @Test
+    public void ParameterSetCacheTest () {
+        H265ParameterSetCache parameterSetCache = new H265ParameterSetCache();
+        byte[][] rawDataArray = {rawVPSData, rawSPSData, rawPPSData};
+        for (byte[] rawData : rawDataArray) {
+            H265Packet hevcPacket = new H265Packet(rawData, RtpPacket.RTP_PACKET_MAX_SIZE, true);
+            assertTrue(parameterSetCache.update(hevcPacket));
+            assertFalse(parameterSetCache.update(hevcPacket));
+            assertEquals(0, H265ParameterSetCache.getParameterSetId((rawData[12] >> 1) & 0x3f,
+                    ByteBuffer.wrap(rawData, RtpPacket.FIXED_HEADER_SIZE, rawData.length - RtpPacket.FIXED_HEADER_SIZE)));
+        }
+        assertEquals(3, parameterSetCache.getCount());
+        assertEquals(3, parameterSetCache.getDuplicateCount());
+        assertArrayEquals(Arrays.copyOfRange(rawSPSData, RtpPacket.FIXED_HEADER_SIZE, rawSPSData.length),
+                parameterSetCache.get(H265ParameterSetCache.TYPE_SPS, 0));
+
+        // Receiver : Repeated identical parameter sets are dropped
+        H265Unpacker cacheUnpacker = new H265Unpacker();
+        cacheUnpacker.setParameterSetCache(new H265ParameterSetCache());
+        assertTrue(cacheUnpacker.handle(new H265Packet(rawVPSData, RtpPacket.RTP_PACKET_MAX_SIZE, true)));
+        assertTrue(cacheUnpacker.handle(new H265Packet(rawVPSData, RtpPacket.RTP_PACKET_MAX_SIZE, true)));
+        assertEquals(1, cacheUnpacker.getParameterSetCache().getDuplicateCount());
+
+        // Interleaved mode : Duplicated parameter sets are dropped after the reordering (No DON hole)
+        List<H265Packet> donOutList = new ArrayList<>();
+        H265Unpacker donCacheUnpacker = new H265Unpacker();
+        donCacheUnpacker.setMaxDonDiff(1, donOutList::add);
+        donCacheUnpacker.setParameterSetCache(new H265ParameterSetCache());
+        byte[][] donDataArray = {rawVPSData, rawVPSData, rawSEIData};
+        for (int don = 0; don < donDataArray.length; don++) {
+            H265Packet nalu = new H265Packet(donDataArray[don], RtpPacket.RTP_PACKET_MAX_SIZE, true);
+            nalu.setDonlUsing(true);
+            nalu.setDon(don);
+            H265Packet donPacket = h265Packer.fragment(nalu, 1400).get(0);
+            assertTrue(donCacheUnpacker.handle(new H265Packet(donPacket.getRawData(), RtpPacket.RTP_PACKET_MAX_SIZE, true)));
+        }
+        assertEquals(2, donOutList.size());
+        assertEquals(0, donOutList.get(0).getDon());
+        assertEquals(2, donOutList.get(1).getDon());
+        assertEquals(0, donCacheUnpacker.getDonReorderBuffer().getSkipCount());
+        assertEquals(1, donCacheUnpacker.getParameterSetCache().getDuplicateCount());
+
+        // Sender : Cached parameter sets are sent as one AP before the IRAP picture
+        H265PacketizerSession session = new H265PacketizerSession(h265Packer, 0x12345678L, 96, 1400, 0, 0);
+        session.setParameterSetCache(new H265ParameterSetCache());
+        List<H265Packet> outList = new ArrayList<>();
+        for (byte[] rawData : rawDataArray) {
+            ByteBuffer nalu = ByteBuffer.wrap(rawData, RtpPacket.FIXED_HEADER_SIZE, rawData.length - RtpPacket.FIXED_HEADER_SIZE);
+            assertEquals(1, session.packetize(nalu, false, outList));
+        }
+
+        byte[] idr = new byte[1000];
+        idr[0] = 0x26; // IDR_W_RADL
+        idr[1] = 0x01;
+        idr[2] = (byte) 0x80; // first_slice_segment_in_pic_flag
+        assertEquals(1, session.packetize(ByteBuffer.wrap(idr), true, outList)); // Parameter sets are already sent
+        assertEquals(4, outList.size());
+
+        outList.clear();
+        assertEquals(2, session.packetize(ByteBuffer.wrap(idr), false, outList));
+        H265Packet ap = outList.get(0);
+        assertEquals(H265Packet.RTP_HEVC_TYPE_AP, (ap.getPayloadHeader() >> 9) & 0x3f);
+        assertEquals(rawVPSData.length + rawSPSData.length + rawPPSData.length - 3 * RtpPacket.FIXED_HEADER_SIZE
+                + RtpPacket.FIXED_HEADER_SIZE + H265Packet.RTP_HEVC_PAYLOAD_HEADER_SIZE + 3 * H265Packet.RTP_HEVC_AP_NALU_LENGTH_FIELD_SIZE, ap.getLength());
+        assertEquals(outList.get(1).getTimestamp(), ap.getTimestamp());
+        assertEquals((outList.get(1).getSeqNumber() - 1) & 0xFFFF, ap.getSeqNumber());
+
+        cacheUnpacker.getParameterSetCache().clear();
+        assertTrue(cacheUnpacker.handle(new H265Packet(ap.getRawData(), RtpPacket.RTP_PACKET_MAX_SIZE, true)));
+        assertEquals(3, cacheUnpacker.getParameterSetCache().getCount());
+
+        // Not the first slice of the picture
+        outList.clear();
+        idr[2] = 0x00;
+        assertEquals(1, session.packetize(ByteBuffer.wrap(idr), true, outList));
+    }
+
+    @Test
+    public void LongObjectMapTest () {
+        ConcurrentLongObjectMap<String> map = new ConcurrentLongObjectMap<>(4);
+        for (long key = -500; key < 500; key++) {
+            assertNull(map.put(key, String.valueOf(key)));
+        }
+        assertEquals(1000, map.size());
+        assertEquals("0", map.get(0));
+        assertEquals("-500", map.get(-500));
+        assertNull(map.get(500));
+        assertEquals("1", map.put(1, "one"));
+        assertEquals("one", map.putIfAbsent(1, "1"));
+        assertEquals("one", map.computeIfAbsent(1, key -> "1"));
+        assertEquals("1000", map.computeIfAbsent(1000, String::valueOf));
+
+        for (long key = -500; key < 0; key++) {
+            assertEquals(String.valueOf(key), map.remove(key));
+        }
+        assertNull(map.remove(-1));
+        assertEquals(501, map.size());
+        assertEquals(501, map.keys().length);
+        assertEquals("499", map.get(499));
+
+        // Conditional remove : Only the same instance
+        String one = map.get(1);
+        assertFalse(map.remove(1, new String(one)));
+        assertEquals(501, map.size());
+        assertTrue(map.remove(1, one));
+        assertFalse(map.remove(1, one));
+        assertEquals(500, map.size());
+    }
+
+    @Test
+    public void SsrcDemuxerTest () {
+        H265SsrcDemuxer demuxer = new H265SsrcDemuxer();
+
+        // FU trains of 2 streams are interleaved
+        long[] ssrcs = {0x11111111L, 0xFFFFFFFFL};
+        List<List<H265Packet>> fuLists = new ArrayList<>();
+        for (long ssrc : ssrcs) {
+            H265Packet nalu = makeLargeNalu(10000);
+            nalu.setSyncSource(ssrc);
+            List<H265Packet> fuList = h265Packer.fragment(nalu, 1400);
+            assertNotNull(fuList);
+            fuLists.add(fuList);
+        }
+        for (int i = 0; i < fuLists.get(0).size(); i++) {
+            for (List<H265Packet> fuList : fuLists) {
+                assertTrue(demuxer.handle(fuList.get(i)));
+            }
+        }
+        assertEquals(2, demuxer.getStreamCount());
+        assertEquals(fuLists.get(1).size(), demuxer.getStream(0xFFFFFFFFL).getReceivedPackets());
+        assertEquals(0, demuxer.getStream(0xFFFFFFFFL).getFailedPackets());
+
+        // Many receive threads
+        final int threadCount = 8;
+        final int streamCountPerThread = 16;
+        final AtomicInteger failCount = new AtomicInteger();
+        final H265SsrcDemuxer concurrentDemuxer = new H265SsrcDemuxer(ssrc -> new H265Unpacker(), 16);
+        final byte[] largeNalu = makeLargeNalu(5000).getRawData();
+        Thread[] threads = new Thread[threadCount];
+        for (int t = 0; t < threadCount; t++) {
+            final int threadIndex = t;
+            threads[t] = new Thread(() -> {
+                H265Packer packer = new H265Packer();
+                for (int s = 0; s < streamCountPerThread; s++) {
+                    H265Packet nalu = new H265Packet(largeNalu, largeNalu.length, true);
+                    nalu.setSyncSource(threadIndex * streamCountPerThread + s);
+                    List<H265Packet> fuList = packer.fragment(nalu, 1400);
+                    for (int r = 0; r < 3; r++) {
+                        for (H265Packet fu : fuList) {
+                            if (!concurrentDemuxer.handle(fu)) {
+                                failCount.incrementAndGet();
+                            }
+                        }
+                    }
+                }
+            });
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        assertEquals(0, failCount.get());
+        assertEquals(threadCount * streamCountPerThread, concurrentDemuxer.getStreamCount());
+
+        assertEquals(threadCount * streamCountPerThread, concurrentDemuxer.removeIdleStreams(0, System.nanoTime()));
+        assertEquals(0, concurrentDemuxer.getStreamCount());
+
+        // Idle streams : A stream that has just handled a packet is kept, a removed stream is not used any more
+        H265SsrcDemuxer idleDemuxer = new H265SsrcDemuxer();
+        H265Packet packet = new H265Packet(rawSEIData, RtpPacket.RTP_PACKET_MAX_SIZE, true);
+        long ssrc = packet.getSyncSource();
+        assertTrue(idleDemuxer.handle(packet, 100));
+        H265StreamContext streamContext = idleDemuxer.getStream(ssrc);
+        assertEquals(0, idleDemuxer.removeIdleStreams(50, 120));
+        assertFalse(streamContext.isRemoved());
+        assertEquals(1, idleDemuxer.removeIdleStreams(50, 150));
+        assertTrue(streamContext.isRemoved());
+        assertTrue(idleDemuxer.handle(packet, 200));
+        assertNotSame(streamContext, idleDemuxer.getStream(ssrc));
+        assertEquals(1, streamContext.getReceivedPackets());
+        assertSame(idleDemuxer.getStream(ssrc), idleDemuxer.removeStream(ssrc));
+        assertNull(idleDemuxer.removeStream(ssrc));
+    }
+
+    @Test
+    public void JitterBufferTest () {
+        final List<H265Packet> outList = new ArrayList<>();
+        final List<long[]> gapList = new ArrayList<>();
+        H265JitterBuffer jitterBuffer = new H265JitterBuffer(64, 100, outList::add);
+        jitterBuffer.setGapListener((firstSeqNumber, count) -> gapList.add(new long[]{firstSeqNumber, count}));
+
+        // Reordered around the wraparound
+        long now = 0;
+        int[] seqNumbers = {65534, 0, 65535, 1};
+        for (int seqNumber : seqNumbers) {
+            assertTrue(jitterBuffer.offer(makeSeqPacket(seqNumber), now));
+        }
+        assertEquals(4, outList.size());
+        assertEquals(65534, outList.get(0).getSeqNumber());
+        assertEquals(65535, outList.get(1).getSeqNumber());
+        assertEquals(0, outList.get(2).getSeqNumber());
+        assertEquals(1, outList.get(3).getSeqNumber());
+        assertEquals(65536 + 2, jitterBuffer.getNextSeqNumber());
+
+        // Late & duplicated
+        assertFalse(jitterBuffer.offer(makeSeqPacket(1), now));
+        assertTrue(jitterBuffer.offer(makeSeqPacket(3), now));
+        assertFalse(jitterBuffer.offer(makeSeqPacket(3), now));
+        assertEquals(1, jitterBuffer.getLatePackets());
+        assertEquals(1, jitterBuffer.getDuplicatedPackets());
+
+        // Dropped pooled packets are released
+        RtpBufferPool bufferPool = new RtpBufferPool();
+        H265Packet pooledLate = new H265Packet(makeSeqPacket(1).getRawData(), bufferPool);
+        assertFalse(jitterBuffer.offer(pooledLate, now));
+        assertFalse(pooledLate.isPooled());
+        H265Packet pooledDuplicate = new H265Packet(makeSeqPacket(3).getRawData(), bufferPool);
+        assertFalse(jitterBuffer.offer(pooledDuplicate, now));
+        assertFalse(pooledDuplicate.isPooled());
+        assertEquals(2, bufferPool.getReleasedBuffers());
+
+        // Gap : Skipped after the latency budget
+        assertEquals(0, jitterBuffer.poll(now + TimeUnit.MILLISECONDS.toNanos(50)));
+        assertEquals(1, jitterBuffer.poll(now + TimeUnit.MILLISECONDS.toNanos(100)));
+        assertEquals(5, outList.size());
+        assertEquals(1, gapList.size());
+        assertEquals(65536 + 2, gapList.get(0)[0]);
+        assertEquals(1, gapList.get(0)[1]);
+
+        // Gap : Skipped when the ring is full
+        assertTrue(jitterBuffer.offer(makeSeqPacket(5), now));
+        assertTrue(jitterBuffer.offer(makeSeqPacket(4 + 64), now));
+        assertEquals(6, outList.size());
+        assertEquals(2, jitterBuffer.getLostPackets());
+
+        // Reset : The buffered packets are released
+        H265Packet pooledBuffered = new H265Packet(makeSeqPacket(4 + 66).getRawData(), bufferPool);
+        assertTrue(jitterBuffer.offer(pooledBuffered, now));
+        assertEquals(2, jitterBuffer.getCount());
+        jitterBuffer.reset();
+        assertEquals(0, jitterBuffer.getCount());
+        assertFalse(pooledBuffered.isPooled());
+        assertEquals(3, bufferPool.getReleasedBuffers());
+
+        // Resync : The sender restarts the sequence far behind the highest sequence number
+        H265JitterBuffer resyncJitterBuffer = new H265JitterBuffer(64, 100, outList::add);
+        outList.clear();
+        for (int seqNumber = 30000; seqNumber < 30004; seqNumber++) {
+            assertTrue(resyncJitterBuffer.offer(makeSeqPacket(seqNumber), now));
+        }
+        assertTrue(resyncJitterBuffer.offer(makeSeqPacket(30005), now));
+        // Single stray packet beyond the window is dropped
+        assertTrue(resyncJitterBuffer.offer(makeSeqPacket(10), now));
+        assertTrue(resyncJitterBuffer.offer(makeSeqPacket(30004), now));
+        assertEquals(6, outList.size());
+        assertEquals(1, resyncJitterBuffer.getLatePackets());
+        // Two sequential packets beyond the window restart the sequence
+        assertTrue(resyncJitterBuffer.offer(makeSeqPacket(10), now));
+        assertEquals(6, outList.size());
+        assertTrue(resyncJitterBuffer.offer(makeSeqPacket(11), now));
+        assertTrue(resyncJitterBuffer.offer(makeSeqPacket(12), now));
+        assertEquals(9, outList.size());
+        assertEquals(10, outList.get(6).getSeqNumber());
+        assertEquals(12, outList.get(8).getSeqNumber());
+        assertEquals(13, resyncJitterBuffer.getNextSeqNumber());
+        assertEquals(1, resyncJitterBuffer.getResyncs());
+        assertEquals(0, resyncJitterBuffer.getLostPackets());
+
+        // FU train in front of the unpacker : Swapped packets are reordered, lost packets drop the FU
+        final List<H265Packet> naluList = new ArrayList<>();
+        H265Unpacker fuUnpacker = new H265Unpacker();
+        fuUnpacker.setMaxDonDiff(1, naluList::add);
+        H265JitterBuffer unpackerJitterBuffer = new H265JitterBuffer(64, 100, fuUnpacker);
+
+        H265Packet nalu = makeLargeNalu(5000);
+        nalu.setDonlUsing(true);
+        nalu.setDon(0);
+        List<H265Packet> fuList = h265Packer.fragment(nalu, 1400);
+        assertNotNull(fuList);
+        assertEquals(4, fuList.size());
+        int[] order = {0, 2, 1, 3};
+        for (int i : order) {
+            assertTrue(unpackerJitterBuffer.offer(fuList.get(i), now));
+        }
+        assertEquals(0, naluList.size()); // Held until the DONs span maxDonDiff
+        fuUnpacker.flushDonReorderBuffer();
+        assertEquals(1, naluList.size());
+        assertArrayEquals(nalu.getRawData(), naluList.get(0).getRawData());
+
+        nalu.writeHeader(true, nalu.getPayloadType(), nalu.getSeqNumber() + fuList.size(), nalu.getTimestamp(), nalu.getSyncSource());
+        nalu.setDon(1);
+        fuList = h265Packer.fragment(nalu, 1400);
+        assertNotNull(fuList);
+        unpackerJitterBuffer.offer(fuList.get(0), now);
+        unpackerJitterBuffer.offer(fuList.get(1), now);
+        unpackerJitterBuffer.offer(fuList.get(3), now);
+        unpackerJitterBuffer.poll(now + TimeUnit.MILLISECONDS.toNanos(100));
+        assertEquals(1, unpackerJitterBuffer.getLostPackets());
+        assertEquals(1, naluList.size());
+    }
+
+    @Test
+    public void AccessUnitAssemblerTest () {
+        final List<H265AccessUnit> auList = new ArrayList<>();
+        final List<byte[]> auDataList = new ArrayList<>();
+        H265AccessUnitAssembler assembler = new H265AccessUnitAssembler(accessUnit -> {
+            // Access unit is reused : Keep a copy (Grows from an empty buffer)
+            H265AccessUnit copy = new H265AccessUnit(0);
+            for (int i = 0; i < accessUnit.getNaluCount(); i++) {
+                copy.add(accessUnit.getNalu(i));
+            }
+            copy.setTimestamp(accessUnit.getTimestamp());
+            copy.setMarkerReceived(accessUnit.isMarkerReceived());
+            auList.add(copy);
+
+            ByteBuffer data = accessUnit.getBuffer();
+            byte[] bytes = new byte[data.remaining()];
+            data.get(bytes);
+            auDataList.add(bytes);
+        });
+        H265Unpacker auUnpacker = new H265Unpacker();
+        auUnpacker.setNaluSink(assembler);
+
+        // AP (VPS, SPS, PPS, SEI) without marker > closed by the next timestamp
+        List<H265Packet> packetList = new ArrayList<>();
+        byte[][] rawDataArray = {rawVPSData, rawSPSData, rawPPSData, rawSEIData};
+        for (byte[] rawData : rawDataArray) {
+            packetList.add(new H265Packet(rawData, RtpPacket.RTP_PACKET_MAX_SIZE, true));
+        }
+        H265Packet ap = h265Packer.packApByList(packetList);
+        assertNotNull(ap);
+        assertTrue(auUnpacker.handle(ap));
+        assertEquals(0, auList.size());
+        assertEquals(4, assembler.getPendingNaluCount());
+
+        // Single NALU with marker
+        H265Packet single = new H265Packet(rawRtpData, RtpPacket.RTP_PACKET_MAX_SIZE, true);
+        assertTrue(auUnpacker.handle(single));
+        assertEquals(2, auList.size());
+        H265AccessUnit au = auList.get(0);
+        assertFalse(au.isMarkerReceived());
+        assertEquals(4, au.getNaluCount());
+        assertEquals(ap.getTimestamp(), au.getTimestamp());
+        int offset = 0;
+        for (int i = 0; i < rawDataArray.length; i++) {
+            assertEquals(offset, au.getNaluOffset(i));
+            assertEquals(rawDataArray[i].length - RtpPacket.FIXED_HEADER_SIZE, au.getNaluLength(i));
+            assertEquals((rawDataArray[i][RtpPacket.FIXED_HEADER_SIZE] >> 1) & 0x3f, au.getNaluType(i));
+            offset += au.getNaluLength(i);
+        }
+        assertEquals(offset, auDataList.get(0).length);
+
+        au = auList.get(1);
+        assertTrue(au.isMarkerReceived());
+        assertTrue(au.isIrap());
+        assertEquals(1, au.getNaluCount());
+        assertArrayEquals(Arrays.copyOfRange(rawRtpData, RtpPacket.FIXED_HEADER_SIZE, rawRtpData.length), auDataList.get(1));
+
+        // FU train with marker
+        H265Packet nalu = makeLargeNalu(20000);
+        nalu.writeHeader(true, nalu.getPayloadType(), nalu.getSeqNumber(), nalu.getTimestamp() + 3000, nalu.getSyncSource());
+        List<H265Packet> fuList = h265Packer.fragment(nalu, 1400);
+        assertNotNull(fuList);
+        for (H265Packet fu : fuList) {
+            assertTrue(auUnpacker.handle(fu));
+        }
+        assertEquals(3, auList.size());
+        assertEquals(nalu.getTimestamp(), auList.get(2).getTimestamp());
+        assertArrayEquals(Arrays.copyOfRange(nalu.getRawData(), RtpPacket.FIXED_HEADER_SIZE, nalu.getLength()), auDataList.get(2));
+        assertEquals(2, assembler.getCompleteCount());
+        assertEquals(1, assembler.getIncompleteCount());
+    }
+
+    @Test
+    public void NaluSinkTest () {
+        final List<byte[]> naluDataList = new ArrayList<>();
+        final List<Integer> typeList = new ArrayList<>();
+        final List<Boolean> markerList = new ArrayList<>();
+        final List<ByteBuffer> bufferList = new ArrayList<>();
+        H265Unpacker sinkUnpacker = new H265Unpacker();
+        sinkUnpacker.setNaluSink((nalu, timestamp, marker) -> {
+            // View is reused : Keep a copy
+            byte[] data = new byte[nalu.getLength()];
+            for (int i = 0; i < data.length; i++) {
+                data[i] = nalu.getBuffer().get(nalu.getOffset() + i);
+            }
+            naluDataList.add(data);
+            typeList.add(nalu.getType());
+            markerList.add(marker);
+            bufferList.add(nalu.getBuffer());
+        });
+
+        // Single NAL Unit packet : View of the packet buffer
+        H265Packet single = new H265Packet(rawRtpData, RtpPacket.RTP_PACKET_MAX_SIZE, true);
+        assertTrue(sinkUnpacker.handle(single));
+        assertEquals(1, naluDataList.size());
+        assertSame(single.getBuffer(), bufferList.get(0));
+        assertEquals(19, (int) typeList.get(0));
+        assertTrue(markerList.get(0));
+        assertArrayEquals(Arrays.copyOfRange(rawRtpData, RtpPacket.FIXED_HEADER_SIZE, rawRtpData.length), naluDataList.get(0));
+
+        // AP : Marker only on the last NAL unit
+        List<H265Packet> packetList = new ArrayList<>();
+        byte[][] rawDataArray = {rawVPSData, rawSPSData, rawPPSData};
+        for (byte[] rawData : rawDataArray) {
+            packetList.add(new H265Packet(rawData, RtpPacket.RTP_PACKET_MAX_SIZE, true));
+        }
+        H265Packet ap = h265Packer.packApByList(packetList);
+        assertNotNull(ap);
+        ap.writeHeader(true, ap.getPayloadType(), ap.getSeqNumber(), ap.getTimestamp(), ap.getSyncSource());
+        assertTrue(sinkUnpacker.handle(ap));
+        assertEquals(4, naluDataList.size());
+        for (int i = 0; i < rawDataArray.length; i++) {
+            assertSame(ap.getBuffer(), bufferList.get(i + 1));
+            assertEquals(32 + i, (int) typeList.get(i + 1));
+            assertEquals(i == rawDataArray.length - 1, markerList.get(i + 1));
+            assertArrayEquals(Arrays.copyOfRange(rawDataArray[i], RtpPacket.FIXED_HEADER_SIZE, rawDataArray[i].length), naluDataList.get(i + 1));
+        }
+
+        // FU : View of the reassembly buffer
+        H265Packet nalu = makeLargeNalu(20000);
+        List<H265Packet> fuList = h265Packer.fragment(nalu, 1400);
+        assertNotNull(fuList);
+        for (H265Packet fu : fuList) {
+            assertTrue(sinkUnpacker.handle(fu));
+        }
+        assertEquals(5, naluDataList.size());
+        assertEquals(19, (int) typeList.get(4));
+        assertTrue(markerList.get(4));
+        assertArrayEquals(Arrays.copyOfRange(nalu.getRawData(), RtpPacket.FIXED_HEADER_SIZE, nalu.getLength()), naluDataList.get(4));
+
+        // AP ending with a duplicated parameter set : Marker on the last NAL unit delivered
+        sinkUnpacker.setParameterSetCache(new H265ParameterSetCache());
+        assertTrue(sinkUnpacker.getParameterSetCache().update(new H265Packet(rawPPSData, RtpPacket.RTP_PACKET_MAX_SIZE, true)));
+        packetList.clear();
+        packetList.add(new H265Packet(rawSEIData, RtpPacket.RTP_PACKET_MAX_SIZE, true));
+        packetList.add(new H265Packet(rawPPSData, RtpPacket.RTP_PACKET_MAX_SIZE, true));
+        ap = h265Packer.packApByList(packetList);
+        assertNotNull(ap);
+        ap.writeHeader(true, ap.getPayloadType(), ap.getSeqNumber(), ap.getTimestamp(), ap.getSyncSource());
+        assertTrue(sinkUnpacker.handle(ap));
+        assertEquals(6, naluDataList.size());
+        assertEquals(39, (int) typeList.get(5));
+        assertTrue(markerList.get(5));
+    }
+
+    @Test
+    public void PacketFlyweightTest () {
+        // Header fields are read from the buffer
+        H265Packet h265Packet = new H265Packet(RtpPacket.RTP_PACKET_MAX_SIZE, true);
+        assertEquals(-1, h265Packet.getType());
+        h265Packet.reset(ByteBuffer.wrap(rawVPSData));
+        assertEquals(32, h265Packet.getType());
+        assertEquals(0, h265Packet.getForbidden());
+        assertEquals(0, h265Packet.getLid());
+        assertEquals(1, h265Packet.getTid());
+        assertEquals(-1, h265Packet.getFuType());
+
+        // Same instance is re-pointed to another packet
+        h265Packet.reset(ByteBuffer.wrap(rawFuData3));
+        assertEquals(H265Packet.RTP_HEVC_TYPE_FU, h265Packet.getType());
+        assertTrue(h265Packet.isFuEnd());
+        assertFalse(h265Packet.isFuStart());
+        assertEquals(19, h265Packet.getFuType());
+        assertEquals(-1, h265Packet.getDon());
+
+        // Setters write the header fields to the buffer
+        byte[] data = Arrays.copyOf(rawSPSData, rawSPSData.length);
+        h265Packet.reset(ByteBuffer.wrap(data));
+        h265Packet.setLid(33);
+        h265Packet.setTid(5);
+        assertEquals(33, h265Packet.getLid());
+        assertEquals(5, h265Packet.getTid());
+        assertEquals(33, h265Packet.getType());
+        assertEquals((byte) 0x43, data[RtpPacket.FIXED_HEADER_SIZE]);
+        assertEquals((byte) 0x0d, data[RtpPacket.FIXED_HEADER_SIZE + 1]);
+    }
+
+    @Test
+    public void BufferPoolTest () {
+        RtpBufferPool bufferPool = new RtpBufferPool(64);
+
+        // Size classes
+        ByteBuffer small = bufferPool.acquire(100);
+        assertTrue(small.isDirect());
+        assertEquals(RtpBufferPool.MIN_CLASS_SIZE, small.capacity());
+        assertEquals(2048, bufferPool.acquire(1400).capacity());
+        assertEquals(70000, bufferPool.acquire(70000).capacity());
+        bufferPool.release(small);
+        assertEquals(1, bufferPool.getPooledCount(100));
+        assertSame(small, bufferPool.acquire(200));
+        assertEquals(0, bufferPool.getPooledCount(100));
+
+        // Steady state : FUs reuse the released buffers
+        H265Packer poolPacker = new H265Packer();
+        poolPacker.setBufferPool(bufferPool);
+        H265Packet nalu = makeLargeNalu(20000);
+        long allocated = 0;
+        for (int i = 0; i < 10; i++) {
+            List<H265Packet> fuList = poolPacker.fragment(nalu, 1400);
+            assertNotNull(fuList);
+            for (H265Packet fu : fuList) {
+                assertTrue(fu.isPooled());
+                fu.release();
+                assertFalse(fu.isPooled());
+                assertEquals(0, fu.getLength());
+                fu.release(); // No effect
+            }
+            if (i == 0) {
+                allocated = bufferPool.getAllocatedBuffers();
+            }
+        }
+        assertEquals(allocated, bufferPool.getAllocatedBuffers());
+
+        // FU reassembly buffer is taken from the pool once, and reused (also in the interleaved mode)
+        List<H265Packet> fuList = poolPacker.fragment(nalu, 1400);
+        assertNotNull(fuList);
+        H265Unpacker poolUnpacker = new H265Unpacker();
+        poolUnpacker.setBufferPool(bufferPool);
+        long acquired = bufferPool.getAcquiredBuffers();
+        for (int i = 0; i < 10; i++) {
+            for (H265Packet fu : fuList) {
+                assertTrue(poolUnpacker.handle(fu));
+            }
+        }
+        assertEquals(acquired + 1, bufferPool.getAcquiredBuffers());
+
+        final List<H265Packet> naluList = new ArrayList<>();
+        H265Unpacker donPoolUnpacker = new H265Unpacker();
+        donPoolUnpacker.setBufferPool(bufferPool);
+        donPoolUnpacker.setMaxDonDiff(1, naluList::add);
+        nalu.setDonlUsing(true);
+        acquired = bufferPool.getAcquiredBuffers();
+        for (int i = 0; i < 10; i++) {
+            nalu.setDon(i);
+            for (H265Packet fu : poolPacker.fragment(nalu, 1400)) {
+                assertTrue(donPoolUnpacker.handle(fu));
+                fu.release();
+            }
+        }
+        assertEquals(10, naluList.size());
+        for (H265Packet reassembled : naluList) {
+            assertTrue(reassembled.isPooled());
+            assertEquals(nalu.getLength(), reassembled.getLength());
+            reassembled.release();
+        }
+        // FUs (released) + reassembled NAL units (released) + one reassembly buffer
+        assertEquals(acquired + (long) 10 * fuList.size() + 10 + 1, bufferPool.getAcquiredBuffers());
+        for (H265Packet fu : fuList) {
+            fu.release();
+        }
+
+        // Leak detection : The buffer of a collected packet is returned to the pool
+        bufferPool.setLeakDetectionEnabled(true);
+        int pooledCount = bufferPool.getPooledCount(5000);
+        new H265Packet(5000, bufferPool); // Not released
+        assertEquals(1, bufferPool.getTrackedCount());
+        for (int i = 0; i < 100 && bufferPool.getLeakedBuffers() == 0; i++) {
+            System.gc();
+            try {
+                Thread.sleep(10);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+            bufferPool.pollLeaks();
+        }
+        assertEquals(1, bufferPool.getLeakedBuffers());
+        assertEquals(0, bufferPool.getTrackedCount());
+        assertEquals(pooledCount + 1, bufferPool.getPooledCount(5000));
+
+        // Released packets are not reported
+        H265Packet released = new H265Packet(rawRtpData, bufferPool);
+        assertEquals(19, released.getType());
+        released.release();
+        assertEquals(0, bufferPool.getTrackedCount());
+
+        // Grown packets : Only the current buffer is tracked
+        H265Packet grown = new H265Packet(rawRtpData, bufferPool);
+        grown.grow(RtpBufferPool.MAX_CLASS_SIZE);
+        assertEquals(1, bufferPool.getTrackedCount());
+        grown.release();
+        assertEquals(0, bufferPool.getTrackedCount());
+    }
+
+    @Test
+    public void MetricsTest () {
+        H265Metrics parentMetrics = new H265Metrics(null);
+        H265Metrics metrics = new H265Metrics(parentMetrics);
+
+        // AP unpacked
+        H265Unpacker metricsUnpacker = new H265Unpacker();
+        metricsUnpacker.setMetrics(metrics);
+        List<H265Packet> packetList = new ArrayList<>();
+        byte[][] rawDataArray = {rawVPSData, rawSPSData, rawPPSData};
+        for (byte[] rawData : rawDataArray) {
+            packetList.add(new H265Packet(rawData, RtpPacket.RTP_PACKET_MAX_SIZE, true));
+        }
+        H265Packet ap = h265Packer.packApByList(packetList);
+        assertNotNull(ap);
+        assertTrue(metricsUnpacker.handle(ap));
+        assertEquals(1, metrics.getPacketsIn(H265Packet.RTP_HEVC_TYPE_AP));
+        assertEquals(1, metrics.getApUnpacked());
+        assertEquals(3.0, metrics.getAverageUnpackedApUnits(), 0.0);
+
+        // FU completed, interrupted, missing START
+        H265Packer metricsPacker = new H265Packer();
+        metricsPacker.setMetrics(metrics);
+        H265Packet nalu = makeLargeNalu(5000);
+        List<H265Packet> fuList = metricsPacker.fragment(nalu, 1400);
+        assertNotNull(fuList);
+        assertEquals(fuList.size(), metrics.getPacketsOut(H265Packet.RTP_HEVC_TYPE_FU));
+        for (H265Packet fu : fuList) {
+            assertTrue(metricsUnpacker.handle(fu));
+        }
+        assertEquals(1, metrics.getFuCompleted());
+        assertEquals(nalu.getLength() - RtpPacket.FIXED_HEADER_SIZE, metrics.getBytesReassembled());
+
+        assertTrue(metricsUnpacker.handle(fuList.get(0)));
+        assertFalse(metricsUnpacker.handle(new H265Packet(rawRtpData, RtpPacket.RTP_PACKET_MAX_SIZE, true)));
+        assertEquals(1, metrics.getFuAborted(FUAbortReason.INTERRUPTED));
+        assertFalse(metricsUnpacker.handle(fuList.get(1)));
+        assertEquals(1, metrics.getFuAborted(FUAbortReason.MISSING_START));
+        assertEquals(2, metrics.getFuAborted());
+        assertEquals(2.0 / 3.0, metrics.getFuAbortRatio(), 0.0001);
+
+        // Oversized AP
+        packetList.clear();
+        packetList.add(makeLargeNalu(5000));
+        packetList.add(makeLargeNalu(5000));
+        assertNull(metricsPacker.packApByList(packetList));
+        assertEquals(1, metrics.getApOversized());
+
+        // Parent is updated together
+        assertEquals(metrics.getPacketsIn(), parentMetrics.getPacketsIn());
+        assertEquals(metrics.getPacketsOut(), parentMetrics.getPacketsOut());
+        assertEquals(metrics.getFuAbortedByReason(), parentMetrics.getFuAbortedByReason());
+
+        // JMX
+        assertTrue(metrics.register("test-" + System.nanoTime()));
+        try {
+            MBeanServer mBeanServer = ManagementFactory.getPlatformMBeanServer();
+            assertEquals(1L, mBeanServer.getAttribute(metrics.getObjectName(), "ApOversized"));
+            assertEquals(1L, mBeanServer.getAttribute(metrics.getObjectName(), "FuCompleted"));
+        } catch (Exception e) {
+            throw new AssertionError(e);
+        }
+        ObjectName objectName = metrics.getObjectName();
+        metrics.unregister();
+        assertFalse(ManagementFactory.getPlatformMBeanServer().isRegistered(objectName));
+
+        metrics.resetCounters();
+        assertEquals(0, metrics.getPacketsIn());
+        assertEquals(0, metrics.getFuAborted());
+        assertTrue(parentMetrics.getPacketsIn() > 0);
+    }
+
+    @Test
+    public void DatagramReceiverTest () {
+        final List<byte[]> naluDataList = new ArrayList<>();
+        H265SsrcDemuxer demuxer = new H265SsrcDemuxer(ssrc -> {
+            H265Unpacker unpacker = new H265Unpacker();
+            unpacker.setNaluSink((nalu, timestamp, marker) -> {
+                byte[] data = new byte[nalu.getLength()];
+                for (int i = 0; i < data.length; i++) {
+                    data[i] = nalu.getBuffer().get(nalu.getOffset() + i);
+                }
+                naluDataList.add(data);
+            });
+            return unpacker;
+        });
+
+        RtpBufferPool pool = new RtpBufferPool();
+        H265DatagramReceiver closedReceiver;
+        DatagramChannel channel;
+        try (H265DatagramReceiver receiver = new H265DatagramReceiver(demuxer, pool, 4, 1500);
+             DatagramChannel sender = DatagramChannel.open()) {
+            closedReceiver = receiver;
+            channel = receiver.bind(new InetSocketAddress("127.0.0.1", 0));
+            assertNotNull(channel);
+            sender.connect(channel.getLocalAddress());
+
+            // 1) FU train (more datagrams than the batch size)
+            H265Packet nalu = makeLargeNalu(8000);
+            nalu.getBuffer().put(0, (byte) (nalu.getBuffer().get(0) & ~0x20)); // No padding
+            int fuCount = new H265DatagramSender(sender, 1400).send(nalu);
+            assertTrue(fuCount > receiver.getBatchSize());
+
+            // 2) rawRtpData (3 bytes of padding) + CSRC (1) + header extension (1 word) : Reduced to the fixed header in place
+            ByteBuffer extended = ByteBuffer.allocate(rawRtpData.length + 4 + 8);
+            extended.put(rawRtpData, 0, RtpPacket.FIXED_HEADER_SIZE);
+            extended.put(0, (byte) (rawRtpData[0] | 0x10 | 0x01));
+            extended.putInt(0x11111111).putShort((short) 0xBEDE).putShort((short) 1).putInt(0x22222222);
+            extended.put(rawRtpData, RtpPacket.FIXED_HEADER_SIZE, rawRtpData.length - RtpPacket.FIXED_HEADER_SIZE);
+            extended.flip();
+            sender.write(extended);
+
+            // 3) Not RTP : Dropped
+            sender.write(ByteBuffer.wrap(new byte[]{0x00, 0x01, 0x02, 0x03, 0x04, 0x05, 0x06, 0x07, 0x08, 0x09, 0x0a, 0x0b, 0x0c, 0x0d}));
+
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(2);
+            while (receiver.getReceivedDatagrams() < fuCount + 2 && System.nanoTime() < deadline) {
+                // At most one batch per channel per select pass
+                int received = receiver.poll(100);
+                assertTrue(received >= 0 && received <= receiver.getBatchSize());
+            }
+            assertEquals(fuCount + 2, receiver.getReceivedDatagrams());
+            assertEquals(1, receiver.getDroppedDatagrams());
+            assertTrue(receiver.getAverageBatch() > 1);
+
+            assertEquals(2, naluDataList.size());
+            assertArrayEquals(Arrays.copyOfRange(nalu.getRawData(), RtpPacket.FIXED_HEADER_SIZE, nalu.getLength()), naluDataList.get(0));
+            assertArrayEquals(Arrays.copyOfRange(rawRtpData, RtpPacket.FIXED_HEADER_SIZE, rawRtpData.length - 3), naluDataList.get(1));
+        } catch (IOException e) {
+            throw new AssertionError(e);
+        }
+
+        // Closed by try-with-resources : Receive buffers are returned to the pool
+        assertTrue(closedReceiver.isClosed());
+        assertFalse(channel.isOpen());
+        assertEquals(-1, closedReceiver.poll(0));
+        assertEquals(closedReceiver.getBatchSize(), pool.getPooledCount(1501));
+    }
+
+    @Test
+    public void PcapTest () {
+        final List<byte[]> naluDataList = new ArrayList<>();
+        H265SsrcDemuxer demuxer = new H265SsrcDemuxer(ssrc -> {
+            H265Unpacker unpacker = new H265Unpacker();
+            unpacker.setNaluSink((nalu, timestamp, marker) -> naluDataList.add(new byte[nalu.getLength()]));
+            return unpacker;
+        });
+
+        try {
+            // 1) Writer : FU train + Single NAL Unit packet (3 bytes of padding), 10 ms apart
+            File file = File.createTempFile("jhevc", ".pcap");
+            file.deleteOnExit();
+            H265Packet nalu = makeLargeNalu(5000);
+            nalu.getBuffer().put(0, (byte) (nalu.getBuffer().get(0) & ~0x20)); // No padding
+            List<H265Packet> packetList = h265Packer.fragment(nalu, 1400);
+            assertNotNull(packetList);
+            packetList.add(new H265Packet(rawRtpData, RtpPacket.RTP_PACKET_MAX_SIZE, true));
+
+            long baseNanos = 1_600_000_000_123_456_789L;
+            try (RtpPcapWriter writer = new RtpPcapWriter(file.toPath(),
+                    new InetSocketAddress("10.0.0.1", 5004), new InetSocketAddress("10.0.0.2", 6004))) {
+                for (int i = 0; i < packetList.size(); i++) {
+                    assertTrue(writer.write(packetList.get(i).getBuffer(), baseNanos + i * 10_000_000L));
+                }
+                assertEquals(packetList.size(), writer.getWrittenPackets());
+            }
+
+            // 2) Reader : Same packets and capture times (Padding is cut)
+            try (RtpPcapReader reader = RtpPcapReader.open(file.toPath())) {
+                assertFalse(reader.isPcapng());
+                assertEquals(RtpPcapReader.LINKTYPE_RAW, reader.getLinkType());
+                for (int i = 0; i < packetList.size(); i++) {
+                    ByteBuffer buffer = reader.next();
+                    assertNotNull(buffer);
+                    assertEquals(baseNanos + i * 10_000_000L, reader.getTimestampNanos());
+                    assertEquals(5004, reader.getSrcPort());
+                    assertEquals(6004, reader.getDstPort());
+
+                    byte[] expected = packetList.get(i).getRawData();
+                    if (i == packetList.size() - 1) {
+                        expected = Arrays.copyOf(expected, expected.length - 3);
+                        expected[0] &= ~0x20;
+                    }
+                    byte[] data = new byte[buffer.limit()];
+                    buffer.get(data);
+                    assertArrayEquals(expected, data);
+                }
+                assertNull(reader.next());
+
+                // 3) Replayer : Flat out
+                reader.rewind();
+                H265PcapReplayer replayer = new H265PcapReplayer(reader, demuxer);
+                replayer.setSpeed(H265PcapReplayer.FLAT_OUT);
+                assertEquals(packetList.size(), replayer.replay());
+                assertEquals(0, replayer.getFailedPackets());
+                assertEquals(2, naluDataList.size());
+                assertEquals(5000, naluDataList.get(0).length);
+
+                // Original pacing (Capture spans (n - 1) x 10 ms), then 2x
+                reader.rewind();
+                replayer.setSpeed(1);
+                long startTime = System.nanoTime();
+                assertEquals(packetList.size(), replayer.replay());
+                long spanNanos = (packetList.size() - 1) * 10_000_000L;
+                assertTrue(System.nanoTime() - startTime >= spanNanos);
+                assertEquals(4, naluDataList.size());
+            }
+
+            // 4) pcapng : Ethernet (VLAN) + IPv4 + UDP, nanosecond resolution (if_tsresol = 9)
+            File ngFile = File.createTempFile("jhevc", ".pcapng");
+            ngFile.deleteOnExit();
+            byte[] frame = new byte[14 + 4 + 20 + 8 + rawRtpData.length];
+            ByteBuffer frameBuffer = ByteBuffer.wrap(frame);
+            frameBuffer.position(12);
+            frameBuffer.putShort((short) 0x8100).putShort((short) 100).putShort((short) 0x0800);
+            frameBuffer.put((byte) 0x45).put((byte) 0).putShort((short) (20 + 8 + rawRtpData.length)).putInt(0);
+            frameBuffer.put((byte) 64).put((byte) 17).putShort((short) 0).putInt(0x0a000001).putInt(0x0a000002);
+            frameBuffer.putShort((short) 5004).putShort((short) 6004).putShort((short) (8 + rawRtpData.length)).putShort((short) 0);
+            frameBuffer.put(rawRtpData);
+
+            int paddedLength = (frame.length + 3) & ~3;
+            ByteBuffer ng = ByteBuffer.allocate(28 + 28 + 32 + paddedLength).order(ByteOrder.LITTLE_ENDIAN);
+            ng.putInt(0x0A0D0D0A).putInt(28).putInt(0x1A2B3C4D).putShort((short) 1).putShort((short) 0).putLong(-1).putInt(28);
+            ng.putInt(1).putInt(28).putShort((short) RtpPcapReader.LINKTYPE_ETHERNET).putShort((short) 0).putInt(0)
+                    .putShort((short) 9).putShort((short) 1).put((byte) 9).put(new byte[3]).putInt(28);
+            ng.putInt(6).putInt(32 + paddedLength).putInt(0).putInt((int) (baseNanos >>> 32)).putInt((int) baseNanos)
+                    .putInt(frame.length).putInt(frame.length).put(frame).put(new byte[paddedLength - frame.length]).putInt(32 + paddedLength);
+            Files.write(ngFile.toPath(), ng.array());
+
+            try (RtpPcapReader reader = RtpPcapReader.open(ngFile.toPath())) {
+                assertTrue(reader.isPcapng());
+                ByteBuffer buffer = reader.next();
+                assertNotNull(buffer);
+                assertEquals(RtpPcapReader.LINKTYPE_ETHERNET, reader.getLinkType());
+                assertEquals(baseNanos, reader.getTimestampNanos());
+                assertEquals(rawRtpData.length - 3, buffer.limit());
+                assertEquals(new H265Packet(rawRtpData, RtpPacket.RTP_PACKET_MAX_SIZE, true).getSyncSource(), new H265Packet(buffer).getSyncSource());
+                assertNull(reader.next());
+
+                // Port filter
+                reader.rewind();
+                reader.setPortFilter(7000);
+                assertNull(reader.next());
+                assertEquals(1, reader.getSkippedRecords());
+            }
+
+            // 5) pcapng : Finer resolutions, picoseconds (if_tsresol = 12) and 2^-40 seconds (if_tsresol = 0x80 | 40)
+            long[][] resolutions = {
+                    {12, 1_234_567_890_123_456_789L, 1_234_567_890_123_456L},
+                    {0x80 | 40, (3L << 40) | (1L << 39), 3_500_000_000L}
+            };
+            for (long[] resolution : resolutions) {
+                ng.put(48, (byte) resolution[0]);
+                ng.putInt(68, (int) (resolution[1] >>> 32)).putInt(72, (int) resolution[1]);
+                Files.write(ngFile.toPath(), ng.array());
+                try (RtpPcapReader reader = RtpPcapReader.open(ngFile.toPath())) {
+                    assertNotNull(reader.next());
+                    assertEquals(resolution[2], reader.getTimestampNanos());
+                }
+            }
+        } catch (IOException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    @Test
+    public void AnnexBWriterTest () {
+        // VPS + IDR (FU) in one access unit, TRAIL_R (marker) in the next access unit
+        H265Packet nalu = makeLargeNalu(5000);
+        H265Packet vps = new H265Packet(rawVPSData, RtpPacket.RTP_PACKET_MAX_SIZE, true);
+        vps.writeHeader(false, vps.getPayloadType(), nalu.getSeqNumber() - 1, nalu.getTimestamp(), nalu.getSyncSource());
+        H265Packet trail = makeLargeNalu(300);
+        trail.setType(1);
+        trail.writeHeader(true, trail.getPayloadType(), nalu.getSeqNumber() + 10, nalu.getTimestamp() + 3000, nalu.getSyncSource());
+
+        byte[][] naluArray = {
+                Arrays.copyOfRange(rawVPSData, RtpPacket.FIXED_HEADER_SIZE, rawVPSData.length),
+                Arrays.copyOfRange(nalu.getRawData(), RtpPacket.FIXED_HEADER_SIZE, nalu.getLength()),
+                Arrays.copyOfRange(trail.getRawData(), RtpPacket.FIXED_HEADER_SIZE, trail.getLength())
+        };
+
+        try {
+            File file = File.createTempFile("jhevc", ".h265");
+            file.deleteOnExit();
+            try (H265AnnexBWriter annexBWriter = new H265AnnexBWriter(file.toPath(), 0)) {
+                H265Unpacker writerUnpacker = new H265Unpacker();
+                writerUnpacker.setNaluSink(annexBWriter);
+                assertTrue(writerUnpacker.handle(vps));
+                List<H265Packet> fuList = h265Packer.fragment(nalu, 1400);
+                assertNotNull(fuList);
+                for (H265Packet fu : fuList) {
+                    assertTrue(writerUnpacker.handle(fu));
+                }
+                assertTrue(writerUnpacker.handle(trail));
+
+                assertEquals(3, annexBWriter.getWrittenNalus());
+                assertEquals(2, annexBWriter.getAccessUnits());
+                assertEquals(0, annexBWriter.getFailedNalus());
+            }
+
+            // 4-byte start code : First NAL unit of an access unit, parameter sets
+            ByteArrayOutputStream expected = new ByteArrayOutputStream();
+            byte[][] startCodes = {{0, 0, 0, 1}, {0, 0, 1}, {0, 0, 0, 1}};
+            for (int i = 0; i < naluArray.length; i++) {
+                expected.write(startCodes[i]);
+                expected.write(naluArray[i]);
+            }
+            assertArrayEquals(expected.toByteArray(), Files.readAllBytes(file.toPath()));
+
+            try (H265AnnexBReader annexBReader = new H265AnnexBReader(file.getAbsolutePath())) {
+                for (byte[] naluData : naluArray) {
+                    ByteBuffer readNalu = annexBReader.next();
+                    assertNotNull(readNalu);
+                    assertEquals(naluData.length, readNalu.remaining());
+                }
+                assertNull(annexBReader.next());
+            }
+        } catch (IOException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    @Test
+    public void Fmp4SegmenterTest () {
+        final List<byte[]> initList = new ArrayList<>();
+        final List<byte[]> fragmentList = new ArrayList<>();
+        final List<Long> baseTimeList = new ArrayList<>();
+        H265Fmp4Segmenter segmenter = new H265Fmp4Segmenter(new H265Fmp4Listener() {
+            @Override
+            public void onInitSegment (ByteBuffer initSegment) {
+                byte[] data = new byte[initSegment.remaining()];
+                initSegment.get(data);
+                initList.add(data);
+            }
+
+            @Override
+            public void onFragment (ByteBuffer fragment, long sequenceNumber, long baseMediaDecodeTime, long duration) {
+                byte[] data = new byte[fragment.remaining()];
+                fragment.get(data);
+                fragmentList.add(data);
+                baseTimeList.add(baseMediaDecodeTime);
+                assertEquals(fragmentList.size(), sequenceNumber);
+            }
+        });
+
+        byte[][] parameterSets = {
+                Arrays.copyOfRange(rawVPSData, RtpPacket.FIXED_HEADER_SIZE, rawVPSData.length),
+                Arrays.copyOfRange(rawSPSData, RtpPacket.FIXED_HEADER_SIZE, rawSPSData.length),
+                Arrays.copyOfRange(rawPPSData, RtpPacket.FIXED_HEADER_SIZE, rawPPSData.length)
+        };
+        byte[] idr = Arrays.copyOfRange(rawRtpData, RtpPacket.FIXED_HEADER_SIZE, rawRtpData.length);
+        byte[] trail = Arrays.copyOf(idr, 200);
+        trail[0] = (byte) (1 << 1); // TRAIL_R
+
+        // TRAIL before the first IRAP > dropped
+        segmenter.onNalu(new H265NaluView(ByteBuffer.wrap(trail), 0, trail.length), 0, true);
+
+        // GOP 1 : [VPS, SPS, PPS, IDR] + 2 TRAIL, GOP 2 : [VPS, SPS, PPS (same), IDR] + 100 TRAIL (> reserved samples)
+        long timestamp = 1000;
+        for (int gop = 0; gop < 2; gop++) {
+            for (byte[] parameterSet : parameterSets) {
+                segmenter.onNalu(new H265NaluView(ByteBuffer.wrap(parameterSet), 0, parameterSet.length), timestamp, false);
+            }
+            segmenter.onNalu(new H265NaluView(ByteBuffer.wrap(idr), 0, idr.length), timestamp, true);
+            timestamp += 3000;
+            for (int i = 0; i < (gop == 0 ? 2 : 100); i++) {
+                segmenter.onNalu(new H265NaluView(ByteBuffer.wrap(trail), 0, trail.length), timestamp, true);
+                timestamp += 3000;
+            }
+        }
+        assertEquals(1, fragmentList.size());
+        segmenter.flush();
+
+        assertEquals(1, initList.size());
+        assertEquals(2, fragmentList.size());
+        assertEquals(1, segmenter.getDroppedSampleCount());
+        assertEquals(104, segmenter.getSampleCount());
+        // Decode time from the first access unit (The dropped TRAIL)
+        assertEquals(1000L, (long) baseTimeList.get(0));
+        assertEquals(10000L, (long) baseTimeList.get(1));
+
+        // Init segment : ftyp + moov > ... > hvc1 (1920x1080) > hvcC (Main, level 4.1)
+        ByteBuffer init = ByteBuffer.wrap(initList.get(0));
+        assertEquals("ftyp", new String(initList.get(0), 4, 4));
+        assertEquals("moov", new String(initList.get(0), init.getInt(0) + 4, 4));
+        int hvc1 = new String(initList.get(0), StandardCharsets.ISO_8859_1).indexOf("hvc1");
+        assertEquals(1920, init.getShort(hvc1 + 28));
+        assertEquals(1080, init.getShort(hvc1 + 30));
+        int hvcC = new String(initList.get(0), StandardCharsets.ISO_8859_1).indexOf("hvcC");
+        assertEquals(1, init.get(hvcC + 4)); // configurationVersion
+        assertEquals(1, init.get(hvcC + 5)); // general_profile_idc
+        assertEquals(123, init.get(hvcC + 16) & 0xff); // general_level_idc
+        assertEquals(3, init.get(hvcC + 26)); // numOfArrays
+
+        for (int i = 0; i < fragmentList.size(); i++) {
+            // moof > mfhd, traf > tfhd, tfdt, trun
+            ByteBuffer fragment = ByteBuffer.wrap(fragmentList.get(i));
+            int sampleCount = (i == 0) ? 3 : 101;
+            assertEquals("moof", new String(fragmentList.get(i), 4, 4));
+            assertEquals(i + 1, fragment.getInt(20));
+            assertEquals("trun", new String(fragmentList.get(i), 72, 4));
+            assertEquals(sampleCount, fragment.getInt(80));
+
+            int dataOffset = fragment.getInt(84);
+            assertEquals("mdat", new String(fragmentList.get(i), dataOffset - 4, 4));
+            assertEquals(fragmentList.get(i).length, dataOffset + fragment.getInt(dataOffset - 8) - 8);
+            for (int j = 0; j < sampleCount; j++) {
+                assertEquals(3000, fragment.getInt(88 + j * 12));
+                assertEquals(4 + (j == 0 ? idr.length : trail.length), fragment.getInt(92 + j * 12));
+            }
+
+            // The first sample : [Length] + IDR (Parameter sets are in hvcC)
+            assertEquals(0x02000000, fragment.getInt(96));
+            assertEquals(0x01010000, fragment.getInt(108));
+            assertEquals(idr.length, fragment.getInt(dataOffset));
+            assertArrayEquals(idr, Arrays.copyOfRange(fragmentList.get(i), dataOffset + 4, dataOffset + 4 + idr.length));
+        }
+    }
+
+    @Test
+    public void ShardedEngineTest () {
+        // Shard-local map : Removal keeps the other keys reachable (backward shift)
+        LongObjectMap<Long> longObjectMap = new LongObjectMap<>();
+        for (long key = 0; key < 1000; key++) {
+            assertNull(longObjectMap.put(key * 7919, key));
+        }
+        for (long key = 0; key < 1000; key += 2) {
+            assertEquals(key, (long) longObjectMap.remove(key * 7919));
+        }
+        assertEquals(500, longObjectMap.size());
+        for (long key = 0; key < 1000; key++) {
+            assertEquals(key % 2 == 0 ? null : key, longObjectMap.get(key * 7919));
+        }
+
+        final AtomicInteger createdCount = new AtomicInteger(0);
+        final AtomicInteger naluCount = new AtomicInteger(0);
+        final Map<Long, String> threadMap = new ConcurrentHashMap<>();
+        RtpBufferPool shardPool = new RtpBufferPool();
+        H265ShardedEngine engine = new H265ShardedEngine(ssrc -> {
+            createdCount.incrementAndGet();
+            H265Unpacker shardUnpacker = new H265Unpacker();
+            shardUnpacker.setNaluSink((nalu, timestamp, marker) -> {
+                naluCount.incrementAndGet();
+                threadMap.put(ssrc, Thread.currentThread().getName());
+            });
+            return shardUnpacker;
+        }, 4, 1024, shardPool);
+        engine.start();
+
+        // 4 hot streams on shard 0, 4 cold streams on shard 1, shard 2 and 3 are idle
+        List<Long> hotList = new ArrayList<>();
+        List<Long> coldList = new ArrayList<>();
+        for (long ssrc = 1000; hotList.size() < 4 || coldList.size() < 4; ssrc++) {
+            int shardIndex = engine.getShardOf(ssrc);
+            if (shardIndex == 0 && hotList.size() < 4) {
+                hotList.add(ssrc);
+            } else if (shardIndex == 1 && coldList.size() < 4) {
+                coldList.add(ssrc);
+            }
+        }
+
+        H265Packet h265Packet = makeLargeNalu(200);
+        int seqNumber = 0;
+        for (int i = 0; i < 100; i++) {
+            for (long ssrc : hotList) {
+                h265Packet.writeHeader(true, h265Packet.getPayloadType(), seqNumber++, i * 3000L, ssrc);
+                assertTrue(engine.ingest(h265Packet.getBuffer()));
+            }
+            for (int j = 0; i < 10 && j < coldList.size(); j++) {
+                h265Packet.writeHeader(true, h265Packet.getPayloadType(), seqNumber++, i * 3000L, coldList.get(j));
+                assertTrue(engine.ingest(h265Packet.getBuffer()));
+            }
+        }
+        waitForHandledPackets(engine, 440);
+        assertEquals(8, createdCount.get());
+        assertEquals(8, engine.getStreamCount());
+        assertEquals(4, engine.getShardStats(0).getStreamCount());
+        for (Map.Entry<Long, String> entry : threadMap.entrySet()) {
+            assertEquals("h265-shard-" + engine.getShardOf(entry.getKey()), entry.getValue());
+        }
+
+        // Shard 0 is over the average > Hot streams up to half of the gap (400 - 0) are moved to an idle shard
+        assertTrue(engine.rebalance());
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(2);
+        while (engine.getShardStats(0).getMovedOutStreams() < 2 && System.nanoTime() < deadline) {
+            LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(1));
+        }
+        assertEquals(2, engine.getShardStats(0).getMovedOutStreams());
+        int movedCount = 0;
+        for (long ssrc : hotList) {
+            if (engine.getShardOf(ssrc) != 0) {
+                movedCount++;
+            }
+        }
+        assertEquals(2, movedCount);
+
+        // Moved streams keep their unpackers in the new shard
+        for (int i = 100; i < 110; i++) {
+            for (long ssrc : hotList) {
+                h265Packet.writeHeader(true, h265Packet.getPayloadType(), seqNumber++, i * 3000L, ssrc);
+                assertTrue(engine.ingest(h265Packet.getBuffer()));
+            }
+        }
+        waitForHandledPackets(engine, 480);
+        assertEquals(8, createdCount.get());
+        assertEquals(480, naluCount.get());
+        assertEquals(2, engine.getShardStats(0).getStreamCount());
+        for (long ssrc : hotList) {
+            assertEquals("h265-shard-" + engine.getShardOf(ssrc), threadMap.get(ssrc));
+        }
+
+        assertTrue(engine.shutdown(2000));
+        assertFalse(engine.ingest(h265Packet.getBuffer()));
+        long dropped = 0;
+        for (H265ShardedEngine.ShardStats shardStats : engine.getShardStats()) {
+            assertEquals(0, shardStats.getFailedPackets());
+            dropped += shardStats.getDroppedPackets();
+        }
+        assertEquals(1, dropped);
+        assertEquals(shardPool.getAcquiredBuffers(), shardPool.getReleasedBuffers()); // No packet is left in the queues
+    }
+
+    @Test
+    public void StreamLoopExecutorTest () {
+        final List<byte[]> naluDataList = new ArrayList<>();
+        H265Unpacker loopUnpacker = new H265Unpacker();
+        loopUnpacker.setNaluSink((nalu, timestamp, marker) -> {
+            byte[] data = new byte[nalu.getLength()];
+            nalu.asByteBuffer().get(data);
+            synchronized (naluDataList) {
+                naluDataList.add(data);
+            }
+        });
+
+        // Virtual threads on Java 21+ (multi-release jar), platform threads otherwise
+        // - The test phase runs against target/classes, which is not loaded as multi-release (Java 8 H265StreamThreads),
+        //      the java21 profile runs this test again against the jar. (h265.expectVirtualThreads)
+        H265StreamLoopExecutor executor = new H265StreamLoopExecutor();
+        assertEquals(H265StreamThreads.isVirtualThreadSupported(), executor.isVirtual());
+        if (Boolean.getBoolean("h265.expectVirtualThreads")) {
+            assertTrue(executor.isVirtual());
+        }
+        H265StreamLoop loop = executor.start(new InetSocketAddress("127.0.0.1", 0), loopUnpacker);
+        assertNotNull(loop);
+        assertEquals(1, executor.getLoopCount());
+
+        H265Packet nalu = makeLargeNalu(1000);
+        nalu.getBuffer().put(0, (byte) 0x80); // No padding
+        try (DatagramChannel sender = DatagramChannel.open()) {
+            sender.connect(loop.getChannel().getLocalAddress());
+            sender.write(ByteBuffer.wrap(nalu.getRawData(), 0, nalu.getLength()));
+            sender.write(ByteBuffer.wrap(new byte[]{0x00, 0x01, 0x02, 0x03})); // Not RTP : Dropped
+
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(2);
+            while (loop.getReceivedDatagrams() < 2 && System.nanoTime() < deadline) {
+                LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(1));
+            }
+        } catch (IOException e) {
+            throw new AssertionError(e);
+        }
+        assertEquals(2, loop.getReceivedDatagrams());
+        assertEquals(1, loop.getDroppedDatagrams());
+        assertEquals(0, loop.getFailedPackets());
+        synchronized (naluDataList) {
+            assertEquals(1, naluDataList.size());
+            assertArrayEquals(Arrays.copyOfRange(nalu.getRawData(), RtpPacket.FIXED_HEADER_SIZE, nalu.getLength()), naluDataList.get(0));
+        }
+
+        // close() ends the blocked receive
+        assertTrue(executor.close(2000));
+        assertTrue(loop.isStopped());
+        assertFalse(loop.getChannel().isOpen());
+        assertEquals(0, executor.getLoopCount());
+        assertNull(executor.start(new InetSocketAddress("127.0.0.1", 0), loopUnpacker));
+    }
+
+    @Test
+    public void RingQueueTest () {
+        // SPSC : Capacity is rounded up to a power of 2, a full ring refuses
+        SpscRingQueue<Integer> spscRing = new SpscRingQueue<>(6);
+        assertEquals(8, spscRing.capacity());
+        assertTrue(spscRing.isEmpty());
+        assertNull(spscRing.poll());
+        for (int i = 0; i < 8; i++) {
+            assertTrue(spscRing.offer(i));
+        }
+        assertFalse(spscRing.offer(8));
+        assertEquals(8, spscRing.size());
+
+        // Batch drain in order, up to the limit
+        List<Integer> drainList = new ArrayList<>();
+        assertEquals(3, spscRing.drain(drainList::add, 3));
+        assertEquals(Arrays.asList(0, 1, 2), drainList);
+        assertEquals(3, (int) spscRing.poll());
+        assertTrue(spscRing.offer(8));
+        assertTrue(spscRing.offer(9));
+        drainList.clear();
+        assertEquals(6, spscRing.drainTo(drainList, 64));
+        assertEquals(Arrays.asList(4, 5, 6, 7, 8, 9), drainList);
+        assertTrue(spscRing.isEmpty());
+
+        // MPSC : 4 producers through a small ring, each producer's elements stay in order
+        final int producerCount = 4;
+        final int perProducer = 20000;
+        final MpscRingQueue<long[]> mpscRing = new MpscRingQueue<>(256);
+        List<Thread> producers = new ArrayList<>();
+        for (int p = 0; p < producerCount; p++) {
+            final int producer = p;
+            Thread thread = new Thread(() -> {
+                int idleCount = 0;
+                for (int i = 0; i < perProducer; i++) {
+                    long[] element = {producer, i};
+                    while (!mpscRing.offer(element)) {
+                        idleCount = RingWaitStrategy.YIELD.idle(idleCount);
+                    }
+                    idleCount = 0;
+                }
+            });
+            producers.add(thread);
+            thread.start();
+        }
+
+        final long[] nextIndexes = new long[producerCount];
+        final int[] errorCount = {0};
+        int received = 0;
+        int idleCount = 0;
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (received < producerCount * perProducer && System.nanoTime() < deadline) {
+            int drained = mpscRing.drain(element -> {
+                if (element[1] != nextIndexes[(int) element[0]]++) {
+                    errorCount[0]++;
+                }
+            }, 64);
+            received += drained;
+            idleCount = drained > 0 ? 0 : RingWaitStrategy.PARK.idle(idleCount);
+        }
+        assertEquals(producerCount * perProducer, received);
+        assertEquals(0, errorCount[0]);
+        assertTrue(mpscRing.isEmpty());
+        assertEquals(0, mpscRing.size());
+    }
+
+    @Test
+    public void PipelineTest () {
+        final List<Long> timestampList = Collections.synchronizedList(new ArrayList<>());
+        final List<String> threadList = Collections.synchronizedList(new ArrayList<>());
+        final byte[] spsNalu = Arrays.copyOfRange(rawSPSData, RtpPacket.FIXED_HEADER_SIZE, rawSPSData.length);
+        final AtomicInteger mismatchCount = new AtomicInteger(0);
+        H265Pipeline pipeline = new H265Pipeline(ssrc -> new H265Unpacker(), (nalu, timestamp, marker) -> {
+            byte[] data = new byte[nalu.getLength()];
+            nalu.asByteBuffer().get(data);
+            if (!Arrays.equals(spsNalu, data)) {
+                mismatchCount.incrementAndGet();
+            }
+            timestampList.add(timestamp);
+            threadList.add(Thread.currentThread().getName());
+        }, 256, RingWaitStrategy.PARK, new RtpBufferPool());
+        pipeline.setJitterBuffer(64, 20);
+        pipeline.start();
+
+        // Seq 0 ~ 99, adjacent packets are swapped, 50 is lost
+        List<Integer> seqList = new ArrayList<>();
+        for (int seq = 0; seq < 100; seq++) {
+            if (seq != 50) {
+                seqList.add(seq);
+            }
+        }
+        for (int i = 1; i + 1 < seqList.size(); i += 2) {
+            Collections.swap(seqList, i, i + 1);
+        }
+        for (int seq : seqList) {
+            H265Packet h265Packet = makeSeqPacket(seq);
+            h265Packet.writeHeader(false, h265Packet.getPayloadType(), seq, seq * 3000L, h265Packet.getSyncSource());
+            assertTrue(pipeline.ingest(h265Packet));
+        }
+
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(2);
+        while (pipeline.getNaluCount() < 99 && System.nanoTime() < deadline) {
+            LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(1));
+        }
+        assertEquals(99, pipeline.getNaluCount());
+        assertEquals(99, pipeline.getReceivedPackets());
+        assertEquals(99, pipeline.getDepacketizedPackets());
+        assertEquals(1, pipeline.getGapResets());
+        assertEquals(1, pipeline.getStreamCount());
+
+        // In order after the reorder stage, delivered by the sink thread
+        for (int i = 1; i < timestampList.size(); i++) {
+            assertTrue(timestampList.get(i) > timestampList.get(i - 1));
+        }
+        assertEquals(0, mismatchCount.get());
+        assertEquals(Collections.singleton("h265-pipeline-sink"), new HashSet<>(threadList));
+
+        // Late (already delivered) packet is dropped by the reorder stage
+        assertTrue(pipeline.ingest(makeSeqPacket(10)));
+        assertTrue(pipeline.shutdown(2000));
+        assertEquals(1, pipeline.getLatePackets());
+        assertEquals(99, pipeline.getNaluCount());
+        assertEquals(0, pipeline.getQueuedPackets());
+
+        assertFalse(pipeline.ingest(makeSeqPacket(100)));
+        assertEquals(1, pipeline.getDroppedPackets());
     }
 
     ///////////////////////////////////////////////////
@@ -125,6 +1936,9 @@ public class HEVCTest {
         FUFailTest3_MIDDLE_RECV_OTHER_TYPE();
         FUFailTest4_S1_E1();
         FUFailTest5_Nested();
+
+        // Annex-B
+        AnnexBFailTest1_Truncated_After_Start_Code();
     }
 
     /**
@@ -262,6 +2076,75 @@ public class HEVCTest {
         assertFalse(h265Unpacker.handle(fu));
     }
 
+    /**
+     * 마지막 시작 코드 뒤에 3 바이트 미만만 남은 (잘린) Annex-B 파일은 스트림 끝으로 처리
+     */
+    @Test
+    public void AnnexBFailTest1_Truncated_After_Start_Code () {
+        // [Start code] + IDR_W_RADL slice (8 bytes) + [Start code] + 1 byte
+        byte[] data = {0, 0, 0, 1, 0x26, 0x01, (byte) 0xaf, 0x11, 0x22, 0x33, 0x44, 0x55, 0, 0, 1, 0x40};
+        try {
+            File file = File.createTempFile("jhevc", ".h265");
+            file.deleteOnExit();
+            try (FileOutputStream outputStream = new FileOutputStream(file)) {
+                outputStream.write(data);
+            }
+
+            // Window ends at the last start code (remapped to the 1 byte tail), and the whole file in one window
+            for (int windowSize : new int[]{data.length - 1, H265AnnexBReader.DEFAULT_WINDOW_SIZE}) {
+                try (H265AnnexBReader annexBReader = new H265AnnexBReader(file.getAbsolutePath(), windowSize)) {
+                    ByteBuffer nalu = annexBReader.next();
+                    assertNotNull(nalu);
+                    assertEquals(8, nalu.remaining());
+                    assertTrue(annexBReader.isEndOfAccessUnit());
+                    assertNull(annexBReader.next());
+                    assertTrue(annexBReader.isEndOfAccessUnit());
+                }
+            }
+        } catch (IOException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    ///////////////////////////////////////////////////
+
+    /**
+     * rawSPSData 에 seqNumber 를 설정한 패킷 생성
+     */
+    private H265Packet makeSeqPacket (int seqNumber) {
+        H265Packet h265Packet = new H265Packet(rawSPSData, RtpPacket.RTP_PACKET_MAX_SIZE, true);
+        h265Packet.writeHeader(false, h265Packet.getPayloadType(), seqNumber, h265Packet.getTimestamp(), h265Packet.getSyncSource());
+        return h265Packet;
+    }
+
+    void waitForHandledPackets (H265ShardedEngine engine, long count) {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(2);
+        long handled = 0;
+        while (System.nanoTime() < deadline) {
+            handled = 0;
+            for (H265ShardedEngine.ShardStats shardStats : engine.getShardStats()) {
+                handled += shardStats.getHandledPackets();
+            }
+            if (handled >= count) {
+                break;
+            }
+            LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(1));
+        }
+        assertEquals(count, handled);
+    }
+
+    /**
+     * rawRtpData 의 RTP Header 와 NALU Header (Type 19) 를 사용하여 naluLength 크기의 NALU 패킷 생성 (marker = 1)
+     */
+    H265Packet makeLargeNalu (int naluLength) {
+        byte[] data = new byte[RtpPacket.FIXED_HEADER_SIZE + naluLength];
+        System.arraycopy(rawRtpData, 0, data, 0, RtpPacket.FIXED_HEADER_SIZE + H265Packet.RTP_HEVC_PAYLOAD_HEADER_SIZE);
+        for (int i = RtpPacket.FIXED_HEADER_SIZE + H265Packet.RTP_HEVC_PAYLOAD_HEADER_SIZE; i < data.length; i++) {
+            data[i] = (byte) (i * 31);
+        }
+        return new H265Packet(data, data.length, true);
+    }
+
     ///////////////////////////////////////////////////
 
     byte[] rawIpUdpData = {